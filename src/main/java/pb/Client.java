@@ -1,6 +1,9 @@
 package pb;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -11,6 +14,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import pb.client.ClientManager;
+import pb.transport.TlsContext;
 
 /**
  * Client main. Parse command line options and provide default values.
@@ -24,6 +28,8 @@ class Client  {
 	private static Logger log = Logger.getLogger(Client.class.getName());
 	private static int port=Utils.serverPort; // default port number for the server
 	private static String host=Utils.serverHost; // default host for the server
+	private static TlsContext tls=null; // by default the connection is not encrypted
+	private static Path socketPath=null; // by default connect to the host and port
 	
 	private static void help(Options options){
 		String header = "PB Client for Unimelb COMP90015\n\n";
@@ -43,6 +49,10 @@ class Client  {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("host",true,"hostname, a string");
+        options.addOption("tls",false,"encrypt the connection with TLS");
+        options.addOption("truststore",true,"trust store with the certificates to trust for TLS, a path, implies -tls");
+        options.addOption("storepass",true,"password of the trust store");
+        options.addOption("socket",true,"Unix domain socket of a server on the same host, a path, instead of the host and port");
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -65,13 +75,32 @@ class Client  {
         	host = cmd.getOptionValue("host");
         }
         
+        if(cmd.hasOption("tls") || cmd.hasOption("truststore")) {
+        	try {
+        		char[] password = cmd.getOptionValue("storepass", "").toCharArray();
+        		tls = TlsContext.load(null, null,
+        				cmd.hasOption("truststore") ? Paths.get(cmd.getOptionValue("truststore")) : null, password);
+        	} catch (IOException | GeneralSecurityException e) {
+        		System.out.println("bad trust store: "+e.getMessage());
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("socket")) {
+        	socketPath = Paths.get(cmd.getOptionValue("socket"));
+        }
+        
         // start up the client
         log.info("PB Client starting up");
         
         // the client manager will make a connection with the server
         // and the connection will use a thread that prevents the JVM
         // from terminating immediately
-        new ClientManager(host,port);
+        if(socketPath!=null) {
+        	new ClientManager(socketPath);
+        } else {
+        	new ClientManager(host,port,tls);
+        }
         
     }
 }
@@ -1,43 +1,62 @@
 package pb;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Logger;
 
+import pb.protocols.BinaryCodec;
 import pb.protocols.InvalidMessage;
+import pb.protocols.JsonWriter;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
 import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.asset.AssetProtocol;
+import pb.protocols.board.BoardProtocol;
 import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.presence.PresenceProtocol;
 import pb.protocols.session.SessionProtocol;
+import pb.protocols.viewport.ViewportProtocol;
+import pb.transport.DatagramLink;
+import pb.transport.SocketTransport;
+import pb.transport.Transport;
 
 /**
- * The endpoint is a thread that blocking reads incoming messages (on a socket)
- * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * The endpoint hands the messages that arrive on a {@link pb.transport.Transport}
+ * to the appropriate protocol for processing. The transport reads the frames,
+ * e.g. on a loop of the {@link pb.transport.IOEngine} that is shared by many
+ * connections, and the endpoint only decodes them into a preallocated
+ * {@link pb.MessageRing} on the transport's thread; the protocol handlers are
+ * run by the {@link pb.WorkerPool}, on the stripe for this endpoint, so a slow
+ * handler does not stop the connection from being read and messages are still
+ * handled in the order they arrived. When the handlers fall behind, or the
+ * other end sends too fast, the endpoint pauses the transport rather than
+ * blocking its thread. It also provides a synchronized method to send
+ * messages to the other endpoint, one that does not block for the server to
+ * send to many clients without one that is slow to read holding up the others,
+ * and a method to send messages that are only of use while they are fresh on
+ * a {@link pb.transport.DatagramLink}, if the session has one.
  * Any number of protocols can be handled by the endpoint, but there can be only
  * one instance of each protocol running at a time.
  * 
  * @see {@link pb.Manager}
+ * @see {@link pb.transport.Transport}
  * @see {@link pb.protocols.session.SessionProtocol}
  * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
  *
  */
-public class Endpoint extends Thread {
+public class Endpoint {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
 	/**
-	 * The socket this endpoint is wrapped around.
+	 * The transport this endpoint sends and receives frames on.
 	 */
-	private Socket socket;
+	private final Transport transport;
 	
 	/**
 	 * The manager to report to when things happen.
@@ -45,142 +64,633 @@ public class Endpoint extends Thread {
 	private Manager manager;
 	
 	/**
-	 * The input data stream on the socket.
+	 * Whether the transport has opened and the endpoint has not been closed,
+	 * so that messages can be sent.
 	 */
-	private DataInputStream in=null;
+	private volatile boolean open = false;
 	
 	/**
-	 * The output data stream on the socket.
+	 * Whether the endpoint has been closed on purpose.
 	 */
-	private DataOutputStream out=null;
+	private volatile boolean closed = false;
 	
 	/**
-	 * A protocol name to protocol map, of protocols in use.
+	 * Released once the endpoint stops receiving, because it was closed or
+	 * the connection broke.
 	 */
-	private Map<String,Protocol> protocols;
+	private final CountDownLatch terminated = new CountDownLatch(1);
 	
 	/**
-	 * Initialise the endpoint with a socket and a manager.
+	 * The protocols in use, indexed by protocol id. Slots are read without
+	 * locking when routing a message. The array is only replaced (grown) or
+	 * written while holding {@link #protocolsLock}.
+	 */
+	private volatile AtomicReferenceArray<Protocol> protocols;
+	
+	/**
+	 * Serialises changes to the protocol slots.
+	 */
+	private final Object protocolsLock = new Object();
+	
+	/**
+	 * Number of decoded messages that can be waiting to be handled before
+	 * the transport is paused.
+	 */
+	private static final int INBOX_CAPACITY = 256;
+	
+	/**
+	 * Maximum number of messages handled by one worker task, before the
+	 * task is resubmitted to give other endpoints on the stripe a turn.
+	 */
+	private static final int DRAIN_BATCH = 64;
+	
+	/**
+	 * Decoded messages waiting to be handled by a worker.
+	 */
+	private final MessageRing inbox = new MessageRing(INBOX_CAPACITY);
+	
+	/**
+	 * A message that did not fit in the inbox, which a worker adds once
+	 * there is room, before the transport is resumed. The inbox only has
+	 * one producer at a time, since the transport is paused meanwhile.
+	 */
+	private volatile Message backlog = null;
+	
+	/**
+	 * Why the transport is paused, as a set of the reasons below, guarded
+	 * by {@link #pauseLock}.
+	 */
+	private int paused = 0;
+	private final Object pauseLock = new Object();
+	private static final int THROTTLED = 1;
+	private static final int BACKLOGGED = 2;
+	private static final int VIOLATED = 4;
+	
+	/**
+	 * Limits how fast the other endpoint may send, or null; only used on the
+	 * transport's thread.
+	 */
+	private RateLimiter limiter = null;
+	
+	/**
+	 * The session's datagram link, or null if it has none.
+	 */
+	private volatile DatagramLink datagrams = null;
+	
+	/**
+	 * Limits how fast the other endpoint may send on the datagram link, or
+	 * null; only used on the link's loop.
+	 */
+	private RateLimiter datagramLimiter = null;
+	
+	/**
+	 * Whether a worker task is scheduled (or running) to drain the inbox.
+	 */
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	
+	/**
+	 * Whether the connection has broken and the manager has not been told
+	 * yet, which it is once the messages that arrived before are handled.
+	 */
+	private final AtomicBoolean disconnected = new AtomicBoolean(false);
+	
+	/**
+	 * The smoothed round trip to the other endpoint, in microseconds, or -1
+	 * until it has been measured.
+	 * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+	 */
+	private volatile long rtt = -1;
+	
+	/**
+	 * The smoothed estimate of how far the server's clock is ahead of this
+	 * one, in microseconds; 0 on the server.
+	 */
+	private volatile long clockOffset = 0;
+	
+	/**
+	 * The fastest round trip measured, and the number of measurements.
+	 */
+	private long minRtt = Long.MAX_VALUE;
+	private volatile int clockSamples = 0;
+	
+	/**
+	 * The weights of a new measurement of the round trip, and of the
+	 * clock offset, in the smoothed estimates.
+	 */
+	private static final double RTT_GAIN = 1.0/8;
+	private static final double OFFSET_GAIN = 1.0/4;
+	
+	/**
+	 * A measurement of the offset is only used if its round trip is at most
+	 * this many times the smoothed one, since a slow round trip is most likely
+	 * queued one way more than the other, which skews the offset.
+	 */
+	private static final double OFFSET_MAX_RTT = 1.5;
+	
+	/**
+	 * Whether the other endpoint has said that it can read messages in
+	 * the binary encoding.
+	 * @see {@link pb.protocols.BinaryCodec}
+	 */
+	private volatile boolean binaryPeer = false;
+	
+	/**
+	 * The number of messages read, only written by the transport's thread.
+	 */
+	private volatile long received = 0;
+	
+	/**
+	 * Counts the messages sent and received other than keep alives, to tell
+	 * whether the connection is in use. Sends and reads may race to count,
+	 * which loses a count but still changes it.
+	 */
+	private volatile int activity = 0;
+	
+	/**
+	 * Whether the endpoint is idle and has released what it can.
+	 */
+	private volatile boolean suspended = false;
+	
+	/**
+	 * Initialise the endpoint with a blocking socket, which is read by a
+	 * thread of its own, and a manager.
 	 * @param socket
 	 * @param manager
 	 */
 	public Endpoint(Socket socket, Manager manager) {
-		this.socket = socket;
+		this(new SocketTransport(socket), manager);
+	}
+	
+	/**
+	 * Initialise the endpoint with a transport and a manager.
+	 * @param transport
+	 * @param manager
+	 */
+	public Endpoint(Transport transport, Manager manager) {
+		this.transport = transport;
 		this.manager = manager;
-		protocols = new HashMap<>();
+		protocols = new AtomicReferenceArray<>(8);
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Start the transport. The manager is told the endpoint is ready once it
+	 * has opened, on a worker before any message is handled.
+	 */
+	public void start() {
+		RateLimits limits = manager.getRateLimits();
+		limiter = limits==null ? null : new RateLimiter(limits);
+		datagramLimiter = limits==null ? null : new RateLimiter(limits);
+		try {
+			transport.start(new Receiver());
+		} catch (IOException e) {
+			log.warning("endpoint did not start: "+e.getMessage());
+			terminated.countDown();
+			manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+	
+	/**
+	 * Wait until the endpoint stops receiving, because it was closed or the
+	 * connection broke.
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		terminated.await();
+	}
+	
+	/**
+	 * Send a Message on the transport for this endpoint. This is synchronized
+	 * to keep the messages in the order they were sent.
 	 * @param msg
 	 * @return true if the message was sent, false otherwise
 	 * @throws EndpointUnavailable if the endpoint is not yet ready 
 	 * or if the endpoint is terminated
 	 */
 	public synchronized boolean send(Message msg) throws EndpointUnavailable {
-		if(out==null) {
+		return transmit(msg, true);
+	}
+	
+	/**
+	 * Send a Message on the transport for this endpoint without blocking, e.g.
+	 * one of many sent on by a thread that other clients are waiting for. If
+	 * the other endpoint is not keeping up, i.e. too much that was sent
+	 * before is still waiting to be written, the message is not sent, and it
+	 * is up to the caller to drop it or close the endpoint. Nor does it wait
+	 * for a {@link #send(Message)} that is blocked.
+	 * @param msg
+	 * @return true if the message was sent, false otherwise
+	 * @throws EndpointUnavailable if the endpoint is not yet ready 
+	 * or if the endpoint is terminated
+	 */
+	public boolean trySend(Message msg) throws EndpointUnavailable {
+		return transmit(msg, false);
+	}
+	
+	/**
+	 * Encode a message and hand it to the transport.
+	 * @param msg
+	 * @param wait whether to block while too much is waiting to be written,
+	 * rather than not send it
+	 * @return true if the message was sent, false otherwise
+	 * @throws EndpointUnavailable
+	 */
+	private boolean transmit(Message msg, boolean wait) throws EndpointUnavailable {
+		if(!open) {
 			throw new EndpointUnavailable();
 		}
 		try {
 			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			if(msg.getProtocolId()!=KeepAliveProtocol.protocolId) active();
+			byte[] frame = msg.getFrame();
+			if(frame!=null) {
+				return transmit(frame, 0, frame.length, wait);
+			} else if(binaryPeer && BinaryCodec.get().writeFrame(msg)) {
+				BinaryCodec codec = BinaryCodec.get();
+				return transmit(codec.buffer(), 0, codec.length(), wait);
+			} else {
+				JsonWriter writer = JsonWriter.get();
+				msg.writeFrame(writer);
+				return transmit(writer.buffer(), 0, writer.length(), wait);
+			}
+		} catch (UTFDataFormatException e) {
+			// nothing was written, the connection is still fine
+			log.warning("message not sent: "+e.getMessage());
+			return false;
 		} catch (IOException e) {
 			manager.endpointDisconnectedAbruptly(this);
 			return false;
 		}
+	}
+	
+	private boolean transmit(byte[] buf, int off, int len, boolean wait) throws IOException {
+		if(!wait) return transport.trySend(buf, off, len);
+		transport.send(buf, off, len);
 		return true;
 	}
 	
 	/**
-	 * Closes the endpoint, which closes the socket
+	 * Send a message that is only of use while it is fresh, e.g. where a
+	 * cursor is, on the datagram link if it is bound, where it may be lost
+	 * or dropped for a newer one. Otherwise, e.g. if UDP is blocked, it is
+	 * sent like any other message.
+	 * @param msg
+	 * @return true if the message was sent, false otherwise
+	 * @throws EndpointUnavailable if the endpoint is not yet ready 
+	 * or if the endpoint is terminated
 	 */
-	public synchronized void close() {
-		// make sure all of the protocols have stopped
-		Set<String> protocolNames;
-		synchronized(protocols) {
-			protocolNames = new HashSet<String>(protocols.keySet());
+	public boolean sendEphemeral(Message msg) throws EndpointUnavailable {
+		return sendEphemeral(msg, true);
+	}
+	
+	/**
+	 * As {@link #sendEphemeral(Message)}, but without blocking: if it is not
+	 * sent on the datagram link, it is sent with {@link #trySend(Message)}.
+	 * @param msg
+	 * @return true if the message was sent, false otherwise
+	 * @throws EndpointUnavailable if the endpoint is not yet ready 
+	 * or if the endpoint is terminated
+	 */
+	public boolean trySendEphemeral(Message msg) throws EndpointUnavailable {
+		return sendEphemeral(msg, false);
+	}
+	
+	private boolean sendEphemeral(Message msg, boolean wait) throws EndpointUnavailable {
+		DatagramLink link = datagrams;
+		if(link!=null && link.isBound()) {
+			if(!open) {
+				throw new EndpointUnavailable();
+			}
+			active();
+			byte[] frame = msg.getFrame();
+			boolean sent;
+			try {
+				if(frame!=null) {
+					sent = link.send(frame, 0, frame.length);
+				} else if(binaryPeer && BinaryCodec.get().writeFrame(msg)) {
+					BinaryCodec codec = BinaryCodec.get();
+					sent = link.send(codec.buffer(), 0, codec.length());
+				} else {
+					JsonWriter writer = JsonWriter.get();
+					msg.writeFrame(writer);
+					sent = link.send(writer.buffer(), 0, writer.length());
+				}
+			} catch (UTFDataFormatException e) {
+				// which send reports
+				sent = false;
+			}
+			if(sent) return true;
 		}
-		if(protocolNames!=null)
-			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
-		interrupt();
+		return wait ? send(msg) : trySend(msg);
+	}
+	
+	/**
+	 * Send ephemeral messages on a datagram link from now on, once it is
+	 * bound, and handle the messages that arrive on it.
+	 * @param link
+	 * @see {@link #sendEphemeral(Message)}
+	 */
+	public void setDatagramLink(DatagramLink link) {
 		try {
-			if(out!=null) out.close();
-			out=null;
+			link.start(this::datagramReceived);
 		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+			log.warning("datagram link not started: "+e.getMessage());
+			link.close();
+			return;
 		}
+		DatagramLink old = datagrams;
+		datagrams = link;
+		if(old!=null) old.close();
+		// closed meanwhile
+		if(closed) link.close();
+	}
+	
+	/**
+	 * @return the session's datagram link, or null if it has none
+	 */
+	public DatagramLink getDatagramLink() {
+		return datagrams;
+	}
+	
+	/**
+	 * A frame has arrived on the datagram link, on its loop. Only messages
+	 * of the protocols that send them ephemerally are taken. They are
+	 * handled on the endpoint's stripe, but not through the inbox, which
+	 * only the transport adds to; a message that is over the rate limits,
+	 * or not valid, is dropped, as it might have been on the way.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	private void datagramReceived(byte[] buf, int off, int len) {
+		if(!open) return;
+		Message msg;
 		try {
-			socket.close();
-		} catch (IOException e) {
-			log.warning("socket did not close properly: "+e.getMessage());
+			msg = Message.toMessage(buf, off+2, len-2);
+		} catch (InvalidMessage e) {
+			log.fine("invalid datagram from "+getOtherEndpointId());
+			return;
 		}
+		if(msg.getProtocolId()!=PresenceProtocol.protocolId) return;
+		if(datagramLimiter!=null && datagramLimiter.charge(msg.getProtocolId(), len)>0) return;
+		active();
+		WorkerPool.getInstance().execute(this, ()->{
+			try {
+				handle(msg);
+			} catch (EndpointUnavailable e) {
+				// the transport reports it
+			}
+		});
+	}
+	
+	/**
+	 * Closes the endpoint, which closes the transport. Closing it again does
+	 * nothing.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		// make sure all of the protocols have stopped
+		AtomicReferenceArray<Protocol> slots = protocols;
+		for(int id=0;id<slots.length();id++) {
+			if(slots.get(id)!=null) stopProtocol(id);
+		}
+		closed = true;
+		open = false;
+		// it was closed on purpose, whether or not the connection had broken
+		disconnected.set(false);
+		transport.close();
+		DatagramLink link = datagrams;
+		if(link!=null) link.close();
+		terminated.countDown();
 		manager.endpointClosed(this);
 	}
 	
 	/**
-	 * Continue to read messages from the socket until interrupted.
+	 * Close the endpoint of a client that is not keeping up, without waiting
+	 * for a send to it that is blocked: the transport is closed first, which
+	 * fails the send, and then the endpoint.
 	 */
-	@Override
-	public void run() {
-		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
-		} catch (IOException e){
-			manager.endpointDisconnectedAbruptly(this);
-			return;
+	public void abort() {
+		transport.close();
+		close();
+	}
+	
+	/**
+	 * Receives the frames from the transport, on its thread.
+	 */
+	private class Receiver implements Transport.Handler {
+		
+		@Override
+		public void opened() {
+			if(closed) return;
+			open = true;
+			log.info("endpoint has started to: "+getOtherEndpointId());
+			WorkerPool.getInstance().execute(Endpoint.this, ()->manager.endpointReady(Endpoint.this));
 		}
-		manager.endpointReady(this);
-		log.info("endpoint has started to: "+getOtherEndpointId());
-		while(!isInterrupted()) {
+		
+		@Override
+		public void frameReceived(byte[] buf, int off, int len) {
+			if(closed) return;
+			Message msg;
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
+				// control messages are recognised from their bytes, anything
+				// else is parsed straight from the bytes
+				msg = Message.toControlMessage(buf, off, len);
+				if(msg==null) msg = Message.toMessage(buf, off+2, len-2);
+			} catch (InvalidMessage e) {
+				// up to the manager what to do
+				WorkerPool.getInstance().execute(Endpoint.this, ()->manager.endpointSentInvalidMessage(Endpoint.this));
+				return;
+			}
+			received++;
+			if(msg.getProtocolId()!=KeepAliveProtocol.protocolId) active();
+			Trace trace = msg.getTrace();
+			if(trace!=null) trace.stamp(Trace.now()+clockOffset);
+			if(limiter!=null) {
+				long wait = limiter.charge(msg.getProtocolId(), len);
+				if(wait>0) {
+					if(limiter.getAction()==RateLimits.Action.DISCONNECT) {
+						log.warning(getOtherEndpointId()+" is sending "+msg.getProtocolName()+" too fast");
+						pause(VIOLATED);
+						Protocol protocol = getProtocol(msg.getProtocolId());
+						WorkerPool.getInstance().execute(Endpoint.this, ()->{
+							if(protocol!=null) manager.protocolViolation(Endpoint.this, protocol);
+							else manager.endpointSentInvalidMessage(Endpoint.this);
+						});
+						return;
 					}
+					// stop reading until it is back within its limits, so
+					// that its sends block once the buffers are full
+					pause(THROTTLED);
+					Utils.getInstance().setTimeout(()->unpause(THROTTLED),
+							Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait+999999)));
 				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
+			}
+			if(!inbox.offer(msg)) {
+				// the workers are behind, so stop reading until they catch up;
+				// paused before the backlog is set, so a worker that takes it
+				// straight away also resumes reading
+				pause(BACKLOGGED);
+				backlog = msg;
+			}
+			scheduleDrain();
+		}
+		
+		@Override
+		public void closed(IOException cause) {
+			// nothing to report if this end closed the connection
+			if(closed) return;
+			open = false;
+			if(cause!=null) log.info("connection to "+getOtherEndpointId()+" broke: "+cause.getMessage());
+			// e.g. the other end sent a reply and closed straight away, so
+			// the reply is handled before the disconnection
+			disconnected.set(true);
+			scheduleDrain();
+			terminated.countDown();
+			log.info("endpoint has terminated to: "+getOtherEndpointId());
+		}
+	}
+	
+	/**
+	 * Pause the transport, for a reason.
+	 * @param reason
+	 */
+	private void pause(int reason) {
+		synchronized(pauseLock) {
+			if(paused==0) transport.pauseReading();
+			paused |= reason;
+		}
+	}
+	
+	/**
+	 * Resume the transport, once there is no other reason for it to be paused.
+	 * @param reason
+	 */
+	private void unpause(int reason) {
+		synchronized(pauseLock) {
+			if((paused & reason)==0) return;
+			paused &= ~reason;
+			if(paused==0) transport.resumeReading();
+		}
+	}
+	
+	/**
+	 * Make sure that a worker will drain the inbox. At most one worker task is
+	 * scheduled at a time, which keeps the messages in order.
+	 */
+	private void scheduleDrain() {
+		if(draining.compareAndSet(false, true)) {
+			WorkerPool.getInstance().execute(this, this::drain);
+		}
+	}
+	
+	/**
+	 * Handle the messages in the inbox, on a worker thread.
+	 */
+	private void drain() {
+		boolean more = true;
+		try {
+			for(int i=0;i<DRAIN_BATCH;i++) {
+				Message msg = inbox.poll();
+				if(msg==null) break;
+				Trace trace = msg.getTrace();
+				if(trace!=null) trace.stamp(Trace.now()+clockOffset);
+				try {
+					handle(msg);
+				} catch (EndpointUnavailable e) {
+					manager.endpointDisconnectedAbruptly(this);
+					more = false;
+					return;
+				} catch (RuntimeException e) {
+					handleFailed(msg, e);
 				}
-			} catch (IOException e) {
+			}
+			Message waiting = backlog;
+			if(waiting!=null && inbox.offer(waiting)) {
+				backlog = null;
+				unpause(BACKLOGGED);
+			}
+			if(inbox.isEmpty() && backlog==null && disconnected.compareAndSet(true, false)) {
 				manager.endpointDisconnectedAbruptly(this);
-				// we can't continue here
+			}
+		} finally {
+			// whatever happened, or the inbox would never be drained again
+			draining.set(false);
+			// the transport may have added a message after the last poll
+			if(more && (!inbox.isEmpty() || disconnected.get())) scheduleDrain();
+		}
+	}
+	
+	/**
+	 * A protocol, or the manager it called, failed on a message, e.g. one it
+	 * did not expect. The failure is reported as a violation of the protocol,
+	 * which usually closes the endpoint, rather than left to stop the inbox
+	 * from being drained.
+	 * @param msg
+	 * @param e
+	 */
+	private void handleFailed(Message msg, RuntimeException e) {
+		log.severe("exception handling "+msg.getName()+" for protocol "+msg.getProtocolName()
+				+" from "+getOtherEndpointId()+": "+e);
+		Protocol protocol=getProtocol(msg.getProtocolId());
+		if(protocol!=null) {
+			manager.protocolViolation(this, protocol);
+		} else {
+			close();
+		}
+	}
+	
+	/**
+	 * Send the message to the appropriate protocol, starting the protocol
+	 * if the manager allows it.
+	 * @param msg
+	 * @throws EndpointUnavailable
+	 */
+	private void handle(Message msg) throws EndpointUnavailable {
+		Protocol protocol=getProtocol(msg.getProtocolId());
+		if(protocol==null) {
+			switch(msg.getProtocolName()) {
+			case SessionProtocol.protocolName:
+				protocol=new SessionProtocol(this,manager);
 				break;
-			} catch (InvalidMessage e) {
-				manager.endpointSentInvalidMessage(this);
-				// up to the client what to do
-			}catch (EndpointUnavailable e) {
-				manager.endpointDisconnectedAbruptly(this);
+			case KeepAliveProtocol.protocolName:
+				protocol=new KeepAliveProtocol(this,manager);
+				break;
+			case ViewportProtocol.protocolName:
+				protocol=new ViewportProtocol(this,manager);
+				break;
+			case BoardProtocol.protocolName:
+				protocol=new BoardProtocol(this,manager);
 				break;
+			case AssetProtocol.protocolName:
+				protocol=new AssetProtocol(this,manager);
+				break;
+			case PresenceProtocol.protocolName:
+				protocol=new PresenceProtocol(this,manager);
+			}
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.toJsonString());
+				return;
 			}
 		}
-		try {
-			in.close();
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+		log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
 		}
-		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Lock free lookup of the protocol being handled for a protocol id.
+	 * @param protocolId
+	 * @return the protocol or null if there is no instance of it running
+	 */
+	private Protocol getProtocol(int protocolId) {
+		AtomicReferenceArray<Protocol> slots = protocols;
+		return protocolId<slots.length() ? slots.get(protocolId) : null;
 	}
 	
 	/**
@@ -192,13 +702,19 @@ public class Endpoint extends Thread {
 	 * running on this endpoint
 	 */
 	public void handleProtocol(Protocol protocol) throws ProtocolAlreadyRunning {
-		synchronized(protocols) {
-			if(protocols.containsKey(protocol.getProtocolName())){
+		int id = protocol.getProtocolId();
+		synchronized(protocolsLock) {
+			AtomicReferenceArray<Protocol> slots = protocols;
+			if(id>=slots.length()) {
+				AtomicReferenceArray<Protocol> grown = 
+						new AtomicReferenceArray<>(Math.max(id+1, slots.length()*2));
+				for(int i=0;i<slots.length();i++) grown.set(i, slots.get(i));
+				protocols = slots = grown;
+			}
+			if(!slots.compareAndSet(id, null, protocol)){
 				throw new ProtocolAlreadyRunning();
-			} else {
-				protocols.put(protocol.getProtocolName(),protocol);
-				log.info("now handling protocol: "+protocol.getProtocolName());
 			}
+			log.info("now handling protocol: "+protocol.getProtocolName());
 		}
 	}
 	
@@ -209,14 +725,149 @@ public class Endpoint extends Thread {
 	 * @param protocolName the protocol name to stop
 	 */
 	public void stopProtocol(String protocolName) {
-		synchronized(protocols) {
-			if(!protocols.containsKey(protocolName)) {
-				log.warning("no instance of protocol to stop: "+protocolName);
-				return;
-			}
-			protocols.get(protocolName).stopProtocol();
-			protocols.remove(protocolName);
+		stopProtocol(Protocol.registerProtocol(protocolName));
+	}
+	
+	/**
+	 * Stop a protocol that is already being handled, by id.
+	 * @param protocolId the protocol id to stop
+	 */
+	public void stopProtocol(int protocolId) {
+		Protocol protocol;
+		synchronized(protocolsLock) {
+			AtomicReferenceArray<Protocol> slots = protocols;
+			protocol = protocolId<slots.length() ? slots.getAndSet(protocolId, null) : null;
+		}
+		if(protocol==null) {
+			log.warning("no instance of protocol to stop: "+protocolId);
+			return;
+		}
+		protocol.stopProtocol();
+	}
+	
+	/**
+	 * Record whether the other endpoint can read messages in the binary
+	 * encoding. Messages with a schema are sent in the binary encoding
+	 * from then on, other messages are still sent as JSON.
+	 * @see {@link pb.protocols.BinaryCodec}
+	 * @param binaryPeer
+	 */
+	public void setBinaryPeer(boolean binaryPeer) {
+		this.binaryPeer = binaryPeer;
+	}
+	
+	/**
+	 * Smooth a measurement of the round trip, and of the offset of the
+	 * server's clock, into the estimates. The offset of the fastest round
+	 * trip so far is taken as it is, as NTP does, since it is the least
+	 * likely to have been queued one way more than the other. Called on the
+	 * client, by one thread at a time.
+	 * @param rtt in microseconds
+	 * @param offset how far the server's clock is ahead of this one, in microseconds
+	 */
+	public void clockMeasured(long rtt, long offset) {
+		long smoothed = this.rtt;
+		clockSamples++;
+		if(smoothed<0 || rtt<minRtt) {
+			minRtt = rtt;
+			clockOffset = offset;
+		} else if(rtt<=smoothed*OFFSET_MAX_RTT) {
+			clockOffset += (long) ((offset-clockOffset)*OFFSET_GAIN);
 		}
+		this.rtt = smoothed<0 ? rtt : smoothed+(long) ((rtt-smoothed)*RTT_GAIN);
+	}
+	
+	/**
+	 * @return the number of times the round trip has been measured
+	 */
+	public int getClockSamples() {
+		return clockSamples;
+	}
+	
+	/**
+	 * Take the other endpoint's estimate of the round trip as this endpoint's,
+	 * on the server, which does not measure it itself. The server's clock is
+	 * the one traces are kept on, so its offset stays 0.
+	 * @param rtt in microseconds
+	 */
+	public void clockReported(long rtt) {
+		this.rtt = rtt;
+	}
+	
+	/**
+	 * @return the number of messages read from the other endpoint
+	 */
+	public long getReceived() {
+		return received;
+	}
+	
+	/**
+	 * @return a count that changes whenever a message other than a keep alive
+	 * is sent or received
+	 */
+	public int getActivity() {
+		return activity;
+	}
+	
+	/**
+	 * Suspend an idle endpoint: trim the transport, e.g. of the buffer that
+	 * frames are read into, which may have grown to the largest frame. The
+	 * endpoint resumes as soon as a message other than a keep alive is sent
+	 * or received.
+	 * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+	 */
+	public void suspendIdle() {
+		suspended = true;
+		transport.trim();
+		log.info("suspended idle endpoint to "+getOtherEndpointId());
+	}
+	
+	/**
+	 * @return whether the endpoint is suspended
+	 */
+	public boolean isSuspended() {
+		return suspended;
+	}
+	
+	private void active() {
+		activity++;
+		if(suspended) {
+			suspended = false;
+			log.info("resumed endpoint to "+getOtherEndpointId());
+			Protocol protocol = getProtocol(KeepAliveProtocol.protocolId);
+			if(protocol instanceof KeepAliveProtocol) ((KeepAliveProtocol) protocol).resumed();
+		}
+	}
+	
+	/**
+	 * @return the smoothed round trip to the other endpoint, in
+	 * microseconds, or -1 if it has not been measured
+	 */
+	public long getRtt() {
+		return rtt;
+	}
+	
+	/**
+	 * @return how far the server's clock is ahead of this one, in
+	 * microseconds, which is added to the timestamps of a {@link pb.Trace}
+	 */
+	public long getClockOffset() {
+		return clockOffset;
+	}
+	
+	/**
+	 * @return whether the offset of the server's clock is known, so that
+	 * messages can be traced
+	 */
+	public boolean hasClock() {
+		return rtt>=0;
+	}
+	
+	/**
+	 * @return whether the other endpoint is on the same host
+	 */
+	public boolean isLocal() {
+		return transport.isLocal();
 	}
 	
 	/**
@@ -224,6 +875,6 @@ public class Endpoint extends Thread {
 	 * @return the id of the other endpoint
 	 */
 	public String getOtherEndpointId() {
-		return socket.getInetAddress().toString()+":"+socket.getPort();
+		return transport.getRemoteId();
 	}
 }
@@ -0,0 +1,112 @@
+package pb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds, with buckets that grow
+ * exponentially: each power of two is split into 8 buckets, so a percentile is
+ * within about 6% of the true value from a microsecond up to days, in a few
+ * hundred counters. Recording is lock free, so any number of workers can
+ * record at once.
+ *
+ * @see {@link pb.LatencyStats}
+ * @author aaron
+ *
+ */
+public class LatencyHistogram {
+	/**
+	 * The number of buckets each power of two is split into, as bits.
+	 */
+	private static final int SUB_BITS = 3;
+	private static final int SUB = 1<<SUB_BITS;
+	private static final int BUCKETS = (64-SUB_BITS+1)*SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param micros the latency, taken as 0 if it is negative
+	 */
+	public void record(long micros) {
+		if(micros<0) micros = 0;
+		counts.incrementAndGet(bucket(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while((m = max.get())<micros && !max.compareAndSet(m, micros));
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean latency, in microseconds, 0 if there are none
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n==0 ? 0 : (double) sum.get()/n;
+	}
+
+	/**
+	 * @return the largest latency, in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param fraction e.g. 0.99 for the 99th percentile
+	 * @return the latency that the fraction of latencies are at most, in
+	 * microseconds, as the middle of its bucket; 0 if there are none
+	 */
+	public long percentile(double fraction) {
+		long n = count.get();
+		if(n==0) return 0;
+		long rank = (long) Math.ceil(fraction*n);
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			seen += counts.get(i);
+			if(seen>=Math.max(1, rank)) return Math.min(max.get(), (lower(i)+upper(i))/2);
+		}
+		return max.get();
+	}
+
+	private static int bucket(long micros) {
+		if(micros<SUB) return (int) micros;
+		int exp = 63-Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros>>>(exp-SUB_BITS)) & (SUB-1);
+		return (exp-SUB_BITS+1)*SUB+sub;
+	}
+
+	/**
+	 * @param bucket
+	 * @return the smallest latency in the bucket
+	 */
+	private static long lower(int bucket) {
+		if(bucket<SUB) return bucket;
+		int exp = bucket/SUB+SUB_BITS-1;
+		return (long) (SUB+bucket%SUB)<<(exp-SUB_BITS);
+	}
+
+	/**
+	 * @param bucket
+	 * @return the largest latency in the bucket
+	 */
+	private static long upper(int bucket) {
+		if(bucket<SUB) return bucket;
+		return lower(bucket)+(1L<<(bucket/SUB-1))-1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms", getCount(), getMean()/1000,
+				percentile(0.5)/1000.0, percentile(0.99)/1000.0, getMax()/1000.0);
+	}
+}
@@ -0,0 +1,140 @@
+package pb;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Histograms of how long edits take on each board, split into the stretches
+ * between the hops of their {@link pb.Trace}, so that it shows whether the
+ * time goes on the network, in the queues of the server or clients, or in
+ * sending an edit on to everyone who can see it.
+ * <br/>
+ * The server records what it sees of the traces it receives, up to sending
+ * the edit on. A client records whole traces, of the edits of other clients,
+ * as it shows them; {@link Segment#DELIVERY} is the fan-out of the server to
+ * the clients ahead of it plus the network on the way down, which can be
+ * told apart with the {@link Segment#FANOUT} of the server and the round trip
+ * of the client.
+ *
+ * @see {@link pb.Trace}
+ * @see {@link pb.LatencyHistogram}
+ * @author aaron
+ *
+ */
+public class LatencyStats {
+
+	public static enum Segment {
+		/**
+		 * From drawing to sending, e.g. waiting for a batch.
+		 */
+		BATCHING(Trace.ORIGIN, Trace.SENT),
+		/**
+		 * The network from the client to the server.
+		 */
+		UPLINK(Trace.SENT, Trace.SERVER_RECEIVED),
+		/**
+		 * Waiting for a worker of the server.
+		 */
+		SERVER_QUEUE(Trace.SERVER_RECEIVED, Trace.SERVER_DEQUEUED),
+		/**
+		 * Merging the edit into the board, and logging it.
+		 */
+		APPLY(Trace.SERVER_DEQUEUED, Trace.PUBLISHED),
+		/**
+		 * Sending the edit to every client that can see it, recorded by the
+		 * server.
+		 */
+		FANOUT(-1, -1),
+		/**
+		 * From the server starting to send the edit on, to a client reading
+		 * it.
+		 */
+		DELIVERY(Trace.PUBLISHED, Trace.RECEIVED),
+		/**
+		 * Waiting for a worker of the client.
+		 */
+		CLIENT_QUEUE(Trace.RECEIVED, Trace.DEQUEUED),
+		/**
+		 * From drawing to being shown by another client.
+		 */
+		END_TO_END(Trace.ORIGIN, -1);
+
+		final int from;
+		final int to;
+
+		Segment(int from, int to) {
+			this.from=from;
+			this.to=to;
+		}
+	}
+
+	private final ConcurrentHashMap<String,Map<Segment,LatencyHistogram>> boards = new ConcurrentHashMap<>();
+
+	/**
+	 * Record the stretches of a trace that it has got through.
+	 * @param board
+	 * @param trace
+	 * @param end when the edit was shown, in microseconds on the server's
+	 * clock, or -1 if it has not been
+	 */
+	public void record(String board, Trace trace, long end) {
+		for(Segment segment : Segment.values()) {
+			if(segment.to<0) continue;
+			long micros = trace.between(segment.from, segment.to);
+			if(micros>=0) histogram(board, segment).record(micros);
+		}
+		if(end>=0) histogram(board, Segment.END_TO_END).record(end-trace.get(Trace.ORIGIN));
+	}
+
+	/**
+	 * @param board
+	 * @param segment
+	 * @param micros
+	 */
+	public void record(String board, Segment segment, long micros) {
+		histogram(board, segment).record(micros);
+	}
+
+	/**
+	 * @param board
+	 * @param segment
+	 * @return the histogram, or null if nothing has been recorded on the board
+	 */
+	public LatencyHistogram getHistogram(String board, Segment segment) {
+		Map<Segment,LatencyHistogram> histograms = boards.get(board);
+		return histograms==null ? null : histograms.get(segment);
+	}
+
+	/**
+	 * @return the boards that have latencies recorded
+	 */
+	public Set<String> getBoards() {
+		return Collections.unmodifiableSet(boards.keySet());
+	}
+
+	/**
+	 * @param board
+	 * @return a line for each segment that has latencies recorded
+	 */
+	public String summary(String board) {
+		StringBuilder summary = new StringBuilder();
+		for(Segment segment : Segment.values()) {
+			LatencyHistogram histogram = getHistogram(board, segment);
+			if(histogram==null || histogram.getCount()==0) continue;
+			summary.append(board).append(' ').append(segment).append(": ").append(histogram).append('\n');
+		}
+		return summary.toString();
+	}
+
+	private LatencyHistogram histogram(String board, Segment segment) {
+		Map<Segment,LatencyHistogram> histograms = boards.computeIfAbsent(board, b -> {
+			Map<Segment,LatencyHistogram> map = new EnumMap<>(Segment.class);
+			for(Segment s : Segment.values()) map.put(s, new LatencyHistogram());
+			return map;
+		});
+		return histograms.get(segment);
+	}
+}
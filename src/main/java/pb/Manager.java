@@ -1,7 +1,15 @@
 package pb;
 
+import java.nio.file.Path;
 
+import pb.board.BoardOp;
+import pb.board.Rect;
 import pb.protocols.Protocol;
+import pb.protocols.asset.AssetProtocol;
+import pb.protocols.presence.CursorUpdate;
+import pb.protocols.presence.PresenceFrame;
+import pb.protocols.viewport.ViewportTile;
+import pb.transport.DatagramLink;
 
 /**
  * Manager base class. Methods must be overriden.
@@ -79,7 +87,220 @@ public class Manager {
 		
 	}
 	
+	/**
+	 * How fast the other end of an endpoint may send. Called once by each
+	 * endpoint when it starts.
+	 * @return the limits, or null for none
+	 */
+	public RateLimits getRateLimits() {
+		return null;
+	}
+	
+	/**
+	 * The other end has asked to start a session. A manager that is
+	 * overloaded can turn it away.
+	 * @param endpoint
+	 * @return 0 to start the session, otherwise how long the other end
+	 * should wait before asking again, in ms
+	 */
+	public long admitSession(Endpoint endpoint) {
+		return 0;
+	}
+	
+	/**
+	 * The other end has stopped the session, or turned it away, because it is
+	 * overloaded. Called just before {@link #sessionStopped(Endpoint)}.
+	 * @param endpoint
+	 * @param retryAfter how long to wait before starting another session, in ms
+	 */
+	public void sessionShed(Endpoint endpoint, long retryAfter) {
+		
+	}
+	
+	/**
+	 * On the server, the other end can bind a datagram link to the session
+	 * that is starting.
+	 * @param endpoint
+	 * @return the link, which the endpoint sends its ephemeral messages on
+	 * once it is bound, or null to not give the session one
+	 * @see {@link pb.Endpoint#sendEphemeral(pb.protocols.Message)}
+	 */
+	public DatagramLink datagramsRequested(Endpoint endpoint) {
+		return null;
+	}
+	
+	/**
+	 * On the client, the server has given the session that started a
+	 * datagram link, which this end binds if it can. Called just before
+	 * {@link #sessionStarted(Endpoint)}.
+	 * @param endpoint
+	 * @param port the UDP port of the server to bind the link with
+	 * @param token the token that identifies the session's datagrams
+	 */
+	public void datagramsOffered(Endpoint endpoint, int port, long token) {
+		
+	}
+	
 
+	/**
+	 * A viewport has changed. On the server, the client is now showing a
+	 * region of a board. On the client, the server has sent everything that
+	 * came into view.
+	 * @param endpoint
+	 * @param board the name of the board
+	 * @param viewport the visible region
+	 * @throws EndpointUnavailable
+	 */
+	public void viewportChanged(Endpoint endpoint, String board, Rect viewport) throws EndpointUnavailable {
+		
+	}
+	
+	/**
+	 * The other end of an endpoint has asked for an interval between keep
+	 * alives. Unless overridden, it is granted.
+	 * @param endpoint
+	 * @param requested the interval asked for, in ms
+	 * @return the interval granted, in ms
+	 * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+	 */
+	public long keepAliveInterval(Endpoint endpoint, long requested) {
+		return requested;
+	}
+	
+	/**
+	 * An operation has been received for a board.
+	 * @param endpoint
+	 * @param op
+	 */
+	public void boardUpdated(Endpoint endpoint, BoardOp op) {
+		
+	}
+	
+	/**
+	 * An operation has been received for a board, with the trace it carried.
+	 * Unless overridden, the trace is ignored.
+	 * @param endpoint
+	 * @param op
+	 * @param trace the trace of the message, or null if it was not traced
+	 */
+	public void boardUpdated(Endpoint endpoint, BoardOp op, Trace trace) {
+		boardUpdated(endpoint, op);
+	}
+	
+	/**
+	 * Where a cursor is on a board has been received.
+	 * @param endpoint
+	 * @param cursor
+	 */
+	public void cursorMoved(Endpoint endpoint, CursorUpdate cursor) {
+		
+	}
+	
+	/**
+	 * On the client, the cursors on the board being shown that have changed
+	 * have been received.
+	 * @param endpoint
+	 * @param frame
+	 */
+	public void presenceUpdated(Endpoint endpoint, PresenceFrame frame) {
+		
+	}
+	
+	/**
+	 * A tile of a board has been received, to show until the shapes in view
+	 * have arrived.
+	 * @param endpoint
+	 * @param tile
+	 */
+	public void tileReceived(Endpoint endpoint, ViewportTile tile) {
+		
+	}
+	
+	/**
+	 * The other endpoint is offering to send an asset. If the file returned
+	 * already holds part of the asset, the transfer resumes from its end. If
+	 * it is already the size of the asset, it is not opened for writing, and
+	 * the asset is received straight away.
+	 * @param endpoint
+	 * @param asset the name of the asset
+	 * @param size the size of the asset in bytes
+	 * @return the file to write the asset to, or null to refuse it; a file
+	 * that is returned is followed by a call to
+	 * {@link #assetReceived(Endpoint, String, Path)} or
+	 * {@link #assetAbandoned(Endpoint, String, Path)} once it is closed
+	 */
+	public Path assetOffered(Endpoint endpoint, String asset, long size) {
+		return null;
+	}
+	
+	/**
+	 * All of an asset has been received.
+	 * @param endpoint
+	 * @param asset the name of the asset
+	 * @param file the file it was written to
+	 */
+	public void assetReceived(Endpoint endpoint, String asset, Path file) {
+		
+	}
+	
+	/**
+	 * An asset that was being received into a file returned by
+	 * {@link #assetOffered(Endpoint, String, long)} will not be finished,
+	 * e.g. the transfer stopped or the file could not be written. What was
+	 * received is left in the file, which is closed.
+	 * @param endpoint
+	 * @param asset the name of the asset
+	 * @param file the file it was being written to
+	 */
+	public void assetAbandoned(Endpoint endpoint, String asset, Path file) {
+		
+	}
+	
+	/**
+	 * An asset that was being sent has finished.
+	 * @param endpoint
+	 * @param asset the name of the asset
+	 * @param complete true if all of it was received, false if it was refused
+	 * or the transfer stopped before the end
+	 */
+	public void assetSent(Endpoint endpoint, String asset, boolean complete) {
+		
+	}
+	
+	/**
+	 * On the server, a client has asked whether the server has an asset.
+	 * @param endpoint
+	 * @param asset the hash of the asset
+	 * @param board the board the client is using the asset on, or null if
+	 * it is only fetching it
+	 * @return the size of the asset, or -1 if the server does not have it
+	 */
+	public long assetQueried(Endpoint endpoint, String asset, String board) {
+		return -1;
+	}
+	
+	/**
+	 * On the server, a client has asked for an asset that the server has, so
+	 * it should be sent with the protocol.
+	 * @param endpoint
+	 * @param asset the hash of the asset
+	 * @param protocol the protocol to send it with
+	 * @throws EndpointUnavailable
+	 */
+	public void assetFetched(Endpoint endpoint, String asset, AssetProtocol protocol) throws EndpointUnavailable {
+		
+	}
+	
+	/**
+	 * On the client, the server has said whether it has an asset.
+	 * @param endpoint
+	 * @param asset the hash of the asset
+	 * @param size the size of the asset, or -1 if the server does not have it
+	 */
+	public void assetQueryAnswered(Endpoint endpoint, String asset, long size) {
+		
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
@@ -0,0 +1,88 @@
+package pb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import pb.protocols.Message;
+
+/**
+ * A bounded, preallocated ring buffer of messages that sits between the
+ * thread of the endpoint's transport (the single producer) and the worker that
+ * runs the protocol handlers for that endpoint (the single consumer). Neither
+ * side takes a lock; the head and tail counters are only ever written by one
+ * thread at a time, as the worker only produces while the transport is paused.
+ * 
+ * @see {@link pb.Endpoint}
+ * @see {@link pb.WorkerPool}
+ * @author aaron
+ *
+ */
+public class MessageRing {
+	/**
+	 * The slots, allocated once. The capacity is a power of two so that a
+	 * counter can be turned into a slot index with a mask.
+	 */
+	private final Message[] slots;
+	
+	private final int mask;
+	
+	/**
+	 * Next slot to be read, only written by the consumer.
+	 */
+	private final AtomicLong head = new AtomicLong();
+	
+	/**
+	 * Next slot to be written, only written by the producer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	
+	/**
+	 * Initialise the ring with at least the given capacity.
+	 * @param capacity the minimum number of messages the ring can hold
+	 */
+	public MessageRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots = new Message[size];
+		mask = size - 1;
+	}
+	
+	/**
+	 * Add a message to the ring. Must only be called by the producer.
+	 * @param msg
+	 * @return true if the message was added, false if the ring is full
+	 */
+	public boolean offer(Message msg) {
+		long t = tail.get();
+		if(t - head.get() == slots.length) return false;
+		slots[(int) t & mask] = msg;
+		tail.lazySet(t + 1);
+		return true;
+	}
+	
+	/**
+	 * Take the next message from the ring. Must only be called by the consumer.
+	 * @return the next message or null if the ring is empty
+	 */
+	public Message poll() {
+		long h = head.get();
+		if(h == tail.get()) return null;
+		int i = (int) h & mask;
+		Message msg = slots[i];
+		slots[i] = null;
+		head.lazySet(h + 1);
+		return msg;
+	}
+	
+	/**
+	 * @return true if there are no messages in the ring
+	 */
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+	
+	/**
+	 * @return the number of messages currently in the ring
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+}
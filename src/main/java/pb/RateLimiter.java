@@ -0,0 +1,78 @@
+package pb;
+
+import java.util.Map;
+
+import pb.protocols.Protocol;
+
+/**
+ * Enforces the {@link pb.RateLimits} of an endpoint on what it receives,
+ * with a {@link pb.TokenBucket} for each rate. It is charged for every
+ * message on the thread that reads the endpoint, so it needs no locks; the
+ * protocol's buckets are found by protocol id, so a charge is a handful of
+ * subtractions unless a bucket has run out.
+ *
+ * @see {@link pb.Endpoint}
+ * @author aaron
+ *
+ */
+public class RateLimiter {
+	private final RateLimits.Action action;
+	private final TokenBucket messages;
+	private final TokenBucket bytes;
+
+	/**
+	 * The buckets of each protocol, by protocol id, null if it has no limit.
+	 */
+	private final TokenBucket[] protocolMessages;
+	private final TokenBucket[] protocolBytes;
+
+	public RateLimiter(RateLimits limits) {
+		action = limits.getAction();
+		RateLimits.Limit limit = limits.getEndpointLimit();
+		messages = limit==null ? null : messageBucket(limit);
+		bytes = limit==null ? null : byteBucket(limit);
+		int maxId = -1;
+		for(String name : limits.getProtocolLimits().keySet()) {
+			maxId = Math.max(maxId, Protocol.registerProtocol(name));
+		}
+		protocolMessages = new TokenBucket[maxId+1];
+		protocolBytes = new TokenBucket[maxId+1];
+		for(Map.Entry<String,RateLimits.Limit> entry : limits.getProtocolLimits().entrySet()) {
+			int id = Protocol.registerProtocol(entry.getKey());
+			protocolMessages[id] = messageBucket(entry.getValue());
+			protocolBytes[id] = byteBucket(entry.getValue());
+		}
+	}
+
+	private static TokenBucket messageBucket(RateLimits.Limit limit) {
+		return limit.messagesPerSecond>0 ? new TokenBucket(limit.messagesPerSecond, limit.messageBurst) : null;
+	}
+
+	private static TokenBucket byteBucket(RateLimits.Limit limit) {
+		return limit.bytesPerSecond>0 ? new TokenBucket(limit.bytesPerSecond, limit.byteBurst) : null;
+	}
+
+	/**
+	 * Charge for a message that has been received.
+	 * @param protocolId the protocol of the message
+	 * @param length the length of its frame
+	 * @return 0 if it is within the limits, otherwise how long to wait
+	 * before reading again to get back within them, in ns
+	 */
+	public long charge(int protocolId, int length) {
+		long wait = 0;
+		if(messages!=null) wait = messages.take(1);
+		if(bytes!=null) wait = Math.max(wait, bytes.take(length));
+		if(protocolId>=0 && protocolId<protocolMessages.length) {
+			TokenBucket bucket = protocolMessages[protocolId];
+			if(bucket!=null) wait = Math.max(wait, bucket.take(1));
+			bucket = protocolBytes[protocolId];
+			if(bucket!=null) wait = Math.max(wait, bucket.take(length));
+		}
+		return wait;
+	}
+
+	public RateLimits.Action getAction() {
+		return action;
+	}
+}
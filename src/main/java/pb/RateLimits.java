@@ -0,0 +1,126 @@
+package pb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How fast the other end of an endpoint may send: a rate of messages and a
+ * rate of bytes for the endpoint as a whole, and optionally for each
+ * protocol, each with a burst it may send at once. Immutable.
+ *
+ * @see {@link pb.RateLimiter}
+ * @see {@link pb.Manager#getRateLimits()}
+ * @author aaron
+ *
+ */
+public final class RateLimits {
+
+	public static enum Action {
+		/**
+		 * Stop reading from the endpoint until it is within its limits again,
+		 * which makes its sends block once the socket buffers are full.
+		 */
+		THROTTLE,
+		/**
+		 * Treat going past a limit as a violation of the protocol.
+		 * @see {@link pb.Manager#protocolViolation(Endpoint, pb.protocols.Protocol)}
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * A rate of messages and a rate of bytes. A rate of 0 is not limited.
+	 */
+	public static final class Limit {
+		public final double messagesPerSecond;
+		public final int messageBurst;
+		public final double bytesPerSecond;
+		public final int byteBurst;
+
+		/**
+		 * @param messagesPerSecond
+		 * @param messageBurst the most messages that can be sent at once
+		 * @param bytesPerSecond
+		 * @param byteBurst the most bytes that can be sent at once, which
+		 * must be at least a frame so that any message can be sent
+		 */
+		public Limit(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst) {
+			if(messagesPerSecond<0 || bytesPerSecond<0) throw new IllegalArgumentException("negative rate");
+			if(messagesPerSecond>0 && messageBurst<1) throw new IllegalArgumentException("message burst must be at least 1");
+			if(bytesPerSecond>0 && byteBurst<MAX_FRAME) throw new IllegalArgumentException("byte burst must be at least "+MAX_FRAME);
+			this.messagesPerSecond=messagesPerSecond;
+			this.messageBurst=messageBurst;
+			this.bytesPerSecond=bytesPerSecond;
+			this.byteBurst=byteBurst;
+		}
+	}
+
+	/**
+	 * The largest frame, including its length.
+	 */
+	public static final int MAX_FRAME = 2+0xffff;
+
+	private final Limit endpoint;
+	private final Map<String,Limit> protocols;
+	private final Action action;
+
+	/**
+	 * @param endpoint the limit for the endpoint as a whole, or null for none
+	 * @param action what to do when a limit is passed
+	 */
+	public RateLimits(Limit endpoint, Action action) {
+		this(endpoint, Collections.emptyMap(), action);
+	}
+
+	private RateLimits(Limit endpoint, Map<String,Limit> protocols, Action action) {
+		this.endpoint=endpoint;
+		this.protocols=protocols;
+		this.action=action;
+	}
+
+	/**
+	 * @param protocolName
+	 * @param limit the limit for the messages of the protocol
+	 * @return a copy of the limits with a limit for a protocol
+	 */
+	public RateLimits withProtocol(String protocolName, Limit limit) {
+		Map<String,Limit> copy = new HashMap<>(protocols);
+		copy.put(protocolName, limit);
+		return new RateLimits(endpoint, Collections.unmodifiableMap(copy), action);
+	}
+
+	/**
+	 * @param limit the limit for the endpoint as a whole, or null for none
+	 * @return a copy of the limits with a different limit for the endpoint
+	 */
+	public RateLimits withEndpoint(Limit limit) {
+		return new RateLimits(limit, protocols, action);
+	}
+
+	/**
+	 * @param action
+	 * @return a copy of the limits with a different action
+	 */
+	public RateLimits withAction(Action action) {
+		return new RateLimits(endpoint, protocols, action);
+	}
+
+	/**
+	 * @return the limit for the endpoint as a whole, or null
+	 */
+	public Limit getEndpointLimit() {
+		return endpoint;
+	}
+
+	/**
+	 * @return the limits of the protocols that have one, by name
+	 */
+	public Map<String,Limit> getProtocolLimits() {
+		return protocols;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+}
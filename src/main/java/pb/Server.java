@@ -1,6 +1,8 @@
 package pb;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -10,7 +12,9 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pb.server.OverloadController;
 import pb.server.ServerManager;
+import pb.transport.TlsContext;
 
 /**
  * Server main. Parse command line options and provide default values.
@@ -22,7 +26,7 @@ import pb.server.ServerManager;
  */
 public class Server {
 	private static Logger log = Logger.getLogger(Server.class.getName());
-	private static int port=Utils.serverPort; // default port number for the server
+	private static ServerManager.Config config=ServerManager.config(); // defaults unless an option is given
 	
 
 	private static void help(Options options){
@@ -42,6 +46,20 @@ public class Server {
     	// parse command line options
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
+        options.addOption("data",true,"directory to keep the boards in, a path");
+        options.addOption("maxlag",true,"turn sessions away past this worker lag in ms, an integer, 0 to not check");
+        options.addOption("maxqueue",true,"turn sessions away past this many queued tasks, an integer, 0 to not check");
+        options.addOption("maxheap",true,"turn sessions away past this fraction of the heap in use, 0 to not check");
+        options.addOption("maxcpu",true,"turn sessions away past this fraction of the CPUs in use, 0 to not check");
+        options.addOption("shedfactor",true,"shed sessions past this multiple of the limits, at least 1");
+        options.addOption("msgrate",true,"messages per second each client may send, 0 for no limit");
+        options.addOption("byterate",true,"bytes per second each client may send, 0 for no limit");
+        options.addOption("ratelimit",true,"what to do with a client that sends too fast, throttle or disconnect");
+        options.addOption("keystore",true,"key store with the key and certificate to encrypt connections with TLS, a path");
+        options.addOption("storepass",true,"password of the key store and its key");
+        options.addOption("socket",true,"Unix domain socket to also listen on for clients on the same host, a path");
+        options.addOption("acceptors",true,"threads accepting connections, an integer, at least 1");
+        options.addOption("backlog",true,"connections queued for the acceptors, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -54,20 +72,77 @@ public class Server {
         
         if(cmd.hasOption("port")){
         	try{
-        		port = Integer.parseInt(cmd.getOptionValue("port"));
+        		config.port(Integer.parseInt(cmd.getOptionValue("port")));
 			} catch (NumberFormatException e){
 				System.out.println("-port requires a port number, parsed: "+cmd.getOptionValue("port"));
 				help(options);
 			}
         }
         
+        if(cmd.hasOption("data")) {
+        	config.dataDir(Paths.get(cmd.getOptionValue("data")));
+        }
+        
+        try {
+        	OverloadController.Limits d = OverloadController.DEFAULT_LIMITS;
+        	config.limits(new OverloadController.Limits(
+        			Long.parseLong(cmd.getOptionValue("maxlag", ""+d.maxLag)),
+        			Integer.parseInt(cmd.getOptionValue("maxqueue", ""+d.maxQueue)),
+        			Double.parseDouble(cmd.getOptionValue("maxheap", ""+d.maxHeap)),
+        			Double.parseDouble(cmd.getOptionValue("maxcpu", ""+d.maxCpu)),
+        			Double.parseDouble(cmd.getOptionValue("shedfactor", ""+d.shedFactor))));
+        } catch (IllegalArgumentException e) {
+        	System.out.println("bad overload limit: "+e.getMessage());
+        	help(options);
+        }
+        
+        try {
+        	RateLimits rateLimits = config.getRateLimits();
+        	if(cmd.hasOption("msgrate") || cmd.hasOption("byterate")) {
+        		RateLimits.Limit d = rateLimits.getEndpointLimit();
+        		double msgRate = Double.parseDouble(cmd.getOptionValue("msgrate", ""+d.messagesPerSecond));
+        		double byteRate = Double.parseDouble(cmd.getOptionValue("byterate", ""+d.bytesPerSecond));
+        		// a burst of two seconds' worth, and at least a frame
+        		rateLimits = rateLimits.withEndpoint(new RateLimits.Limit(msgRate, (int) Math.max(1, 2*msgRate),
+        				byteRate, (int) Math.max(RateLimits.MAX_FRAME, Math.min(Integer.MAX_VALUE, 2*byteRate))));
+        	}
+        	if(cmd.hasOption("ratelimit")) {
+        		rateLimits = rateLimits.withAction(RateLimits.Action.valueOf(cmd.getOptionValue("ratelimit").toUpperCase()));
+        	}
+        	config.rateLimits(rateLimits);
+        } catch (IllegalArgumentException e) {
+        	System.out.println("bad rate limit: "+e.getMessage());
+        	help(options);
+        }
+        
+        if(cmd.hasOption("keystore")) {
+        	try {
+        		char[] password = cmd.getOptionValue("storepass", "").toCharArray();
+        		config.tls(TlsContext.load(Paths.get(cmd.getOptionValue("keystore")), password, null, null));
+        	} catch (IOException | GeneralSecurityException e) {
+        		System.out.println("bad key store: "+e.getMessage());
+        		help(options);
+        	}
+        }
+        
+        if(cmd.hasOption("socket")) {
+        	config.socket(Paths.get(cmd.getOptionValue("socket")));
+        }
+        
+        try {
+        	if(cmd.hasOption("acceptors")) config.acceptors(Integer.parseInt(cmd.getOptionValue("acceptors")));
+        	if(cmd.hasOption("backlog")) config.backlog(Integer.parseInt(cmd.getOptionValue("backlog")));
+        } catch (IllegalArgumentException e) {
+        	System.out.println("bad acceptors or backlog: "+e.getMessage());
+        	help(options);
+        }
         
         // start up the server
         log.info("PB Server starting up");
         
         // the server manager will start an io thread and this will prevent
         // the JVM from terminating
-        new ServerManager(port);
+        new ServerManager(config);
         
     }
 }
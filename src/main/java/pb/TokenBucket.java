@@ -0,0 +1,64 @@
+package pb;
+
+/**
+ * A token bucket that is refilled lazily: it does not need a timer, and it
+ * only reads the clock when it runs out of tokens, so taking tokens is
+ * normally a subtraction and a comparison. The bucket holds at most its
+ * capacity, which is the largest burst it allows.
+ * <br/>
+ * Tokens are always taken, even when there are not enough, in which case the
+ * bucket goes into debt and says how long it will take to repay it; waiting
+ * that long before taking more keeps to the rate, however large each take.
+ * <br/>
+ * Not thread safe: a bucket belongs to one thread, e.g. the thread reading an
+ * endpoint, so it needs no locks.
+ *
+ * @see {@link pb.RateLimiter}
+ * @author aaron
+ *
+ */
+public final class TokenBucket {
+	private final double perNano;
+	private final long capacity;
+	private long tokens;
+	private long refilled;
+
+	/**
+	 * Start with a full bucket.
+	 * @param perSecond tokens added per second
+	 * @param capacity the most tokens the bucket holds
+	 */
+	public TokenBucket(double perSecond, long capacity) {
+		if(perSecond<=0 || capacity<=0) throw new IllegalArgumentException("rate and capacity must be positive");
+		this.perNano=perSecond/1e9;
+		this.capacity=capacity;
+		this.tokens=capacity;
+		this.refilled=System.nanoTime();
+	}
+
+	/**
+	 * Take tokens, going into debt if there are not enough.
+	 * @param cost the number of tokens
+	 * @return 0 if there were enough, otherwise how long until the debt is
+	 * repaid, in ns
+	 */
+	public long take(long cost) {
+		tokens-=cost;
+		if(tokens>=0) return 0;
+		long now = System.nanoTime();
+		long add = (long) ((now-refilled)*perNano);
+		if(add>0) {
+			tokens=Math.min(capacity, tokens+add);
+			refilled=now;
+		}
+		return tokens>=0 ? 0 : (long) Math.ceil(-tokens/perNano);
+	}
+
+	/**
+	 * @return the tokens in the bucket as of the last time it was refilled,
+	 * negative if it is in debt
+	 */
+	public long getTokens() {
+		return tokens;
+	}
+}
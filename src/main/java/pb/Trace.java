@@ -0,0 +1,140 @@
+package pb;
+
+import java.util.Arrays;
+
+/**
+ * The timestamps of a message on its way from one user's pen to another
+ * user's screen: when it started, and each hop it passed on the way. Every
+ * timestamp is in microseconds on the server's clock, so that they can be
+ * compared with each other wherever they were taken; an endpoint that is not
+ * the server adds its estimate of the offset of the server's clock.
+ * <br/>
+ * Hops are found by position, so every place that a traced message passes
+ * adds exactly one timestamp: the endpoints add one when they read it and one
+ * when a worker handles it, and the protocols add the others.
+ *
+ * @see {@link pb.protocols.Message#getTrace()}
+ * @see {@link pb.Endpoint#getClockOffset()}
+ * @see {@link pb.LatencyStats}
+ * @author aaron
+ *
+ */
+public final class Trace {
+	/**
+	 * The client started the edit, e.g. the first point of a batch was drawn.
+	 */
+	public static final int ORIGIN = 0;
+	/**
+	 * The client sent the edit.
+	 */
+	public static final int SENT = 1;
+	/**
+	 * The server read the edit.
+	 */
+	public static final int SERVER_RECEIVED = 2;
+	/**
+	 * A worker of the server handled the edit.
+	 */
+	public static final int SERVER_DEQUEUED = 3;
+	/**
+	 * The server merged the edit and started sending it to the clients that
+	 * can see it.
+	 */
+	public static final int PUBLISHED = 4;
+	/**
+	 * Another client read the edit.
+	 */
+	public static final int RECEIVED = 5;
+	/**
+	 * A worker of the other client handled the edit.
+	 */
+	public static final int DEQUEUED = 6;
+
+	/**
+	 * The most timestamps a trace holds, so that a trace from the other end
+	 * cannot grow without bound.
+	 */
+	public static final int MAX_HOPS = 16;
+
+	/**
+	 * The wall clock at start up, less the monotonic clock, so that
+	 * {@link #now()} has the resolution of the monotonic clock.
+	 */
+	private static final long EPOCH = System.currentTimeMillis()*1000-System.nanoTime()/1000;
+
+	private long[] stamps;
+	private int length;
+
+	/**
+	 * @param origin when the traced message started, in microseconds on
+	 * the server's clock
+	 */
+	public Trace(long origin) {
+		stamps = new long[DEQUEUED+1];
+		stamps[0] = origin;
+		length = 1;
+	}
+
+	/**
+	 * @param stamps the timestamps of a trace, which are copied
+	 * @throws IllegalArgumentException if there are none or too many
+	 */
+	public Trace(long[] stamps) {
+		if(stamps.length==0 || stamps.length>MAX_HOPS) {
+			throw new IllegalArgumentException("a trace has 1 to "+MAX_HOPS+" timestamps");
+		}
+		this.stamps = Arrays.copyOf(stamps, Math.max(stamps.length, DEQUEUED+1));
+		length = stamps.length;
+	}
+
+	/**
+	 * @return the time in microseconds since the epoch on this clock
+	 */
+	public static long now() {
+		return EPOCH+System.nanoTime()/1000;
+	}
+
+	/**
+	 * Add the timestamp of the next hop, unless the trace is full.
+	 * @param micros on the server's clock
+	 */
+	public void stamp(long micros) {
+		if(length==MAX_HOPS) return;
+		if(length==stamps.length) stamps = Arrays.copyOf(stamps, MAX_HOPS);
+		stamps[length++] = micros;
+	}
+
+	/**
+	 * @return the number of timestamps
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @param hop
+	 * @return the timestamp of the hop, or -1 if the trace has not got that far
+	 */
+	public long get(int hop) {
+		return hop<length ? stamps[hop] : -1;
+	}
+
+	/**
+	 * @param from
+	 * @param to
+	 * @return the microseconds between two hops, or -1 if the trace has not
+	 * got that far; never negative otherwise, although the clocks may be
+	 * out by a little
+	 */
+	public long between(int from, int to) {
+		if(from>=length || to>=length) return -1;
+		return Math.max(0, stamps[to]-stamps[from]);
+	}
+
+	/**
+	 * @return a copy of the timestamps
+	 */
+	public long[] toArray() {
+		return Arrays.copyOf(stamps, length);
+	}
+}
@@ -51,16 +51,45 @@ public class Utils {
 	 * </code>
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return the task, to cancel it
 	 */
-	public void setTimeout(ICallback callback,long delay) {
-		
-		timer.schedule(new TimerTask() {
+	public TimerTask setTimeout(ICallback callback,long delay) {
+		TimerTask task = new TimerTask() {
 			@Override
 			public void run() {
 				callback.callback();
 			}
 			
-		}, delay);
+		};
+		timer.schedule(task, delay);
+		return task;
+	}
+	
+	/**
+	 * Convenience method to call an anonymous method callback
+	 * repeatedly, at a fixed rate, until the returned task is cancelled.
+	 * <br/>
+	 * Use this method like: 
+	 * <code>
+	 * TimerTask task = Utils.getInstance().setInterval(()->{doSomething();},1000);
+	 * ...
+	 * task.cancel();
+	 * </code>
+	 * @param callback the method to call
+	 * @param period the period in ms between calls, which is also the delay
+	 * before the first call
+	 * @return the task, to cancel it
+	 */
+	public TimerTask setInterval(ICallback callback,long period) {
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				callback.callback();
+			}
+			
+		};
+		timer.scheduleAtFixedRate(task, period, period);
+		return task;
 	}
 	
 	/**
@@ -0,0 +1,138 @@
+package pb;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A singleton pool of worker threads that run the protocol handlers, so that
+ * the transports only need to read and decode messages. The pool is
+ * striped: each stripe is a single thread, and all tasks submitted with the
+ * same key run on the same stripe in the order they were submitted. Using the
+ * endpoint (or a board) as the key keeps its messages in order while different
+ * keys run in parallel across the cores. It must always be accessed statically
+ * as WorkerPool.getInstance()...
+ * 
+ * @see {@link pb.Endpoint}
+ * @author aaron
+ *
+ */
+public class WorkerPool {
+	private static Logger log = Logger.getLogger(WorkerPool.class.getName());
+	private static WorkerPool workerPool;
+	
+	/**
+	 * One single threaded executor per stripe.
+	 */
+	private final ThreadPoolExecutor[] stripes;
+	
+	/**
+	 * When the probe that is waiting to run on each stripe was submitted, in
+	 * ns, or 0 if none is waiting.
+	 */
+	private final AtomicLong[] probes;
+	
+	/**
+	 * How long the last probe to run on each stripe waited, in ns.
+	 */
+	private final long[] lags;
+	
+	public WorkerPool(int numStripes) {
+		stripes = new ThreadPoolExecutor[numStripes];
+		probes = new AtomicLong[numStripes];
+		lags = new long[numStripes];
+		AtomicInteger threadNum = new AtomicInteger();
+		ThreadFactory factory = (runnable)->{
+			Thread thread = new Thread(runnable,"worker-"+threadNum.getAndIncrement());
+			// the managers keep the JVM alive, not the workers
+			thread.setDaemon(true);
+			return thread;
+		};
+		for(int i=0;i<numStripes;i++) {
+			stripes[i]=new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), factory);
+			probes[i]=new AtomicLong();
+		}
+	}
+	
+	public static synchronized WorkerPool getInstance() {
+		if(workerPool==null) workerPool=new WorkerPool(Runtime.getRuntime().availableProcessors());
+		return workerPool;
+	}
+	
+	/**
+	 * Run the task on the stripe that belongs to the key. Tasks with the same
+	 * key never run concurrently and run in submission order.
+	 * @param key the ordering key, e.g. an endpoint or a board
+	 * @param task the task to run
+	 */
+	public void execute(Object key, Runnable task) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		stripes[(h & 0x7fffffff) % stripes.length].execute(()->{
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.severe("worker task failed: "+e);
+			}
+		});
+	}
+	
+	/**
+	 * Measure how far behind the workers are, by running a task on each
+	 * stripe that notes how long it waited. A stripe whose last probe has not
+	 * run yet is not probed again.
+	 * @see {@link #getLag()}
+	 */
+	public void probe() {
+		for(int i=0;i<stripes.length;i++) {
+			final int stripe = i;
+			long now = System.nanoTime();
+			if(!probes[stripe].compareAndSet(0, now)) continue;
+			stripes[stripe].execute(()->{
+				lags[stripe]=System.nanoTime()-now;
+				probes[stripe].set(0);
+			});
+		}
+	}
+	
+	/**
+	 * @return how long a task waits to run on the slowest stripe, in ms,
+	 * as of the last {@link #probe()}, or longer if its probe is still
+	 * waiting
+	 */
+	public long getLag() {
+		long lag = 0;
+		long now = System.nanoTime();
+		for(int i=0;i<stripes.length;i++) {
+			// reading the probe first makes the lag it wrote visible
+			long waiting = probes[i].get();
+			lag = Math.max(lag, lags[i]);
+			if(waiting!=0) lag = Math.max(lag, now-waiting);
+		}
+		return TimeUnit.NANOSECONDS.toMillis(lag);
+	}
+	
+	/**
+	 * @return the number of tasks waiting to run, across the stripes
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for(ThreadPoolExecutor stripe : stripes) {
+			depth += stripe.getQueue().size();
+		}
+		return depth;
+	}
+	
+	/**
+	 * Call before the system exits.
+	 */
+	public void shutDown() {
+		for(ThreadPoolExecutor stripe : stripes) {
+			stripe.shutdown();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package pb.board;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The state of a whiteboard: its shapes, and the history of operations that
+ * produced them. Operations are applied one at a time under the board's
+ * lock. The state can be read by other threads through the copying getters.
+ * The shapes are a {@link pb.board.ShapeMap}, so versioned operations from
+ * different replicas are merged last writer wins, in whatever order they
+ * arrive, and operations that lose are not applied or kept in the history.
+ * <br/>
+ * The history is kept as an immutable {@link pb.board.BoardSnapshot} plus a
+ * tail of the operations applied since. A compactor folds the tail into a new
+ * snapshot in the background, see {@link #compact(long)}, so that shapes that
+ * have been erased or replaced stop costing memory and replay time, and old
+ * tombstones are collected. Writers only wait for the short swap at the end.
+ * <br/>
+ * The shapes are also kept in an {@link pb.board.RTree} by their bounds, so
+ * that erasing, selecting and region queries do not look at every shape.
+ * 
+ * @see {@link pb.board.BoardOp}
+ * @author aaron
+ *
+ */
+public class Board {
+	private final String name;
+	
+	private final ShapeMap shapes = new ShapeMap(true);
+	
+	/**
+	 * The history up to the tail.
+	 */
+	private volatile BoardSnapshot snapshot = BoardSnapshot.EMPTY;
+	
+	/**
+	 * The operations applied since the snapshot, in order, and their log
+	 * sequence numbers.
+	 */
+	private final ArrayList<BoardOp> tail = new ArrayList<>();
+	private long[] tailLsns = new long[16];
+	
+	/**
+	 * When the tail last became empty, in ms.
+	 */
+	private long tailStarted = System.currentTimeMillis();
+	
+	/**
+	 * The log sequence number of the last operation applied, or 0 if the
+	 * board is not being logged.
+	 */
+	private long lastLsn = 0;
+	
+	public Board(String name) {
+		this.name=name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @param op
+	 * @return true if the operation would be applied, i.e. it wins over
+	 * what the board has
+	 */
+	public synchronized boolean admits(BoardOp op) {
+		return shapes.admits(op);
+	}
+	
+	/**
+	 * Apply an operation to the board, if it wins.
+	 * @param op
+	 * @param lsn the log sequence number of the operation, or 0
+	 * @return true if the operation was applied
+	 */
+	public synchronized boolean apply(BoardOp op, long lsn) {
+		if(lsn>0) lastLsn=lsn;
+		if(!shapes.apply(op)) return false;
+		if(tail.isEmpty()) tailStarted=System.currentTimeMillis();
+		if(tail.size()==tailLsns.length) tailLsns=Arrays.copyOf(tailLsns, tailLsns.length*2);
+		tailLsns[tail.size()]=lsn;
+		tail.add(op);
+		return true;
+	}
+	
+	/**
+	 * Replace the state of the board with a snapshot, e.g. from disk. The
+	 * history becomes the snapshot.
+	 * @param restored
+	 */
+	public synchronized void restore(BoardSnapshot restored) {
+		shapes.restore(restored);
+		tail.clear();
+		snapshot=restored;
+		lastLsn=restored.lsn;
+	}
+	
+	public synchronized Shape getShape(long id) {
+		return shapes.get(id);
+	}
+	
+	/**
+	 * @param region
+	 * @return the shapes whose bounds intersect the region
+	 */
+	public synchronized List<Shape> getShapes(Rect region) {
+		return shapes.search(region);
+	}
+	
+	/**
+	 * Find the shapes under an eraser or a selection click.
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @return the shapes that pass within radius of x,y
+	 */
+	public synchronized List<Shape> hitTest(int x, int y, int radius) {
+		List<Shape> hits = new ArrayList<>();
+		shapes.search(new Rect(x-radius, y-radius, x+radius, y+radius), shape -> {
+			if(shape.hits(x, y, radius)) hits.add(shape);
+		});
+		return hits;
+	}
+	
+	/**
+	 * @return a copy of the shapes on the board
+	 */
+	public synchronized List<Shape> getShapes() {
+		return shapes.getShapes();
+	}
+	
+	/**
+	 * The history of the board for a joining client to replay: the shapes of
+	 * the snapshot followed by the operations in the tail. This is safe to
+	 * call while the board is being compacted.
+	 * @return a copy of the history of the board
+	 */
+	public List<BoardOp> getHistory() {
+		BoardSnapshot base;
+		List<BoardOp> ops;
+		synchronized(this) {
+			base=snapshot;
+			ops=new ArrayList<>(tail);
+		}
+		List<BoardOp> history = new ArrayList<>(base.shapes.size()+ops.size());
+		for(Shape shape : base.shapes) history.add(BoardOp.put(name, shape));
+		history.addAll(ops);
+		return history;
+	}
+	
+	/**
+	 * @return the current snapshot of the board's history
+	 */
+	public BoardSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * @return the number of operations applied since the snapshot
+	 */
+	public synchronized int getTailSize() {
+		return tail.size();
+	}
+	
+	/**
+	 * @return how long the oldest operation has been in the tail, in ms
+	 */
+	public synchronized long getTailAge() {
+		return tail.isEmpty() ? 0 : System.currentTimeMillis()-tailStarted;
+	}
+	
+	/**
+	 * @return the log sequence number of the oldest operation in the tail,
+	 * or 0 if the tail is empty
+	 */
+	public synchronized long getTailFirstLsn() {
+		return tail.isEmpty() ? 0 : tailLsns[0];
+	}
+	
+	/**
+	 * Fold the tail, as it is now, into a new snapshot. This does the work
+	 * without holding the board's lock, so operations can still be applied.
+	 * The result must be passed to {@link #installSnapshot(Compaction)}
+	 * once it is safe to, e.g. after it has been written to disk. Only one
+	 * compaction of a board may be underway at a time.
+	 * @param tombstonesBefore collect the tombstones with a clock before this
+	 * @return the compaction, or null if the tail is empty
+	 */
+	public Compaction compact(long tombstonesBefore) {
+		BoardSnapshot base;
+		List<BoardOp> ops;
+		long lsn;
+		synchronized(this) {
+			if(tail.isEmpty()) return null;
+			base=snapshot;
+			ops=new ArrayList<>(tail);
+			lsn=tailLsns[tail.size()-1];
+		}
+		ShapeMap folded = new ShapeMap(false);
+		folded.restore(base);
+		for(BoardOp op : ops) folded.apply(op);
+		folded.collectTombstones(tombstonesBefore);
+		return new Compaction(folded.toSnapshot(lsn), ops.size(), tombstonesBefore);
+	}
+	
+	/**
+	 * Replace the snapshot with a compacted one and drop the operations it
+	 * folded in from the tail. Operations applied during the compaction stay
+	 * in the tail.
+	 * @param compaction
+	 */
+	public synchronized void installSnapshot(Compaction compaction) {
+		int n = compaction.folded;
+		tail.subList(0, n).clear();
+		System.arraycopy(tailLsns, n, tailLsns, 0, tail.size());
+		snapshot=compaction.snapshot;
+		shapes.collectTombstones(compaction.tombstonesBefore);
+		tailStarted=System.currentTimeMillis();
+	}
+	
+	/**
+	 * A new snapshot waiting to be installed.
+	 */
+	public static final class Compaction {
+		public final BoardSnapshot snapshot;
+		private final int folded;
+		private final long tombstonesBefore;
+		
+		private Compaction(BoardSnapshot snapshot, int folded, long tombstonesBefore) {
+			this.snapshot=snapshot;
+			this.folded=folded;
+			this.tombstonesBefore=tombstonesBefore;
+		}
+	}
+	
+	public synchronized int size() {
+		return shapes.size();
+	}
+	
+	public synchronized long getLastLsn() {
+		return lastLsn;
+	}
+}
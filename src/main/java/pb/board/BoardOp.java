@@ -0,0 +1,168 @@
+package pb.board;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An operation on a board. Operations are what is logged, replayed and sent
+ * between peers; the state of a board is the result of applying its
+ * operations in order.
+ * 
+ * @see {@link pb.board.Board}
+ * @author aaron
+ *
+ */
+public final class BoardOp {
+	
+	public static enum Type {
+		/**
+		 * Add a shape, or replace the shape with the same id (e.g. to move it).
+		 */
+		PUT,
+		/**
+		 * Remove a shape, e.g. erase it.
+		 */
+		REMOVE,
+		/**
+		 * Remove all shapes.
+		 */
+		CLEAR,
+		/**
+		 * Add points to the end of a stroke that is being drawn, or start it.
+		 * Unlike the others, an append is not commutative: it only applies
+		 * when its offset is the number of points the stroke has, so the
+		 * appends to a stroke converge only because they are sent and
+		 * applied in order, over the one connection of the client drawing it.
+		 */
+		APPEND
+	}
+	
+	public final String board;
+	public final Type type;
+	public final long shapeId;
+	
+	/**
+	 * The shape for a PUT, or the new points of the stroke for an APPEND,
+	 * otherwise null.
+	 */
+	public final Shape shape;
+	
+	/**
+	 * For an APPEND, the number of points the stroke had before it, which it
+	 * must still have for the append to apply.
+	 */
+	public final int offset;
+	
+	/**
+	 * The version of the operation, which for a PUT is the version of its
+	 * shape. A clock of 0 means the operation is not versioned, and is
+	 * applied whatever the versions on the board.
+	 * @see {@link pb.board.Version}
+	 */
+	public final long clock;
+	public final int replica;
+	
+	private BoardOp(String board, Type type, long shapeId, Shape shape, long clock, int replica) {
+		this(board, type, shapeId, shape, 0, clock, replica);
+	}
+	
+	private BoardOp(String board, Type type, long shapeId, Shape shape, int offset, long clock, int replica) {
+		this.board=board;
+		this.type=type;
+		this.shapeId=shapeId;
+		this.shape=shape;
+		this.offset=offset;
+		this.clock=clock;
+		this.replica=replica;
+	}
+	
+	public static BoardOp put(String board, Shape shape) {
+		return new BoardOp(board, Type.PUT, shape.id, shape, shape.clock, shape.replica);
+	}
+	
+	public static BoardOp remove(String board, long shapeId) {
+		return remove(board, shapeId, 0, 0);
+	}
+	
+	public static BoardOp remove(String board, long shapeId, long clock, int replica) {
+		return new BoardOp(board, Type.REMOVE, shapeId, null, clock, replica);
+	}
+	
+	public static BoardOp clear(String board) {
+		return clear(board, 0, 0);
+	}
+	
+	public static BoardOp clear(String board, long clock, int replica) {
+		return new BoardOp(board, Type.CLEAR, 0, null, clock, replica);
+	}
+	
+	/**
+	 * @param board
+	 * @param segment the points to add, as a shape with the id, colour and
+	 * width of the stroke and the version of the operation
+	 * @param offset the number of points the stroke already has, 0 to start it
+	 * @return the operation
+	 */
+	public static BoardOp append(String board, Shape segment, int offset) {
+		if(offset<0) throw new IllegalArgumentException("negative stroke offset "+offset);
+		return new BoardOp(board, Type.APPEND, segment.id, segment, offset, segment.clock, segment.replica);
+	}
+	
+	/**
+	 * @param clock
+	 * @param replica
+	 * @return a copy of the operation with a new version
+	 */
+	public BoardOp stamped(long clock, int replica) {
+		if(type==Type.PUT) return put(board, shape.withVersion(clock, replica));
+		if(type==Type.APPEND) return append(board, shape.withVersion(clock, replica), offset);
+		return new BoardOp(board, type, shapeId, null, clock, replica);
+	}
+	
+	/**
+	 * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+	 */
+	public int encodedSize() {
+		return 2+board.getBytes(StandardCharsets.UTF_8).length+1+8
+				+(type==Type.APPEND ? 4 : 0)+(shape==null ? 8+4 : shape.encodedSize());
+	}
+	
+	public void writeTo(ByteBuffer buf) {
+		byte[] name = board.getBytes(StandardCharsets.UTF_8);
+		buf.putShort((short) name.length);
+		buf.put(name);
+		buf.put((byte) type.ordinal());
+		buf.putLong(shapeId);
+		if(type==Type.APPEND) buf.putInt(offset);
+		if(shape!=null) {
+			shape.writeTo(buf);
+		} else {
+			buf.putLong(clock);
+			buf.putInt(replica);
+		}
+	}
+	
+	public static BoardOp readFrom(ByteBuffer buf) {
+		byte[] name = new byte[buf.getShort() & 0xffff];
+		buf.get(name);
+		String board = new String(name, StandardCharsets.UTF_8);
+		int t = buf.get();
+		if(t<0 || t>=Type.values().length) throw new IllegalArgumentException("bad op type "+t);
+		Type type = Type.values()[t];
+		long shapeId = buf.getLong();
+		if(type==Type.PUT) return put(board, Shape.readFrom(buf));
+		if(type==Type.APPEND) {
+			int offset = buf.getInt();
+			return append(board, Shape.readFrom(buf), offset);
+		}
+		long clock = buf.getLong();
+		int replica = buf.getInt();
+		return new BoardOp(board, type, shapeId, null, clock, replica);
+	}
+	
+	@Override
+	public String toString() {
+		if(type==Type.APPEND) return type+" "+shapeId+" at "+offset+" on "+board;
+		return type+" "+shapeId+" on "+board;
+	}
+}
@@ -0,0 +1,60 @@
+package pb.board;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of the state of a board as of a log sequence number: its
+ * shapes, and what is needed to keep merging edits correctly from there, i.e.
+ * the tombstones of removed shapes, the version of the last clear and the
+ * horizon below which tombstones have been collected. Snapshots are replaced,
+ * never changed, so they can be read by any thread while a newer one is being
+ * made.
+ * 
+ * @see {@link pb.board.Board}
+ * @see {@link pb.board.ShapeMap}
+ * @author aaron
+ *
+ */
+public final class BoardSnapshot {
+	public static final BoardSnapshot EMPTY = new BoardSnapshot(Collections.emptyList(), 0);
+	
+	/**
+	 * The shapes, which must not be modified.
+	 */
+	public final List<Shape> shapes;
+	
+	/**
+	 * The versions of the removals of shapes, by shape id.
+	 */
+	public final Map<Long,Version> tombstones;
+	
+	/**
+	 * The version of the last clear.
+	 */
+	public final Version cleared;
+	
+	/**
+	 * The clock that tombstones have been collected up to.
+	 */
+	public final long horizon;
+	
+	/**
+	 * The log sequence number of the last operation folded into the snapshot.
+	 */
+	public final long lsn;
+	
+	public BoardSnapshot(List<Shape> shapes, long lsn) {
+		this(shapes, Collections.emptyMap(), Version.ZERO, 0, lsn);
+	}
+	
+	public BoardSnapshot(List<Shape> shapes, Map<Long,Version> tombstones, Version cleared,
+			long horizon, long lsn) {
+		this.shapes=Collections.unmodifiableList(shapes);
+		this.tombstones=Collections.unmodifiableMap(tombstones);
+		this.cleared=cleared;
+		this.horizon=horizon;
+		this.lsn=lsn;
+	}
+}
@@ -0,0 +1,69 @@
+package pb.board;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hybrid logical clock: a timestamp that follows the wall clock in ms but
+ * never goes backwards and always moves past the timestamps of edits that
+ * have been received, so an edit is always after the edits its replica has
+ * seen. The timestamp is the wall clock in ms shifted left by 16 bits, plus a
+ * counter for edits in the same ms. A received timestamp that is too far
+ * ahead of the wall clock is refused, so one replica with a bad clock cannot
+ * drag every other replica into the future.
+ * 
+ * @see {@link pb.board.Version}
+ * @author aaron
+ *
+ */
+public final class HybridClock {
+	private static final int COUNTER_BITS = 16;
+	
+	/**
+	 * How far ahead of the wall clock a received timestamp may be, in ms.
+	 */
+	private static final long MAX_DRIFT = 60*1000;
+	
+	private final AtomicLong last = new AtomicLong();
+	
+	/**
+	 * @return a timestamp after every timestamp returned or received so far
+	 */
+	public long now() {
+		while(true) {
+			long prev = last.get();
+			long next = Math.max(fromMillis(System.currentTimeMillis()), prev+1);
+			if(last.compareAndSet(prev, next)) return next;
+		}
+	}
+	
+	/**
+	 * Move the clock past a timestamp that has been received.
+	 * @param remote
+	 * @return false if the timestamp is too far in the future to accept
+	 */
+	public boolean update(long remote) {
+		long wall = System.currentTimeMillis();
+		if(toMillis(remote)>wall+MAX_DRIFT) return false;
+		while(true) {
+			long prev = last.get();
+			if(prev>=remote) return true;
+			if(last.compareAndSet(prev, remote)) return true;
+		}
+	}
+	
+	/**
+	 * @param ms wall clock time
+	 * @return the earliest timestamp at that time
+	 */
+	public static long fromMillis(long ms) {
+		return ms<<COUNTER_BITS;
+	}
+	
+	/**
+	 * @param timestamp
+	 * @return the wall clock time of the timestamp
+	 */
+	public static long toMillis(long timestamp) {
+		return timestamp>>>COUNTER_BITS;
+	}
+}
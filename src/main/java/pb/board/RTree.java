@@ -0,0 +1,518 @@
+package pb.board;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An R-tree of values by their bounding rectangles, for finding the values
+ * in a region or under a point without looking at every value. Values are
+ * inserted, removed and moved one at a time (quadratic split, and reinsertion
+ * of underfull nodes on removal), or bulk loaded with Sort-Tile-Recursive
+ * packing, which gives a better tree much faster, e.g. when a board is loaded
+ * from a snapshot. Each value may be in the tree once; values are found again
+ * through a map to their leaf, so they need sensible equals and hashCode
+ * (identity is fine).
+ * <br/>
+ * The bounds of the entries of a node are kept in int arrays in the node, so a
+ * query only follows references into the children it has to visit.
+ * <br/>
+ * Not thread safe.
+ *
+ * @see {@link pb.board.Board}
+ * @author aaron
+ *
+ * @param <T> the type of value
+ */
+public class RTree<T> {
+	private static final int MAX_ENTRIES = 16;
+	private static final int MIN_ENTRIES = 6;
+
+	private static final class Node {
+		final boolean leaf;
+		Node parent;
+		int count;
+		// one spare slot, for the entry that makes a node split
+		final int[] minX = new int[MAX_ENTRIES+1];
+		final int[] minY = new int[MAX_ENTRIES+1];
+		final int[] maxX = new int[MAX_ENTRIES+1];
+		final int[] maxY = new int[MAX_ENTRIES+1];
+		final Object[] entries = new Object[MAX_ENTRIES+1];
+
+		Node(boolean leaf) {
+			this.leaf=leaf;
+		}
+
+		int indexOf(Object entry) {
+			for(int i=0;i<count;i++) {
+				if(entries[i]==entry || (leaf && entries[i].equals(entry))) return i;
+			}
+			throw new IllegalStateException("entry is not in its node");
+		}
+	}
+
+	private Node root = new Node(true);
+
+	/**
+	 * The leaf that each value is in.
+	 */
+	private final HashMap<T,Node> leaves = new HashMap<>();
+
+	/**
+	 * @return the number of values in the tree
+	 */
+	public int size() {
+		return leaves.size();
+	}
+
+	public boolean contains(T value) {
+		return leaves.containsKey(value);
+	}
+
+	/**
+	 * Remove every value.
+	 */
+	public void clear() {
+		root = new Node(true);
+		leaves.clear();
+	}
+
+	/**
+	 * Add a value to the tree.
+	 * @param value
+	 * @param bounds
+	 * @throws IllegalArgumentException if the value is already in the tree
+	 */
+	public void insert(T value, Rect bounds) {
+		if(leaves.containsKey(value)) throw new IllegalArgumentException("value is already in the tree");
+		insert(value, bounds.minX, bounds.minY, bounds.maxX, bounds.maxY);
+	}
+
+	private void insert(Object value, int minX, int minY, int maxX, int maxY) {
+		Node node = root;
+		while(!node.leaf) {
+			node = (Node) node.entries[chooseSubtree(node, minX, minY, maxX, maxY)];
+		}
+		add(node, value, minX, minY, maxX, maxY);
+		afterAdd(node);
+	}
+
+	/**
+	 * Remove a value from the tree.
+	 * @param value
+	 * @return true if the value was in the tree
+	 */
+	public boolean remove(T value) {
+		Node leaf = leaves.remove(value);
+		if(leaf==null) return false;
+		removeAt(leaf, leaf.indexOf(value));
+		condense(leaf);
+		return true;
+	}
+
+	/**
+	 * Replace a value with another that has new bounds, e.g. a shape that has
+	 * been moved or changed. If the new bounds still fit in the leaf of the
+	 * old value, this is done in place.
+	 * @param old the value to replace; if it is not in the tree the new value is just inserted
+	 * @param value the new value, which may be the same as the old one
+	 * @param bounds the bounds of the new value
+	 */
+	public void move(T old, T value, Rect bounds) {
+		Node leaf = leaves.get(old);
+		if(leaf==null) {
+			insert(value, bounds);
+			return;
+		}
+		Node parent = leaf.parent;
+		int slot = parent==null ? -1 : parent.indexOf(leaf);
+		if(parent==null || (bounds.minX>=parent.minX[slot] && bounds.minY>=parent.minY[slot]
+				&& bounds.maxX<=parent.maxX[slot] && bounds.maxY<=parent.maxY[slot])) {
+			int i = leaf.indexOf(old);
+			leaves.remove(old);
+			leaves.put(value, leaf);
+			leaf.entries[i]=value;
+			leaf.minX[i]=bounds.minX;
+			leaf.minY[i]=bounds.minY;
+			leaf.maxX[i]=bounds.maxX;
+			leaf.maxY[i]=bounds.maxY;
+			adjustUp(leaf);
+			return;
+		}
+		remove(old);
+		insert(value, bounds);
+	}
+
+	/**
+	 * Replace the contents of the tree, packing the values into full nodes
+	 * with Sort-Tile-Recursive.
+	 * @param values
+	 * @param boundsOf gives the bounds of each value
+	 */
+	public void load(Collection<? extends T> values, Function<? super T,Rect> boundsOf) {
+		clear();
+		int n = values.size();
+		Object[] entries = new Object[n];
+		int[] minX = new int[n], minY = new int[n], maxX = new int[n], maxY = new int[n];
+		int k = 0;
+		for(T value : values) {
+			Rect r = boundsOf.apply(value);
+			entries[k]=value;
+			minX[k]=r.minX;
+			minY[k]=r.minY;
+			maxX[k]=r.maxX;
+			maxY[k]=r.maxY;
+			k++;
+		}
+		boolean leaf = true;
+		while(n>MAX_ENTRIES) {
+			int nodes = (n+MAX_ENTRIES-1)/MAX_ENTRIES;
+			int sliceSize = (int) Math.ceil(Math.sqrt(nodes))*MAX_ENTRIES;
+			// sort by x centre, then each vertical slice by y centre
+			long[] keys = new long[n];
+			for(int i=0;i<n;i++) keys[i]=sortKey(minX[i], maxX[i], i);
+			Arrays.sort(keys);
+			for(int s=0;s<n;s+=sliceSize) {
+				int end = Math.min(n, s+sliceSize);
+				for(int i=s;i<end;i++) {
+					int e = (int) keys[i];
+					keys[i]=sortKey(minY[e], maxY[e], e);
+				}
+				Arrays.sort(keys, s, end);
+			}
+			Object[] upper = new Object[nodes];
+			int[] upperMinX = new int[nodes], upperMinY = new int[nodes];
+			int[] upperMaxX = new int[nodes], upperMaxY = new int[nodes];
+			int m = 0;
+			for(int s=0;s<n;s+=sliceSize) {
+				int end = Math.min(n, s+sliceSize);
+				for(int i=s;i<end;i+=MAX_ENTRIES) {
+					Node node = new Node(leaf);
+					for(int j=i;j<end && j<i+MAX_ENTRIES;j++) {
+						int e = (int) keys[j];
+						add(node, entries[e], minX[e], minY[e], maxX[e], maxY[e]);
+					}
+					upper[m]=node;
+					upperMinX[m]=min(node.minX, node.count);
+					upperMinY[m]=min(node.minY, node.count);
+					upperMaxX[m]=max(node.maxX, node.count);
+					upperMaxY[m]=max(node.maxY, node.count);
+					m++;
+				}
+			}
+			entries=upper;
+			minX=upperMinX;
+			minY=upperMinY;
+			maxX=upperMaxX;
+			maxY=upperMaxY;
+			n=m;
+			leaf=false;
+		}
+		root = new Node(leaf);
+		for(int i=0;i<n;i++) add(root, entries[i], minX[i], minY[i], maxX[i], maxY[i]);
+	}
+
+	/**
+	 * A key that sorts by the centre of an interval, carrying the entry index
+	 * in its low half.
+	 */
+	private static long sortKey(int min, int max, int index) {
+		int centre = (int) (((long) min+max)>>1);
+		return ((long) centre<<32) | (index & 0xffffffffL);
+	}
+
+	/*
+	 * Queries
+	 */
+
+	/**
+	 * Visit the values whose bounds intersect a rectangle.
+	 * @param region
+	 * @param visitor
+	 */
+	public void search(Rect region, Consumer<? super T> visitor) {
+		search(root, region.minX, region.minY, region.maxX, region.maxY, visitor);
+	}
+
+	/**
+	 * @param region
+	 * @return the values whose bounds intersect the region
+	 */
+	public List<T> search(Rect region) {
+		List<T> found = new ArrayList<>();
+		search(region, found::add);
+		return found;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return the values whose bounds contain the point
+	 */
+	public List<T> search(int x, int y) {
+		List<T> found = new ArrayList<>();
+		search(root, x, y, x, y, found::add);
+		return found;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void search(Node node, int minX, int minY, int maxX, int maxY, Consumer<? super T> visitor) {
+		for(int i=0;i<node.count;i++) {
+			if(node.minX[i]<=maxX && minX<=node.maxX[i] && node.minY[i]<=maxY && minY<=node.maxY[i]) {
+				if(node.leaf) visitor.accept((T) node.entries[i]);
+				else search((Node) node.entries[i], minX, minY, maxX, maxY, visitor);
+			}
+		}
+	}
+
+	/*
+	 * Maintenance
+	 */
+
+	@SuppressWarnings("unchecked")
+	private void add(Node node, Object entry, int minX, int minY, int maxX, int maxY) {
+		int i = node.count++;
+		node.entries[i]=entry;
+		node.minX[i]=minX;
+		node.minY[i]=minY;
+		node.maxX[i]=maxX;
+		node.maxY[i]=maxY;
+		if(node.leaf) leaves.put((T) entry, node);
+		else ((Node) entry).parent=node;
+	}
+
+	private static void removeAt(Node node, int i) {
+		int last = --node.count;
+		swap(node, i, last);
+		node.entries[last]=null;
+	}
+
+	private static void swap(Node node, int i, int j) {
+		if(i==j) return;
+		Object entry = node.entries[i];
+		node.entries[i]=node.entries[j];
+		node.entries[j]=entry;
+		swap(node.minX, i, j);
+		swap(node.minY, i, j);
+		swap(node.maxX, i, j);
+		swap(node.maxY, i, j);
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i]=a[j];
+		a[j]=t;
+	}
+
+	private static int min(int[] a, int n) {
+		int m = Integer.MAX_VALUE;
+		for(int i=0;i<n;i++) m=Math.min(m, a[i]);
+		return m;
+	}
+
+	private static int max(int[] a, int n) {
+		int m = Integer.MIN_VALUE;
+		for(int i=0;i<n;i++) m=Math.max(m, a[i]);
+		return m;
+	}
+
+	private static double area(long minX, long minY, long maxX, long maxY) {
+		return (double) (maxX-minX)*(maxY-minY);
+	}
+
+	/**
+	 * @return the entry of an internal node whose bounds grow the least to
+	 * take the rectangle, the smallest on a tie
+	 */
+	private static int chooseSubtree(Node node, int minX, int minY, int maxX, int maxY) {
+		int best = 0;
+		double bestGrowth = Double.MAX_VALUE, bestArea = Double.MAX_VALUE;
+		for(int i=0;i<node.count;i++) {
+			double area = area(node.minX[i], node.minY[i], node.maxX[i], node.maxY[i]);
+			double growth = area(Math.min(minX, node.minX[i]), Math.min(minY, node.minY[i]),
+					Math.max(maxX, node.maxX[i]), Math.max(maxY, node.maxY[i]))-area;
+			if(growth<bestGrowth || (growth==bestGrowth && area<bestArea)) {
+				best=i;
+				bestGrowth=growth;
+				bestArea=area;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Set the bounds of a child's entry in its parent to the bounds of the
+	 * child's entries.
+	 * @return true if they changed
+	 */
+	private static boolean updateBounds(Node parent, int i, Node child) {
+		int minX = min(child.minX, child.count), minY = min(child.minY, child.count);
+		int maxX = max(child.maxX, child.count), maxY = max(child.maxY, child.count);
+		if(parent.minX[i]==minX && parent.minY[i]==minY && parent.maxX[i]==maxX && parent.maxY[i]==maxY) {
+			return false;
+		}
+		parent.minX[i]=minX;
+		parent.minY[i]=minY;
+		parent.maxX[i]=maxX;
+		parent.maxY[i]=maxY;
+		return true;
+	}
+
+	/**
+	 * Fix the bounds of the ancestors of a node that has changed.
+	 */
+	private static void adjustUp(Node node) {
+		while(node.parent!=null) {
+			Node parent = node.parent;
+			if(!updateBounds(parent, parent.indexOf(node), node)) break;
+			node=parent;
+		}
+	}
+
+	/**
+	 * Split the nodes that have overflowed, from a node that has just had an
+	 * entry added up to the root, then fix the bounds above.
+	 */
+	private void afterAdd(Node node) {
+		while(node.count>MAX_ENTRIES) {
+			Node sibling = split(node);
+			Node parent = node.parent;
+			if(parent==null) {
+				root = new Node(false);
+				add(root, node, 0, 0, 0, 0);
+				add(root, sibling, 0, 0, 0, 0);
+				updateBounds(root, 0, node);
+				updateBounds(root, 1, sibling);
+				return;
+			}
+			updateBounds(parent, parent.indexOf(node), node);
+			add(parent, sibling, 0, 0, 0, 0);
+			updateBounds(parent, parent.count-1, sibling);
+			node=parent;
+		}
+		adjustUp(node);
+	}
+
+	/**
+	 * Quadratic split: start the two groups with the pair of entries that
+	 * would waste the most area together, then give each remaining entry to
+	 * the group that it grows the least, taking first the entries with the
+	 * strongest preference.
+	 * @return the new sibling, holding about half the entries
+	 */
+	private Node split(Node node) {
+		int n = node.count;
+		Object[] entries = node.entries.clone();
+		int[] minX = node.minX.clone(), minY = node.minY.clone();
+		int[] maxX = node.maxX.clone(), maxY = node.maxY.clone();
+		int seedA = 0, seedB = 1;
+		double worst = -Double.MAX_VALUE;
+		for(int i=0;i<n;i++) {
+			for(int j=i+1;j<n;j++) {
+				double waste = area(Math.min(minX[i], minX[j]), Math.min(minY[i], minY[j]),
+						Math.max(maxX[i], maxX[j]), Math.max(maxY[i], maxY[j]))
+						-area(minX[i], minY[i], maxX[i], maxY[i])-area(minX[j], minY[j], maxX[j], maxY[j]);
+				if(waste>worst) {
+					worst=waste;
+					seedA=i;
+					seedB=j;
+				}
+			}
+		}
+		Arrays.fill(node.entries, null);
+		node.count=0;
+		Node sibling = new Node(node.leaf);
+		Node[] groups = {node, sibling};
+		// the bounds of each group as it grows
+		long[][] bounds = new long[2][];
+		boolean[] assigned = new boolean[n];
+		int[] seeds = {seedA, seedB};
+		for(int g=0;g<2;g++) {
+			int s = seeds[g];
+			add(groups[g], entries[s], minX[s], minY[s], maxX[s], maxY[s]);
+			bounds[g] = new long[] {minX[s], minY[s], maxX[s], maxY[s]};
+			assigned[s]=true;
+		}
+		int remaining = n-2;
+		while(remaining>0) {
+			int g;
+			int pick = -1;
+			if(groups[0].count+remaining<=MIN_ENTRIES) {
+				g=0;
+			} else if(groups[1].count+remaining<=MIN_ENTRIES) {
+				g=1;
+			} else {
+				// the entry that most prefers one group
+				g=0;
+				double strongest = -1;
+				for(int i=0;i<n;i++) {
+					if(assigned[i]) continue;
+					double d0 = growth(bounds[0], minX[i], minY[i], maxX[i], maxY[i]);
+					double d1 = growth(bounds[1], minX[i], minY[i], maxX[i], maxY[i]);
+					if(Math.abs(d0-d1)>strongest) {
+						strongest=Math.abs(d0-d1);
+						pick=i;
+						if(d0!=d1) g = d0<d1 ? 0 : 1;
+						else g = groups[0].count<=groups[1].count ? 0 : 1;
+					}
+				}
+			}
+			if(pick<0) {
+				for(pick=0;assigned[pick];pick++);
+			}
+			add(groups[g], entries[pick], minX[pick], minY[pick], maxX[pick], maxY[pick]);
+			long[] b = bounds[g];
+			b[0]=Math.min(b[0], minX[pick]);
+			b[1]=Math.min(b[1], minY[pick]);
+			b[2]=Math.max(b[2], maxX[pick]);
+			b[3]=Math.max(b[3], maxY[pick]);
+			assigned[pick]=true;
+			remaining--;
+		}
+		return sibling;
+	}
+
+	private static double growth(long[] b, int minX, int minY, int maxX, int maxY) {
+		return area(Math.min(b[0], minX), Math.min(b[1], minY), Math.max(b[2], maxX), Math.max(b[3], maxY))
+				-area(b[0], b[1], b[2], b[3]);
+	}
+
+	/**
+	 * After an entry has been removed from a leaf, take the nodes on its path
+	 * that are now underfull out of the tree, fix the bounds, and reinsert
+	 * the values that were in the underfull nodes.
+	 */
+	private void condense(Node node) {
+		List<Node> orphans = new ArrayList<>();
+		while(node.parent!=null) {
+			Node parent = node.parent;
+			int i = parent.indexOf(node);
+			if(node.count<MIN_ENTRIES) {
+				removeAt(parent, i);
+				node.parent=null;
+				orphans.add(node);
+			} else if(!updateBounds(parent, i, node)) {
+				// the parent has lost nothing, so nothing above changes
+				break;
+			}
+			node=parent;
+		}
+		while(!root.leaf && root.count==1) {
+			root=(Node) root.entries[0];
+			root.parent=null;
+		}
+		if(!root.leaf && root.count==0) root = new Node(true);
+		for(Node orphan : orphans) reinsert(orphan);
+	}
+
+	private void reinsert(Node node) {
+		for(int i=0;i<node.count;i++) {
+			if(node.leaf) insert(node.entries[i], node.minX[i], node.minY[i], node.maxX[i], node.maxY[i]);
+			else reinsert((Node) node.entries[i]);
+		}
+	}
+}
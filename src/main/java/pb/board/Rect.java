@@ -0,0 +1,89 @@
+package pb.board;
+
+/**
+ * An immutable axis aligned rectangle in board coordinates, inclusive of its
+ * edges. Used for the bounds of shapes and for regions of a board.
+ * 
+ * @author aaron
+ *
+ */
+public final class Rect {
+	public final int minX;
+	public final int minY;
+	public final int maxX;
+	public final int maxY;
+	
+	public Rect(int minX, int minY, int maxX, int maxY) {
+		this.minX=Math.min(minX, maxX);
+		this.minY=Math.min(minY, maxY);
+		this.maxX=Math.max(minX, maxX);
+		this.maxY=Math.max(minY, maxY);
+	}
+	
+	/**
+	 * The bounds of a list of points.
+	 * @param points x,y pairs, there must be at least one pair
+	 * @return the bounds
+	 */
+	public static Rect of(int[] points) {
+		int minX=Integer.MAX_VALUE, minY=Integer.MAX_VALUE;
+		int maxX=Integer.MIN_VALUE, maxY=Integer.MIN_VALUE;
+		for(int i=0;i+1<points.length;i+=2) {
+			minX=Math.min(minX, points[i]);
+			maxX=Math.max(maxX, points[i]);
+			minY=Math.min(minY, points[i+1]);
+			maxY=Math.max(maxY, points[i+1]);
+		}
+		return new Rect(minX, minY, maxX, maxY);
+	}
+	
+	public boolean intersects(Rect r) {
+		return minX<=r.maxX && r.minX<=maxX && minY<=r.maxY && r.minY<=maxY;
+	}
+	
+	public boolean contains(int x, int y) {
+		return x>=minX && x<=maxX && y>=minY && y<=maxY;
+	}
+	
+	public boolean contains(Rect r) {
+		return r.minX>=minX && r.maxX<=maxX && r.minY>=minY && r.maxY<=maxY;
+	}
+	
+	public Rect union(Rect r) {
+		return new Rect(Math.min(minX, r.minX), Math.min(minY, r.minY),
+				Math.max(maxX, r.maxX), Math.max(maxY, r.maxY));
+	}
+	
+	/**
+	 * @param d distance to grow by on every side
+	 * @return a larger rectangle
+	 */
+	public Rect grow(int d) {
+		return new Rect(minX-d, minY-d, maxX+d, maxY+d);
+	}
+	
+	public long width() {
+		return (long) maxX-minX;
+	}
+	
+	public long height() {
+		return (long) maxY-minY;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Rect)) return false;
+		Rect r = (Rect) o;
+		return minX==r.minX && minY==r.minY && maxX==r.maxX && maxY==r.maxY;
+	}
+	
+	@Override
+	public int hashCode() {
+		return ((minX*31+minY)*31+maxX)*31+maxY;
+	}
+	
+	@Override
+	public String toString() {
+		return "["+minX+","+minY+" "+maxX+","+maxY+"]";
+	}
+}
@@ -0,0 +1,205 @@
+package pb.board;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An immutable shape on a board: a stroke through a list of points, drawn in
+ * a colour with a width. Changing a shape means replacing it with a new one
+ * that has the same id. Each shape carries the version of the edit that made
+ * it, so that replicas agree on which of two concurrent edits wins.
+ * 
+ * @see {@link pb.board.Board}
+ * @author aaron
+ *
+ */
+public final class Shape {
+	/**
+	 * The id of the shape, unique within its board.
+	 */
+	public final long id;
+	
+	/**
+	 * The hybrid logical clock of the edit that made the shape, or 0 if it
+	 * was not made by a replicated edit.
+	 * @see {@link pb.board.HybridClock}
+	 */
+	public final long clock;
+	
+	/**
+	 * The replica that made the shape.
+	 */
+	public final int replica;
+	
+	/**
+	 * The colour, as 0xAARRGGBB.
+	 */
+	public final int color;
+	
+	/**
+	 * The width of the stroke.
+	 */
+	public final int width;
+	
+	/**
+	 * The points of the stroke, as x,y pairs. Must not be modified.
+	 */
+	private final int[] points;
+	
+	/**
+	 * The bounds of the points, grown by half the width.
+	 */
+	public final Rect bounds;
+	
+	public Shape(long id, int color, int width, int[] points) {
+		this(id, 0, 0, color, width, points);
+	}
+	
+	public Shape(long id, long clock, int replica, int color, int width, int[] points) {
+		if(points.length<2 || points.length%2!=0) {
+			throw new IllegalArgumentException("a shape needs whole x,y pairs");
+		}
+		this.id=id;
+		this.clock=clock;
+		this.replica=replica;
+		this.color=color;
+		this.width=width;
+		this.points=points;
+		this.bounds=Rect.of(points).grow((width+1)/2);
+	}
+	
+	/**
+	 * @return the number of points
+	 */
+	public int numPoints() {
+		return points.length/2;
+	}
+	
+	public int x(int i) {
+		return points[2*i];
+	}
+	
+	public int y(int i) {
+		return points[2*i+1];
+	}
+	
+	/**
+	 * @return a copy of the points, as x,y pairs
+	 */
+	public int[] getPoints() {
+		return points.clone();
+	}
+	
+	/**
+	 * @param dx
+	 * @param dy
+	 * @return a copy of the shape moved by dx,dy
+	 */
+	public Shape moved(int dx, int dy) {
+		int[] moved = new int[points.length];
+		for(int i=0;i<points.length;i+=2) {
+			moved[i]=points[i]+dx;
+			moved[i+1]=points[i+1]+dy;
+		}
+		return new Shape(id, clock, replica, color, width, moved);
+	}
+	
+	/**
+	 * @param clock
+	 * @param replica
+	 * @return a copy of the shape with a new version, e.g. for a local edit
+	 */
+	public Shape withVersion(long clock, int replica) {
+		return new Shape(id, clock, replica, color, width, points);
+	}
+	
+	/**
+	 * @param segment more points for the stroke, with the version of the edit
+	 * that adds them
+	 * @return a copy of the shape with the points of the segment added to the
+	 * end, and the version of the segment
+	 */
+	public Shape extended(Shape segment) {
+		int[] extended = Arrays.copyOf(points, points.length+segment.points.length);
+		System.arraycopy(segment.points, 0, extended, points.length, segment.points.length);
+		return new Shape(id, segment.clock, segment.replica, color, width, extended);
+	}
+	
+	/**
+	 * Whether the stroke passes within a distance of a point, e.g. under an
+	 * eraser.
+	 * @param x
+	 * @param y
+	 * @param radius
+	 * @return true if some part of the stroke, allowing for its width, is
+	 * within radius of x,y
+	 */
+	public boolean hits(int x, int y, int radius) {
+		if(!bounds.grow(radius).contains(x, y)) return false;
+		double reach = width/2.0+radius;
+		double reach2 = reach*reach;
+		if(points.length==2) return dist2(x, y, points[0], points[1], points[0], points[1])<=reach2;
+		for(int i=0;i+3<points.length;i+=2) {
+			if(dist2(x, y, points[i], points[i+1], points[i+2], points[i+3])<=reach2) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the squared distance from px,py to the segment x0,y0 x1,y1
+	 */
+	private static double dist2(double px, double py, double x0, double y0, double x1, double y1) {
+		double dx = x1-x0, dy = y1-y0;
+		double len2 = dx*dx+dy*dy;
+		double t = len2==0 ? 0 : Math.max(0, Math.min(1, ((px-x0)*dx+(py-y0)*dy)/len2));
+		double ex = x0+t*dx-px, ey = y0+t*dy-py;
+		return ex*ex+ey*ey;
+	}
+	
+	/**
+	 * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+	 */
+	public int encodedSize() {
+		return 8+8+4+4+4+4+4*points.length;
+	}
+	
+	public void writeTo(ByteBuffer buf) {
+		buf.putLong(id);
+		buf.putLong(clock);
+		buf.putInt(replica);
+		buf.putInt(color);
+		buf.putInt(width);
+		buf.putInt(points.length);
+		for(int p : points) buf.putInt(p);
+	}
+	
+	/**
+	 * Write the shape in the same format as {@link #writeTo(ByteBuffer)}.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(id);
+		out.writeLong(clock);
+		out.writeInt(replica);
+		out.writeInt(color);
+		out.writeInt(width);
+		out.writeInt(points.length);
+		for(int p : points) out.writeInt(p);
+	}
+	
+	public static Shape readFrom(ByteBuffer buf) {
+		long id = buf.getLong();
+		long clock = buf.getLong();
+		int replica = buf.getInt();
+		int color = buf.getInt();
+		int width = buf.getInt();
+		int n = buf.getInt();
+		if(n<0 || n>buf.remaining()/4) throw new IllegalArgumentException("bad shape length "+n);
+		int[] points = new int[n];
+		for(int i=0;i<n;i++) points[i]=buf.getInt();
+		return new Shape(id, clock, replica, color, width, points);
+	}
+}
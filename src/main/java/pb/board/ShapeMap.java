@@ -0,0 +1,242 @@
+package pb.board;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The shapes of a board as a last-writer-wins map, a CRDT: every replica that
+ * applies the same operations, in any order, ends up with the same shapes. An
+ * operation is only applied if its version is after the version the map has
+ * for the shape, whether that is the shape itself or the tombstone left when
+ * it was removed. A clear removes the shapes older than it and refuses older
+ * puts from then on. Merging an operation is a hash lookup, plus an update of
+ * the optional {@link pb.board.RTree}.
+ * <br/>
+ * Tombstones are collected once they are older than a horizon that the
+ * caller chooses, e.g. the longest time a replica is expected to be offline;
+ * after that, operations from before the horizon on shapes the map knows
+ * nothing about are refused, since they may be for a removed shape. This
+ * keeps the memory of the map bounded by the shapes plus the recent removals.
+ * <br/>
+ * Operations with a clock of 0 are not versioned, and are always applied.
+ * <br/>
+ * Appends are the exception to applying in any order: an append only applies
+ * to a stroke with as many points as its offset, so it is refused if it
+ * arrives before the appends it follows. They converge because the appends to
+ * a stroke come from one client, in order, over one connection.
+ * <br/>
+ * Not thread safe.
+ * 
+ * @see {@link pb.board.Version}
+ * @see {@link pb.board.HybridClock}
+ * @author aaron
+ *
+ */
+public class ShapeMap {
+	private final HashMap<Long,Shape> shapes = new HashMap<>();
+	
+	/**
+	 * The shapes by their bounds, or null if not indexed.
+	 */
+	private final RTree<Shape> index;
+	
+	private final HashMap<Long,Version> tombstones = new HashMap<>();
+	private Version cleared = Version.ZERO;
+	private long horizon = 0;
+	
+	/**
+	 * @param indexed whether to keep the shapes in an R-tree for region queries
+	 */
+	public ShapeMap(boolean indexed) {
+		index = indexed ? new RTree<>() : null;
+	}
+	
+	/**
+	 * Whether an operation would change the map, i.e. it is after everything
+	 * the map knows about the shape.
+	 * @param op
+	 * @return true if the operation wins
+	 */
+	public boolean admits(BoardOp op) {
+		if(op.type==BoardOp.Type.APPEND) {
+			Shape stroke = shapes.get(op.shapeId);
+			if(stroke==null ? op.offset!=0 : stroke.numPoints()!=op.offset) return false;
+		}
+		if(op.clock==0) return true;
+		if(Version.compare(op.clock, op.replica, cleared.clock, cleared.replica)<=0) return false;
+		if(op.type==BoardOp.Type.CLEAR) return true;
+		Shape shape = shapes.get(op.shapeId);
+		if(shape!=null) return Version.compare(op.clock, op.replica, shape.clock, shape.replica)>0;
+		Version removed = tombstones.get(op.shapeId);
+		if(removed!=null) return Version.compare(op.clock, op.replica, removed.clock, removed.replica)>0;
+		return op.clock>horizon;
+	}
+	
+	/**
+	 * Apply an operation, if it wins.
+	 * @param op
+	 * @return true if it was applied
+	 */
+	public boolean apply(BoardOp op) {
+		if(!admits(op)) return false;
+		switch(op.type) {
+		case PUT:
+			put(op.shape);
+			break;
+		case APPEND:
+			Shape stroke = shapes.get(op.shapeId);
+			put(stroke==null ? op.shape : stroke.extended(op.shape));
+			break;
+		case REMOVE:
+			Shape removed = shapes.remove(op.shapeId);
+			if(removed!=null && index!=null) index.remove(removed);
+			if(op.clock!=0) tombstones.put(op.shapeId, new Version(op.clock, op.replica));
+			break;
+		case CLEAR:
+			if(op.clock==0) {
+				clear();
+				break;
+			}
+			cleared = new Version(op.clock, op.replica);
+			// shapes put after the clear, that arrived before it, stay
+			for(Iterator<Shape> it = shapes.values().iterator();it.hasNext();) {
+				Shape shape = it.next();
+				if(Version.compare(shape.clock, shape.replica, op.clock, op.replica)<0) {
+					it.remove();
+					if(index!=null) index.remove(shape);
+				}
+			}
+			tombstones.values().removeIf(v -> v.compareTo(cleared)<0);
+			break;
+		}
+		return true;
+	}
+	
+	private void put(Shape shape) {
+		Shape old = shapes.put(shape.id, shape);
+		if(index!=null) {
+			if(old!=null) index.move(old, shape, shape.bounds);
+			else index.insert(shape, shape.bounds);
+		}
+		tombstones.remove(shape.id);
+	}
+	
+	private void clear() {
+		shapes.clear();
+		tombstones.clear();
+		if(index!=null) index.clear();
+	}
+	
+	/**
+	 * Collect the tombstones from before a clock. Operations from before the
+	 * newest of them are refused from then on, unless the map has a version
+	 * for their shape.
+	 * @param before
+	 */
+	public void collectTombstones(long before) {
+		for(Iterator<Version> it = tombstones.values().iterator();it.hasNext();) {
+			Version v = it.next();
+			if(v.clock<before) {
+				it.remove();
+				horizon=Math.max(horizon, v.clock);
+			}
+		}
+	}
+	
+	/**
+	 * Drop the tombstones from before a clock without refusing older
+	 * operations, for a replica that is sent the current shapes by another
+	 * (e.g. a client of the server), where a tombstone only has to outlast
+	 * the operations that were in flight when it was made.
+	 * @param before
+	 */
+	public void dropTombstones(long before) {
+		tombstones.values().removeIf(v -> v.clock<before);
+	}
+	
+	/**
+	 * Drop the shapes outside a region, without leaving tombstones, e.g. when
+	 * they have left a client's view and will be sent again when they are
+	 * back in view.
+	 * @param region
+	 */
+	public void retain(Rect region) {
+		List<Shape> kept = new ArrayList<>();
+		for(Iterator<Shape> it = shapes.values().iterator();it.hasNext();) {
+			Shape shape = it.next();
+			if(shape.bounds.intersects(region)) kept.add(shape);
+			else it.remove();
+		}
+		if(index!=null) index.load(kept, shape -> shape.bounds);
+	}
+	
+	/**
+	 * Replace the contents with a snapshot.
+	 * @param snapshot
+	 */
+	public void restore(BoardSnapshot snapshot) {
+		shapes.clear();
+		tombstones.clear();
+		for(Shape shape : snapshot.shapes) shapes.put(shape.id, shape);
+		tombstones.putAll(snapshot.tombstones);
+		cleared=snapshot.cleared;
+		horizon=snapshot.horizon;
+		if(index!=null) index.load(shapes.values(), shape -> shape.bounds);
+	}
+	
+	/**
+	 * @param lsn the log sequence number the contents are up to
+	 * @return a snapshot of the contents
+	 */
+	public BoardSnapshot toSnapshot(long lsn) {
+		return new BoardSnapshot(new ArrayList<>(shapes.values()), new HashMap<>(tombstones), 
+				cleared, horizon, lsn);
+	}
+	
+	public Shape get(long id) {
+		return shapes.get(id);
+	}
+	
+	public int size() {
+		return shapes.size();
+	}
+	
+	/**
+	 * @return the number of tombstones being kept
+	 */
+	public int numTombstones() {
+		return tombstones.size();
+	}
+	
+	/**
+	 * @return a copy of the shapes
+	 */
+	public List<Shape> getShapes() {
+		return new ArrayList<>(shapes.values());
+	}
+	
+	/**
+	 * Visit the shapes whose bounds intersect a region.
+	 * @param region
+	 * @param visitor
+	 * @throws IllegalStateException if the map is not indexed
+	 */
+	public void search(Rect region, Consumer<? super Shape> visitor) {
+		if(index==null) throw new IllegalStateException("shape map is not indexed");
+		index.search(region, visitor);
+	}
+	
+	/**
+	 * @param region
+	 * @return the shapes whose bounds intersect the region
+	 * @throws IllegalStateException if the map is not indexed
+	 */
+	public List<Shape> search(Rect region) {
+		List<Shape> found = new ArrayList<>();
+		search(region, found::add);
+		return found;
+	}
+}
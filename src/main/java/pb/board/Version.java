@@ -0,0 +1,59 @@
+package pb.board;
+
+/**
+ * The version of a shape, or of the removal of a shape: the hybrid logical
+ * clock of the edit and the replica that made it. Versions are totally
+ * ordered, by clock and then by replica, so every replica picks the same
+ * winner between concurrent edits (last writer wins).
+ * 
+ * @see {@link pb.board.HybridClock}
+ * @see {@link pb.board.ShapeMap}
+ * @author aaron
+ *
+ */
+public final class Version implements Comparable<Version> {
+	/**
+	 * Before every edit.
+	 */
+	public static final Version ZERO = new Version(0, 0);
+	
+	public final long clock;
+	public final int replica;
+	
+	public Version(long clock, int replica) {
+		this.clock=clock;
+		this.replica=replica;
+	}
+	
+	/**
+	 * Compare two versions without making objects for them.
+	 * @return negative, zero or positive as the first version is before, the
+	 * same as or after the second
+	 */
+	public static int compare(long clock, int replica, long otherClock, int otherReplica) {
+		int c = Long.compare(clock, otherClock);
+		return c!=0 ? c : Integer.compare(replica, otherReplica);
+	}
+	
+	@Override
+	public int compareTo(Version v) {
+		return compare(clock, replica, v.clock, v.replica);
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Version)) return false;
+		Version v = (Version) o;
+		return clock==v.clock && replica==v.replica;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Long.hashCode(clock)*31+replica;
+	}
+	
+	@Override
+	public String toString() {
+		return clock+"@"+replica;
+	}
+}
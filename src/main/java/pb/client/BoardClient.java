@@ -0,0 +1,241 @@
+package pb.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import pb.Utils;
+import pb.transport.ChannelTransport;
+import pb.transport.IOEngine;
+import pb.transport.TlsContext;
+import pb.transport.TlsTransport;
+import pb.transport.Transport;
+
+/**
+ * A client to embed in an application, a test or a bot, as the alternative to
+ * {@link pb.client.ClientManager}, which blocks in its constructor for as long
+ * as it runs and exits the JVM when it cannot connect. Made with a
+ * {@link Builder}, a client connects without blocking: {@link #connect()}
+ * completes with a {@link pb.client.Session} once the session has started,
+ * and what happens in the session is reported to
+ * {@link pb.client.SessionListener}s.
+ * <br/>
+ * A client has no threads of its own. Every client and session in the JVM
+ * shares the loops of the {@link pb.transport.IOEngine}, the workers of the
+ * {@link pb.WorkerPool} and the timer of {@link pb.Utils}, so a process can run
+ * thousands of sessions, e.g. one per bot, with a handful of threads. A
+ * client can connect any number of sessions, and does not reconnect one that
+ * has closed; a listener can, by calling {@link #connect()} again.
+ *
+ * @see {@link pb.client.Session}
+ * @see {@link pb.client.SessionListener}
+ * @author aaron
+ *
+ */
+public class BoardClient {
+	private static Logger log = Logger.getLogger(BoardClient.class.getName());
+
+	/**
+	 * How long to wait for a connection, by default, in ms.
+	 */
+	public static final long CONNECT_TIMEOUT = 10000;
+
+	private final String host;
+	private final int port;
+	private final Path socketPath;
+	private final TlsContext tls;
+	private final long connectTimeout;
+	private final long traceInterval;
+	private final List<SessionListener> listeners;
+
+	/**
+	 * Sets up a {@link pb.client.BoardClient}.
+	 */
+	public static class Builder {
+		private String host = Utils.serverHost;
+		private int port = Utils.serverPort;
+		private Path socketPath = null;
+		private TlsContext tls = null;
+		private long connectTimeout = CONNECT_TIMEOUT;
+		private long traceInterval = ClientManager.TRACE_INTERVAL;
+		private final List<SessionListener> listeners = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		/**
+		 * @param host of the server
+		 * @return this builder
+		 */
+		public Builder host(String host) {
+			this.host = host;
+			return this;
+		}
+
+		/**
+		 * @param port of the server
+		 * @return this builder
+		 */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * Connect to a server on the same host through its Unix domain
+		 * socket, rather than its host and port.
+		 * @param socketPath the path the server is listening on
+		 * @return this builder
+		 */
+		public Builder socket(Path socketPath) {
+			this.socketPath = socketPath;
+			return this;
+		}
+
+		/**
+		 * Encrypt the connections with TLS.
+		 * @param tls the certificates to trust; the same context resumes the
+		 * TLS sessions of earlier connections
+		 * @return this builder
+		 */
+		public Builder tls(TlsContext tls) {
+			this.tls = tls;
+			return this;
+		}
+
+		/**
+		 * @param connectTimeout how long to wait for a connection, in ms
+		 * @return this builder
+		 */
+		public Builder connectTimeout(long connectTimeout) {
+			this.connectTimeout = connectTimeout;
+			return this;
+		}
+
+		/**
+		 * @param traceInterval at most one edit is traced in this many ms; 0
+		 * traces every edit and less than 0 none
+		 * @return this builder
+		 */
+		public Builder traceInterval(long traceInterval) {
+			this.traceInterval = traceInterval;
+			return this;
+		}
+
+		/**
+		 * @param listener to tell what happens in every session of the client
+		 * @return this builder
+		 */
+		public Builder listener(SessionListener listener) {
+			listeners.add(listener);
+			return this;
+		}
+
+		/**
+		 * @return the client
+		 * @throws IllegalStateException if TLS is asked for over a Unix
+		 * domain socket, which is not encrypted
+		 */
+		public BoardClient build() {
+			if(socketPath!=null && tls!=null) {
+				throw new IllegalStateException("connections on a Unix domain socket are not encrypted");
+			}
+			return new BoardClient(this);
+		}
+	}
+
+	/**
+	 * @return a builder for a client, which connects to the default host and
+	 * port unless told otherwise
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private BoardClient(Builder builder) {
+		host = builder.host;
+		port = builder.port;
+		socketPath = builder.socketPath;
+		tls = builder.tls;
+		connectTimeout = builder.connectTimeout;
+		traceInterval = builder.traceInterval;
+		listeners = new CopyOnWriteArrayList<>(builder.listeners);
+	}
+
+	/**
+	 * Add a listener, which is told about every session of the client,
+	 * including those already connected.
+	 * @param listener
+	 */
+	public void addListener(SessionListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener to no longer tell about the sessions
+	 */
+	public void removeListener(SessionListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Connect to the server and start a session, without blocking. The host
+	 * is looked up by the caller.
+	 * @return completes with the session once it has started, or
+	 * exceptionally if it cannot connect in time, or the server turns it away
+	 */
+	public CompletableFuture<Session> connect() {
+		SocketAddress address = socketPath!=null ? UnixDomainSocketAddress.of(socketPath)
+				: new InetSocketAddress(host, port);
+		CompletableFuture<SocketChannel> connected;
+		try {
+			connected = IOEngine.getInstance().connect(address);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		TimerTask timeout = Utils.getInstance().setTimeout(()->connected.completeExceptionally(
+				new SocketTimeoutException("could not connect to "+address+" in "+connectTimeout+"ms")),
+				connectTimeout);
+		// usually completed on the loop the channel connected on, which it
+		// then stays registered with
+		return connected.thenCompose(channel->{
+			timeout.cancel();
+			Transport transport;
+			try {
+				transport = tls==null ? new ChannelTransport(channel)
+						: new TlsTransport(channel, tls, host, port);
+			} catch (IOException e) {
+				log.warning("connection could not be used: "+e.getMessage());
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					// already broken
+				}
+				return CompletableFuture.failedFuture(e);
+			}
+			return connect(transport);
+		});
+	}
+
+	/**
+	 * Start a session on a transport that is already connected, e.g. one of
+	 * a {@link pb.transport.LoopbackTransport#pair()} whose other end is a
+	 * server in the same process.
+	 * @param transport
+	 * @return completes with the session once it has started
+	 */
+	public CompletableFuture<Session> connect(Transport transport) {
+		Session session = new Session(socketPath==null ? host : null, listeners, traceInterval);
+		return session.start(transport);
+	}
+}
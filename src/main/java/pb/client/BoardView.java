@@ -0,0 +1,177 @@
+package pb.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import pb.board.BoardOp;
+import pb.board.HybridClock;
+import pb.board.Rect;
+import pb.board.Shape;
+import pb.board.ShapeMap;
+import pb.protocols.presence.PresenceFrame;
+import pb.protocols.viewport.ViewportTile;
+
+/**
+ * The client's copy of the part of a board that it can see. The shapes are a
+ * {@link pb.board.ShapeMap}, so the client's own edits are applied straight
+ * away and merged with the edits from the server in whatever order they meet.
+ * The server only sends operations that touch the viewport, so shapes outside
+ * of it go stale and are dropped when the viewport changes.
+ * <br/>
+ * When the view joins a board, the server first sends pictures of the
+ * viewport as {@link pb.protocols.viewport.ViewportTile}s, which can be shown
+ * until the shapes have arrived. It also keeps where the cursors of the other
+ * clients showing the board are.
+ *
+ * @see {@link pb.protocols.viewport.ViewportProtocol}
+ * @see {@link pb.protocols.presence.PresenceProtocol}
+ * @see {@link pb.protocols.board.BoardProtocol}
+ * @author aaron
+ *
+ */
+public class BoardView {
+	/**
+	 * Where the cursor of another client is.
+	 */
+	public static final class Cursor {
+		public final int replica;
+		public final int x;
+		public final int y;
+
+		Cursor(int replica, int x, int y) {
+			this.replica=replica;
+			this.x=x;
+			this.y=y;
+		}
+	}
+
+	/**
+	 * How long the tombstones of removed shapes are kept, in ms.
+	 */
+	private static final long TOMBSTONE_TTL = 10*60*1000;
+
+	/**
+	 * Collect tombstones every this many operations.
+	 */
+	private static final int COLLECT_INTERVAL = 4096;
+
+	private final String board;
+	private final ShapeMap shapes = new ShapeMap(true);
+	private int sinceCollect = 0;
+	private final HashMap<String,ViewportTile> tiles = new HashMap<>();
+	private final HashMap<Integer,Cursor> cursors = new HashMap<>();
+	
+	/**
+	 * The version of the last frame of cursors applied, or -1.
+	 */
+	private long presenceVersion = -1;
+
+	public BoardView(String board) {
+		this.board=board;
+	}
+
+	public String getBoard() {
+		return board;
+	}
+
+	/**
+	 * Merge an operation, from the server or a local edit.
+	 * @param op
+	 * @return true if the operation won and was applied
+	 */
+	public synchronized boolean apply(BoardOp op) {
+		if(++sinceCollect>=COLLECT_INTERVAL) {
+			sinceCollect=0;
+			shapes.dropTombstones(HybridClock.fromMillis(System.currentTimeMillis()-TOMBSTONE_TTL));
+		}
+		return shapes.apply(op);
+	}
+
+	/**
+	 * Drop the shapes that are not in a viewport, and the tiles, once the
+	 * shapes in the viewport have arrived.
+	 * @param viewport
+	 */
+	public synchronized void retain(Rect viewport) {
+		shapes.retain(viewport);
+		tiles.clear();
+	}
+	
+	/**
+	 * Keep a tile to show until the shapes have arrived, replacing the one
+	 * in the same place.
+	 * @param tile
+	 */
+	public synchronized void putTile(ViewportTile tile) {
+		tiles.put(tile.getLevel()+"/"+tile.getX()+"/"+tile.getY(), tile);
+	}
+	
+	/**
+	 * @return the tiles to show while the shapes are arriving, none once
+	 * they have
+	 */
+	public synchronized List<ViewportTile> getTiles() {
+		return new ArrayList<>(tiles.values());
+	}
+
+	/**
+	 * @param id
+	 * @return the shape, or null if it is not in the view
+	 */
+	public synchronized Shape getShape(long id) {
+		return shapes.get(id);
+	}
+
+	/**
+	 * @param region
+	 * @return the shapes whose bounds intersect the region, e.g. to draw it
+	 */
+	public synchronized List<Shape> getShapes(Rect region) {
+		return shapes.search(region);
+	}
+
+	/**
+	 * @return a copy of the shapes in the view
+	 */
+	public synchronized List<Shape> getShapes() {
+		return shapes.getShapes();
+	}
+
+	/**
+	 * Move the cursor of another client.
+	 * @param replica the replica id of the client
+	 * @param x
+	 * @param y
+	 */
+	public synchronized void putCursor(int replica, int x, int y) {
+		cursors.put(replica, new Cursor(replica, x, y));
+	}
+
+	/**
+	 * Apply a frame of the cursors that have changed. A frame older than the
+	 * last one applied is dropped, unless it has every cursor, e.g. after
+	 * the client has reconnected.
+	 * @param frame
+	 * @param replica the replica id of this client, whose cursor is not kept
+	 * @return true if the frame was applied
+	 */
+	public synchronized boolean applyPresence(PresenceFrame frame, int replica) {
+		if(!frame.isFull() && frame.getVersion()<=presenceVersion) return false;
+		presenceVersion = frame.getVersion();
+		if(frame.isFull()) cursors.clear();
+		long[] moved = frame.getCursors();
+		for(int i=0;i+2<moved.length;i+=3) {
+			if(moved[i]!=replica) putCursor((int) moved[i], (int) moved[i+1], (int) moved[i+2]);
+		}
+		for(long left : frame.getLeft()) cursors.remove((int) left);
+		return true;
+	}
+
+	/**
+	 * @return where the cursors of the other clients are
+	 */
+	public synchronized List<Cursor> getCursors() {
+		return new ArrayList<>(cursors.values());
+	}
+}
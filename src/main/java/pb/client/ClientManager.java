@@ -3,19 +3,44 @@ package pb.client;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import pb.Endpoint;
 import pb.EndpointUnavailable;
+import pb.LatencyStats;
 import pb.Manager;
 import pb.ProtocolAlreadyRunning;
+import pb.Trace;
 import pb.Utils;
+import pb.board.BoardOp;
+import pb.board.HybridClock;
+import pb.board.Rect;
+import pb.board.Shape;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
+import pb.protocols.asset.AssetProtocol;
+import pb.protocols.board.BoardProtocol;
 import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.presence.PresenceFrame;
+import pb.protocols.presence.PresenceProtocol;
 import pb.protocols.session.SessionProtocol;
+import pb.protocols.viewport.ViewportProtocol;
+import pb.protocols.viewport.ViewportTile;
+import pb.transport.ChannelTransport;
+import pb.transport.DatagramLink;
+import pb.transport.TlsContext;
+import pb.transport.TlsTransport;
+import pb.transport.Transport;
 
 /**
  * Manages the connection to the server and the client's state.
@@ -31,25 +56,135 @@ public class ClientManager extends Manager {
 	private static Logger log = Logger.getLogger(ClientManager.class.getName());
 	private SessionProtocol sessionProtocol;
 	private KeepAliveProtocol keepAliveProtocol;
-	private Socket socket;
+	private volatile ViewportProtocol viewportProtocol;
+	private volatile BoardProtocol boardProtocol;
+	private volatile AssetProtocol assetProtocol;
+	private volatile PresenceProtocol presenceProtocol;
+	
+	/**
+	 * The assets being uploaded and fetched, by their hash.
+	 */
+	private final ConcurrentHashMap<String,Path> uploads = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Path> fetches = new ConcurrentHashMap<>();
+	
+	/**
+	 * Versions the client's edits.
+	 */
+	private final HybridClock clock = new HybridClock();
+	
+	/**
+	 * Identifies this client's edits. Never the server's replica id, 0.
+	 */
+	private final int replica = new SecureRandom().nextInt(Integer.MAX_VALUE-1)+1;
+	
+	/**
+	 * Makes shape ids unique across clients, with the replica id in the
+	 * high half.
+	 */
+	private final AtomicInteger nextShapeId = new AtomicInteger();
+	
+	/**
+	 * The default time between traced edits, in ms.
+	 */
+	public static final long TRACE_INTERVAL = 100;
+	
+	/**
+	 * At most one edit is traced in this many ms, so that traces add little
+	 * to what is sent; 0 traces every edit and less than 0 none.
+	 */
+	private volatile long traceInterval = TRACE_INTERVAL;
+	
+	/**
+	 * When the last edit was traced, in ms.
+	 */
+	private final AtomicLong lastTraced = new AtomicLong();
+	
+	/**
+	 * How long the traced edits of other clients took to be shown here.
+	 */
+	private final LatencyStats latencyStats = new LatencyStats();
+	
+	/**
+	 * What the client can see of the board it is showing.
+	 */
+	private volatile BoardView view;
+	private SocketChannel channel;
+	
+	/**
+	 * The certificates to trust to encrypt the connection with, or null to
+	 * not encrypt it. The same context is used to reconnect, which resumes
+	 * the session with the server.
+	 */
+	private TlsContext tls;
 	private String host;
 	private int port;
+	
+	/**
+	 * The Unix domain socket of a server on the same host, to connect to
+	 * rather than the host and port, or null.
+	 */
+	private Path socketPath;
 	private volatile boolean isReestablishing = false;
 	private volatile boolean hasFailed = false;
 	private volatile boolean isConnected = false;
 	private int counter = 0;
+	
+	/**
+	 * When the server said to come back after shedding the session, in ms.
+	 */
+	private volatile long retryAt = 0;
 
 	public ClientManager(String host,int port) throws UnknownHostException, IOException {
+		this(host,port,null);
+	}
+
+	/**
+	 * Connect to the server, and reconnect whenever the connection breaks.
+	 * @param host
+	 * @param port
+	 * @param tls the certificates to trust, to encrypt the connection with
+	 * TLS, or null to not encrypt it
+	 * @throws UnknownHostException
+	 * @throws IOException
+	 */
+	public ClientManager(String host,int port,TlsContext tls) throws UnknownHostException, IOException {
+		this(host,port,tls,null);
+	}
+
+	/**
+	 * Connect to a server on the same host through its Unix domain socket,
+	 * which skips the TCP stack, and reconnect whenever the connection breaks.
+	 * The connection is not encrypted.
+	 * @param socketPath the path the server is listening on
+	 * @throws IOException
+	 */
+	public ClientManager(Path socketPath) throws IOException {
+		this(null,0,null,socketPath);
+	}
+
+	private ClientManager(String host,int port,TlsContext tls,Path socketPath) throws UnknownHostException, IOException {
+		this.tls = tls;
+		this.socketPath = socketPath;
 		while (!hasFailed) {
 			this.host = host;
 			this.port = port;
 			if (hasFailed) {
 				break;
 			}
+			long wait = retryAt-System.currentTimeMillis();
+			if (wait>0) {
+				// the server is overloaded, so give it the time it asked for
+				log.info("server is overloaded, reconnecting in "+wait+"ms");
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
 			try {
 				// if we havent failed and we are not currently connected then make a new socket for the connection
 				if (!hasFailed && !isReestablishing) {
-					socket = new Socket(InetAddress.getByName(host), port);
+					channel = openChannel();
 					log.info("Socket connected successfully");
 					isConnected = true;
 				}
@@ -66,17 +201,37 @@ public class ClientManager extends Manager {
 					reestablishConnection();
 				}
 			}
-			if (socket != null) {
-				// If the socket is not null that we can make the endpoint
-				Endpoint endpoint = new Endpoint(socket, this);
+			if (channel != null) {
+				// If the channel is not null that we can make the endpoint
+				Endpoint endpoint;
+				try {
+					Transport transport = tls==null ? new ChannelTransport(channel)
+							: new TlsTransport(channel, tls, host, port);
+					endpoint = new Endpoint(transport, this);
+				} catch (IOException e) {
+					log.severe("connection could not be used: "+e.getMessage());
+					channel.close();
+					channel = null;
+					isConnected = false;
+					continue;
+				}
+				// the next endpoint needs a new connection
+				channel = null;
 				endpoint.start();
 				try {
-					// just wait for this thread to terminate
+					// just wait for the endpoint to terminate
 					endpoint.join();
 				} catch (InterruptedException e) {
-					// just make sure the ioThread is going to terminate
+					// just make sure the endpoint is going to terminate
 					endpoint.close();
 				}
+			} else if (isReestablishing) {
+				try {
+					// wait for the attempts to reconnect
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					break;
+				}
 			}
 		}
 
@@ -86,6 +241,45 @@ public class ClientManager extends Manager {
 		System.exit(-1);
 	}
 
+	/**
+	 * A manager that does not connect by itself, for a subclass that starts
+	 * its own endpoint with it, e.g. a {@link pb.client.Session}.
+	 * @param host the host of the server, to bind a datagram link to, or
+	 * null to not bind one
+	 */
+	protected ClientManager(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * Start a session on a transport that is already connected, e.g. one of
+	 * a {@link pb.transport.LoopbackTransport#pair()} whose other end is a
+	 * server in the same process, and return once the session has ended. A
+	 * transport cannot be connected again, so there is no reconnecting.
+	 * @param transport
+	 */
+	public ClientManager(Transport transport) {
+		Endpoint endpoint = new Endpoint(transport, this);
+		isConnected = true;
+		endpoint.start();
+		try {
+			// just wait for the endpoint to terminate
+			endpoint.join();
+		} catch (InterruptedException e) {
+			// just make sure the endpoint is going to terminate
+			endpoint.close();
+		}
+	}
+
+	/**
+	 * @return a new connection to the server
+	 * @throws IOException
+	 */
+	private SocketChannel openChannel() throws IOException {
+		if(socketPath!=null) return SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+		return SocketChannel.open(new InetSocketAddress(InetAddress.getByName(host), port));
+	}
+
 	/**
 	 * Ten attempts are made to create the socket with the same host and port.
 	 * Success resets the global retries and breaks from the loop.
@@ -93,7 +287,7 @@ public class ClientManager extends Manager {
 	 */
 	public void reestablishConnection() {
 		try {
-			socket = new Socket(InetAddress.getByName(host), port);
+			channel = openChannel();
 			log.info("Connection established successfully");
 
 			// We make a connection so stop trying to reestablish a connection
@@ -104,7 +298,7 @@ public class ClientManager extends Manager {
 		} catch (Exception e) {
 			Utils.getInstance().setTimeout(() -> {
 				if (counter==10) {
-					if (socket == null || socket.isClosed()) {
+					if (channel == null || !channel.isOpen()) {
 
 						// At this point we have failed to make a connection after all attempts
 						hasFailed = true;
@@ -221,6 +415,385 @@ public class ClientManager extends Manager {
 		log.info("session has started with server");
 		
 		// we can now start other protocols with the server
+		ViewportProtocol protocol = new ViewportProtocol(endpoint,this);
+		BoardProtocol edits = new BoardProtocol(endpoint,this);
+		AssetProtocol assets = new AssetProtocol(endpoint,this);
+		PresenceProtocol presence = new PresenceProtocol(endpoint,this);
+		try {
+			endpoint.handleProtocol(protocol);
+			protocol.startAsClient();
+			viewportProtocol = protocol;
+			endpoint.handleProtocol(edits);
+			edits.startAsClient();
+			boardProtocol = edits;
+			endpoint.handleProtocol(assets);
+			assets.startAsClient();
+			assetProtocol = assets;
+			endpoint.handleProtocol(presence);
+			presence.startAsClient();
+			presenceProtocol = presence;
+		} catch (EndpointUnavailable e) {
+			log.severe("connection with server terminated abruptly");
+			endpoint.close();
+		} catch (ProtocolAlreadyRunning e) {
+			// the server started it first
+			log.warning("server initiated a board protocol... weird");
+		}
+	}
+	
+	/**
+	 * The server has given the session a datagram link, so bind it, to send
+	 * the cursor on. Until it is bound, or if UDP is blocked, the cursor goes
+	 * over the connection.
+	 * @param endpoint
+	 * @param port
+	 * @param token
+	 */
+	@Override
+	public void datagramsOffered(Endpoint endpoint, int port, long token) {
+		if(host==null) return;
+		try {
+			endpoint.setDatagramLink(DatagramLink.connect(
+					new InetSocketAddress(InetAddress.getByName(host), port), token));
+		} catch (IOException e) {
+			log.warning("datagram link not bound: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return a shape id that no other client will use
+	 */
+	public long nextShapeId() {
+		return ((long) replica<<32) | (nextShapeId.incrementAndGet() & 0xffffffffL);
+	}
+	
+	/**
+	 * Add or replace a shape on the board being shown. The edit is applied
+	 * locally straight away and then sent to the server.
+	 * @param shape
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	public void putShape(Shape shape) throws EndpointUnavailable {
+		BoardView current = view;
+		if(current==null) throw new IllegalStateException("no board is being shown");
+		edit(BoardOp.put(current.getBoard(), shape));
+	}
+	
+	/**
+	 * Remove a shape from the board being shown.
+	 * @param shapeId
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	public void removeShape(long shapeId) throws EndpointUnavailable {
+		BoardView current = view;
+		if(current==null) throw new IllegalStateException("no board is being shown");
+		edit(BoardOp.remove(current.getBoard(), shapeId));
+	}
+	
+	/**
+	 * Clear the board being shown.
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	public void clearBoard() throws EndpointUnavailable {
+		BoardView current = view;
+		if(current==null) throw new IllegalStateException("no board is being shown");
+		edit(BoardOp.clear(current.getBoard()));
+	}
+	
+	/**
+	 * Version an edit with the client's clock, apply it locally and send it
+	 * to the server.
+	 * @param op
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	void edit(BoardOp op) throws EndpointUnavailable {
+		edit(op, Trace.now());
+	}
+	
+	/**
+	 * Version an edit with the client's clock, apply it locally and send it
+	 * to the server, traced if it is time for the next trace.
+	 * @param op
+	 * @param origin when the edit was started, in microseconds on
+	 * {@link pb.Trace#now()}
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	void edit(BoardOp op, long origin) throws EndpointUnavailable {
+		BoardProtocol protocol = boardProtocol;
+		if(protocol==null) throw new EndpointUnavailable();
+		op = op.stamped(clock.now(), replica);
+		BoardView current = view;
+		if(current!=null && current.getBoard().equals(op.board)) current.apply(op);
+		if(shouldTrace()) protocol.sendEdit(op, origin);
+		else protocol.sendEdit(op);
+	}
+	
+	/**
+	 * As {@link #edit(BoardOp, long)}, but without blocking, for a thread
+	 * that others are waiting for: if the server is not keeping up, the edit
+	 * is neither sent nor applied locally.
+	 * @param op
+	 * @param origin when the edit was started, in microseconds on
+	 * {@link pb.Trace#now()}
+	 * @return whether the edit was sent
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	boolean tryEdit(BoardOp op, long origin) throws EndpointUnavailable {
+		BoardProtocol protocol = boardProtocol;
+		if(protocol==null) throw new EndpointUnavailable();
+		op = op.stamped(clock.now(), replica);
+		boolean sent = shouldTrace() ? protocol.trySendEdit(op, origin) : protocol.trySendEdit(op);
+		if(!sent) return false;
+		BoardView current = view;
+		if(current!=null && current.getBoard().equals(op.board)) current.apply(op);
+		return true;
+	}
+	
+	private boolean shouldTrace() {
+		long interval = traceInterval;
+		if(interval<0) return false;
+		long now = System.currentTimeMillis();
+		long last = lastTraced.get();
+		return now-last>=interval && lastTraced.compareAndSet(last, now);
+	}
+	
+	/**
+	 * @param traceInterval at most one edit is traced in this many ms; 0
+	 * traces every edit and less than 0 none
+	 */
+	public void setTraceInterval(long traceInterval) {
+		this.traceInterval = traceInterval;
+	}
+	
+	/**
+	 * @return how long the traced edits of other clients took to be shown
+	 * here, from when they were drawn
+	 */
+	public LatencyStats getLatencyStats() {
+		return latencyStats;
+	}
+	
+	/**
+	 * Use an asset, e.g. an image pasted onto the board being shown. The
+	 * asset is named by its hash, and the server is asked whether it has it
+	 * already; it is only uploaded if not. If an earlier upload of the asset
+	 * was cut off, it resumes from where it stopped.
+	 * @param file the file of the asset
+	 * @return the hash of the asset
+	 * @throws IOException if the file cannot be read
+	 * @throws EndpointUnavailable if the session has not started
+	 * @see {@link #assetSent(Endpoint, String, boolean)}
+	 */
+	public String uploadAsset(Path file) throws IOException, EndpointUnavailable {
+		AssetProtocol protocol = assetProtocol;
+		if(protocol==null) throw new EndpointUnavailable();
+		BoardView current = view;
+		if(current==null) throw new IllegalStateException("no board is being shown");
+		String hash = AssetProtocol.hash(file);
+		uploads.put(hash, file);
+		protocol.queryAsset(hash, current.getBoard(), false);
+		return hash;
+	}
+	
+	/**
+	 * Download an asset from the server.
+	 * @param hash the hash of the asset
+	 * @param file the file to write it to; if it holds the start of the
+	 * asset, from an earlier download, the download resumes from its end
+	 * @throws EndpointUnavailable if the session has not started
+	 * @see {@link #assetReceived(Endpoint, String, Path)}
+	 */
+	public void fetchAsset(String hash, Path file) throws EndpointUnavailable {
+		AssetProtocol protocol = assetProtocol;
+		if(protocol==null) throw new EndpointUnavailable();
+		fetches.put(hash, file);
+		protocol.queryAsset(hash, null, true);
+	}
+	
+	/**
+	 * The server has said whether it has an asset, so upload it if it does
+	 * not, or give up on fetching it.
+	 * @param endpoint
+	 * @param asset
+	 * @param size
+	 */
+	@Override
+	public void assetQueryAnswered(Endpoint endpoint, String asset, long size) {
+		Path upload = uploads.get(asset);
+		if(upload!=null) {
+			if(size>=0) {
+				log.info("server already has asset "+asset);
+				assetSent(endpoint, asset, true);
+				return;
+			}
+			try {
+				assetProtocol.sendAsset(asset, upload);
+			} catch (IOException e) {
+				log.warning("could not read asset "+asset+": "+e.getMessage());
+				assetSent(endpoint, asset, false);
+			} catch (EndpointUnavailable e) {
+				assetSent(endpoint, asset, false);
+			}
+		} else if(size<0 && fetches.remove(asset)!=null) {
+			log.warning("server does not have asset "+asset);
+		}
+	}
+	
+	/**
+	 * The server is sending an asset that was fetched.
+	 * @param endpoint
+	 * @param asset
+	 * @param size
+	 * @return the file to write it to, or null if it was not fetched
+	 */
+	@Override
+	public Path assetOffered(Endpoint endpoint, String asset, long size) {
+		return fetches.get(asset);
+	}
+	
+	/**
+	 * An asset that was fetched has arrived.
+	 * @param endpoint
+	 * @param asset
+	 * @param file
+	 */
+	@Override
+	public void assetReceived(Endpoint endpoint, String asset, Path file) {
+		if(fetches.remove(asset)==null) return;
+		try {
+			if(AssetProtocol.hash(file).equals(asset)) {
+				log.info("fetched asset "+asset);
+				return;
+			}
+			log.warning("fetched asset "+asset+" does not match its hash");
+			Files.delete(file);
+		} catch (IOException e) {
+			log.warning("could not check asset "+asset+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * An upload has finished.
+	 * @param endpoint
+	 * @param asset
+	 * @param complete
+	 */
+	@Override
+	public void assetSent(Endpoint endpoint, String asset, boolean complete) {
+		uploads.remove(asset);
+		if(complete) log.info("uploaded asset "+asset);
+		else log.warning("upload of asset "+asset+" did not finish");
+	}
+	
+	/**
+	 * Show a region of a board. The server sends the shapes that come into
+	 * view, and then the operations that touch the region.
+	 * @param board
+	 * @param viewport
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	public void setViewport(String board, Rect viewport) throws EndpointUnavailable {
+		ViewportProtocol protocol = viewportProtocol;
+		if(protocol==null) throw new EndpointUnavailable();
+		BoardView current = view;
+		if(current==null || !current.getBoard().equals(board)) view = new BoardView(board);
+		protocol.setViewport(board, viewport);
+	}
+	
+	/**
+	 * Move this client's cursor on the board being shown. Positions may be
+	 * lost, so the last one counts.
+	 * @param x
+	 * @param y
+	 * @throws EndpointUnavailable if the session has not started
+	 */
+	public void moveCursor(int x, int y) throws EndpointUnavailable {
+		PresenceProtocol protocol = presenceProtocol;
+		if(protocol==null) throw new EndpointUnavailable();
+		BoardView current = view;
+		if(current==null) throw new IllegalStateException("no board is being shown");
+		protocol.sendCursor(current.getBoard(), replica, x, y);
+	}
+	
+	/**
+	 * The cursors of other clients on the board being shown have changed.
+	 * @param endpoint
+	 * @param frame
+	 */
+	@Override
+	public void presenceUpdated(Endpoint endpoint, PresenceFrame frame) {
+		BoardView current = view;
+		if(current!=null && current.getBoard().equals(frame.getBoard())) current.applyPresence(frame, replica);
+	}
+	
+	/**
+	 * @return what the client can see of the board it is showing, or null
+	 * if it has not set a viewport
+	 */
+	public BoardView getView() {
+		return view;
+	}
+	
+	/**
+	 * A picture of part of the board being shown, which arrives before the
+	 * shapes in it.
+	 * @param endpoint
+	 * @param tile
+	 */
+	@Override
+	public void tileReceived(Endpoint endpoint, ViewportTile tile) {
+		BoardView current = view;
+		if(current!=null && current.getBoard().equals(tile.getBoard())) current.putTile(tile);
+	}
+	
+	/**
+	 * The server has sent everything that came into view, so the shapes
+	 * that are out of view, and the tiles, can go.
+	 * @param endpoint
+	 * @param board
+	 * @param viewport
+	 */
+	@Override
+	public void viewportChanged(Endpoint endpoint, String board, Rect viewport) {
+		BoardView current = view;
+		if(current!=null && current.getBoard().equals(board)) current.retain(viewport);
+	}
+	
+	/**
+	 * An operation from the server on the board being shown.
+	 * @param endpoint
+	 * @param op
+	 */
+	@Override
+	public void boardUpdated(Endpoint endpoint, BoardOp op) {
+		clock.update(op.clock);
+		BoardView current = view;
+		if(current!=null && current.getBoard().equals(op.board)) current.apply(op);
+	}
+	
+	/**
+	 * An operation from the server, which may be traced, in which case how
+	 * long it took to get here is recorded once it is shown.
+	 * @param endpoint
+	 * @param op
+	 * @param trace
+	 */
+	@Override
+	public void boardUpdated(Endpoint endpoint, BoardOp op, Trace trace) {
+		boardUpdated(endpoint, op);
+		if(trace!=null) latencyStats.record(op.board, trace, Trace.now()+endpoint.getClockOffset());
+	}
+
+	/**
+	 * The server is overloaded and has stopped the session, or turned it
+	 * away, so wait before connecting again.
+	 * @param endpoint
+	 * @param retryAfter how long to wait, in ms
+	 */
+	@Override
+	public void sessionShed(Endpoint endpoint, long retryAfter) {
+		log.warning("server is overloaded, retry after "+retryAfter+"ms");
+		retryAt = System.currentTimeMillis()+retryAfter;
 	}
 
 	/**
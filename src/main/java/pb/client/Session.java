@@ -0,0 +1,272 @@
+package pb.client;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.LatencyStats;
+import pb.board.BoardOp;
+import pb.board.Rect;
+import pb.board.Shape;
+import pb.protocols.presence.PresenceFrame;
+import pb.protocols.viewport.ViewportTile;
+import pb.transport.Transport;
+
+/**
+ * A session with the server, made by {@link pb.client.BoardClient#connect()}.
+ * It does what a {@link pb.client.ClientManager} does for its connection,
+ * but without a thread of its own and without reconnecting: the session's
+ * manager is driven by the shared {@link pb.transport.IOEngine} and
+ * {@link pb.WorkerPool}, and reports to the {@link pb.client.SessionListener}s
+ * of the client, so any number of sessions can run in one JVM. Once closed,
+ * a session is done with, and the client connects a new one.
+ *
+ * @see {@link pb.client.BoardClient}
+ * @see {@link pb.client.SessionListener}
+ * @author aaron
+ *
+ */
+public class Session {
+	private static Logger log = Logger.getLogger(Session.class.getName());
+
+	private final SessionManager manager;
+	private final List<SessionListener> listeners;
+	private volatile Endpoint endpoint;
+
+	/**
+	 * Complete once the session has started, and once it has closed.
+	 */
+	private final CompletableFuture<Session> started = new CompletableFuture<>();
+	private final CompletableFuture<Session> closed = new CompletableFuture<>();
+
+	/**
+	 * How long the server asked to wait before connecting again, in ms, or 0.
+	 */
+	private volatile long retryAfter = 0;
+
+	/**
+	 * The manager of the session's endpoint, which passes what happens on to
+	 * the listeners.
+	 */
+	private class SessionManager extends ClientManager {
+		SessionManager(String host) {
+			super(host);
+		}
+
+		@Override
+		public void sessionStarted(Endpoint endpoint) {
+			super.sessionStarted(endpoint);
+			started.complete(Session.this);
+		}
+
+		@Override
+		public void endpointClosed(Endpoint endpoint) {
+			super.endpointClosed(endpoint);
+			Session.this.closed();
+		}
+
+		@Override
+		public void boardUpdated(Endpoint endpoint, BoardOp op) {
+			super.boardUpdated(endpoint, op);
+			for(SessionListener listener : listeners) listener.boardUpdated(Session.this, op);
+		}
+
+		@Override
+		public void tileReceived(Endpoint endpoint, ViewportTile tile) {
+			super.tileReceived(endpoint, tile);
+			for(SessionListener listener : listeners) listener.tileReceived(Session.this, tile);
+		}
+
+		@Override
+		public void viewportChanged(Endpoint endpoint, String board, Rect viewport) {
+			super.viewportChanged(endpoint, board, viewport);
+			for(SessionListener listener : listeners) listener.viewportChanged(Session.this, board, viewport);
+		}
+
+		@Override
+		public void presenceUpdated(Endpoint endpoint, PresenceFrame frame) {
+			super.presenceUpdated(endpoint, frame);
+			for(SessionListener listener : listeners) listener.presenceUpdated(Session.this, frame);
+		}
+
+		@Override
+		public void assetReceived(Endpoint endpoint, String asset, Path file) {
+			super.assetReceived(endpoint, asset, file);
+			for(SessionListener listener : listeners) listener.assetReceived(Session.this, asset, file);
+		}
+
+		@Override
+		public void assetSent(Endpoint endpoint, String asset, boolean complete) {
+			super.assetSent(endpoint, asset, complete);
+			for(SessionListener listener : listeners) listener.assetSent(Session.this, asset, complete);
+		}
+
+		@Override
+		public void sessionShed(Endpoint endpoint, long retryAfter) {
+			super.sessionShed(endpoint, retryAfter);
+			Session.this.retryAfter = retryAfter;
+			for(SessionListener listener : listeners) listener.sessionShed(Session.this, retryAfter);
+		}
+	}
+
+	/**
+	 * @param host the host of the server, to bind a datagram link to, or null
+	 * @param listeners
+	 * @param traceInterval at most one edit is traced in this many ms
+	 */
+	Session(String host, List<SessionListener> listeners, long traceInterval) {
+		this.listeners = listeners;
+		manager = new SessionManager(host);
+		manager.setTraceInterval(traceInterval);
+	}
+
+	/**
+	 * Start the session on a connected transport.
+	 * @param transport
+	 * @return completes once the session has started, or exceptionally if the
+	 * connection ends first
+	 */
+	CompletableFuture<Session> start(Transport transport) {
+		endpoint = new Endpoint(transport, manager);
+		endpoint.start();
+		return started;
+	}
+
+	/**
+	 * The endpoint has closed, on purpose or not.
+	 */
+	private void closed() {
+		if(!closed.complete(this)) return;
+		if(!started.isDone()) {
+			long wait = retryAfter;
+			started.completeExceptionally(new IOException(wait>0
+					? "server is overloaded, retry after "+wait+"ms"
+					: "connection ended before the session started"));
+			return;
+		}
+		log.info("session with "+getRemoteId()+" has ended");
+		for(SessionListener listener : listeners) listener.sessionClosed(this);
+	}
+
+	/**
+	 * Close the connection, which ends the session.
+	 */
+	public void close() {
+		Endpoint current = endpoint;
+		if(current!=null) current.close();
+	}
+
+	/**
+	 * @return completes once the session has ended
+	 */
+	public CompletableFuture<Session> whenClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return whether the session has ended
+	 */
+	public boolean isClosed() {
+		return closed.isDone();
+	}
+
+	/**
+	 * @return how long the server asked to wait before connecting again, in
+	 * ms, if it shed the session, else 0
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @return the id of the server's end of the connection
+	 */
+	public String getRemoteId() {
+		Endpoint current = endpoint;
+		return current==null ? null : current.getOtherEndpointId();
+	}
+
+	/**
+	 * @return the manager of the session, e.g. for a
+	 * {@link pb.client.StrokeBatcher}
+	 */
+	public ClientManager getManager() {
+		return manager;
+	}
+
+	/**
+	 * @see {@link pb.client.ClientManager#setViewport(String, Rect)}
+	 */
+	public void setViewport(String board, Rect viewport) throws EndpointUnavailable {
+		manager.setViewport(board, viewport);
+	}
+
+	/**
+	 * @return what the session can see of the board it is showing, or null
+	 * if it has not set a viewport
+	 */
+	public BoardView getView() {
+		return manager.getView();
+	}
+
+	/**
+	 * @return a shape id that no other client will use
+	 */
+	public long nextShapeId() {
+		return manager.nextShapeId();
+	}
+
+	/**
+	 * @see {@link pb.client.ClientManager#putShape(Shape)}
+	 */
+	public void putShape(Shape shape) throws EndpointUnavailable {
+		manager.putShape(shape);
+	}
+
+	/**
+	 * @see {@link pb.client.ClientManager#removeShape(long)}
+	 */
+	public void removeShape(long shapeId) throws EndpointUnavailable {
+		manager.removeShape(shapeId);
+	}
+
+	/**
+	 * @see {@link pb.client.ClientManager#clearBoard()}
+	 */
+	public void clearBoard() throws EndpointUnavailable {
+		manager.clearBoard();
+	}
+
+	/**
+	 * @see {@link pb.client.ClientManager#moveCursor(int, int)}
+	 */
+	public void moveCursor(int x, int y) throws EndpointUnavailable {
+		manager.moveCursor(x, y);
+	}
+
+	/**
+	 * @see {@link pb.client.ClientManager#uploadAsset(Path)}
+	 */
+	public String uploadAsset(Path file) throws IOException, EndpointUnavailable {
+		return manager.uploadAsset(file);
+	}
+
+	/**
+	 * @see {@link pb.client.ClientManager#fetchAsset(String, Path)}
+	 */
+	public void fetchAsset(String hash, Path file) throws EndpointUnavailable {
+		manager.fetchAsset(hash, file);
+	}
+
+	/**
+	 * @return how long the traced edits of other clients took to be shown
+	 * here, from when they were drawn
+	 */
+	public LatencyStats getLatencyStats() {
+		return manager.getLatencyStats();
+	}
+}
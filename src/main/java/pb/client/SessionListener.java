@@ -0,0 +1,101 @@
+package pb.client;
+
+import java.nio.file.Path;
+
+import pb.board.BoardOp;
+import pb.board.Rect;
+import pb.protocols.presence.PresenceFrame;
+import pb.protocols.viewport.ViewportTile;
+
+/**
+ * What a {@link pb.client.Session} reports to, instead of the callbacks that a
+ * subclass of {@link pb.client.ClientManager} would override. Each event has
+ * already been applied to the session's {@link pb.client.BoardView} when the
+ * listener is told. Listeners are called on the worker of the session, one
+ * event at a time in the order they happened, so they must not block, and
+ * only need to implement the events they want.
+ *
+ * @see {@link pb.client.BoardClient}
+ * @see {@link pb.client.Session}
+ * @author aaron
+ *
+ */
+public interface SessionListener {
+
+	/**
+	 * An operation from the server on the board being shown.
+	 * @param session
+	 * @param op
+	 */
+	public default void boardUpdated(Session session, BoardOp op) {
+
+	}
+
+	/**
+	 * A picture of part of the board being shown, which arrives before the
+	 * shapes in it.
+	 * @param session
+	 * @param tile
+	 */
+	public default void tileReceived(Session session, ViewportTile tile) {
+
+	}
+
+	/**
+	 * The server has sent everything that came into view.
+	 * @param session
+	 * @param board
+	 * @param viewport
+	 */
+	public default void viewportChanged(Session session, String board, Rect viewport) {
+
+	}
+
+	/**
+	 * The cursors of other clients on the board being shown have changed.
+	 * @param session
+	 * @param frame
+	 */
+	public default void presenceUpdated(Session session, PresenceFrame frame) {
+
+	}
+
+	/**
+	 * An asset that was fetched has arrived.
+	 * @param session
+	 * @param asset the hash of the asset
+	 * @param file
+	 */
+	public default void assetReceived(Session session, String asset, Path file) {
+
+	}
+
+	/**
+	 * An upload has finished.
+	 * @param session
+	 * @param asset the hash of the asset
+	 * @param complete whether the server has all of it
+	 */
+	public default void assetSent(Session session, String asset, boolean complete) {
+
+	}
+
+	/**
+	 * The server is overloaded and has stopped the session, or turned it
+	 * away; it is closed next.
+	 * @param session
+	 * @param retryAfter how long to wait before connecting again, in ms
+	 */
+	public default void sessionShed(Session session, long retryAfter) {
+
+	}
+
+	/**
+	 * The session has ended, because it was closed, the server stopped it or
+	 * the connection broke. It is not reconnected.
+	 * @param session
+	 */
+	public default void sessionClosed(Session session) {
+
+	}
+}
@@ -0,0 +1,191 @@
+package pb.client;
+
+import java.util.Arrays;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+import pb.EndpointUnavailable;
+import pb.Trace;
+import pb.Utils;
+import pb.board.BoardOp;
+import pb.board.Shape;
+
+/**
+ * Collects the points of the stroke being drawn and sends them as one
+ * {@link pb.board.BoardOp.Type#APPEND} per frame, rather than one message per
+ * point. Pen and mouse input comes at hundreds of points per second, and each
+ * message costs a lock, an encoding and a flush at both ends, so batching the
+ * points at the frame rate cuts the messages by an order of magnitude, for at
+ * most one frame of extra latency. The rest of the stroke is sent as soon as
+ * the pen is lifted.
+ * <br/>
+ * The ticks run on the {@link pb.Utils} timer, and only while a stroke is
+ * being drawn. Other tasks share the timer, e.g. the keep alives of every
+ * connection, so a tick never blocks: if the server is not keeping up, the
+ * points wait for the next tick. One stroke is drawn at a time; putting the
+ * pen down again finishes the previous stroke.
+ *
+ * @see {@link pb.client.ClientManager}
+ * @author aaron
+ *
+ */
+public class StrokeBatcher {
+	private static Logger log = Logger.getLogger(StrokeBatcher.class.getName());
+
+	/**
+	 * The period of a frame at 60Hz, in ms.
+	 */
+	public static final long FRAME_60HZ = 16;
+
+	/**
+	 * The period of a frame at 30Hz, in ms.
+	 */
+	public static final long FRAME_30HZ = 33;
+
+	private final ClientManager manager;
+	private final long cadence;
+
+	/*
+	 * The stroke being drawn.
+	 */
+	private String board;
+	private long strokeId;
+	private int color;
+	private int width;
+	private TimerTask ticker;
+
+	/**
+	 * The number of points of the stroke that have been sent.
+	 */
+	private int sent;
+
+	/**
+	 * The points not yet sent, as x,y pairs.
+	 */
+	private int[] pending = new int[64];
+	private int numPending;
+
+	/**
+	 * When the first of the points not yet sent was drawn, which is where
+	 * the trace of the batch starts.
+	 * @see {@link pb.Trace}
+	 */
+	private long pendingSince;
+
+	/**
+	 * Send a batch every frame at 60Hz.
+	 * @param manager
+	 */
+	public StrokeBatcher(ClientManager manager) {
+		this(manager, FRAME_60HZ);
+	}
+
+	/**
+	 * @param manager
+	 * @param cadence the time between batches, in ms
+	 */
+	public StrokeBatcher(ClientManager manager, long cadence) {
+		if(cadence<=0) throw new IllegalArgumentException("cadence must be positive");
+		this.manager=manager;
+		this.cadence=cadence;
+	}
+
+	/**
+	 * Start a stroke on the board being shown.
+	 * @param x
+	 * @param y
+	 * @param color
+	 * @param width
+	 * @return the id of the stroke
+	 * @throws EndpointUnavailable if the previous stroke could not be finished
+	 */
+	public long penDown(int x, int y, int color, int width) throws EndpointUnavailable {
+		penUp();
+		synchronized(this) {
+			BoardView view = manager.getView();
+			if(view==null) throw new IllegalStateException("no board is being shown");
+			board=view.getBoard();
+			strokeId=manager.nextShapeId();
+			this.color=color;
+			this.width=width;
+			sent=0;
+			add(x, y);
+			ticker=Utils.getInstance().setInterval(()->{tick();}, cadence);
+			return strokeId;
+		}
+	}
+
+	/**
+	 * Add a point to the stroke being drawn. Ignored if there is no stroke
+	 * or the point is the same as the last one.
+	 * @param x
+	 * @param y
+	 */
+	public synchronized void penMove(int x, int y) {
+		if(ticker==null) return;
+		if(numPending>0 && pending[numPending-2]==x && pending[numPending-1]==y) return;
+		add(x, y);
+	}
+
+	/**
+	 * Finish the stroke being drawn, sending the points that are left.
+	 * @throws EndpointUnavailable
+	 */
+	public void penUp() throws EndpointUnavailable {
+		BoardOp rest;
+		long since;
+		synchronized(this) {
+			if(ticker==null) return;
+			ticker.cancel();
+			ticker=null;
+			if(numPending==0) return;
+			rest=segment();
+			since=pendingSince;
+			sent();
+		}
+		// sent outside the lock, so that a tick never waits for it, and
+		// after every batch since the ticks have stopped
+		manager.edit(rest, since);
+	}
+
+	/**
+	 * @return whether a stroke is being drawn
+	 */
+	public synchronized boolean isDrawing() {
+		return ticker!=null;
+	}
+
+	private void add(int x, int y) {
+		if(numPending==0) pendingSince=Trace.now();
+		if(numPending+2>pending.length) pending=Arrays.copyOf(pending, pending.length*2);
+		pending[numPending++]=x;
+		pending[numPending++]=y;
+	}
+
+	private synchronized void tick() {
+		if(ticker==null || numPending==0) return;
+		try {
+			if(manager.tryEdit(segment(), pendingSince)) sent();
+		} catch (EndpointUnavailable e) {
+			log.warning("connection lost while drawing, stroke "+strokeId+" is incomplete");
+			ticker.cancel();
+			ticker=null;
+		}
+	}
+
+	/**
+	 * @return the points not yet sent, appended to the stroke
+	 */
+	private BoardOp segment() {
+		Shape segment = new Shape(strokeId, color, width, Arrays.copyOf(pending, numPending));
+		return BoardOp.append(board, segment, sent);
+	}
+
+	/**
+	 * The points not yet sent have been.
+	 */
+	private void sent() {
+		sent+=numPending/2;
+		numPending=0;
+	}
+}
@@ -0,0 +1,327 @@
+package pb.protocols;
+
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact binary encoding for messages that have a registered
+ * {@link pb.protocols.MessageSchema}. JSON stays the default encoding, for
+ * debugging and for peers that do not understand this one; the binary
+ * encoding is only sent to a peer that has said it can read it. A binary frame
+ * is the same two byte length as a JSON frame, followed by:
+ * <pre>
+ * MARKER varint(schema id) { varint(field id &lt;&lt; 3 | wire type) value }*
+ * </pre>
+ * where the wire type is 0 for a varint (zig-zag encoded numbers and
+ * booleans), 1 for eight bytes (doubles) and 2 for a varint length followed by
+ * that many bytes (UTF-8 strings and packed arrays of integers). Fields that
+ * are not in the receiver's schema are skipped, so fields can be added to a
+ * schema over time. Codecs are not thread safe but can be reused, so each
+ * thread has its own instance.
+ *
+ * @see {@link pb.protocols.MessageSchema}
+ * @author aaron
+ *
+ */
+public final class BinaryCodec {
+	private static final ThreadLocal<BinaryCodec> codecs = ThreadLocal.withInitial(BinaryCodec::new);
+
+	/**
+	 * The first byte of a binary message. JSON messages always start with '{'.
+	 */
+	public static final byte MARKER = (byte) 0xb1;
+
+	private static final int VARINT = 0;
+	private static final int FIXED64 = 1;
+	private static final int DELIMITED = 2;
+
+	private byte[] buf = new byte[256];
+	private int len;
+
+	private BinaryCodec() {
+
+	}
+
+	/**
+	 * @return the codec for the calling thread
+	 */
+	public static BinaryCodec get() {
+		return codecs.get();
+	}
+
+	/**
+	 * @return the buffer, valid up to {@link #length()}
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int length() {
+		return len;
+	}
+
+	/**
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the bytes are a binary encoded message
+	 */
+	public static boolean isBinary(byte[] buf, int off, int len) {
+		return len>0 && buf[off]==MARKER;
+	}
+
+	/*
+	 * Encoding
+	 */
+
+	/**
+	 * Encode the message as a binary frame, replacing what is in the buffer.
+	 * @param msg
+	 * @return false if the message has no schema or has a parameter that is
+	 * not in its schema, in which case it must be sent as JSON
+	 * @throws UTFDataFormatException if the message is too long for a frame
+	 */
+	public boolean writeFrame(Message msg) throws UTFDataFormatException {
+		Document doc = msg.doc;
+		MessageSchema schema = MessageSchema.forName(doc.getString("name"));
+		if(schema==null) return false;
+		len = 2;
+		ensure(1);
+		buf[len++] = MARKER;
+		writeVarint(schema.id);
+		for(int i=0;i<doc.size;i++) {
+			String key = doc.keys[i];
+			if(key.equals("name") || key.equals("protocolName") || key.equals("type")) continue;
+			MessageSchema.Field field = schema.field(key);
+			if(field==null || !writeField(field, doc, i)) return false;
+		}
+		int n = len-2;
+		if(n>0xffff) throw new UTFDataFormatException("message too long: "+n);
+		buf[0] = (byte) (n >>> 8);
+		buf[1] = (byte) n;
+		return true;
+	}
+
+	private boolean writeField(MessageSchema.Field field, Document doc, int i) {
+		byte type = doc.types[i];
+		switch(field.type) {
+		case LONG:
+			if(type!=Document.LONG) return false;
+			writeVarint(field.id << 3 | VARINT);
+			writeVarint(zigzag(doc.nums[i]));
+			return true;
+		case BOOLEAN:
+			if(type!=Document.BOOLEAN) return false;
+			writeVarint(field.id << 3 | VARINT);
+			writeVarint(doc.nums[i]);
+			return true;
+		case DOUBLE:
+			if(type!=Document.DOUBLE && type!=Document.LONG) return false;
+			long bits = type==Document.DOUBLE ? doc.nums[i] : Double.doubleToRawLongBits(doc.nums[i]);
+			writeVarint(field.id << 3 | FIXED64);
+			ensure(8);
+			for(int b=0;b<8;b++) buf[len++] = (byte) (bits >>> (8*b));
+			return true;
+		case STRING:
+			if(type!=Document.STRING) return false;
+			writeVarint(field.id << 3 | DELIMITED);
+			writeString((String) doc.refs[i]);
+			return true;
+		case LONGS:
+			if(type!=Document.LONGS) return false;
+			long[] array = (long[]) doc.refs[i];
+			writeVarint(field.id << 3 | DELIMITED);
+			int size = 0;
+			for(long l : array) size += varintSize(zigzag(l));
+			writeVarint(size);
+			for(long l : array) writeVarint(zigzag(l));
+			return true;
+		}
+		return false;
+	}
+
+	private void ensure(int n) {
+		if(len+n>buf.length) {
+			byte[] grown = new byte[Math.max(len+n, buf.length*2)];
+			System.arraycopy(buf, 0, grown, 0, len);
+			buf = grown;
+		}
+	}
+
+	private void writeVarint(long v) {
+		ensure(10);
+		while((v & ~0x7fL)!=0) {
+			buf[len++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[len++] = (byte) v;
+	}
+
+	private static int varintSize(long v) {
+		int n = 1;
+		while((v & ~0x7fL)!=0) {
+			n++;
+			v >>>= 7;
+		}
+		return n;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private void writeString(String s) {
+		int n = s.length();
+		int size = 0;
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c<0x80) size+=1;
+			else if(c<0x800) size+=2;
+			else if(Character.isHighSurrogate(c) && i+1<n && Character.isLowSurrogate(s.charAt(i+1))) {
+				size+=4;
+				i++;
+			}
+			else size+=3;
+		}
+		writeVarint(size);
+		ensure(size);
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c<0x80) {
+				buf[len++] = (byte) c;
+			} else if(c<0x800) {
+				buf[len++] = (byte) (0xc0 | (c >> 6));
+				buf[len++] = (byte) (0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i+1<n && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[len++] = (byte) (0xf0 | (cp >> 18));
+				buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buf[len++] = (byte) (0x80 | (cp & 0x3f));
+			} else {
+				buf[len++] = (byte) (0xe0 | (c >> 12));
+				buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[len++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	/*
+	 * Decoding
+	 */
+
+	/**
+	 * A position in a buffer being decoded.
+	 */
+	private static final class Cursor {
+		final byte[] buf;
+		int pos;
+		final int end;
+
+		Cursor(byte[] buf, int off, int len) {
+			this.buf=buf;
+			this.pos=off;
+			this.end=off+len;
+		}
+
+		long varint() throws InvalidMessage {
+			long v = 0;
+			for(int shift=0;shift<64;shift+=7) {
+				if(pos>=end) throw new InvalidMessage();
+				byte b = buf[pos++];
+				v |= (long) (b & 0x7f) << shift;
+				if(b>=0) return v;
+			}
+			throw new InvalidMessage();
+		}
+
+		long fixed64() throws InvalidMessage {
+			if(end-pos<8) throw new InvalidMessage();
+			long v = 0;
+			for(int b=0;b<8;b++) v |= (long) (buf[pos++] & 0xff) << (8*b);
+			return v;
+		}
+
+		int length() throws InvalidMessage {
+			long n = varint();
+			if(n<0 || n>end-pos) throw new InvalidMessage();
+			return (int) n;
+		}
+
+		void skip(int wire) throws InvalidMessage {
+			switch(wire) {
+			case VARINT: varint(); break;
+			case FIXED64: fixed64(); break;
+			case DELIMITED: pos += length(); break;
+			default: throw new InvalidMessage();
+			}
+		}
+	}
+
+	/**
+	 * Decode a binary message into the parameters of its document.
+	 * @param buf
+	 * @param off offset of the marker byte
+	 * @param len number of bytes in the message
+	 * @return the document with the message details
+	 * @throws InvalidMessage if the bytes are not a message with a known schema
+	 */
+	public static Document toDocument(byte[] buf, int off, int len) throws InvalidMessage {
+		if(!isBinary(buf, off, len)) throw new InvalidMessage();
+		Cursor in = new Cursor(buf, off+1, len-1);
+		MessageSchema schema = MessageSchema.forId((int) in.varint());
+		if(schema==null) throw new InvalidMessage();
+		Document doc = new Document();
+		doc.append("name", schema.name);
+		doc.append("protocolName", schema.protocolName);
+		doc.append("type", schema.type.toString());
+		while(in.pos<in.end) {
+			long tag = in.varint();
+			int wire = (int) (tag & 7);
+			MessageSchema.Field field = schema.field((int) (tag >>> 3));
+			if(field==null) {
+				in.skip(wire);
+				continue;
+			}
+			switch(field.type) {
+			case LONG:
+				if(wire!=VARINT) throw new InvalidMessage();
+				doc.append(field.key, unzigzag(in.varint()));
+				break;
+			case BOOLEAN:
+				if(wire!=VARINT) throw new InvalidMessage();
+				doc.append(field.key, in.varint()!=0);
+				break;
+			case DOUBLE:
+				if(wire!=FIXED64) throw new InvalidMessage();
+				doc.append(field.key, Double.longBitsToDouble(in.fixed64()));
+				break;
+			case STRING:
+				if(wire!=DELIMITED) throw new InvalidMessage();
+				int n = in.length();
+				doc.append(field.key, new String(buf, in.pos, n, StandardCharsets.UTF_8));
+				in.pos += n;
+				break;
+			case LONGS:
+				if(wire!=DELIMITED) throw new InvalidMessage();
+				int size = in.length();
+				Cursor packed = new Cursor(buf, in.pos, size);
+				long[] array = new long[size];
+				int count = 0;
+				while(packed.pos<packed.end) array[count++] = unzigzag(packed.varint());
+				doc.append(field.key, Arrays.copyOf(array, count));
+				in.pos += size;
+				break;
+			}
+		}
+		return doc;
+	}
+}
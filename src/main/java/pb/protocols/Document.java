@@ -1,12 +1,8 @@
 package pb.protocols;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
 /**
  * Helper class for using JSON. Example usage:
  * <pre>
@@ -27,122 +23,246 @@ import org.json.simple.parser.ParseException;
  * ArrayList<Document> docs2 = (ArrayList<Document>) doc3.get("docList");
  * }
  * </pre>
+ * The values are kept in parallel arrays, in the order they were appended.
+ * Numbers and booleans are stored unboxed, and arrays of integers are stored
+ * as a long[], so the typed getters do not allocate. Documents have few keys,
+ * so finding a key is a linear scan.
+ *
+ * @see {@link pb.protocols.JsonReader}
+ * @see {@link pb.protocols.JsonWriter}
  * @author aaron
  *
  */
 public class Document {
-	
-	protected JSONObject obj;
-	
+
+	static final byte NULL = 0;
+	static final byte STRING = 1;
+	static final byte LONG = 2;
+	static final byte DOUBLE = 3;
+	static final byte BOOLEAN = 4;
+	static final byte DOCUMENT = 5;
+	static final byte LIST = 6;
+	static final byte LONGS = 7;
+
+	String[] keys;
+	byte[] types;
+
+	/**
+	 * Numbers, and booleans as 0 or 1. Doubles are stored as their bits.
+	 */
+	long[] nums;
+
+	/**
+	 * Strings, documents, lists and long[] values.
+	 */
+	Object[] refs;
+
+	int size;
+
 	public Document(){
-		obj=new JSONObject();
+		keys=new String[4];
+		types=new byte[4];
+		nums=new long[4];
+		refs=new Object[4];
+	}
+
+	/**
+	 * Find the slot for the key, adding a new slot if there is none.
+	 */
+	private int slot(String key) {
+		int i = indexOf(key);
+		if(i>=0) return i;
+		if(size==keys.length) {
+			int n = size*2;
+			String[] k = new String[n];
+			byte[] t = new byte[n];
+			long[] l = new long[n];
+			Object[] r = new Object[n];
+			System.arraycopy(keys, 0, k, 0, size);
+			System.arraycopy(types, 0, t, 0, size);
+			System.arraycopy(nums, 0, l, 0, size);
+			System.arraycopy(refs, 0, r, 0, size);
+			keys=k;
+			types=t;
+			nums=l;
+			refs=r;
+		}
+		keys[size]=key;
+		return size++;
+	}
+
+	int indexOf(String key) {
+		for(int i=0;i<size;i++) {
+			String k = keys[i];
+			if(k==key || k.equals(key)) return i;
+		}
+		return -1;
 	}
-	
-	public Document(JSONObject obj){
-		this.obj = obj;
+
+	private void put(String key, byte type, long num, Object ref) {
+		int i = slot(key);
+		types[i]=type;
+		nums[i]=num;
+		refs[i]=ref;
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,String val){
 		if(val==null){
-			obj.put(key, null);
+			put(key, NULL, 0, null);
 		} else {
-			obj.put(key, new String(val));
+			put(key, STRING, 0, val);
 		}
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,Document doc){
-		obj.put(key, doc.obj);
+		put(key, DOCUMENT, 0, doc);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,boolean val){
-		obj.put(key, Boolean.valueOf(val));
+		put(key, BOOLEAN, val ? 1 : 0, null);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,ArrayList<?> val){
-		JSONArray list = new JSONArray();
-		for(Object o : val){
-			if(o instanceof Document){
-				list.add(((Document)o).obj);
-			} else {
-				list.add(o);
-			}
-		}
-		obj.put(key,list);
+		appendList(key, new ArrayList<Object>(val));
 	}
-	
-	@SuppressWarnings("unchecked")
+
+	/**
+	 * Append a list without copying it.
+	 */
+	void appendList(String key,ArrayList<Object> val){
+		put(key, LIST, 0, val);
+	}
+
+	/**
+	 * Append an array of integers, which is kept unboxed. The array is
+	 * not copied.
+	 * @param key
+	 * @param val
+	 */
+	public void append(String key,long[] val){
+		put(key, LONGS, 0, val);
+	}
+
 	public void append(String key,long val){
-		obj.put(key, Long.valueOf(val));
+		put(key, LONG, val, null);
 	}
-	
-	@SuppressWarnings("unchecked")
+
 	public void append(String key,int val){
-		obj.put(key, Integer.valueOf(val));
+		put(key, LONG, val, null);
 	}
-	
+
+	public void append(String key,double val){
+		put(key, DOUBLE, Double.doubleToRawLongBits(val), null);
+	}
+
 	public String toJson(){
-		return obj.toJSONString();
+		JsonWriter writer = JsonWriter.get();
+		writer.reset();
+		writer.write(this);
+		return new String(writer.buffer(), 0, writer.length(), StandardCharsets.UTF_8);
 	}
-	
+
+	/**
+	 * Parse a JSON string.
+	 * @param json
+	 * @return the document, or an empty document if the string is not a JSON object
+	 */
 	public static Document parse(String json) {
-		JSONParser parser = new JSONParser();
-		try {
-			JSONObject obj  = (JSONObject) parser.parse(json);
-			return new Document(obj);
-		} catch (ParseException e) {
-			return new Document();
-		} catch (ClassCastException e){
-			return new Document();
-		}
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		return parse(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Parse UTF-8 encoded JSON.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return the document, or an empty document if the bytes are not a JSON object
+	 */
+	public static Document parse(byte[] buf, int off, int len) {
+		Document doc = JsonReader.get().parse(buf, off, len);
+		return doc==null ? new Document() : doc;
 	}
-	
+
 	public boolean containsKey(String key){
-		return obj.containsKey(key);
+		return indexOf(key)>=0;
 	}
-	
+
 	public String getString(String key){
-		return (String) obj.get(key);
-	}
-	
-	private ArrayList<Object> getList(JSONArray o){
-		ArrayList<Object> list = new ArrayList<Object>();
-		for(Object l : (JSONArray)o){
-			if(l instanceof JSONObject){
-				list.add(new Document((JSONObject) l));
-			} else if(l instanceof JSONArray){
-				list.add(getList((JSONArray) l));
-			} else {
-				list.add(l);
-			}
-		}
-		return list;
+		int i = indexOf(key);
+		if(i<0 || types[i]==NULL) return null;
+		return (String) refs[i];
 	}
-	
+
+	/**
+	 * Get any value. Nested objects are returned as a Document and arrays
+	 * as an ArrayList, which is shared with this document and must not be
+	 * modified. Numbers are boxed, use the typed getters to avoid that.
+	 * @param key
+	 * @return the value, or null if there is no such key
+	 */
 	public Object get(String key){
-		Object o = obj.get(key);
-		if(o instanceof JSONObject){
-			return (Object) new Document((JSONObject) o);
-		} else if(o instanceof JSONArray){
-			return getList((JSONArray)o);
-		} else {
-			return o;
+		int i = indexOf(key);
+		if(i<0) return null;
+		switch(types[i]) {
+		case LONG: return nums[i];
+		case DOUBLE: return Double.longBitsToDouble(nums[i]);
+		case BOOLEAN: return nums[i]!=0;
+		case LONGS:
+			long[] array = (long[]) refs[i];
+			ArrayList<Object> list = new ArrayList<>(array.length);
+			for(long l : array) list.add(l);
+			return list;
+		default: return refs[i];
 		}
-		
 	}
-	
+
+	/**
+	 * @param key
+	 * @return the array of integers
+	 * @throws ClassCastException if the value is not an array of integers
+	 */
+	public long[] getLongArray(String key){
+		return (long[]) valueOf(key, LONGS);
+	}
+
 	public int getInteger(String key){
-		return (int) obj.get(key);
+		return (int) getLong(key);
 	}
-	
+
 	public long getLong(String key){
-		return (long) obj.get(key);
+		int i = index(key);
+		if(types[i]==DOUBLE) return (long) Double.longBitsToDouble(nums[i]);
+		check(i, LONG);
+		return nums[i];
 	}
-	
+
+	public double getDouble(String key){
+		int i = index(key);
+		if(types[i]==LONG) return nums[i];
+		check(i, DOUBLE);
+		return Double.longBitsToDouble(nums[i]);
+	}
+
 	public boolean getBoolean(String key){
-		return (boolean) obj.get(key);
+		int i = index(key);
+		check(i, BOOLEAN);
+		return nums[i]!=0;
+	}
+
+	private int index(String key) {
+		int i = indexOf(key);
+		if(i<0) throw new NullPointerException("no value for key "+key);
+		return i;
+	}
+
+	private void check(int i, byte type) {
+		if(types[i]!=type) throw new ClassCastException("wrong type for key "+keys[i]);
+	}
+
+	private Object valueOf(String key, byte type) {
+		int i = index(key);
+		check(i, type);
+		return refs[i];
 	}
 }
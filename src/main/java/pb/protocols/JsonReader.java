@@ -0,0 +1,461 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * A streaming JSON parser that works directly on UTF-8 encoded bytes and
+ * produces a {@link pb.protocols.Document}. Numbers are kept as primitives in
+ * the document, and arrays of integers are kept as a long[]. The bytes may
+ * also be the modified UTF-8 written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}. Parsers are not thread
+ * safe but can be reused, so each thread has its own instance. Use this class
+ * like:
+ * <pre>
+ * {@code
+ * Document doc = JsonReader.get().parse(buf, 0, len);
+ * }
+ * </pre>
+ *
+ * @see {@link pb.protocols.JsonWriter}
+ * @author aaron
+ *
+ */
+public final class JsonReader {
+	private static final ThreadLocal<JsonReader> readers = ThreadLocal.withInitial(JsonReader::new);
+
+	/**
+	 * Thrown internally when the input is not valid JSON. There is a single
+	 * instance with no stack trace since it is only used to unwind.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Malformed extends Exception {
+		Malformed() {
+			super(null, null, false, false);
+		}
+	}
+	private static final Malformed malformed = new Malformed();
+
+	/**
+	 * The deepest that objects and arrays may be nested. Messages are never
+	 * nested more than a few levels, and the parser recurses for each level,
+	 * so deeper input is treated as malformed rather than allowed to
+	 * overflow the stack of the thread parsing it.
+	 */
+	public static final int MAX_DEPTH = 64;
+
+	/**
+	 * Short strings without escapes, such as keys and message names, are
+	 * repeated in nearly every message, so they are cached rather than
+	 * allocated each time.
+	 */
+	private static final int CACHE_SIZE = 256;
+	private static final int MAX_CACHED_LENGTH = 32;
+	private final String[] stringCache = new String[CACHE_SIZE];
+
+	private byte[] buf;
+	private int pos;
+	private int end;
+
+	/**
+	 * Scratch space for decoding strings.
+	 */
+	private char[] chars = new char[64];
+
+	/**
+	 * Scratch space for collecting the integers of an array.
+	 */
+	private long[] longs = new long[16];
+
+	/**
+	 * Set by {@link #parseInteger()} when the number was too long for a long.
+	 */
+	private boolean overflowed;
+
+	/**
+	 * How many objects and arrays the parser is inside.
+	 */
+	private int depth;
+
+	private JsonReader() {
+
+	}
+
+	/**
+	 * @return the parser for the calling thread
+	 */
+	public static JsonReader get() {
+		return readers.get();
+	}
+
+	/**
+	 * Parse a JSON object.
+	 * @param buf the UTF-8 bytes
+	 * @param off offset of the first byte of the object
+	 * @param len number of bytes
+	 * @return the document, or null if the bytes are not a valid JSON object
+	 */
+	public Document parse(byte[] buf, int off, int len) {
+		this.buf = buf;
+		this.pos = off;
+		this.end = off + len;
+		this.depth = 0;
+		try {
+			skipWhitespace();
+			Document doc = parseObject();
+			skipWhitespace();
+			if(pos!=end) throw malformed;
+			return doc;
+		} catch (Malformed e) {
+			return null;
+		} finally {
+			this.buf = null;
+		}
+	}
+
+	private void skipWhitespace() {
+		while(pos<end) {
+			byte b = buf[pos];
+			if(b!=' ' && b!='\n' && b!='\r' && b!='\t') return;
+			pos++;
+		}
+	}
+
+	private byte next() throws Malformed {
+		if(pos>=end) throw malformed;
+		return buf[pos++];
+	}
+
+	private void expect(byte b) throws Malformed {
+		skipWhitespace();
+		if(next()!=b) throw malformed;
+	}
+
+	/**
+	 * Go one level deeper into the input.
+	 */
+	private void enter() throws Malformed {
+		if(++depth>MAX_DEPTH) throw malformed;
+	}
+
+	private Document parseObject() throws Malformed {
+		expect((byte) '{');
+		enter();
+		Document doc = new Document();
+		skipWhitespace();
+		if(pos<end && buf[pos]=='}') {
+			pos++;
+			depth--;
+			return doc;
+		}
+		while(true) {
+			expect((byte) '"');
+			String key = parseString();
+			expect((byte) ':');
+			skipWhitespace();
+			parseValue(doc, key);
+			skipWhitespace();
+			byte b = next();
+			if(b=='}') {
+				depth--;
+				return doc;
+			}
+			if(b!=',') throw malformed;
+			skipWhitespace();
+		}
+	}
+
+	/**
+	 * Parse a value and append it to the document, keeping numbers unboxed.
+	 */
+	private void parseValue(Document doc, String key) throws Malformed {
+		if(pos>=end) throw malformed;
+		byte b = buf[pos];
+		switch(b) {
+		case '"':
+			pos++;
+			doc.append(key, parseString());
+			break;
+		case '{':
+			doc.append(key, parseObject());
+			break;
+		case '[':
+			parseArray(doc, key);
+			break;
+		case 't':
+		case 'f':
+			doc.append(key, parseBoolean());
+			break;
+		case 'n':
+			parseNull();
+			doc.append(key, (String) null);
+			break;
+		default:
+			int start = pos;
+			long l = parseInteger();
+			if(isFraction()) {
+				doc.append(key, parseDouble(start));
+			} else {
+				doc.append(key, l);
+			}
+		}
+	}
+
+	/**
+	 * Arrays that hold only integers are appended as a long[], anything
+	 * else as a list.
+	 */
+	private void parseArray(Document doc, String key) throws Malformed {
+		pos++;
+		int n = 0;
+		int start = pos;
+		skipWhitespace();
+		if(pos<end && buf[pos]==']') {
+			pos++;
+			doc.append(key, new long[0]);
+			return;
+		}
+		while(true) {
+			skipWhitespace();
+			if(pos>=end) throw malformed;
+			byte b = buf[pos];
+			if(b!='-' && (b<'0' || b>'9')) break;
+			long l = parseInteger();
+			if(isFraction()) break;
+			if(n==longs.length) {
+				long[] grown = new long[n*2];
+				System.arraycopy(longs, 0, grown, 0, n);
+				longs = grown;
+			}
+			longs[n++] = l;
+			skipWhitespace();
+			b = next();
+			if(b==']') {
+				long[] array = new long[n];
+				System.arraycopy(longs, 0, array, 0, n);
+				doc.append(key, array);
+				return;
+			}
+			if(b!=',') throw malformed;
+		}
+		// not all integers, start again as a general list
+		pos = start;
+		doc.appendList(key, parseList());
+	}
+
+	/**
+	 * Parse the elements of an array, after the opening bracket, as a list
+	 * in the form returned by {@link pb.protocols.Document#get(String)}.
+	 */
+	private ArrayList<Object> parseList() throws Malformed {
+		enter();
+		ArrayList<Object> list = new ArrayList<>();
+		skipWhitespace();
+		if(pos<end && buf[pos]==']') {
+			pos++;
+			depth--;
+			return list;
+		}
+		while(true) {
+			skipWhitespace();
+			if(pos>=end) throw malformed;
+			byte b = buf[pos];
+			switch(b) {
+			case '"':
+				pos++;
+				list.add(parseString());
+				break;
+			case '{':
+				list.add(parseObject());
+				break;
+			case '[':
+				pos++;
+				list.add(parseList());
+				break;
+			case 't':
+			case 'f':
+				list.add(parseBoolean());
+				break;
+			case 'n':
+				parseNull();
+				list.add(null);
+				break;
+			default:
+				int start = pos;
+				long l = parseInteger();
+				if(isFraction()) {
+					list.add(parseDouble(start));
+				} else {
+					list.add(l);
+				}
+			}
+			skipWhitespace();
+			b = next();
+			if(b==']') {
+				depth--;
+				return list;
+			}
+			if(b!=',') throw malformed;
+		}
+	}
+
+	private boolean parseBoolean() throws Malformed {
+		if(matches("true")) return true;
+		if(matches("false")) return false;
+		throw malformed;
+	}
+
+	private void parseNull() throws Malformed {
+		if(!matches("null")) throw malformed;
+	}
+
+	private boolean matches(String literal) {
+		int len = literal.length();
+		if(end-pos<len) return false;
+		for(int i=0;i<len;i++) {
+			if(buf[pos+i]!=literal.charAt(i)) return false;
+		}
+		pos+=len;
+		return true;
+	}
+
+	/**
+	 * Parse the integer part of a number. If the number turns out to have
+	 * a fraction or exponent, or is too big for a long, then
+	 * {@link #isFraction()} will be true and it should be parsed again
+	 * as a double.
+	 */
+	private long parseInteger() throws Malformed {
+		boolean negative = false;
+		if(pos<end && buf[pos]=='-') {
+			negative = true;
+			pos++;
+		}
+		int start = pos;
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long l = 0;
+		boolean over = false;
+		while(pos<end) {
+			int d = buf[pos]-'0';
+			if(d<0 || d>9) break;
+			// accumulate negatively, so Long.MIN_VALUE fits
+			if(l<(limit+d)/10) over = true;
+			else l = l*10 - d;
+			pos++;
+		}
+		if(pos==start) throw malformed;
+		// too big for a long, treat it as a double
+		overflowed = over;
+		return negative ? l : -l;
+	}
+
+	private boolean isFraction() {
+		return overflowed || (pos<end && (buf[pos]=='.' || buf[pos]=='e' || buf[pos]=='E'));
+	}
+
+	private double parseDouble(int start) throws Malformed {
+		pos = start;
+		while(pos<end) {
+			byte b = buf[pos];
+			if((b<'0' || b>'9') && b!='-' && b!='+' && b!='.' && b!='e' && b!='E') break;
+			pos++;
+		}
+		try {
+			return Double.parseDouble(new String(buf, start, pos-start, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw malformed;
+		}
+	}
+
+	/**
+	 * Parse a string, after the opening quote.
+	 */
+	private String parseString() throws Malformed {
+		int start = pos;
+		int hash = 0;
+		// fast path, plain ASCII with no escapes
+		while(pos<end) {
+			byte b = buf[pos];
+			if(b=='"') {
+				int len = pos-start;
+				pos++;
+				return cachedString(start, len, hash);
+			}
+			if(b=='\\' || b<0x20) break;
+			hash = 31*hash + b;
+			pos++;
+		}
+		pos = start;
+		int n = 0;
+		while(true) {
+			int c = next() & 0xff;
+			if(c=='"') break;
+			if(n+2>chars.length) {
+				char[] grown = new char[chars.length*2];
+				System.arraycopy(chars, 0, grown, 0, n);
+				chars = grown;
+			}
+			if(c=='\\') {
+				c = next();
+				switch(c) {
+				case '"':
+				case '\\':
+				case '/':
+					chars[n++] = (char) c;
+					break;
+				case 'b': chars[n++] = '\b'; break;
+				case 'f': chars[n++] = '\f'; break;
+				case 'n': chars[n++] = '\n'; break;
+				case 'r': chars[n++] = '\r'; break;
+				case 't': chars[n++] = '\t'; break;
+				case 'u':
+					int u = 0;
+					for(int i=0;i<4;i++) {
+						int h = Character.digit(next(), 16);
+						if(h<0) throw malformed;
+						u = (u << 4) | h;
+					}
+					chars[n++] = (char) u;
+					break;
+				default:
+					throw malformed;
+				}
+			} else if(c<0x80) {
+				chars[n++] = (char) c;
+			} else if((c & 0xe0)==0xc0) {
+				chars[n++] = (char) (((c & 0x1f) << 6) | (next() & 0x3f));
+			} else if((c & 0xf0)==0xe0) {
+				int c2 = next() & 0x3f;
+				chars[n++] = (char) (((c & 0x0f) << 12) | (c2 << 6) | (next() & 0x3f));
+			} else if((c & 0xf8)==0xf0) {
+				int c2 = next() & 0x3f;
+				int c3 = next() & 0x3f;
+				int cp = ((c & 0x07) << 18) | (c2 << 12) | (c3 << 6) | (next() & 0x3f);
+				chars[n++] = Character.highSurrogate(cp);
+				chars[n++] = Character.lowSurrogate(cp);
+			} else {
+				throw malformed;
+			}
+		}
+		return new String(chars, 0, n);
+	}
+
+	/**
+	 * Return the cached string for the ASCII bytes, or make one.
+	 */
+	private String cachedString(int start, int len, int hash) {
+		if(len>MAX_CACHED_LENGTH) {
+			return new String(buf, start, len, StandardCharsets.ISO_8859_1);
+		}
+		int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE-1);
+		String s = stringCache[slot];
+		if(s!=null && s.length()==len) {
+			int i = 0;
+			while(i<len && s.charAt(i)==buf[start+i]) i++;
+			if(i==len) return s;
+		}
+		s = new String(buf, start, len, StandardCharsets.ISO_8859_1);
+		stringCache[slot] = s;
+		return s;
+	}
+}
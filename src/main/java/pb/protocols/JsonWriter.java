@@ -0,0 +1,261 @@
+package pb.protocols;
+
+import java.util.List;
+
+/**
+ * Writes a {@link pb.protocols.Document} as JSON, straight into a reusable
+ * byte buffer. The output is UTF-8, but characters outside of the basic
+ * multilingual plane and control characters are escaped, so the bytes are
+ * also valid modified UTF-8 as read by
+ * {@link java.io.DataInputStream#readUTF()}. Writers are not thread safe but
+ * can be reused, so each thread has its own instance. Use this class like:
+ * <pre>
+ * {@code
+ * JsonWriter writer = JsonWriter.get();
+ * writer.reset();
+ * writer.write(doc);
+ * out.write(writer.buffer(), 0, writer.length());
+ * }
+ * </pre>
+ *
+ * @see {@link pb.protocols.JsonReader}
+ * @author aaron
+ *
+ */
+public final class JsonWriter {
+	private static final ThreadLocal<JsonWriter> writers = ThreadLocal.withInitial(JsonWriter::new);
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private byte[] buf = new byte[512];
+	private int len;
+
+	private JsonWriter() {
+
+	}
+
+	/**
+	 * @return the writer for the calling thread
+	 */
+	public static JsonWriter get() {
+		return writers.get();
+	}
+
+	/**
+	 * Empty the buffer.
+	 */
+	public void reset() {
+		len = 0;
+	}
+
+	/**
+	 * Leave space in the buffer, e.g. for a length to be filled in later.
+	 * @param n number of bytes to skip
+	 */
+	public void skip(int n) {
+		ensure(n);
+		len += n;
+	}
+
+	/**
+	 * @return the buffer, valid up to {@link #length()}
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int length() {
+		return len;
+	}
+
+	private void ensure(int n) {
+		if(len+n>buf.length) {
+			byte[] grown = new byte[Math.max(len+n, buf.length*2)];
+			System.arraycopy(buf, 0, grown, 0, len);
+			buf = grown;
+		}
+	}
+
+	private void put(char c) {
+		ensure(1);
+		buf[len++] = (byte) c;
+	}
+
+	/**
+	 * Write the document as a JSON object.
+	 * @param doc
+	 */
+	public void write(Document doc) {
+		put('{');
+		for(int i=0;i<doc.size;i++) {
+			if(i>0) put(',');
+			writeString(doc.keys[i]);
+			put(':');
+			switch(doc.types[i]) {
+			case Document.NULL: writeNull(); break;
+			case Document.STRING: writeString((String) doc.refs[i]); break;
+			case Document.LONG: writeLong(doc.nums[i]); break;
+			case Document.DOUBLE: writeDouble(Double.longBitsToDouble(doc.nums[i])); break;
+			case Document.BOOLEAN: writeBoolean(doc.nums[i]!=0); break;
+			case Document.DOCUMENT: write((Document) doc.refs[i]); break;
+			case Document.LIST: writeList((List<?>) doc.refs[i]); break;
+			case Document.LONGS: writeLongs((long[]) doc.refs[i]); break;
+			}
+		}
+		put('}');
+	}
+
+	private void writeValue(Object o) {
+		if(o==null) {
+			writeNull();
+		} else if(o instanceof String) {
+			writeString((String) o);
+		} else if(o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+			writeLong(((Number) o).longValue());
+		} else if(o instanceof Number) {
+			writeDouble(((Number) o).doubleValue());
+		} else if(o instanceof Boolean) {
+			writeBoolean((Boolean) o);
+		} else if(o instanceof Document) {
+			write((Document) o);
+		} else if(o instanceof List) {
+			writeList((List<?>) o);
+		} else if(o instanceof long[]) {
+			writeLongs((long[]) o);
+		} else {
+			writeString(o.toString());
+		}
+	}
+
+	private void writeList(List<?> list) {
+		put('[');
+		for(int i=0;i<list.size();i++) {
+			if(i>0) put(',');
+			writeValue(list.get(i));
+		}
+		put(']');
+	}
+
+	private void writeLongs(long[] array) {
+		put('[');
+		for(int i=0;i<array.length;i++) {
+			if(i>0) put(',');
+			writeLong(array[i]);
+		}
+		put(']');
+	}
+
+	private void writeNull() {
+		ensure(4);
+		buf[len++]='n';
+		buf[len++]='u';
+		buf[len++]='l';
+		buf[len++]='l';
+	}
+
+	private void writeBoolean(boolean b) {
+		if(b) {
+			ensure(4);
+			buf[len++]='t';
+			buf[len++]='r';
+			buf[len++]='u';
+			buf[len++]='e';
+		} else {
+			ensure(5);
+			buf[len++]='f';
+			buf[len++]='a';
+			buf[len++]='l';
+			buf[len++]='s';
+			buf[len++]='e';
+		}
+	}
+
+	private void writeLong(long l) {
+		if(l==Long.MIN_VALUE) {
+			writeAscii("-9223372036854775808");
+			return;
+		}
+		ensure(20);
+		if(l<0) {
+			buf[len++]='-';
+			l=-l;
+		}
+		int start = len;
+		do {
+			buf[len++] = (byte) ('0' + (l % 10));
+			l /= 10;
+		} while(l!=0);
+		// digits were written backwards
+		for(int i=start, j=len-1;i<j;i++,j--) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+	}
+
+	private void writeDouble(double d) {
+		if(Double.isNaN(d) || Double.isInfinite(d)) {
+			// not representable in JSON
+			writeNull();
+		} else {
+			writeAscii(Double.toString(d));
+		}
+	}
+
+	private void writeAscii(String s) {
+		int n = s.length();
+		ensure(n);
+		for(int i=0;i<n;i++) buf[len++] = (byte) s.charAt(i);
+	}
+
+	private void writeString(String s) {
+		int n = s.length();
+		ensure(n+2);
+		buf[len++]='"';
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c>=0x20 && c<0x7f && c!='"' && c!='\\') {
+				ensure(2);
+				buf[len++] = (byte) c;
+			} else if(c=='"' || c=='\\') {
+				ensure(3);
+				buf[len++] = '\\';
+				buf[len++] = (byte) c;
+			} else if(c=='\n') {
+				ensure(3);
+				buf[len++] = '\\';
+				buf[len++] = 'n';
+			} else if(c=='\r') {
+				ensure(3);
+				buf[len++] = '\\';
+				buf[len++] = 'r';
+			} else if(c=='\t') {
+				ensure(3);
+				buf[len++] = '\\';
+				buf[len++] = 't';
+			} else if(c<0x20 || c==0x7f || Character.isSurrogate(c)) {
+				ensure(7);
+				buf[len++] = '\\';
+				buf[len++] = 'u';
+				buf[len++] = HEX[(c >> 12) & 0xf];
+				buf[len++] = HEX[(c >> 8) & 0xf];
+				buf[len++] = HEX[(c >> 4) & 0xf];
+				buf[len++] = HEX[c & 0xf];
+			} else if(c<0x800) {
+				ensure(3);
+				buf[len++] = (byte) (0xc0 | (c >> 6));
+				buf[len++] = (byte) (0x80 | (c & 0x3f));
+			} else {
+				ensure(4);
+				buf[len++] = (byte) (0xe0 | (c >> 12));
+				buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[len++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		ensure(1);
+		buf[len++]='"';
+	}
+}
@@ -1,15 +1,33 @@
 package pb.protocols;
 
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import pb.Trace;
+import pb.protocols.asset.AssetAccept;
+import pb.protocols.asset.AssetAck;
+import pb.protocols.asset.AssetChunk;
+import pb.protocols.asset.AssetOffer;
+import pb.protocols.asset.AssetQuery;
+import pb.protocols.asset.AssetQueryReply;
+import pb.protocols.board.BoardEdit;
 import pb.protocols.keepalive.KeepAliveReply;
 import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.presence.CursorUpdate;
+import pb.protocols.presence.PresenceFrame;
 import pb.protocols.session.SessionStartReply;
 import pb.protocols.session.SessionStartRequest;
 import pb.protocols.session.SessionStopReply;
 import pb.protocols.session.SessionStopRequest;
+import pb.protocols.viewport.ViewportReply;
+import pb.protocols.viewport.ViewportRequest;
+import pb.protocols.viewport.ViewportTile;
+import pb.protocols.viewport.ViewportUpdate;
 
 /**
  * Message super class and factory for all protocol messages, to parse a
- * received UTF-8 line of text in JSON format, as an object that represents the
+ * received frame of UTF-8 text in JSON format, as an object that represents the
  * message.
  * 
  * @see {@link pb.protocols.Protocol}
@@ -30,6 +48,42 @@ public class Message {
 	 */
 	protected Document doc;
 	
+	/**
+	 * The id of the protocol the message belongs to, resolved once when the
+	 * message is created so that routing it does not need the name.
+	 */
+	private final int protocolId;
+	
+	/**
+	 * The encoded frame for a message that never changes, or null if the
+	 * message must be encoded each time it is sent.
+	 * @see {@link #preEncode(Message)}
+	 */
+	private byte[] frame;
+	
+	/**
+	 * The trace of the message, read from its parameters when first asked
+	 * for, or null.
+	 */
+	private Trace trace;
+	
+	/**
+	 * The control messages that have no parameters, each shared as a
+	 * single pre-encoded instance. A holder class is used so that the
+	 * message classes are initialised on first use rather than while
+	 * this class is being initialised.
+	 */
+	private static class ControlMessages {
+		static final Message[] messages = {
+			KeepAliveRequest.message,
+			KeepAliveReply.message,
+			SessionStartRequest.message,
+			SessionStartReply.message,
+			SessionStopRequest.message,
+			SessionStopReply.message
+		};
+	}
+	
 	/**
 	 * Initialiser when given parameters explicitly.
 	 * @param name the name of the message (its classname by convention)
@@ -41,6 +95,7 @@ public class Message {
 		doc.append("name", name);
 		doc.append("protocolName", protocolName);
 		doc.append("type", type.toString());
+		protocolId = Protocol.registerProtocol(protocolName);
 	}
 	
 	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
@@ -50,6 +105,42 @@ public class Message {
 		if(!msg.equals(val)) throw new InvalidMessage();
 	}
 	
+	/**
+	 * @throws InvalidMessage if the doc does not have a string for the key
+	 */
+	static public void validateString(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
+	}
+	
+	/**
+	 * @throws InvalidMessage if the doc does not have an integer for the key
+	 */
+	static public void validateLong(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof Long)) throw new InvalidMessage();
+	}
+	
+	/**
+	 * @throws InvalidMessage if the doc does not have a boolean for the key
+	 */
+	static public void validateBoolean(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof Boolean)) throw new InvalidMessage();
+	}
+	
+	/**
+	 * @throws InvalidMessage if the doc does not have an array of integers for the key
+	 */
+	static public void validateLongArray(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		try {
+			doc.getLongArray(key);
+		} catch (ClassCastException e) {
+			throw new InvalidMessage();
+		}
+	}
+	
 	/**
 	 * Initialiser when given parameters in a doc.
 	 * @param name the name of the message that is being initialised
@@ -61,6 +152,7 @@ public class Message {
 		validateStringValue("name",name,doc);
 		validateStringValue("protocolName",protocolName,doc);
 		validateStringValue("type",type.toString(),doc);
+		protocolId = Protocol.registerProtocol(protocolName);
 	}
 	
 	/**
@@ -70,7 +162,34 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn UTF-8 encoded json, a message in the binary encoding of
+	 * {@link pb.protocols.BinaryCodec}, an {@link pb.protocols.asset.AssetChunk}
+	 * or a {@link pb.protocols.viewport.ViewportTile},
+	 * into an appropriate message object.
+	 * @param buf the bytes to parse
+	 * @param off offset of the message in the buffer
+	 * @param len length of the message
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(byte[] buf, int off, int len) throws InvalidMessage {
+		if(AssetChunk.isChunk(buf, off, len)) {
+			return AssetChunk.read(buf, off, len);
+		}
+		if(ViewportTile.isTile(buf, off, len)) {
+			return ViewportTile.read(buf, off, len);
+		}
+		if(BinaryCodec.isBinary(buf, off, len)) {
+			return toMessage(BinaryCodec.toDocument(buf, off, len));
+		}
+		return toMessage(Document.parse(buf, off, len));
+	}
+	
+	static private Message toMessage(Document doc) throws InvalidMessage {
 		// the following test is somewhat repetitive, but it avoids having
 		// to test each message type, handling exceptions for those that are
 		// not the matching message type
@@ -84,6 +203,17 @@ public class Message {
 			case SessionStartReply.name: return new SessionStartReply(doc);
 			case SessionStopRequest.name: return new SessionStopRequest(doc);
 			case SessionStopReply.name: return new SessionStopReply(doc);
+			case ViewportRequest.name: return new ViewportRequest(doc);
+			case ViewportReply.name: return new ViewportReply(doc);
+			case ViewportUpdate.name: return new ViewportUpdate(doc);
+			case BoardEdit.name: return new BoardEdit(doc);
+			case AssetOffer.name: return new AssetOffer(doc);
+			case AssetAccept.name: return new AssetAccept(doc);
+			case AssetAck.name: return new AssetAck(doc);
+			case AssetQuery.name: return new AssetQuery(doc);
+			case AssetQueryReply.name: return new AssetQueryReply(doc);
+			case CursorUpdate.name: return new CursorUpdate(doc);
+			case PresenceFrame.name: return new PresenceFrame(doc);
 			// put more message cases here
 			
 			// if nothing matches, its invalid
@@ -91,6 +221,107 @@ public class Message {
 		}
 	}
 	
+	/**
+	 * Encode the message once, so that it can be sent any number of times
+	 * without being encoded again. Only use this for messages that are
+	 * never modified.
+	 * @param msg the message to encode
+	 * @return the same message
+	 */
+	protected static <T extends Message> T preEncode(T msg) {
+		JsonWriter writer = JsonWriter.get();
+		try {
+			msg.writeFrame(writer);
+		} catch (UTFDataFormatException e) {
+			throw new UncheckedIOException(e);
+		}
+		((Message) msg).frame = Arrays.copyOf(writer.buffer(), writer.length());
+		return msg;
+	}
+	
+	/**
+	 * Encode the message as a frame, replacing what is in the writer. The
+	 * frame is a two byte length followed by the JSON, which is the same
+	 * format as {@link java.io.DataOutputStream#writeUTF(String)}.
+	 * @param writer
+	 * @throws UTFDataFormatException if the message is too long for a frame
+	 */
+	public void writeFrame(JsonWriter writer) throws UTFDataFormatException {
+		writer.reset();
+		writer.skip(2);
+		writer.write(doc);
+		int len = writer.length()-2;
+		if(len>0xffff) throw new UTFDataFormatException("message too long: "+len);
+		writer.buffer()[0] = (byte) (len >>> 8);
+		writer.buffer()[1] = (byte) len;
+	}
+	
+	/**
+	 * Recognise a received frame as one of the pre-encoded control messages
+	 * by comparing bytes, without parsing it.
+	 * @param buf the frame, including the two byte length
+	 * @param len the number of bytes in the frame
+	 * @return the shared instance of the control message, or null if the
+	 * frame is not a control message
+	 */
+	static public Message toControlMessage(byte[] buf, int len) {
+		return toControlMessage(buf, 0, len);
+	}
+	
+	/**
+	 * As {@link #toControlMessage(byte[], int)}, for a frame that starts at
+	 * an offset in the buffer.
+	 * @param buf
+	 * @param off where the frame starts, at its length
+	 * @param len the length of the frame, including its length
+	 * @return the shared control message, or null if the frame is not one
+	 */
+	static public Message toControlMessage(byte[] buf, int off, int len) {
+		for(Message msg : ControlMessages.messages) {
+			byte[] frame = msg.frame;
+			if(frame.length==len && Arrays.equals(frame, 0, len, buf, off, off+len)) {
+				return msg;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * The pre-encoded frame for this message.
+	 * @return the frame, or null if the message has to be encoded when sent
+	 */
+	public byte[] getFrame() {
+		return frame;
+	}
+	
+	/**
+	 * The optional trace header of the message, which is stamped at each hop
+	 * as the message travels. Only messages that are decoded or created
+	 * separately for each hop can carry a trace, never shared ones.
+	 * @return the trace, or null if the message is not traced
+	 */
+	public Trace getTrace() {
+		if(trace==null && frame==null && doc.containsKey("trace")) {
+			try {
+				trace = new Trace(doc.getLongArray("trace"));
+			} catch (ClassCastException | IllegalArgumentException e) {
+				// not a trace, which is not worth dropping the message for
+			}
+		}
+		return trace;
+	}
+	
+	/**
+	 * Set the trace header of a message that is about to be sent. The
+	 * timestamps are copied, so stamps added later are not sent.
+	 * @param trace
+	 */
+	public void setTrace(Trace trace) {
+		if(frame!=null) throw new IllegalStateException("a shared message cannot be traced");
+		this.trace = trace;
+		doc.append("trace", trace.toArray());
+	}
+	
 	/**
 	 * Convert the message to a string for transmission.
 	 * @return
@@ -107,6 +338,14 @@ public class Message {
 		return doc.getString("protocolName");
 	}
 	
+	/**
+	 * Return the protocol id
+	 * @return
+	 */
+	public int getProtocolId() {
+		return protocolId;
+	}
+	
 	/**
 	 * Return the message name
 	 * @return
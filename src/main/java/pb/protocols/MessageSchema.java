@@ -0,0 +1,237 @@
+package pb.protocols;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.protocols.asset.AssetAccept;
+import pb.protocols.asset.AssetAck;
+import pb.protocols.asset.AssetOffer;
+import pb.protocols.asset.AssetProtocol;
+import pb.protocols.asset.AssetQuery;
+import pb.protocols.asset.AssetQueryReply;
+import pb.protocols.board.BoardEdit;
+import pb.protocols.board.BoardProtocol;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.presence.CursorUpdate;
+import pb.protocols.presence.PresenceFrame;
+import pb.protocols.presence.PresenceProtocol;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+import pb.protocols.viewport.ViewportProtocol;
+import pb.protocols.viewport.ViewportReply;
+import pb.protocols.viewport.ViewportRequest;
+import pb.protocols.viewport.ViewportUpdate;
+
+/**
+ * The schema of a message that can be sent in the binary encoding of
+ * {@link pb.protocols.BinaryCodec}. A schema gives the message a fixed id, which
+ * stands for its name, protocol name and type, and gives each parameter a
+ * field id and a type. Schema and field ids are part of the wire format, so
+ * they must never be reused or changed once they have been given out; new
+ * parameters get new field ids. Messages without a schema are always sent as
+ * JSON.
+ *
+ * @see {@link pb.protocols.BinaryCodec}
+ * @author aaron
+ *
+ */
+public class MessageSchema {
+
+	/**
+	 * The types of parameter that can be encoded.
+	 */
+	public static enum FieldType {
+		LONG,
+		DOUBLE,
+		BOOLEAN,
+		STRING,
+		LONGS
+	}
+
+	/**
+	 * A parameter of the message.
+	 */
+	public static class Field {
+		public final int id;
+		public final String key;
+		public final FieldType type;
+
+		public Field(int id, String key, FieldType type) {
+			this.id=id;
+			this.key=key;
+			this.type=type;
+		}
+	}
+
+	private static final ConcurrentHashMap<String,MessageSchema> byName = new ConcurrentHashMap<>();
+	private static volatile MessageSchema[] byId = new MessageSchema[16];
+
+	static {
+		register(1, KeepAliveRequest.name, KeepAliveProtocol.protocolName, Message.Type.Request,
+				new Field(1, "sent", FieldType.LONG),
+				new Field(2, "rtt", FieldType.LONG),
+				new Field(3, "interval", FieldType.LONG));
+		register(2, KeepAliveReply.name, KeepAliveProtocol.protocolName, Message.Type.Reply,
+				new Field(1, "echo", FieldType.LONG),
+				new Field(2, "received", FieldType.LONG),
+				new Field(3, "sent", FieldType.LONG),
+				new Field(4, "interval", FieldType.LONG));
+		register(3, SessionStartRequest.name, SessionProtocol.protocolName, Message.Type.Request,
+				new Field(1, "binary", FieldType.BOOLEAN),
+				new Field(2, "datagrams", FieldType.BOOLEAN));
+		register(4, SessionStartReply.name, SessionProtocol.protocolName, Message.Type.Reply,
+				new Field(1, "binary", FieldType.BOOLEAN),
+				new Field(2, "datagramPort", FieldType.LONG),
+				new Field(3, "datagramToken", FieldType.LONG));
+		register(5, SessionStopRequest.name, SessionProtocol.protocolName, Message.Type.Request,
+				new Field(1, "retryAfter", FieldType.LONG));
+		register(6, SessionStopReply.name, SessionProtocol.protocolName, Message.Type.Reply);
+		register(7, ViewportRequest.name, ViewportProtocol.protocolName, Message.Type.Request,
+				new Field(1, "board", FieldType.STRING),
+				new Field(2, "minX", FieldType.LONG),
+				new Field(3, "minY", FieldType.LONG),
+				new Field(4, "maxX", FieldType.LONG),
+				new Field(5, "maxY", FieldType.LONG));
+		register(8, ViewportReply.name, ViewportProtocol.protocolName, Message.Type.Reply,
+				new Field(1, "board", FieldType.STRING),
+				new Field(2, "minX", FieldType.LONG),
+				new Field(3, "minY", FieldType.LONG),
+				new Field(4, "maxX", FieldType.LONG),
+				new Field(5, "maxY", FieldType.LONG));
+		register(9, ViewportUpdate.name, ViewportProtocol.protocolName, Message.Type.Request,
+				new Field(1, "board", FieldType.STRING),
+				new Field(2, "op", FieldType.STRING),
+				new Field(3, "id", FieldType.LONG),
+				new Field(4, "color", FieldType.LONG),
+				new Field(5, "width", FieldType.LONG),
+				new Field(6, "points", FieldType.LONGS),
+				new Field(7, "clock", FieldType.LONG),
+				new Field(8, "replica", FieldType.LONG),
+				new Field(9, "offset", FieldType.LONG),
+				new Field(10, "trace", FieldType.LONGS));
+		register(10, BoardEdit.name, BoardProtocol.protocolName, Message.Type.Request,
+				new Field(1, "board", FieldType.STRING),
+				new Field(2, "op", FieldType.STRING),
+				new Field(3, "id", FieldType.LONG),
+				new Field(4, "color", FieldType.LONG),
+				new Field(5, "width", FieldType.LONG),
+				new Field(6, "points", FieldType.LONGS),
+				new Field(7, "clock", FieldType.LONG),
+				new Field(8, "replica", FieldType.LONG),
+				new Field(9, "offset", FieldType.LONG),
+				new Field(10, "trace", FieldType.LONGS));
+		register(11, AssetOffer.name, AssetProtocol.protocolName, Message.Type.Request,
+				new Field(1, "transfer", FieldType.LONG),
+				new Field(2, "asset", FieldType.STRING),
+				new Field(3, "size", FieldType.LONG));
+		register(12, AssetAccept.name, AssetProtocol.protocolName, Message.Type.Reply,
+				new Field(1, "transfer", FieldType.LONG),
+				new Field(2, "offset", FieldType.LONG));
+		register(13, AssetAck.name, AssetProtocol.protocolName, Message.Type.Reply,
+				new Field(1, "transfer", FieldType.LONG),
+				new Field(2, "offset", FieldType.LONG));
+		register(14, AssetQuery.name, AssetProtocol.protocolName, Message.Type.Request,
+				new Field(1, "asset", FieldType.STRING),
+				new Field(2, "board", FieldType.STRING),
+				new Field(3, "fetch", FieldType.BOOLEAN));
+		register(15, AssetQueryReply.name, AssetProtocol.protocolName, Message.Type.Reply,
+				new Field(1, "asset", FieldType.STRING),
+				new Field(2, "size", FieldType.LONG));
+		register(16, CursorUpdate.name, PresenceProtocol.protocolName, Message.Type.Request,
+				new Field(1, "board", FieldType.STRING),
+				new Field(2, "replica", FieldType.LONG),
+				new Field(3, "x", FieldType.LONG),
+				new Field(4, "y", FieldType.LONG));
+		register(17, PresenceFrame.name, PresenceProtocol.protocolName, Message.Type.Request,
+				new Field(1, "board", FieldType.STRING),
+				new Field(2, "version", FieldType.LONG),
+				new Field(3, "full", FieldType.BOOLEAN),
+				new Field(4, "cursors", FieldType.LONGS),
+				new Field(5, "left", FieldType.LONGS));
+		// put more message schemas here
+	}
+
+	public final int id;
+	public final String name;
+	public final String protocolName;
+	public final Message.Type type;
+	private final Field[] fields;
+
+	private MessageSchema(int id, String name, String protocolName, Message.Type type, Field[] fields) {
+		this.id=id;
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
+		this.fields=fields;
+	}
+
+	/**
+	 * Register the schema of a message.
+	 * @param id the schema id, which must be unique and positive
+	 * @param name the name of the message
+	 * @param protocolName the name of the protocol the message belongs to
+	 * @param type whether its a Request or a Reply message
+	 * @param fields the parameters of the message
+	 * @return the schema
+	 */
+	public static synchronized MessageSchema register(int id, String name, String protocolName,
+			Message.Type type, Field... fields) {
+		MessageSchema schema = new MessageSchema(id, name, protocolName, type, fields);
+		MessageSchema[] schemas = byId;
+		if(id<schemas.length && schemas[id]!=null) {
+			throw new IllegalArgumentException("schema id already registered: "+id);
+		}
+		if(id>=schemas.length) {
+			MessageSchema[] grown = new MessageSchema[Math.max(id+1, schemas.length*2)];
+			System.arraycopy(schemas, 0, grown, 0, schemas.length);
+			schemas=grown;
+		}
+		schemas[id]=schema;
+		byId=schemas;
+		byName.put(name, schema);
+		return schema;
+	}
+
+	/**
+	 * @param name the message name
+	 * @return the schema, or null if the message has none
+	 */
+	public static MessageSchema forName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @param id the schema id
+	 * @return the schema, or null if there is no schema with the id
+	 */
+	public static MessageSchema forId(int id) {
+		MessageSchema[] schemas = byId;
+		return id>=0 && id<schemas.length ? schemas[id] : null;
+	}
+
+	/**
+	 * @param key
+	 * @return the field for the parameter, or null if the schema has no such parameter
+	 */
+	public Field field(String key) {
+		for(Field field : fields) {
+			if(field.key.equals(key)) return field;
+		}
+		return null;
+	}
+
+	/**
+	 * @param id
+	 * @return the field with the id, or null if the schema has no such field
+	 */
+	public Field field(int id) {
+		for(Field field : fields) {
+			if(field.id==id) return field;
+		}
+		return null;
+	}
+}
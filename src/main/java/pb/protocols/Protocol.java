@@ -1,5 +1,8 @@
 package pb.protocols;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import pb.Endpoint;
 import pb.Manager;
 
@@ -19,6 +22,18 @@ public class Protocol {
 	 */
 	public static final String protocolName = "Protocol";
 	
+	/**
+	 * Compact integer ids, one per protocol name, handed out in the order
+	 * that protocols are registered.
+	 */
+	private static final ConcurrentHashMap<String,Integer> protocolIds = new ConcurrentHashMap<>();
+	private static final AtomicInteger nextProtocolId = new AtomicInteger();
+	
+	/**
+	 * The protocol id is used by the endpoint to index its protocol slots.
+	 */
+	public static final int protocolId = registerProtocol(protocolName);
+	
 	/**
 	 * The endpoint that is handling the protocol.
 	 */
@@ -48,6 +63,19 @@ public class Protocol {
 		
 	}
 
+	/**
+	 * Register a protocol name and return its id. Registering the same
+	 * name again returns the same id, so this may be called from anywhere
+	 * that needs the id, in any order.
+	 * @param protocolName
+	 * @return the id of the protocol, a small non-negative integer
+	 */
+	public static int registerProtocol(String protocolName) {
+		Integer id = protocolIds.get(protocolName);
+		if(id!=null) return id;
+		return protocolIds.computeIfAbsent(protocolName, (name)->nextProtocolId.getAndIncrement());
+	}
+	
 	/**
 	 * Sometimes the static string reference is not reachable, so
 	 * this method provides access.
@@ -56,4 +84,13 @@ public class Protocol {
 	public String getProtocolName() {
 		return protocolName;
 	}
+	
+	/**
+	 * Sometimes the static id reference is not reachable, so
+	 * this method provides access.
+	 * @return the id of the protocol
+	 */
+	public int getProtocolId() {
+		return protocolId;
+	}
 }
@@ -0,0 +1,51 @@
+package pb.protocols.asset;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent in reply to an offer, saying where the sender should start
+ * from: 0 for a new asset, the number of bytes already received to resume a
+ * transfer, the size of the asset if the receiver already has all of it, or
+ * -1 to refuse it.
+ * @see {@link pb.protocols.asset.AssetProtocol}
+ * @author aaron
+ *
+ */
+public class AssetAccept extends Message {
+	static final public String name = "AssetAccept";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param transfer the sender's id for the transfer
+	 * @param offset where to start sending from, or -1 to refuse
+	 */
+	public AssetAccept(long transfer, long offset) {
+		super(name,AssetProtocol.protocolName,Message.Type.Reply);
+		doc.append("transfer", transfer);
+		doc.append("offset", offset);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public AssetAccept(Document doc) throws InvalidMessage {
+		super(name,AssetProtocol.protocolName,Message.Type.Reply,doc);
+		validateLong("transfer",doc);
+		validateLong("offset",doc);
+		this.doc=doc;
+	}
+	
+	public long getTransfer() {
+		return doc.getLong("transfer");
+	}
+	
+	public long getOffset() {
+		return doc.getLong("offset");
+	}
+}
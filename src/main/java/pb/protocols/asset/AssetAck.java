@@ -0,0 +1,50 @@
+package pb.protocols.asset;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent in reply to each chunk, with the number of bytes of the asset
+ * that have been written so far, or -1 if the receiver has given up on the
+ * transfer.
+ * @see {@link pb.protocols.asset.AssetProtocol}
+ * @author aaron
+ *
+ */
+public class AssetAck extends Message {
+	static final public String name = "AssetAck";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param transfer the sender's id for the transfer
+	 * @param offset the number of bytes received, or -1 to abort
+	 */
+	public AssetAck(long transfer, long offset) {
+		super(name,AssetProtocol.protocolName,Message.Type.Reply);
+		doc.append("transfer", transfer);
+		doc.append("offset", offset);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public AssetAck(Document doc) throws InvalidMessage {
+		super(name,AssetProtocol.protocolName,Message.Type.Reply,doc);
+		validateLong("transfer",doc);
+		validateLong("offset",doc);
+		this.doc=doc;
+	}
+	
+	public long getTransfer() {
+		return doc.getLong("transfer");
+	}
+	
+	public long getOffset() {
+		return doc.getLong("offset");
+	}
+}
@@ -0,0 +1,132 @@
+package pb.protocols.asset;
+
+import java.nio.ByteBuffer;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message that carries a piece of an asset. Chunks are not JSON and not in
+ * the schema encoding: the bytes of the asset go on the wire as they are,
+ * after a fixed header, so they are never copied into a
+ * {@link pb.protocols.Document} or base64 encoded. A chunk frame is the same
+ * two byte length as any other frame, followed by:
+ * <pre>
+ * MARKER transfer(8) offset(8) bytes
+ * </pre>
+ * The sender reads the bytes from the file straight into the frame, and the
+ * receiver writes them from the frame straight to its file.
+ * @see {@link pb.protocols.asset.AssetProtocol}
+ * @author aaron
+ *
+ */
+public class AssetChunk extends Message {
+	static final public String name = "AssetChunk";
+	
+	/**
+	 * The first byte of a chunk, after the length. JSON messages always start
+	 * with '{', and schema encoded messages with {@link pb.protocols.BinaryCodec#MARKER}.
+	 */
+	public static final byte MARKER = (byte) 0xb2;
+	
+	/**
+	 * The number of bytes before the data in a frame, including the length.
+	 */
+	public static final int HEADER = 2+1+8+8;
+	
+	/**
+	 * The most data a chunk can carry.
+	 */
+	public static final int MAX_DATA = 0xffff-(HEADER-2);
+	
+	/**
+	 * The frame, when sending.
+	 */
+	private final byte[] frame;
+	
+	/**
+	 * The data, when received.
+	 */
+	private final ByteBuffer data;
+	
+	private AssetChunk(long transfer, long offset, byte[] frame, ByteBuffer data) {
+		super(name,AssetProtocol.protocolName,Message.Type.Request);
+		doc.append("transfer", transfer);
+		doc.append("offset", offset);
+		this.frame=frame;
+		this.data=data;
+	}
+	
+	/**
+	 * Make a chunk to send from a frame whose data has already been filled in,
+	 * e.g. by reading from a file into the frame after {@link #HEADER}. The
+	 * frame is used as it is, so it must not change until the chunk is sent.
+	 * @param transfer the sender's id for the transfer
+	 * @param offset the position of the data in the asset
+	 * @param frame a frame of {@link #HEADER} plus the length of the data
+	 * @return the chunk
+	 */
+	public static AssetChunk wrap(long transfer, long offset, byte[] frame) {
+		int len = frame.length-2;
+		if(len<HEADER-2 || len>0xffff) throw new IllegalArgumentException("bad chunk frame length "+frame.length);
+		ByteBuffer header = ByteBuffer.wrap(frame, 0, HEADER);
+		header.putShort((short) len);
+		header.put(MARKER);
+		header.putLong(transfer);
+		header.putLong(offset);
+		return new AssetChunk(transfer, offset, frame, null);
+	}
+	
+	/**
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the bytes, after the frame length, are a chunk
+	 */
+	public static boolean isChunk(byte[] buf, int off, int len) {
+		return len>0 && buf[off]==MARKER;
+	}
+	
+	/**
+	 * Read a chunk that has been received. The data is copied, since the
+	 * buffer is reused for the next frame.
+	 * @param buf
+	 * @param off the start of the chunk, after the frame length
+	 * @param len the length of the chunk
+	 * @return the chunk
+	 * @throws InvalidMessage if the chunk is too short or its offset is negative
+	 */
+	public static AssetChunk read(byte[] buf, int off, int len) throws InvalidMessage {
+		if(len<HEADER-2) throw new InvalidMessage();
+		ByteBuffer header = ByteBuffer.wrap(buf, off+1, HEADER-3);
+		long transfer = header.getLong();
+		long offset = header.getLong();
+		if(offset<0) throw new InvalidMessage();
+		byte[] data = new byte[len-(HEADER-2)];
+		System.arraycopy(buf, off+HEADER-2, data, 0, data.length);
+		return new AssetChunk(transfer, offset, null, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * @return the frame to send, or null for a chunk that was received
+	 */
+	@Override
+	public byte[] getFrame() {
+		return frame;
+	}
+	
+	public long getTransfer() {
+		return doc.getLong("transfer");
+	}
+	
+	public long getOffset() {
+		return doc.getLong("offset");
+	}
+	
+	/**
+	 * @return the data of a chunk that was received, or null for one being sent
+	 */
+	public ByteBuffer getData() {
+		return data;
+	}
+}
@@ -0,0 +1,57 @@
+package pb.protocols.asset;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent to offer an asset to the other endpoint, before any of it is
+ * sent.
+ * @see {@link pb.protocols.asset.AssetProtocol}
+ * @author aaron
+ *
+ */
+public class AssetOffer extends Message {
+	static final public String name = "AssetOffer";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param transfer the sender's id for the transfer
+	 * @param asset the name of the asset
+	 * @param size the size of the asset in bytes
+	 */
+	public AssetOffer(long transfer, String asset, long size) {
+		super(name,AssetProtocol.protocolName,Message.Type.Request);
+		doc.append("transfer", transfer);
+		doc.append("asset", asset);
+		doc.append("size", size);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public AssetOffer(Document doc) throws InvalidMessage {
+		super(name,AssetProtocol.protocolName,Message.Type.Request,doc);
+		validateLong("transfer",doc);
+		validateString("asset",doc);
+		validateLong("size",doc);
+		if(doc.getLong("size")<0) throw new InvalidMessage();
+		this.doc=doc;
+	}
+	
+	public long getTransfer() {
+		return doc.getLong("transfer");
+	}
+	
+	public String getAsset() {
+		return doc.getString("asset");
+	}
+	
+	public long getSize() {
+		return doc.getLong("size");
+	}
+}
@@ -0,0 +1,491 @@
+package pb.protocols.asset;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.Manager;
+import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.Message;
+import pb.protocols.Protocol;
+
+/**
+ * Transfers assets, e.g. images and PDFs pasted onto a board, that are too
+ * big for a frame and are not text. Either endpoint can send. The sender
+ * offers the asset with an {@link pb.protocols.asset.AssetOffer}, and the
+ * receiver's manager chooses the file to write it to; if the file already
+ * holds part of the asset, the {@link pb.protocols.asset.AssetAccept} says
+ * how much, and the transfer resumes from there. The asset is then sent as
+ * {@link pb.protocols.asset.AssetChunk}s of raw bytes, each acked with an
+ * {@link pb.protocols.asset.AssetAck}.
+ * <br/>
+ * Assets are named by the SHA-256 hash of their contents. Before uploading,
+ * a client asks with an {@link pb.protocols.asset.AssetQuery} whether the
+ * server already has the asset, and only uploads it if not. The same query
+ * downloads an asset, which the server may send from memory.
+ * <br/>
+ * At most {@link #WINDOW} chunks are unacked at a time. Chunks are read from
+ * a {@link java.nio.channels.FileChannel} into a frame and written from the
+ * frame to a FileChannel at the other end, so at most a window of the asset
+ * is ever in memory. Bounding the window also bounds how much asset data is
+ * queued on the connection ahead of a drawing message, so transfers share
+ * the connection with the drawing traffic rather than blocking it.
+ *
+ * @see {@link pb.Manager#assetOffered(Endpoint, String, long)}
+ * @see {@link pb.Manager#assetReceived(Endpoint, String, Path)}
+ * @see {@link pb.Manager#assetSent(Endpoint, String, boolean)}
+ * @see {@link pb.server.store.AssetStore}
+ * @author aaron
+ *
+ */
+public class AssetProtocol extends Protocol implements IRequestReplyProtocol {
+	private static Logger log = Logger.getLogger(AssetProtocol.class.getName());
+
+	/**
+	 * The unique name of the protocol.
+	 */
+	public static final String protocolName="AssetProtocol";
+
+	/**
+	 * The id of the protocol.
+	 */
+	public static final int protocolId=Protocol.registerProtocol(protocolName);
+
+	/**
+	 * The amount of data in a chunk, in bytes.
+	 */
+	public static final int CHUNK_SIZE = 16*1024;
+
+	/**
+	 * The most chunks that can be unacked, per transfer.
+	 */
+	public static final int WINDOW = 4;
+
+	/**
+	 * An asset being sent.
+	 */
+	private static final class Outgoing {
+		final long transfer;
+		final String asset;
+
+		/**
+		 * Where the asset is read from, a file or, for an asset that is in
+		 * memory, a buffer.
+		 */
+		final FileChannel channel;
+		final ByteBuffer data;
+		final long size;
+
+		/**
+		 * Reused for every full sized chunk, since a chunk has been written
+		 * to the connection by the time it is sent.
+		 */
+		final byte[] frame = new byte[AssetChunk.HEADER+CHUNK_SIZE];
+
+		/**
+		 * The bytes sent and the bytes acked.
+		 */
+		long sent, acked;
+
+		Outgoing(long transfer, String asset, FileChannel channel, ByteBuffer data, long size) {
+			this.transfer=transfer;
+			this.asset=asset;
+			this.channel=channel;
+			this.data=data;
+			this.size=size;
+		}
+	}
+
+	/**
+	 * An asset being received.
+	 */
+	private static final class Incoming {
+		final String asset;
+		final Path file;
+		final FileChannel channel;
+		final long size;
+		long received;
+
+		Incoming(String asset, Path file, FileChannel channel, long size, long received) {
+			this.asset=asset;
+			this.file=file;
+			this.channel=channel;
+			this.size=size;
+			this.received=received;
+		}
+	}
+
+	private final AtomicLong nextTransfer = new AtomicLong();
+
+	/**
+	 * The transfers this end is sending, by their id.
+	 */
+	private final ConcurrentHashMap<Long,Outgoing> outgoing = new ConcurrentHashMap<>();
+
+	/**
+	 * The transfers this end is receiving, by the sender's id.
+	 */
+	private final ConcurrentHashMap<Long,Incoming> incoming = new ConcurrentHashMap<>();
+
+	/**
+	 * @param name
+	 * @return true if the name is a SHA-256 hash in lower case hex, i.e. can
+	 * be the name of an asset that is shared through the server
+	 */
+	public static boolean isHash(String name) {
+		if(name.length()!=64) return false;
+		for(int i=0;i<64;i++) {
+			char c = name.charAt(i);
+			if((c<'0' || c>'9') && (c<'a' || c>'f')) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param file
+	 * @return the SHA-256 hash of the contents of the file, in lower case hex
+	 * @throws IOException
+	 */
+	public static String hash(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(64*1024);
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while(channel.read(buf)>=0) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+		}
+		StringBuilder hex = new StringBuilder(64);
+		for(byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Initialise the protocol with an endpoint and manager.
+	 * @param endpoint
+	 * @param manager
+	 */
+	public AssetProtocol(Endpoint endpoint, Manager manager) {
+		super(endpoint,manager);
+	}
+
+	/**
+	 * @return the name of the protocol.
+	 */
+	@Override
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 * @return the id of the protocol.
+	 */
+	@Override
+	public int getProtocolId() {
+		return protocolId;
+	}
+
+	/**
+	 * Close the files of the transfers that have not finished. What has
+	 * been received stays in the files, so the transfers can be resumed.
+	 */
+	@Override
+	public void stopProtocol() {
+		for(Outgoing out : outgoing.values()) {
+			if(out.channel!=null) close(out.channel);
+			manager.assetSent(endpoint, out.asset, false);
+		}
+		outgoing.clear();
+		for(Long transfer : incoming.keySet()) {
+			Incoming in = incoming.remove(transfer);
+			if(in!=null) abandon(in);
+		}
+	}
+
+	/*
+	 * Interface methods
+	 */
+
+	/**
+	 * Nothing is sent until there is an asset.
+	 */
+	@Override
+	public void startAsClient() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Nothing is sent until there is an asset.
+	 */
+	@Override
+	public void startAsServer() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Offer an asset to the other endpoint, and send it if it is accepted.
+	 * The manager is told when the transfer has finished.
+	 * @param asset the name of the asset
+	 * @param file the file to send it from
+	 * @throws IOException if the file cannot be opened
+	 * @throws EndpointUnavailable
+	 */
+	public void sendAsset(String asset, Path file) throws IOException, EndpointUnavailable {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			offer(new Outgoing(nextTransfer.incrementAndGet(), asset, channel, null, channel.size()));
+		} catch (EndpointUnavailable e) {
+			close(channel);
+			throw e;
+		}
+	}
+
+	/**
+	 * Offer an asset that is in memory to the other endpoint, and send it if
+	 * it is accepted.
+	 * @param asset the name of the asset
+	 * @param data the contents of the asset, from its position to its limit,
+	 * which must not change while it is being sent
+	 * @throws EndpointUnavailable
+	 */
+	public void sendAsset(String asset, ByteBuffer data) throws EndpointUnavailable {
+		data = data.slice();
+		offer(new Outgoing(nextTransfer.incrementAndGet(), asset, null, data, data.remaining()));
+	}
+
+	private void offer(Outgoing out) throws EndpointUnavailable {
+		outgoing.put(out.transfer, out);
+		try {
+			sendRequest(new AssetOffer(out.transfer, out.asset, out.size));
+		} catch (EndpointUnavailable e) {
+			outgoing.remove(out.transfer);
+			throw e;
+		}
+	}
+
+	/**
+	 * Ask the server whether it has an asset. The manager is told the answer.
+	 * @param asset the hash of the asset
+	 * @param board the board the asset is being used on, or null if it is
+	 * only being fetched
+	 * @param fetch whether the server should send the asset if it has it
+	 * @throws EndpointUnavailable
+	 * @see {@link pb.Manager#assetQueryAnswered(Endpoint, String, long)}
+	 */
+	public void queryAsset(String asset, String board, boolean fetch) throws EndpointUnavailable {
+		sendRequest(new AssetQuery(asset, board, fetch));
+	}
+
+	/**
+	 * Just send a request, nothing special.
+	 * @param msg
+	 */
+	@Override
+	public void sendRequest(Message msg) throws EndpointUnavailable {
+		endpoint.send(msg);
+	}
+
+	/**
+	 * On the sending end, an offer has been accepted or a chunk acked, so
+	 * send more of the asset.
+	 * @param msg
+	 */
+	@Override
+	public void receiveReply(Message msg) throws EndpointUnavailable {
+		long transfer, offset;
+		if(msg instanceof AssetQueryReply) {
+			AssetQueryReply reply = (AssetQueryReply) msg;
+			manager.assetQueryAnswered(endpoint, reply.getAsset(), reply.getSize());
+			return;
+		} else if(msg instanceof AssetAccept) {
+			transfer = ((AssetAccept)msg).getTransfer();
+			offset = ((AssetAccept)msg).getOffset();
+		} else if(msg instanceof AssetAck) {
+			transfer = ((AssetAck)msg).getTransfer();
+			offset = ((AssetAck)msg).getOffset();
+		} else {
+			return;
+		}
+		Outgoing out = outgoing.get(transfer);
+		if(out==null) return;
+		synchronized(out) {
+			if(offset<0) {
+				log.info("asset "+out.asset+" was refused by "+endpoint.getOtherEndpointId());
+				finish(out, false);
+				return;
+			}
+			if(offset>out.size || (msg instanceof AssetAck && (offset<out.acked || offset>out.sent))) {
+				manager.protocolViolation(endpoint, this);
+				return;
+			}
+			if(msg instanceof AssetAccept) out.sent=offset;
+			out.acked=offset;
+			if(out.acked==out.size) {
+				finish(out, true);
+				return;
+			}
+			try {
+				pump(out);
+			} catch (IOException e) {
+				log.warning("could not read asset "+out.asset+": "+e.getMessage());
+				// the receiver keeps what it has, to resume from
+				finish(out, false);
+			}
+		}
+	}
+
+	/**
+	 * Send chunks until the window is full or the asset has all been sent.
+	 */
+	private void pump(Outgoing out) throws IOException, EndpointUnavailable {
+		while(out.sent<out.size && out.sent-out.acked<(long) WINDOW*CHUNK_SIZE) {
+			int n = (int) Math.min(CHUNK_SIZE, out.size-out.sent);
+			byte[] frame = n==CHUNK_SIZE ? out.frame : new byte[AssetChunk.HEADER+n];
+			if(out.data!=null) {
+				ByteBuffer data = out.data.duplicate();
+				data.position((int) out.sent);
+				data.get(frame, AssetChunk.HEADER, n);
+			} else {
+				ByteBuffer data = ByteBuffer.wrap(frame, AssetChunk.HEADER, n);
+				long position = out.sent;
+				while(data.hasRemaining()) {
+					int read = out.channel.read(data, position);
+					if(read<0) throw new IOException("asset is shorter than when it was offered");
+					position+=read;
+				}
+			}
+			sendRequest(AssetChunk.wrap(out.transfer, out.sent, frame));
+			out.sent+=n;
+		}
+	}
+
+	private void finish(Outgoing out, boolean complete) {
+		if(outgoing.remove(out.transfer)==null) return;
+		if(out.channel!=null) close(out.channel);
+		manager.assetSent(endpoint, out.asset, complete);
+	}
+
+	/**
+	 * On the receiving end, ask the manager where to put an offered asset, or
+	 * write a chunk of it. On the server, answer a query.
+	 * @param msg
+	 */
+	@Override
+	public void receiveRequest(Message msg) throws EndpointUnavailable {
+		if(msg instanceof AssetQuery) {
+			AssetQuery query = (AssetQuery) msg;
+			long size = manager.assetQueried(endpoint, query.getAsset(), query.getBoard());
+			sendReply(new AssetQueryReply(query.getAsset(), size));
+			if(size>=0 && query.getFetch()) manager.assetFetched(endpoint, query.getAsset(), this);
+		} else if(msg instanceof AssetOffer) {
+			AssetOffer offer = (AssetOffer) msg;
+			sendReply(new AssetAccept(offer.getTransfer(), accept(offer)));
+		} else if(msg instanceof AssetChunk) {
+			AssetChunk chunk = (AssetChunk) msg;
+			Incoming in = incoming.get(chunk.getTransfer());
+			if(in==null) return;
+			if(chunk.getOffset()!=in.received || in.received+chunk.getData().remaining()>in.size) {
+				manager.protocolViolation(endpoint, this);
+				return;
+			}
+			try {
+				ByteBuffer data = chunk.getData();
+				while(data.hasRemaining()) in.received+=in.channel.write(data, in.received);
+			} catch (IOException e) {
+				log.warning("could not write asset "+in.asset+": "+e.getMessage());
+				if(incoming.remove(chunk.getTransfer(), in)) abandon(in);
+				sendReply(new AssetAck(chunk.getTransfer(), -1));
+				return;
+			}
+			sendReply(new AssetAck(chunk.getTransfer(), in.received));
+			if(in.received==in.size && incoming.remove(chunk.getTransfer(), in)) {
+				// closed before it is checked, so nothing can write to it after
+				close(in.channel);
+				manager.assetReceived(endpoint, in.asset, in.file);
+			}
+		}
+	}
+
+	/**
+	 * @return where the sender should start from, or -1 to refuse the asset
+	 */
+	private long accept(AssetOffer offer) {
+		Path file = manager.assetOffered(endpoint, offer.getAsset(), offer.getSize());
+		if(file==null) return -1;
+		FileChannel channel = null;
+		long received;
+		try {
+			// a file that already holds all of the asset, e.g. one the
+			// receiver has kept, is never opened for writing
+			if(Files.exists(file) && Files.size(file)==offer.getSize()) {
+				manager.assetReceived(endpoint, offer.getAsset(), file);
+				return offer.getSize();
+			}
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			received = channel.size();
+			if(received>offer.getSize()) {
+				// not a part of this asset
+				channel.truncate(0);
+				received = 0;
+			}
+		} catch (IOException e) {
+			log.warning("could not open "+file+" for asset "+offer.getAsset()+": "+e.getMessage());
+			if(channel!=null) close(channel);
+			manager.assetAbandoned(endpoint, offer.getAsset(), file);
+			return -1;
+		}
+		if(received==offer.getSize()) {
+			close(channel);
+			manager.assetReceived(endpoint, offer.getAsset(), file);
+		} else {
+			Incoming old = incoming.put(offer.getTransfer(),
+					new Incoming(offer.getAsset(), file, channel, offer.getSize(), received));
+			if(old!=null) abandon(old);
+		}
+		return received;
+	}
+
+	/**
+	 * Close the file of a transfer that will not finish, and tell the manager.
+	 */
+	private void abandon(Incoming in) {
+		close(in.channel);
+		manager.assetAbandoned(endpoint, in.asset, in.file);
+	}
+
+	/**
+	 * Just send a reply, nothing special to do.
+	 * @param msg
+	 */
+	@Override
+	public void sendReply(Message msg) throws EndpointUnavailable {
+		endpoint.send(msg);
+	}
+
+	private static void close(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("asset file did not close properly: "+e.getMessage());
+		}
+	}
+}
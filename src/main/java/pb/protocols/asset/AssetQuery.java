@@ -0,0 +1,62 @@
+package pb.protocols.asset;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent by the client to ask whether the server has an asset, before
+ * uploading it or to download it. Assets are named by the SHA-256 hash of
+ * their contents, so an asset the server already has is never uploaded
+ * again.
+ * @see {@link pb.protocols.asset.AssetProtocol}
+ * @author aaron
+ *
+ */
+public class AssetQuery extends Message {
+	static final public String name = "AssetQuery";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param asset the hash of the asset
+	 * @param board the board the asset is being used on, or null if it is
+	 * only being fetched
+	 * @param fetch whether the server should send the asset if it has it
+	 */
+	public AssetQuery(String asset, String board, boolean fetch) {
+		super(name,AssetProtocol.protocolName,Message.Type.Request);
+		doc.append("asset", asset);
+		if(board!=null) doc.append("board", board);
+		doc.append("fetch", fetch);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public AssetQuery(Document doc) throws InvalidMessage {
+		super(name,AssetProtocol.protocolName,Message.Type.Request,doc);
+		validateString("asset",doc);
+		if(doc.containsKey("board")) validateString("board",doc);
+		if(!(doc.get("fetch") instanceof Boolean)) throw new InvalidMessage();
+		this.doc=doc;
+	}
+	
+	public String getAsset() {
+		return doc.getString("asset");
+	}
+	
+	/**
+	 * @return the board the asset is being used on, or null
+	 */
+	public String getBoard() {
+		return doc.containsKey("board") ? doc.getString("board") : null;
+	}
+	
+	public boolean getFetch() {
+		return doc.getBoolean("fetch");
+	}
+}
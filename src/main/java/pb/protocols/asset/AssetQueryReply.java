@@ -0,0 +1,49 @@
+package pb.protocols.asset;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent in reply to a query, with the size of the asset, or -1 if
+ * the server does not have it.
+ * @see {@link pb.protocols.asset.AssetProtocol}
+ * @author aaron
+ *
+ */
+public class AssetQueryReply extends Message {
+	static final public String name = "AssetQueryReply";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param asset the hash of the asset
+	 * @param size the size of the asset, or -1 if the server does not have it
+	 */
+	public AssetQueryReply(String asset, long size) {
+		super(name,AssetProtocol.protocolName,Message.Type.Reply);
+		doc.append("asset", asset);
+		doc.append("size", size);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public AssetQueryReply(Document doc) throws InvalidMessage {
+		super(name,AssetProtocol.protocolName,Message.Type.Reply,doc);
+		validateString("asset",doc);
+		validateLong("size",doc);
+		this.doc=doc;
+	}
+	
+	public String getAsset() {
+		return doc.getString("asset");
+	}
+	
+	public long getSize() {
+		return doc.getLong("size");
+	}
+}
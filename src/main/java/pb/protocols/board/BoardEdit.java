@@ -0,0 +1,133 @@
+package pb.protocols.board;
+
+import pb.board.BoardOp;
+import pb.board.Shape;
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent by a client with an edit it has already applied to its own
+ * copy of the board. There is no reply; the server merges the edit and
+ * passes it on to the clients that can see it.
+ * @see {@link pb.protocols.board.BoardProtocol}
+ * @author aaron
+ *
+ */
+public class BoardEdit extends Message {
+	static final public String name = "BoardEdit";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param op the edit, which must be versioned
+	 */
+	public BoardEdit(BoardOp op) {
+		super(name,BoardProtocol.protocolName,Message.Type.Request);
+		appendOp(doc, op);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public BoardEdit(Document doc) throws InvalidMessage {
+		super(name,BoardProtocol.protocolName,Message.Type.Request,doc);
+		validateOp(doc);
+		this.doc=doc;
+	}
+	
+	/**
+	 * @return the edit
+	 */
+	public BoardOp getOp() {
+		return toOp(doc);
+	}
+	
+	/*
+	 * Board operations as message parameters, shared with the other
+	 * messages that carry them.
+	 */
+	
+	/**
+	 * Add the parameters for an operation to a doc.
+	 * @param doc
+	 * @param op
+	 */
+	public static void appendOp(Document doc, BoardOp op) {
+		doc.append("board", op.board);
+		doc.append("op", op.type.toString());
+		doc.append("id", op.shapeId);
+		doc.append("clock", op.clock);
+		doc.append("replica", op.replica);
+		if(op.shape!=null) {
+			doc.append("color", op.shape.color);
+			doc.append("width", op.shape.width);
+			int[] points = op.shape.getPoints();
+			long[] values = new long[points.length];
+			for(int i=0;i<points.length;i++) values[i]=points[i];
+			doc.append("points", values);
+		}
+		if(op.type==BoardOp.Type.APPEND) doc.append("offset", op.offset);
+	}
+	
+	/**
+	 * Check the parameters for an operation. The version is optional.
+	 * @param doc
+	 * @throws InvalidMessage
+	 */
+	public static void validateOp(Document doc) throws InvalidMessage {
+		validateString("board",doc);
+		validateString("op",doc);
+		validateLong("id",doc);
+		if(doc.containsKey("clock")) validateLong("clock",doc);
+		if(doc.containsKey("replica")) validateLong("replica",doc);
+		try {
+			BoardOp.Type.valueOf(doc.getString("op"));
+		} catch (IllegalArgumentException e) {
+			throw new InvalidMessage();
+		}
+		String type = doc.getString("op");
+		if(type.equals(BoardOp.Type.APPEND.toString())) {
+			validateLong("offset",doc);
+			if(doc.getLong("offset")<0 || doc.getLong("offset")>Integer.MAX_VALUE) throw new InvalidMessage();
+		}
+		if(type.equals(BoardOp.Type.PUT.toString()) || type.equals(BoardOp.Type.APPEND.toString())) {
+			validateLong("color",doc);
+			validateLong("width",doc);
+			validateLongArray("points",doc);
+			long[] points = doc.getLongArray("points");
+			if(points.length<2 || points.length%2!=0) throw new InvalidMessage();
+		}
+	}
+	
+	/**
+	 * @param doc a doc that has passed {@link #validateOp(Document)}
+	 * @return the operation
+	 */
+	public static BoardOp toOp(Document doc) {
+		String board = doc.getString("board");
+		long clock = doc.containsKey("clock") ? doc.getLong("clock") : 0;
+		int replica = doc.containsKey("replica") ? doc.getInteger("replica") : 0;
+		switch(BoardOp.Type.valueOf(doc.getString("op"))) {
+		case PUT:
+			return BoardOp.put(board, toShape(doc, clock, replica));
+		case APPEND:
+			return BoardOp.append(board, toShape(doc, clock, replica), doc.getInteger("offset"));
+		case REMOVE:
+			return BoardOp.remove(board, doc.getLong("id"), clock, replica);
+		default:
+			return BoardOp.clear(board, clock, replica);
+		}
+	}
+	
+	private static Shape toShape(Document doc, long clock, int replica) {
+		long[] values = doc.getLongArray("points");
+		int[] points = new int[values.length];
+		for(int i=0;i<values.length;i++) points[i]=(int) values[i];
+		return new Shape(doc.getLong("id"), clock, replica,
+				doc.getInteger("color"), doc.getInteger("width"), points);
+	}
+}
@@ -0,0 +1,178 @@
+package pb.protocols.board;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.Manager;
+import pb.Trace;
+import pb.board.BoardOp;
+import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.Message;
+import pb.protocols.Protocol;
+
+/**
+ * Carries edits from a client to the server without waiting for a reply. The
+ * board is a CRDT ({@link pb.board.ShapeMap}), so the client applies its own
+ * edit straight away, versioned with its {@link pb.board.HybridClock}, and the
+ * server only merges it and passes it on through the
+ * {@link pb.protocols.viewport.ViewportProtocol}. Replicas that see the same
+ * edits in different orders still end up with the same board.
+ *
+ * @see {@link pb.Manager#boardUpdated(Endpoint, BoardOp)}
+ * @see {@link pb.protocols.board.BoardEdit}
+ * @author aaron
+ *
+ */
+public class BoardProtocol extends Protocol implements IRequestReplyProtocol {
+
+	/**
+	 * The unique name of the protocol.
+	 */
+	public static final String protocolName="BoardProtocol";
+
+	/**
+	 * The id of the protocol.
+	 */
+	public static final int protocolId=Protocol.registerProtocol(protocolName);
+
+	/**
+	 * Initialise the protocol with an endpoint and manager.
+	 * @param endpoint
+	 * @param manager
+	 */
+	public BoardProtocol(Endpoint endpoint, Manager manager) {
+		super(endpoint,manager);
+	}
+
+	/**
+	 * @return the name of the protocol.
+	 */
+	@Override
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 * @return the id of the protocol.
+	 */
+	@Override
+	public int getProtocolId() {
+		return protocolId;
+	}
+
+	/*
+	 * Interface methods
+	 */
+
+	/**
+	 * Nothing to send until there is an edit.
+	 */
+	@Override
+	public void startAsClient() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Nothing to do until the client sends an edit.
+	 */
+	@Override
+	public void startAsServer() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Send an edit that has been applied locally.
+	 * @param op
+	 * @throws EndpointUnavailable
+	 */
+	public void sendEdit(BoardOp op) throws EndpointUnavailable {
+		sendRequest(new BoardEdit(op));
+	}
+	
+	/**
+	 * Send an edit that has been applied locally, traced from when it was
+	 * started if the offset of the server's clock is known.
+	 * @param op
+	 * @param origin when the edit was started, in microseconds on this
+	 * endpoint's clock
+	 * @throws EndpointUnavailable
+	 * @see {@link pb.Trace}
+	 */
+	public void sendEdit(BoardOp op, long origin) throws EndpointUnavailable {
+		sendRequest(traced(op, origin));
+	}
+	
+	/**
+	 * As {@link #sendEdit(BoardOp)}, but without blocking: the edit is not
+	 * sent if the server is not keeping up.
+	 * @param op
+	 * @return whether the edit was sent
+	 * @throws EndpointUnavailable
+	 * @see {@link pb.Endpoint#trySend(Message)}
+	 */
+	public boolean trySendEdit(BoardOp op) throws EndpointUnavailable {
+		return endpoint.trySend(new BoardEdit(op));
+	}
+	
+	/**
+	 * As {@link #sendEdit(BoardOp, long)}, but without blocking: the edit is
+	 * not sent if the server is not keeping up.
+	 * @param op
+	 * @param origin when the edit was started, in microseconds on this
+	 * endpoint's clock
+	 * @return whether the edit was sent
+	 * @throws EndpointUnavailable
+	 * @see {@link pb.Endpoint#trySend(Message)}
+	 */
+	public boolean trySendEdit(BoardOp op, long origin) throws EndpointUnavailable {
+		return endpoint.trySend(traced(op, origin));
+	}
+	
+	private BoardEdit traced(BoardOp op, long origin) {
+		BoardEdit edit = new BoardEdit(op);
+		if(endpoint.hasClock()) {
+			long offset = endpoint.getClockOffset();
+			Trace trace = new Trace(origin+offset);
+			trace.stamp(Trace.now()+offset);
+			edit.setTrace(trace);
+		}
+		return edit;
+	}
+
+	/**
+	 * Just send a request, nothing special.
+	 * @param msg
+	 */
+	@Override
+	public void sendRequest(Message msg) throws EndpointUnavailable {
+		endpoint.send(msg);
+	}
+
+	/**
+	 * There are no replies in this protocol.
+	 * @param msg
+	 */
+	@Override
+	public void receiveReply(Message msg) {
+		manager.protocolViolation(endpoint,this);
+	}
+
+	/**
+	 * Pass the edit to the manager to merge.
+	 * @param msg
+	 */
+	@Override
+	public void receiveRequest(Message msg) throws EndpointUnavailable {
+		if(msg instanceof BoardEdit) {
+			manager.boardUpdated(endpoint, ((BoardEdit)msg).getOp(), msg.getTrace());
+		}
+	}
+
+	/**
+	 * There are no replies in this protocol.
+	 * @param msg
+	 */
+	@Override
+	public void sendReply(Message msg) throws EndpointUnavailable {
+		endpoint.send(msg);
+	}
+}
@@ -3,29 +3,50 @@ package pb.protocols.keepalive;
 import pb.Endpoint;
 import pb.EndpointUnavailable;
 import pb.Manager;
+import pb.Trace;
 import pb.Utils;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
 
+import java.util.TimerTask;
 import java.util.logging.Logger;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every 20 seconds using
+ * KeepAlive request to the server every interval using
  * {@link pb.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
  * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within 20 seconds (i.e. at the next time
- * it is to send the next KeepAlive request) it will assume the server is dead
- * and signal its manager using
+ * client does not receive the response, or anything else from the server,
+ * within a few round trips of sending the request, it will assume the server
+ * is dead and signal its manager using
  * {@link pb.Manager#endpointTimedOut(Endpoint, Protocol)}. If the server does
- * not receive a KeepAlive request at least every 20 seconds (again using
- * {@link pb.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to 20 seconds before it assumes the client is dead. The protocol stops
- * when a timeout occurs.
+ * not receive a KeepAlive request, or anything else, within twice the
+ * interval, it will assume the client is dead and signal its manager. Upon
+ * initialisation, the client should send the KeepAlive request immediately,
+ * whereas the server will wait before it assumes the client is dead. The
+ * protocol stops when a timeout occurs.
+ * <br/>
+ * The interval is negotiated: the client asks for one in each request, and
+ * the server grants it in the reply, stretched if the server is loaded (see
+ * {@link pb.Manager#keepAliveInterval(Endpoint, long)}). The client asks for
+ * 20 seconds while the connection is in use. Once there has been no other
+ * traffic either way for a minute, each end suspends its endpoint, which
+ * releases its buffers, and the client asks for 2 minutes. The first message
+ * either way resumes the endpoint, and the client sends a request straight
+ * away to go back to the shorter interval.
+ * <br/>
+ * The request carries the time it was sent, and the reply carries that back
+ * with the times the server received the request and sent the reply, so
+ * every exchange measures the round trip and the offset of the server's
+ * clock, as NTP does; the endpoint smooths them into estimates that it uses
+ * to trace messages. The request carries the client's estimate of the round
+ * trip, so that the server's endpoint has it too. A few requests are sent
+ * straight away when the client starts, to measure the round trip a few times
+ * before the keep alives take over. A request without the times, from an
+ * older client, gets a reply without them, and the server expects it every
+ * 20 seconds.
  *
  * @author aaron
  * @see {@link pb.Manager}
@@ -38,16 +59,72 @@ import java.util.logging.Logger;
  */
 public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol {
     private static Logger log = Logger.getLogger(KeepAliveProtocol.class.getName());
-    private static final int TWENTY_SECONDS = 20000;
+
+    /**
+     * The interval the client asks for while the connection is in use, in ms.
+     */
+    public static final long ACTIVE_INTERVAL = 20000;
+
+    /**
+     * The interval the client asks for while the connection is suspended, in ms.
+     */
+    public static final long SUSPENDED_INTERVAL = 120000;
+
+    /**
+     * How long a connection goes without traffic, other than keep alives, before it is suspended, in ms.
+     */
+    public static final long IDLE_AFTER = 60000;
+
+    /**
+     * The bounds of the interval the server grants, in ms.
+     */
+    public static final long MIN_INTERVAL = 1000;
+    public static final long MAX_INTERVAL = 300000;
+
+    /**
+     * The server waits this many intervals for the client before it assumes the client is dead.
+     */
+    private static final int TIMEOUT_INTERVALS = 2;
+
+    /**
+     * The client waits this many round trips for a reply, but at least {@link #MIN_REPLY_WAIT}.
+     */
+    private static final int REPLY_RTTS = 10;
+    private static final long MIN_REPLY_WAIT = 5000;
+
+    /**
+     * The number of round trips measured straight away when the client starts, so that the estimates are good
+     * before the first edit is traced rather than after some minutes of keep alives.
+     */
+    private static final int INITIAL_PROBES = 4;
+
     private volatile boolean receivedRequest = false;
     private volatile boolean recievedReply = false;
 
+    /*
+     * The schedule, guarded by this.
+     */
+    private boolean client = false;
+    private boolean stopped = false;
+    private long interval = ACTIVE_INTERVAL;
+    private TimerTask timer = null;
+
+    /*
+     * When the connection was last seen in use, from the activity of the endpoint.
+     */
+    private int lastActivity = 0;
+    private long activeAt = System.currentTimeMillis();
 
     /**
      * Name of this protocol.
      */
     public static final String protocolName = "KeepAliveProtocol";
 
+    /**
+     * Id of this protocol.
+     */
+    public static final int protocolId = Protocol.registerProtocol(protocolName);
+
     /**
      * Initialise the protocol with an endopint and a manager.
      *
@@ -67,83 +144,213 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
     }
 
     /**
-     * If the protocol is stopped, then it reports this to the logger.
+     * @return the id of the protocol
+     */
+    @Override
+    public int getProtocolId() {
+        return protocolId;
+    }
+
+    /**
+     * If the protocol is stopped, then it reports this to the logger, and stops its timer.
      */
     @Override
     public void stopProtocol() {
+        synchronized (this) {
+            stopped = true;
+            if (timer != null) timer.cancel();
+            timer = null;
+        }
         log.info("keep alive protocol stopped");
     }
 
+    /**
+     * @return the interval in use, in ms
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
     /*
      * Interface methods
      */
 
     /**
-     * To start as the server, we check to see if the client has sent a message after 20 seconds
+     * To start as the server, we check to see if the client has sent a message within the interval
      */
     public void startAsServer() {
         checkClientTimeout();
     }
 
     /**
-     * Checks to see if a message has been called after 20 seconds of waiting. If it hasn't it reports the endpoint and
-     * the protocol to the manager. If it has, calls itself to wait another 20 seconds and check again. This occurs
-     * until the client is dead and unable to send a KeepAliveRequest
+     * Waits for the client for twice the interval. If nothing has been received from the client by then, it reports
+     * the endpoint and the protocol to the manager. If it has, calls itself to wait again. This occurs until the
+     * client is dead and unable to send a KeepAliveRequest. Any check that is already waiting is cancelled.
      */
-    public void checkClientTimeout() {
-        Utils.getInstance().setTimeout(() -> {
-            if (!receivedRequest) {
+    public synchronized void checkClientTimeout() {
+        if (stopped) return;
+        if (timer != null) timer.cancel();
+        long received = endpoint.getReceived();
+        timer = Utils.getInstance().setTimeout(() -> {
+            synchronized (this) {
+                if (stopped) return;
+            }
+            if (!receivedRequest && endpoint.getReceived() == received) {
                 manager.endpointTimedOut(endpoint, this);
             } else {
                 receivedRequest = false;
+                checkIdle();
                 checkClientTimeout();
             }
-        }, TWENTY_SECONDS);
+        }, interval * TIMEOUT_INTERVALS + MIN_REPLY_WAIT);
     }
 
     /**
-     * To start as the client we send a KeepAliveRequest to the server. We need to send the request every 20 seconds.
+     * To start as the client we send a KeepAliveRequest to the server, and then another every interval.
      */
     public void startAsClient() throws EndpointUnavailable {
-        sendRequest(new KeepAliveRequest());
+        synchronized (this) {
+            client = true;
+        }
+        sendRequest(timedRequest());
+    }
+
+    /**
+     * @return a request with the time it is sent, the client's estimate of the round trip and the interval it
+     * asks for
+     */
+    private KeepAliveRequest timedRequest() {
+        return new KeepAliveRequest(Trace.now(), endpoint.getRtt(),
+                endpoint.isSuspended() ? SUSPENDED_INTERVAL : ACTIVE_INTERVAL);
+    }
+
+    /**
+     * @return how long the client waits for a reply, in ms
+     */
+    private long replyWait() {
+        long rtt = endpoint.getRtt();
+        long wait = rtt < 0 ? MIN_REPLY_WAIT : Math.max(MIN_REPLY_WAIT, REPLY_RTTS * rtt / 1000);
+        return Math.min(wait, interval);
     }
 
     /**
      * @param msg: A KeepAliveRequest to be sent to the server
-     * Sends the KeepAliveRequest message to the server. It then waits 20 seconds, checks to see that it has received
-     * a reply from the server before calling itself to send another request through. This occurs until either the
-     * server is dead and unable to respond.
+     * Sends the KeepAliveRequest message to the server. It then waits a few round trips, checks to see that it has
+     * received a reply, or anything else, from the server, and waits for the rest of the interval before calling
+     * itself to send another request through. This occurs until either the server is dead and unable to respond.
      */
     @Override
     public void sendRequest(Message msg) throws EndpointUnavailable {
+        long received = endpoint.getReceived();
         // Send the message to the server
         endpoint.send(msg);
-        Utils.getInstance().setTimeout(() -> {
-            try {
-                // if the client hasn't received a reply from the server then report to manager
-                if (!recievedReply) {
-                    manager.endpointTimedOut(endpoint, this);
-                } else {
-                    // Server replied so we can send another request to the server
-                    recievedReply = false;
-                    sendRequest(new KeepAliveRequest());
+        synchronized (this) {
+            if (stopped) return;
+            if (timer != null) timer.cancel();
+            recievedReply = false;
+            long wait = replyWait();
+            timer = Utils.getInstance().setTimeout(() -> replyDue(received, wait), wait);
+        }
+    }
+
+    private void replyDue(long received, long waited) {
+        synchronized (this) {
+            if (stopped) return;
+        }
+        // if the client hasn't heard from the server then report to manager
+        if (!recievedReply && endpoint.getReceived() == received) {
+            manager.endpointTimedOut(endpoint, this);
+            return;
+        }
+        checkIdle();
+        synchronized (this) {
+            if (stopped) return;
+            // Server replied so we can send another request to the server when the interval is up
+            timer = Utils.getInstance().setTimeout(() -> {
+                try {
+                    sendRequest(timedRequest());
+                } catch (EndpointUnavailable e) {
+                    log.severe("endpoint unavailable");
                 }
-            } catch (EndpointUnavailable e) {
-                log.severe("endpoint unavailable");
+            }, Math.max(0, interval - waited));
+        }
+    }
+
+    /**
+     * Suspend the endpoint if there has been no traffic but keep alives for {@link #IDLE_AFTER}.
+     */
+    private void checkIdle() {
+        checkIdle(false);
+    }
+
+    /**
+     * @param reported whether the other end has said the connection is idle, in which case it is suspended unless
+     * there has been traffic since it was last checked
+     */
+    private void checkIdle(boolean reported) {
+        int activity = endpoint.getActivity();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (activity != lastActivity) {
+                lastActivity = activity;
+                activeAt = now;
+                return;
             }
+            if (!reported && now - activeAt < IDLE_AFTER) return;
+        }
+        if (!endpoint.isSuspended()) endpoint.suspendIdle();
+    }
 
-        }, TWENTY_SECONDS);
+    /**
+     * The endpoint has been resumed by traffic. The client sends a request straight away, to go back to the
+     * shorter interval; the server waits for it.
+     */
+    public void resumed() {
+        synchronized (this) {
+            if (stopped || !client) return;
+            if (timer != null) timer.cancel();
+            // not on the thread that resumed the endpoint, which may be sending
+            timer = Utils.getInstance().setTimeout(() -> {
+                try {
+                    sendRequest(timedRequest());
+                } catch (EndpointUnavailable e) {
+                    log.severe("endpoint unavailable");
+                }
+            }, 0);
+        }
     }
 
     /**
      * @param msg - A reply message received from the server
-     * Checks to see that the message is a KeepAliveReply. If it is, then it records that it has received a reply server.
+     * Checks to see that the message is a KeepAliveReply. If it is, then it records that it has received a reply server,
+     * takes the interval the server granted, and measures the round trip and the offset of the server's clock from
+     * its times.
      */
     @Override
     public void receiveReply(Message msg) {
         if (msg instanceof KeepAliveReply) {
             recievedReply = true;
-            // Nothing more to do
+            KeepAliveReply reply = (KeepAliveReply) msg;
+            if (reply.isTimed()) {
+                long now = Trace.now();
+                // the time spent at the server is not part of the round trip
+                long rtt = Math.max(0, (now - reply.getEcho()) - (reply.getSent() - reply.getReceived()));
+                long offset = ((reply.getReceived() - reply.getEcho()) + (reply.getSent() - now)) / 2;
+                endpoint.clockMeasured(rtt, offset);
+                if (reply.getInterval() > 0) {
+                    synchronized (this) {
+                        interval = reply.getInterval();
+                    }
+                }
+                if (endpoint.getClockSamples() < INITIAL_PROBES) {
+                    // outside the keep alive schedule, so no timeout is set for it
+                    try {
+                        endpoint.send(timedRequest());
+                    } catch (EndpointUnavailable e) {
+                        // the next keep alive finds out
+                    }
+                }
+            }
         }
     }
 
@@ -151,14 +358,37 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
      * @param msg - A request message from the client
      * @throws EndpointUnavailable
      * Checks to see that the message is a KeepAliveRequest. If it is, it records that the request is received and sends
-     * a reply to the client.
+     * a reply to the client, with the times and the interval granted if the request has them. The server waits for
+     * the client according to the interval it granted.
      */
     @Override
     public void receiveRequest(Message msg) throws EndpointUnavailable {
         if (msg instanceof KeepAliveRequest) {
             // recognise that we have received a request and send a reply
             receivedRequest = true;
-            sendReply(new KeepAliveReply());
+            KeepAliveRequest request = (KeepAliveRequest) msg;
+            if (!request.isTimed()) {
+                sendReply(KeepAliveReply.message);
+                return;
+            }
+            long received = Trace.now();
+            if (request.getRtt() >= 0) {
+                endpoint.clockReported(request.getRtt());
+            }
+            long granted = 0;
+            if (request.getInterval() > 0) {
+                granted = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL,
+                        manager.keepAliveInterval(endpoint, request.getInterval())));
+                boolean changed;
+                synchronized (this) {
+                    changed = granted != interval;
+                    interval = granted;
+                }
+                if (changed) checkClientTimeout();
+                // the client only asks for the longer interval once it is idle
+                if (request.getInterval() >= SUSPENDED_INTERVAL) checkIdle(true);
+            }
+            sendReply(new KeepAliveReply(request.getSent(), received, Trace.now(), granted));
         }
     }
 
@@ -13,6 +13,12 @@ import pb.protocols.Message;
 public class KeepAliveReply extends Message {
 	static final public String name = "KeepAliveReply";
 	
+	/**
+	 * The reply without parameters, to a request that does not measure the
+	 * round trip, so one pre-encoded instance is shared.
+	 */
+	static final public KeepAliveReply message = Message.preEncode(new KeepAliveReply());
+	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
@@ -21,6 +27,22 @@ public class KeepAliveReply extends Message {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Initialiser for a reply to a request that measures the round trip.
+	 * @param echo when the request was sent, from the request
+	 * @param received when the request was received, in microseconds on the server's clock
+	 * @param sent when the reply is sent, in microseconds on the server's clock
+	 * @param interval the interval the server grants, in ms, or 0 if the
+	 * client did not ask for one
+	 */
+	public KeepAliveReply(long echo, long received, long sent, long interval) {
+		this();
+		doc.append("echo", echo);
+		doc.append("received", received);
+		doc.append("sent", sent);
+		if(interval>0) doc.append("interval", interval);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -30,7 +52,48 @@ public class KeepAliveReply extends Message {
 	 */
 	public KeepAliveReply(Document doc) throws InvalidMessage {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("echo")) {
+			validateLong("echo",doc);
+			validateLong("received",doc);
+			validateLong("sent",doc);
+		}
+		if(doc.containsKey("interval")) validateLong("interval",doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * @return whether the reply measures the round trip
+	 */
+	public boolean isTimed() {
+		return doc.containsKey("echo");
+	}
+	
+	/**
+	 * @return when the request was sent, on the client's clock
+	 */
+	public long getEcho() {
+		return doc.getLong("echo");
+	}
+	
+	/**
+	 * @return when the request was received, on the server's clock
+	 */
+	public long getReceived() {
+		return doc.getLong("received");
+	}
+	
+	/**
+	 * @return when the reply was sent, on the server's clock
+	 */
+	public long getSent() {
+		return doc.getLong("sent");
+	}
+	
+	/**
+	 * @return the interval the server grants, in ms, or 0 if it did not
+	 */
+	public long getInterval() {
+		return doc.containsKey("interval") ? doc.getLong("interval") : 0;
+	}
 
 }
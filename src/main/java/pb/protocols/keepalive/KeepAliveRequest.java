@@ -13,6 +13,12 @@ import pb.protocols.Message;
 public class KeepAliveRequest extends Message {
 	static final public String name = "KeepAliveRequest";
 	
+	/**
+	 * The request without parameters, as sent by clients that do not
+	 * measure the round trip, so one pre-encoded instance is shared.
+	 */
+	static final public KeepAliveRequest message = Message.preEncode(new KeepAliveRequest());
+	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
@@ -21,6 +27,19 @@ public class KeepAliveRequest extends Message {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser for a request that measures the round trip.
+	 * @param sent when the request is sent, in microseconds on the client's clock
+	 * @param rtt the client's estimate of the round trip, in microseconds, or -1
+	 * @param interval the interval the client asks for, in ms
+	 */
+	public KeepAliveRequest(long sent, long rtt, long interval) {
+		this();
+		doc.append("sent", sent);
+		doc.append("rtt", rtt);
+		doc.append("interval", interval);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessage if any of the required parameters are not
@@ -30,7 +49,40 @@ public class KeepAliveRequest extends Message {
 	 */
 	public KeepAliveRequest(Document doc) throws InvalidMessage {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("sent")) {
+			validateLong("sent",doc);
+			validateLong("rtt",doc);
+		}
+		if(doc.containsKey("interval")) validateLong("interval",doc);
 		this.doc=doc;
 	}
 	
+	/**
+	 * @return whether the request measures the round trip
+	 */
+	public boolean isTimed() {
+		return doc.containsKey("sent");
+	}
+	
+	/**
+	 * @return when the request was sent, on the client's clock
+	 */
+	public long getSent() {
+		return doc.getLong("sent");
+	}
+	
+	/**
+	 * @return the client's estimate of the round trip, or -1
+	 */
+	public long getRtt() {
+		return doc.getLong("rtt");
+	}
+	
+	/**
+	 * @return the interval the client asks for, in ms, or 0 if it does not ask
+	 */
+	public long getInterval() {
+		return doc.containsKey("interval") ? doc.getLong("interval") : 0;
+	}
+	
 }
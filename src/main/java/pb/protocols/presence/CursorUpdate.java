@@ -0,0 +1,66 @@
+package pb.protocols.presence;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message with where a client's cursor is on a board, which the client sends
+ * to the server as it moves; the server sends the cursors on to the other
+ * clients on the board in a {@link pb.protocols.presence.PresenceFrame}.
+ * There is no reply, and a newer position makes an older one useless, so it
+ * is sent with {@link pb.Endpoint#sendEphemeral(Message)}.
+ * @see {@link pb.protocols.presence.PresenceProtocol}
+ * @author aaron
+ *
+ */
+public class CursorUpdate extends Message {
+	static final public String name = "CursorUpdate";
+
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param board the name of the board
+	 * @param replica the replica id of the client the cursor is of
+	 * @param x
+	 * @param y
+	 */
+	public CursorUpdate(String board, int replica, int x, int y) {
+		super(name,PresenceProtocol.protocolName,Message.Type.Request);
+		doc.append("board", board);
+		doc.append("replica", replica);
+		doc.append("x", x);
+		doc.append("y", y);
+	}
+
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public CursorUpdate(Document doc) throws InvalidMessage {
+		super(name,PresenceProtocol.protocolName,Message.Type.Request,doc);
+		validateString("board",doc);
+		validateLong("replica",doc);
+		validateLong("x",doc);
+		validateLong("y",doc);
+		this.doc=doc;
+	}
+
+	public String getBoard() {
+		return doc.getString("board");
+	}
+
+	public int getReplica() {
+		return doc.getInteger("replica");
+	}
+
+	public int getX() {
+		return doc.getInteger("x");
+	}
+
+	public int getY() {
+		return doc.getInteger("y");
+	}
+}
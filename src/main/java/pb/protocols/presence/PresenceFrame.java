@@ -0,0 +1,97 @@
+package pb.protocols.presence;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent by the server once a tick to each client showing a board,
+ * with the cursors on the board that have changed since the last frame it
+ * sent the client, and the clients that have left the board. A full frame
+ * has every cursor, so a cursor that is not in it has gone. Frames are
+ * versioned, so that a frame older than the last one shown can be dropped.
+ * There is no reply.
+ * @see {@link pb.protocols.presence.PresenceProtocol}
+ * @see {@link pb.server.PresenceIndex}
+ * @author aaron
+ *
+ */
+public class PresenceFrame extends Message {
+	static final public String name = "PresenceFrame";
+
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param board the name of the board
+	 * @param version the version of the board's presence that the frame
+	 * brings the client up to
+	 * @param full whether the frame has every cursor on the board
+	 * @param cursors the replica id, x and y of each cursor, one after the other
+	 * @param left the replica ids of the clients that have left the board
+	 */
+	public PresenceFrame(String board, long version, boolean full, long[] cursors, long[] left) {
+		super(name,PresenceProtocol.protocolName,Message.Type.Request);
+		doc.append("board", board);
+		doc.append("version", version);
+		doc.append("full", full);
+		doc.append("cursors", cursors);
+		doc.append("left", left);
+	}
+
+	/**
+	 * Encode the frame once, to send to every client that is due it.
+	 * @param board
+	 * @param version
+	 * @param full
+	 * @param cursors
+	 * @param left
+	 * @return the pre-encoded frame
+	 * @throws java.io.UncheckedIOException if there are too many cursors for a frame
+	 */
+	public static PresenceFrame shared(String board, long version, boolean full, long[] cursors, long[] left) {
+		return Message.preEncode(new PresenceFrame(board, version, full, cursors, left));
+	}
+
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public PresenceFrame(Document doc) throws InvalidMessage {
+		super(name,PresenceProtocol.protocolName,Message.Type.Request,doc);
+		validateString("board",doc);
+		validateLong("version",doc);
+		validateBoolean("full",doc);
+		validateLongArray("cursors",doc);
+		validateLongArray("left",doc);
+		if(doc.getLongArray("cursors").length%3!=0) throw new InvalidMessage();
+		this.doc=doc;
+	}
+
+	public String getBoard() {
+		return doc.getString("board");
+	}
+
+	public long getVersion() {
+		return doc.getLong("version");
+	}
+
+	public boolean isFull() {
+		return doc.getBoolean("full");
+	}
+
+	/**
+	 * @return the replica id, x and y of each cursor, one after the other
+	 */
+	public long[] getCursors() {
+		return doc.getLongArray("cursors");
+	}
+
+	/**
+	 * @return the replica ids of the clients that have left the board
+	 */
+	public long[] getLeft() {
+		return doc.getLongArray("left");
+	}
+}
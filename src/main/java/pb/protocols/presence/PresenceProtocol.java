@@ -0,0 +1,137 @@
+package pb.protocols.presence;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.Manager;
+import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.Message;
+import pb.protocols.Protocol;
+
+/**
+ * Carries where the clients' cursors are, which is only of use while it is
+ * fresh. Each client sends its own cursor as it moves, and the server sends
+ * each client a frame a tick with the cursors of the board that have changed,
+ * which {@link pb.server.PresenceIndex} aggregates. The messages are sent
+ * with {@link pb.Endpoint#sendEphemeral(Message)}, on the session's
+ * {@link pb.transport.DatagramLink} when it has one, so a cursor never waits
+ * behind the strokes sent before it, and a lost or late position is simply
+ * replaced by the next one. Without a link, e.g. if UDP is
+ * blocked, they go over the connection like any other message.
+ *
+ * @see {@link pb.Manager#cursorMoved(Endpoint, CursorUpdate)}
+ * @see {@link pb.Manager#presenceUpdated(Endpoint, PresenceFrame)}
+ * @see {@link pb.protocols.presence.CursorUpdate}
+ * @see {@link pb.protocols.presence.PresenceFrame}
+ * @author aaron
+ *
+ */
+public class PresenceProtocol extends Protocol implements IRequestReplyProtocol {
+
+	/**
+	 * The unique name of the protocol.
+	 */
+	public static final String protocolName="PresenceProtocol";
+
+	/**
+	 * The id of the protocol.
+	 */
+	public static final int protocolId=Protocol.registerProtocol(protocolName);
+
+	/**
+	 * Initialise the protocol with an endpoint and manager.
+	 * @param endpoint
+	 * @param manager
+	 */
+	public PresenceProtocol(Endpoint endpoint, Manager manager) {
+		super(endpoint,manager);
+	}
+
+	/**
+	 * @return the name of the protocol.
+	 */
+	@Override
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 * @return the id of the protocol.
+	 */
+	@Override
+	public int getProtocolId() {
+		return protocolId;
+	}
+
+	/*
+	 * Interface methods
+	 */
+
+	/**
+	 * Nothing to send until the cursor moves.
+	 */
+	@Override
+	public void startAsClient() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Nothing to do until the client sends its cursor; frames are sent by
+	 * the server's {@link pb.server.PresenceIndex}.
+	 */
+	@Override
+	public void startAsServer() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Send where a cursor is.
+	 * @param board
+	 * @param replica the replica id of the client the cursor is of
+	 * @param x
+	 * @param y
+	 * @throws EndpointUnavailable
+	 */
+	public void sendCursor(String board, int replica, int x, int y) throws EndpointUnavailable {
+		sendRequest(new CursorUpdate(board, replica, x, y));
+	}
+
+	/**
+	 * Send a request that may be lost, or overtaken.
+	 * @param msg
+	 */
+	@Override
+	public void sendRequest(Message msg) throws EndpointUnavailable {
+		endpoint.sendEphemeral(msg);
+	}
+
+	/**
+	 * There are no replies in this protocol.
+	 * @param msg
+	 */
+	@Override
+	public void receiveReply(Message msg) {
+		manager.protocolViolation(endpoint,this);
+	}
+
+	/**
+	 * Pass the cursor, or the frame of cursors, to the manager.
+	 * @param msg
+	 */
+	@Override
+	public void receiveRequest(Message msg) throws EndpointUnavailable {
+		if(msg instanceof CursorUpdate) {
+			manager.cursorMoved(endpoint, (CursorUpdate) msg);
+		} else if(msg instanceof PresenceFrame) {
+			manager.presenceUpdated(endpoint, (PresenceFrame) msg);
+		}
+	}
+
+	/**
+	 * There are no replies in this protocol.
+	 * @param msg
+	 */
+	@Override
+	public void sendReply(Message msg) throws EndpointUnavailable {
+		endpoint.send(msg);
+	}
+}
@@ -9,6 +9,7 @@ import pb.protocols.Message;
 import pb.protocols.Protocol;
 import pb.protocols.IRequestReplyProtocol;
 import pb.Utils;
+import pb.transport.DatagramLink;
 
 /**
  * Allows the client to request the session to start and to request the session
@@ -18,8 +19,15 @@ import pb.Utils;
  * client would make the session stop request. The server may however send a
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
- * clients.
+ * clients. A server that is overloaded can also turn a session away before it
+ * starts, by answering the start request with a stop request. Either way the
+ * stop request carries a retry-after hint, which is passed to the manager.
+ * The start request and reply also bind a {@link pb.transport.DatagramLink}
+ * to the session, if both ends want one.
  * 
+ * @see {@link pb.Manager#admitSession(Endpoint)}
+ * @see {@link pb.Manager#datagramsRequested(Endpoint)}
+ * @see {@link pb.Manager#sessionShed(Endpoint, long)}
  * @see {@link pb.Manager}
  * @see {@link pb.Endpoint}
  * @see {@link pb.Protocol}
@@ -43,6 +51,11 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public static final String protocolName="SessionProtocol";
 	
+	/**
+	 * The id of the protocol.
+	 */
+	public static final int protocolId=Protocol.registerProtocol(protocolName);
+	
 	// Use of volatile is in case the thread that calls stopProtocol is different
 	// to the endpoint thread, although in this case it hardly needed.
 	
@@ -52,6 +65,12 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean protocolRunning=false;
 	
+	/**
+	 * Whether this end has asked to stop the session, which it may do before
+	 * the session has started, to turn it away.
+	 */
+	private volatile boolean stopRequested=false;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -77,6 +96,14 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	public String getProtocolName() {
 		return protocolName;
 	}
+	
+	/**
+	 * @return the id of the protocol.
+	 */
+	@Override
+	public int getProtocolId() {
+		return protocolId;
+	}
 
 	/**
 	 * If this protocol is stopped while it is still in the running
@@ -100,7 +127,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() throws EndpointUnavailable {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		sendRequest(SessionStartRequest.message);
 	}
 
 	/**
@@ -116,7 +143,26 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 * @throws EndpointUnavailable if the endpoint is not ready or has terminated
 	 */
 	public void stopSession() throws EndpointUnavailable {
-		sendRequest(new SessionStopRequest());
+		stopRequested=true;
+		sendRequest(SessionStopRequest.message);
+	}
+	
+	/**
+	 * Stop the session because this end is overloaded. This does not block,
+	 * e.g. on the timer that sheds sessions: if the other end is not keeping
+	 * up with what it has been sent, it is disconnected instead of told.
+	 * @param retryAfter how long the other end should wait before starting
+	 * another session, in ms
+	 * @throws EndpointUnavailable if the endpoint is not ready or has terminated
+	 */
+	public void stopSession(long retryAfter) throws EndpointUnavailable {
+		stopRequested=true;
+		if(!endpoint.trySend(new SessionStopRequest(retryAfter))) {
+			endpoint.abort();
+			return;
+		}
+		timeoutFlag = true;
+		Utils.getInstance().setTimeout(()->{check_timeout();},TIMEOUT_LIMIT);
 	}
 	
 	/**
@@ -149,14 +195,20 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			SessionStartReply reply = (SessionStartReply)msg;
+			endpoint.setBinaryPeer(reply.supportsBinary());
+			if(reply.getDatagramPort()!=0) {
+				manager.datagramsOffered(endpoint, reply.getDatagramPort(), reply.getDatagramToken());
+			}
 			manager.sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
-			if(!protocolRunning) {
+			if(!protocolRunning && !stopRequested) {
 				// error, received a second reply?
 				manager.protocolViolation(endpoint,this);
 				return;
 			}
 			protocolRunning=false;
+			stopRequested=false;
 			manager.sessionStopped(endpoint);
 		}
 	}
@@ -166,6 +218,9 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 * tell the manager that the session has started. If the received request
 	 * is a session stop request then reply and tell the manager that
 	 * the session has stopped. If something weird has happened then...
+	 * A session the manager does not admit is stopped straight away, with a
+	 * hint of when to retry. A session that is admitted is given a datagram
+	 * link if the other end can bind one and the manager has one for it.
 	 * @param msg
 	 */
 	@Override
@@ -176,17 +231,36 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				manager.protocolViolation(endpoint,this);
 				return;
 			}
+			endpoint.setBinaryPeer(((SessionStartRequest)msg).supportsBinary());
+			long retryAfter = manager.admitSession(endpoint);
+			if(retryAfter>0) {
+				log.info("turning away session, retry after "+retryAfter+"ms");
+				stopSession(retryAfter);
+				return;
+			}
 			protocolRunning=true;
-			sendReply(new SessionStartReply());
+			DatagramLink link = ((SessionStartRequest)msg).supportsDatagrams() 
+					? manager.datagramsRequested(endpoint) : null;
+			if(link!=null) {
+				endpoint.setDatagramLink(link);
+				sendReply(new SessionStartReply(link.getPort(), link.getToken()));
+			} else {
+				sendReply(SessionStartReply.message);
+			}
 			manager.sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
-			if(!protocolRunning) {
+			long retryAfter = ((SessionStopRequest)msg).getRetryAfter();
+			// a session that is turned away is stopped before it starts
+			if(!protocolRunning && retryAfter==0) {
 				// error, received a second request?
 				manager.protocolViolation(endpoint,this);
 				return;
 			}
 			protocolRunning=false;
-			sendReply(new SessionStopReply());
+			// the start request, if any, has been answered
+			timeoutFlag=false;
+			sendReply(SessionStopReply.message);
+			if(retryAfter>0) manager.sessionShed(endpoint, retryAfter);
 			manager.sessionStopped(endpoint);
 		}
 		
@@ -14,11 +14,30 @@ public class SessionStartReply extends Message {
 	static final public String name = "SessionStartReply";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * The message parameters never change, so one pre-encoded instance is shared.
+	 */
+	static final public SessionStartReply message = Message.preEncode(new SessionStartReply());
+	
+	/**
+	 * Initialiser when given message parameters explicitly. The only
+	 * parameter says that this endpoint can read messages in the binary
+	 * encoding, which it always can.
 	 */
 	public SessionStartReply() {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
+		doc.append("binary", true);
+	}
+	
+	/**
+	 * Initialiser for a session that the sender has given a datagram link.
+	 * @param datagramPort the UDP port to bind the link with
+	 * @param datagramToken the token that identifies the session's datagrams
+	 * @see {@link pb.transport.DatagramLink}
+	 */
+	public SessionStartReply(int datagramPort, long datagramToken) {
+		this();
+		doc.append("datagramPort", datagramPort);
+		doc.append("datagramToken", datagramToken);
 	}
 	
 	/**
@@ -32,4 +51,34 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
 		this.doc=doc;
 	}
+	
+	/**
+	 * Older peers do not send the binary parameter, so it is optional.
+	 * @return true if the sender can read messages in the binary encoding
+	 * @see {@link pb.protocols.BinaryCodec}
+	 */
+	public boolean supportsBinary() {
+		return doc.containsKey("binary") && doc.get("binary") instanceof Boolean 
+				&& doc.getBoolean("binary");
+	}
+	
+	/**
+	 * The link is optional.
+	 * @return the UDP port to bind the session's datagram link with, or 0 if
+	 * the session has no link
+	 */
+	public int getDatagramPort() {
+		if(!doc.containsKey("datagramToken") || !(doc.get("datagramToken") instanceof Long)
+				|| !(doc.get("datagramPort") instanceof Long)) return 0;
+		long port = doc.getLong("datagramPort");
+		return port>0 && port<65536 ? (int) port : 0;
+	}
+	
+	/**
+	 * @return the token that identifies the session's datagrams, if
+	 * {@link #getDatagramPort()} is not 0
+	 */
+	public long getDatagramToken() {
+		return doc.getLong("datagramToken");
+	}
 }
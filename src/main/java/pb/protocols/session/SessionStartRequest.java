@@ -14,11 +14,19 @@ public class SessionStartRequest extends Message {
 	static final public String name = "SessionStartRequest";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * The message parameters never change, so one pre-encoded instance is shared.
+	 */
+	static final public SessionStartRequest message = Message.preEncode(new SessionStartRequest());
+	
+	/**
+	 * Initialiser when given message parameters explicitly. The parameters
+	 * say that this endpoint can read messages in the binary encoding, and
+	 * can bind a datagram link to the session, which it always can.
 	 */
 	public SessionStartRequest() {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		doc.append("binary", true);
+		doc.append("datagrams", true);
 	}
 	
 	/**
@@ -32,4 +40,24 @@ public class SessionStartRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
 		this.doc=doc;
 	}
+	
+	/**
+	 * Older peers do not send the binary parameter, so it is optional.
+	 * @return true if the sender can read messages in the binary encoding
+	 * @see {@link pb.protocols.BinaryCodec}
+	 */
+	public boolean supportsBinary() {
+		return doc.containsKey("binary") && doc.get("binary") instanceof Boolean 
+				&& doc.getBoolean("binary");
+	}
+	
+	/**
+	 * Older peers do not send the datagrams parameter, so it is optional.
+	 * @return true if the sender can bind a datagram link to the session
+	 * @see {@link pb.transport.DatagramLink}
+	 */
+	public boolean supportsDatagrams() {
+		return doc.containsKey("datagrams") && doc.get("datagrams") instanceof Boolean 
+				&& doc.getBoolean("datagrams");
+	}
 }
@@ -13,6 +13,11 @@ import pb.protocols.Message;
 public class SessionStopReply extends Message {
 	static final public String name = "SessionStopReply";
 	
+	/**
+	 * The message has no parameters, so one pre-encoded instance is shared.
+	 */
+	static final public SessionStopReply message = Message.preEncode(new SessionStopReply());
+	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
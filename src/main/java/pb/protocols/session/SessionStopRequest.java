@@ -5,7 +5,9 @@ import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
- * Message to request the session to stop.
+ * Message to request the session to stop. A server that is overloaded sends
+ * it with a retry-after hint, to stop a session or to turn one away before
+ * it starts; the client should not start another session before then.
  * @see {@link pb.protocols.session.SessionProtocol}
  * @author aaron
  *
@@ -13,6 +15,12 @@ import pb.protocols.Message;
 public class SessionStopRequest extends Message {
 	static final public String name = "SessionStopRequest";
 	
+	/**
+	 * The message without a retry-after hint has no parameters, so one
+	 * pre-encoded instance is shared.
+	 */
+	static final public SessionStopRequest message = Message.preEncode(new SessionStopRequest());
+	
 	/**
 	 * Initialiser when given message parameters explicitly. Note that
 	 * in this message there are no additional parameters.
@@ -21,6 +29,16 @@ public class SessionStopRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Initialiser for a session that is stopped because the sender is
+	 * overloaded.
+	 * @param retryAfter how long to wait before starting another session, in ms
+	 */
+	public SessionStopRequest(long retryAfter) {
+		super(name,SessionProtocol.protocolName,Message.Type.Request);
+		doc.append("retryAfter", retryAfter);
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -32,4 +50,14 @@ public class SessionStopRequest extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
 		this.doc=doc;
 	}
+	
+	/**
+	 * The hint is optional.
+	 * @return how long to wait before starting another session, in ms, or 0
+	 * if there is no hint
+	 */
+	public long getRetryAfter() {
+		return doc.containsKey("retryAfter") && doc.get("retryAfter") instanceof Long 
+				? Math.max(0, doc.getLong("retryAfter")) : 0;
+	}
 }
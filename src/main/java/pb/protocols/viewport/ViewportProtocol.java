@@ -0,0 +1,158 @@
+package pb.protocols.viewport;
+
+import java.util.logging.Logger;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.Manager;
+import pb.board.Rect;
+import pb.protocols.IRequestReplyProtocol;
+import pb.protocols.Message;
+import pb.protocols.Protocol;
+
+/**
+ * Lets the client tell the server which region of a board it is showing, so
+ * that the server only sends it the operations that touch that region. The
+ * client sends a viewport request whenever its view moves; the server first
+ * sends a {@link pb.protocols.viewport.ViewportUpdate} for every shape that
+ * has come into view (the region catch-up) and then a reply. After that, the
+ * server sends an update for every operation on the board whose bounds
+ * intersect the viewport, until the viewport changes again or the session
+ * ends. Updates are not replied to.
+ * <br/>
+ * When a client joins a board, or jumps to a region it could not see, the
+ * server sends the {@link pb.protocols.viewport.ViewportTile}s of the viewport
+ * before the catch-up, so that the client can show a picture of the board
+ * while the shapes arrive.
+ * <br/>
+ * Shapes that leave the view are not kept up to date, so the client should
+ * drop them once the server has replied to a viewport change; they come back
+ * with the catch-up when they are in view again.
+ *
+ * @see {@link pb.Manager#viewportChanged(Endpoint, String, Rect)}
+ * @see {@link pb.Manager#boardUpdated(Endpoint, pb.board.BoardOp)}
+ * @see {@link pb.protocols.viewport.ViewportRequest}
+ * @see {@link pb.protocols.viewport.ViewportReply}
+ * @see {@link pb.protocols.viewport.ViewportUpdate}
+ * @see {@link pb.protocols.viewport.ViewportTile}
+ * @author aaron
+ *
+ */
+public class ViewportProtocol extends Protocol implements IRequestReplyProtocol {
+	private static Logger log = Logger.getLogger(ViewportProtocol.class.getName());
+
+	/**
+	 * The unique name of the protocol.
+	 */
+	public static final String protocolName="ViewportProtocol";
+
+	/**
+	 * The id of the protocol.
+	 */
+	public static final int protocolId=Protocol.registerProtocol(protocolName);
+
+	/**
+	 * Initialise the protocol with an endpoint and manager.
+	 * @param endpoint
+	 * @param manager
+	 */
+	public ViewportProtocol(Endpoint endpoint, Manager manager) {
+		super(endpoint,manager);
+	}
+
+	/**
+	 * @return the name of the protocol.
+	 */
+	@Override
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 * @return the id of the protocol.
+	 */
+	@Override
+	public int getProtocolId() {
+		return protocolId;
+	}
+
+	/*
+	 * Interface methods
+	 */
+
+	/**
+	 * Nothing is sent until the client has a viewport.
+	 */
+	@Override
+	public void startAsClient() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Nothing to do until the client sends its viewport.
+	 */
+	@Override
+	public void startAsServer() throws EndpointUnavailable {
+
+	}
+
+	/**
+	 * Tell the server the region of a board that is visible.
+	 * @param board
+	 * @param viewport
+	 * @throws EndpointUnavailable
+	 */
+	public void setViewport(String board, Rect viewport) throws EndpointUnavailable {
+		sendRequest(new ViewportRequest(board, viewport));
+	}
+
+	/**
+	 * Just send a request, nothing special.
+	 * @param msg
+	 */
+	@Override
+	public void sendRequest(Message msg) throws EndpointUnavailable {
+		endpoint.send(msg);
+	}
+
+	/**
+	 * The catch-up for the viewport is complete, so tell the manager.
+	 * @param msg
+	 */
+	@Override
+	public void receiveReply(Message msg) throws EndpointUnavailable {
+		if(msg instanceof ViewportReply) {
+			ViewportReply reply = (ViewportReply) msg;
+			log.fine("caught up with viewport on "+reply.getBoard());
+			manager.viewportChanged(endpoint, reply.getBoard(), reply.getViewport());
+		}
+	}
+
+	/**
+	 * On the server, a viewport request is passed to the manager, which sends
+	 * the catch-up, and then replied to. On the client, updates and tiles are
+	 * passed to the manager.
+	 * @param msg
+	 */
+	@Override
+	public void receiveRequest(Message msg) throws EndpointUnavailable {
+		if(msg instanceof ViewportRequest) {
+			ViewportRequest request = (ViewportRequest) msg;
+			manager.viewportChanged(endpoint, request.getBoard(), request.getViewport());
+			sendReply(new ViewportReply(request.getBoard(), request.getViewport()));
+		} else if(msg instanceof ViewportUpdate) {
+			manager.boardUpdated(endpoint, ((ViewportUpdate)msg).getOp(), msg.getTrace());
+		} else if(msg instanceof ViewportTile) {
+			manager.tileReceived(endpoint, (ViewportTile)msg);
+		}
+	}
+
+	/**
+	 * Just send a reply, nothing special to do.
+	 * @param msg
+	 */
+	@Override
+	public void sendReply(Message msg) throws EndpointUnavailable {
+		endpoint.send(msg);
+	}
+}
@@ -0,0 +1,57 @@
+package pb.protocols.viewport;
+
+import pb.board.Rect;
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Reply to a viewport request, sent once the shapes that have come into view
+ * have all been sent.
+ * @see {@link pb.protocols.viewport.ViewportProtocol}
+ * @author aaron
+ *
+ */
+public class ViewportReply extends Message {
+	static final public String name = "ViewportReply";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param board the name of the board the viewport is on
+	 * @param viewport the viewport that has been caught up
+	 */
+	public ViewportReply(String board, Rect viewport) {
+		super(name,ViewportProtocol.protocolName,Message.Type.Reply);
+		doc.append("board", board);
+		doc.append("minX", viewport.minX);
+		doc.append("minY", viewport.minY);
+		doc.append("maxX", viewport.maxX);
+		doc.append("maxY", viewport.maxY);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public ViewportReply(Document doc) throws InvalidMessage {
+		super(name,ViewportProtocol.protocolName,Message.Type.Reply,doc);
+		validateString("board",doc);
+		validateLong("minX",doc);
+		validateLong("minY",doc);
+		validateLong("maxX",doc);
+		validateLong("maxY",doc);
+		this.doc=doc;
+	}
+	
+	public String getBoard() {
+		return doc.getString("board");
+	}
+	
+	public Rect getViewport() {
+		return new Rect(doc.getInteger("minX"), doc.getInteger("minY"),
+				doc.getInteger("maxX"), doc.getInteger("maxY"));
+	}
+}
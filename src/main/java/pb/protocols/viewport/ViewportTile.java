@@ -0,0 +1,175 @@
+package pb.protocols.viewport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import pb.board.Rect;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Message sent by the server with a PNG image of part of a board, so that a
+ * client that has just set its viewport can show the board before the
+ * shapes in view have arrived. A board is cut into square tiles of
+ * {@link #TILE_SIZE} pixels at each level of zoom; at level z a pixel is
+ * 2<sup>z</sup> board units across.
+ * <br/>
+ * Like an {@link pb.protocols.asset.AssetChunk}, a tile is not JSON: the PNG
+ * goes on the wire as it is, after a header.
+ * <pre>
+ * MARKER level(1) x(4) y(4) boardLength(2) board png
+ * </pre>
+ * @see {@link pb.protocols.viewport.ViewportProtocol}
+ * @see {@link pb.server.TileCache}
+ * @author aaron
+ *
+ */
+public class ViewportTile extends Message {
+	static final public String name = "ViewportTile";
+
+	/**
+	 * The first byte of a tile, after the length.
+	 */
+	public static final byte MARKER = (byte) 0xb3;
+
+	/**
+	 * The width and height of a tile in pixels.
+	 */
+	public static final int TILE_SIZE = 256;
+
+	/**
+	 * The number of levels of zoom, from 0 (one pixel per board unit).
+	 */
+	public static final int LEVELS = 8;
+
+	private final byte[] frame;
+	private final byte[] png;
+
+	private ViewportTile(String board, int level, int x, int y, byte[] frame, byte[] png) {
+		super(name,ViewportProtocol.protocolName,Message.Type.Request);
+		doc.append("board", board);
+		doc.append("level", level);
+		doc.append("x", x);
+		doc.append("y", y);
+		this.frame=frame;
+		this.png=png;
+	}
+
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param board the name of the board
+	 * @param level the level of zoom
+	 * @param x the column of the tile at its level
+	 * @param y the row of the tile at its level
+	 * @param png the image, which is sent as it is
+	 * @throws IllegalArgumentException if the image is too large for a frame
+	 */
+	public ViewportTile(String board, int level, int x, int y, byte[] png) {
+		this(board, level, x, y, encode(board, level, x, y, png), png);
+	}
+
+	private static byte[] encode(String board, int level, int x, int y, byte[] png) {
+		byte[] name = board.getBytes(StandardCharsets.UTF_8);
+		int len = 1+1+4+4+2+name.length+png.length;
+		if(len>0xffff) throw new IllegalArgumentException("tile is too large for a frame: "+len);
+		ByteBuffer frame = ByteBuffer.allocate(2+len);
+		frame.putShort((short) len);
+		frame.put(MARKER);
+		frame.put((byte) level);
+		frame.putInt(x);
+		frame.putInt(y);
+		frame.putShort((short) name.length);
+		frame.put(name);
+		frame.put(png);
+		return frame.array();
+	}
+
+	/**
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the bytes, after the frame length, are a tile
+	 */
+	public static boolean isTile(byte[] buf, int off, int len) {
+		return len>0 && buf[off]==MARKER;
+	}
+
+	/**
+	 * Read a tile that has been received. The image is copied, since the
+	 * buffer is reused for the next frame.
+	 * @param buf
+	 * @param off the start of the tile, after the frame length
+	 * @param len the length of the tile
+	 * @return the tile
+	 * @throws InvalidMessage if the tile is malformed
+	 */
+	public static ViewportTile read(byte[] buf, int off, int len) throws InvalidMessage {
+		ByteBuffer in = ByteBuffer.wrap(buf, off, len);
+		if(len<1+1+4+4+2) throw new InvalidMessage();
+		in.get();
+		int level = in.get();
+		int x = in.getInt();
+		int y = in.getInt();
+		int nameLen = in.getShort() & 0xffff;
+		if(level<0 || level>=LEVELS || nameLen>in.remaining()) throw new InvalidMessage();
+		String board = new String(buf, in.position(), nameLen, StandardCharsets.UTF_8);
+		in.position(in.position()+nameLen);
+		byte[] png = new byte[in.remaining()];
+		in.get(png);
+		return new ViewportTile(board, level, x, y, null, png);
+	}
+
+	/**
+	 * @param level
+	 * @param x
+	 * @param y
+	 * @return the region of the board a tile covers
+	 */
+	public static Rect region(int level, int x, int y) {
+		long span = (long) TILE_SIZE<<level;
+		long minX = x*span, minY = y*span;
+		return new Rect(clamp(minX), clamp(minY), clamp(minX+span-1), clamp(minY+span-1));
+	}
+
+	private static int clamp(long v) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v));
+	}
+
+	/**
+	 * @return the frame to send, or null for a tile that was received
+	 */
+	@Override
+	public byte[] getFrame() {
+		return frame;
+	}
+
+	public String getBoard() {
+		return doc.getString("board");
+	}
+
+	public int getLevel() {
+		return doc.getInteger("level");
+	}
+
+	public int getX() {
+		return doc.getInteger("x");
+	}
+
+	public int getY() {
+		return doc.getInteger("y");
+	}
+
+	/**
+	 * @return the region of the board the tile covers
+	 */
+	public Rect getRegion() {
+		return region(getLevel(), getX(), getY());
+	}
+
+	/**
+	 * @return the image, which must not be modified
+	 */
+	public byte[] getPng() {
+		return png;
+	}
+}
@@ -0,0 +1,73 @@
+package pb.protocols.viewport;
+
+import pb.Trace;
+import pb.board.BoardOp;
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.protocols.board.BoardEdit;
+
+/**
+ * Message sent by the server with an operation on the board that touches
+ * the client's viewport, either as it happens or to catch up on a region that
+ * has come into view. There is no reply.
+ * @see {@link pb.protocols.viewport.ViewportProtocol}
+ * @author aaron
+ *
+ */
+public class ViewportUpdate extends Message {
+	static final public String name = "ViewportUpdate";
+	
+	/**
+	 * Initialiser when given message parameters explicitly.
+	 * @param op the operation on the board
+	 */
+	public ViewportUpdate(BoardOp op) {
+		super(name,ViewportProtocol.protocolName,Message.Type.Request);
+		BoardEdit.appendOp(doc, op);
+	}
+	
+	/**
+	 * Initialiser when given message parameters in a doc. Must throw
+	 * InvalidMessage if any of the required parameters are not
+	 * in the doc, including the appropriate msg parameter.
+	 * @param doc with the message details
+	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 */
+	public ViewportUpdate(Document doc) throws InvalidMessage {
+		super(name,ViewportProtocol.protocolName,Message.Type.Request,doc);
+		BoardEdit.validateOp(doc);
+		this.doc=doc;
+	}
+	
+	/**
+	 * Encode the update once, for sending the same operation to many
+	 * clients.
+	 * @param op
+	 * @return the pre-encoded update
+	 * @throws java.io.UncheckedIOException if the operation is too large for a frame
+	 */
+	public static ViewportUpdate shared(BoardOp op) {
+		return Message.preEncode(new ViewportUpdate(op));
+	}
+	
+	/**
+	 * Encode the update once, with the trace of the edit it passes on.
+	 * @param op
+	 * @param trace the trace, or null
+	 * @return the pre-encoded update
+	 * @throws java.io.UncheckedIOException if the operation is too large for a frame
+	 */
+	public static ViewportUpdate shared(BoardOp op, Trace trace) {
+		ViewportUpdate update = new ViewportUpdate(op);
+		if(trace!=null) update.setTrace(trace);
+		return Message.preEncode(update);
+	}
+	
+	/**
+	 * @return the operation on the board
+	 */
+	public BoardOp getOp() {
+		return BoardEdit.toOp(doc);
+	}
+}
@@ -1,28 +1,84 @@
 package pb.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.logging.Logger;
 
+import pb.transport.IOEngine;
+
 /**
- * Listen for connections on a given port number and pass them to the
+ * Listen for connections on a given port number, or a Unix domain socket
+ * path for clients on the same host, and pass them to the
  * {@link pb.server.ServerManager} using
- * {@link pb.server.ServerManager#acceptClient(Socket)}. Note that the
- * {@link pb.server.ServerManager} is responsible for creating a thread for this
- * connection, else the IOThread will not accept any more connections until this
- * connection is finished.
- * 
+ * {@link pb.server.ServerManager#acceptClient(SocketChannel)}. Each accepted
+ * connection is handed straight to a loop of the {@link pb.transport.IOEngine},
+ * which sets it up, e.g. starts its TLS handshake, so that accepting is all an
+ * acceptor does.
+ * <br/>
+ * Connections can be accepted by more than one thread, so that e.g. every
+ * client reconnecting after a restart does not queue behind one. Where
+ * SO_REUSEPORT is supported, e.g. on Linux, each acceptor binds a channel of
+ * its own to the port, and the kernel spreads the connections over them;
+ * elsewhere, and on a Unix domain socket, the acceptors share one channel.
+ * The IOThread is the first acceptor, and terminates the others when it does.
+ *
  * @see {@link pb.server.ServerManager}
  * @author aaron
  *
  */
 public class IOThread extends Thread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
-	private ServerSocket serverSocket=null;
-	private int port;
+	
+	/**
+	 * The number of threads accepting connections, by default.
+	 */
+	public static final int DEFAULT_ACCEPTORS = 2;
+	
+	/**
+	 * The number of connections the kernel queues for the acceptors, by
+	 * default. It is capped by the kernel, e.g. net.core.somaxconn on Linux.
+	 */
+	public static final int DEFAULT_BACKLOG = 1024;
+	
+	/**
+	 * How long to wait after an accept fails, in ms, e.g. when the process
+	 * is out of file descriptors, rather than fail again straight away.
+	 */
+	private static final long ACCEPT_BACKOFF = 10;
+	
+	private ServerSocketChannel serverChannel=null;
+	private String address;
 	private ServerManager serverManager;
 	
+	/**
+	 * The channels the acceptors accept on, one for each if they bound their
+	 * own, else just the one that they share.
+	 */
+	private ServerSocketChannel[] channels;
+	
+	/**
+	 * The acceptors other than this thread.
+	 */
+	private Acceptor[] acceptors;
+	
+	/**
+	 * The path of the Unix domain socket listened on, which is removed when
+	 * the thread terminates, or null.
+	 */
+	private Path socketPath=null;
+	
 	/**
 	 * Initialise the IOThread with a port number to listen on and reference
 	 * to the {@link pb.server.ServerManager}.
@@ -31,23 +87,193 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
-		this.port=port;
+		this(port,serverManager,DEFAULT_ACCEPTORS,DEFAULT_BACKLOG);
+	}
+	
+	/**
+	 * Initialise the IOThread with a port number to listen on, reference
+	 * to the {@link pb.server.ServerManager}, the number of threads to accept
+	 * connections with, and how many connections to queue for them.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param numAcceptors the number of threads accepting, at least 1
+	 * @param backlog the number of connections to queue
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, int numAcceptors, int backlog) throws IOException{
+		if(numAcceptors<1) throw new IllegalArgumentException("no acceptors");
+		// let's throw this since its potentially unrecoverable
+		InetSocketAddress local = new InetSocketAddress(port);
+		serverChannel = ServerSocketChannel.open();
+		boolean reusePort = numAcceptors>1
+				&& serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if(reusePort) {
+			channels = new ServerSocketChannel[numAcceptors];
+			channels[0] = serverChannel;
+			try {
+				serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				serverChannel.bind(local, backlog);
+				// the same port, even if the first was given any free one
+				local = (InetSocketAddress) serverChannel.getLocalAddress();
+				for(int i=1;i<numAcceptors;i++) {
+					channels[i] = ServerSocketChannel.open();
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					channels[i].bind(local, backlog);
+				}
+			} catch (IOException e) {
+				closeChannels();
+				throw e;
+			}
+		} else {
+			serverChannel.bind(local, backlog);
+			channels = new ServerSocketChannel[] {serverChannel};
+		}
+		this.address="port "+port;
+		this.serverManager=serverManager;
+		startAcceptors(numAcceptors);
+	}
+	
+	/**
+	 * Initialise the IOThread with a Unix domain socket path to listen on,
+	 * which skips the TCP stack for clients on the same host, and reference
+	 * to the {@link pb.server.ServerManager}. A socket file left at the path
+	 * by a server that did not terminate cleanly, i.e. that refuses
+	 * connections, is replaced.
+	 * @param socketPath to listen on
+	 * @param serverManager to send connections to
+	 * @throws IOException whenever the server socket can't be created, e.g. a
+	 * {@link java.net.BindException} if a server is listening on the path or
+	 * something other than a socket is there
+	 */
+	public IOThread(Path socketPath, ServerManager serverManager) throws IOException{
+		this(socketPath,serverManager,DEFAULT_ACCEPTORS,DEFAULT_BACKLOG);
+	}
+	
+	/**
+	 * As {@link #IOThread(Path, ServerManager)}, with the number of threads to
+	 * accept connections with, which share the socket, and how many
+	 * connections to queue for them.
+	 * @param socketPath to listen on
+	 * @param serverManager to send connections to
+	 * @param numAcceptors the number of threads accepting, at least 1
+	 * @param backlog the number of connections to queue
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(Path socketPath, ServerManager serverManager, int numAcceptors, int backlog) throws IOException{
+		if(numAcceptors<1) throw new IllegalArgumentException("no acceptors");
+		removeStaleSocket(socketPath);
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverChannel.bind(UnixDomainSocketAddress.of(socketPath), backlog);
+		channels = new ServerSocketChannel[] {serverChannel};
+		this.socketPath=socketPath;
+		this.address="socket "+socketPath;
 		this.serverManager=serverManager;
+		startAcceptors(numAcceptors);
+	}
+	
+	/**
+	 * Delete a socket file left at a path by a server that is no longer
+	 * listening on it. Anything else at the path is left alone.
+	 * @param socketPath
+	 * @throws BindException if a server is listening on the path, or it is
+	 * not a socket
+	 * @throws IOException
+	 */
+	private static void removeStaleSocket(Path socketPath) throws IOException {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		// a socket is neither a file, a directory nor a link
+		if(!attrs.isOther()) throw new BindException("address in use: "+socketPath+" is not a socket");
+		try(SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+			throw new BindException("address in use: a server is listening on "+socketPath);
+		} catch (ConnectException e) {
+			log.info("replacing stale socket "+socketPath);
+			Files.deleteIfExists(socketPath);
+		}
+	}
+	
+	/**
+	 * Start this thread and the other acceptors.
+	 * @param numAcceptors
+	 */
+	private void startAcceptors(int numAcceptors) {
+		acceptors = new Acceptor[numAcceptors-1];
+		for(int i=0;i<acceptors.length;i++) {
+			acceptors[i] = new Acceptor(channels[(i+1)%channels.length], i+1);
+			acceptors[i].start();
+		}
 		start();
 	}
 	
+	/**
+	 * Another thread accepting connections.
+	 */
+	private class Acceptor extends Thread {
+		private final ServerSocketChannel channel;
+		
+		Acceptor(ServerSocketChannel channel, int n) {
+			super("acceptor-"+n);
+			this.channel=channel;
+		}
+		
+		@Override
+		public void run() {
+			accept(channel);
+		}
+	}
+	
+	/**
+	 * Accept connections on a channel until it closes, and hand each one to
+	 * the {@link pb.transport.IOEngine}.
+	 * @param channel
+	 */
+	private void accept(ServerSocketChannel channel) {
+		IOEngine engine;
+		try {
+			engine = IOEngine.getInstance();
+		} catch (IOException e) {
+			log.severe("no loops to hand connections to: "+e.getMessage());
+			return;
+		}
+		while(!Thread.currentThread().isInterrupted() && channel.isOpen()){
+			SocketChannel clientChannel;
+			try {
+				clientChannel = channel.accept();
+			} catch (IOException e) {
+				if(!channel.isOpen()) break;
+				log.warning("exception accepting connection: "+e.getMessage());
+				try {
+					Thread.sleep(ACCEPT_BACKOFF);
+				} catch (InterruptedException e1) {
+					break;
+				}
+				continue;
+			}
+			engine.handOff(()->serverManager.acceptClient(clientChannel));
+		}
+	}
+	
 	/**
 	 * Close the server socket and make sure the thread terminates.
 	 */
 	public void shutDown() {
-		if(serverSocket!=null)
+		closeChannels();
+		interrupt();
+	}
+	
+	private void closeChannels() {
+		for(ServerSocketChannel channel : channels==null ? new ServerSocketChannel[] {serverChannel} : channels) {
+			if(channel==null) continue;
 			try {
-				serverSocket.close();
+				channel.close();
 			} catch (IOException e) {
 				log.warning("exception closing server socket: "+e.getMessage());
 			}
-		interrupt();
+		}
 	}
 	
 	/**
@@ -55,22 +281,23 @@ public class IOThread extends Thread {
 	 */
 	@Override
 	public void run() {
-		log.info("listening for connections on port "+port);
-		while(!isInterrupted() && !serverSocket.isClosed()){
-			Socket clientSocket;
+		log.info("listening for connections on "+address+" with "+(acceptors.length+1)+" acceptors"
+				+(channels.length>1 ? " bound with SO_REUSEPORT" : ""));
+		accept(serverChannel);
+		log.info("IOThread terminating");
+		closeChannels();
+		for(Acceptor acceptor : acceptors) {
+			acceptor.interrupt();
 			try {
-				clientSocket = serverSocket.accept();
-				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
-			} catch (IOException e) {
-				log.warning("exception accepting connection: "+e.getMessage());
-			} 
+				acceptor.join();
+			} catch (InterruptedException e) {
+				break;
+			}
 		}
-		log.info("IOThread terminating");
 		try {
-			serverSocket.close();
+			if(socketPath!=null) Files.deleteIfExists(socketPath);
 		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
+			log.warning("exception removing server socket: "+e.getMessage());
 		}
 	}
 }
@@ -0,0 +1,273 @@
+package pb.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import pb.Utils;
+import pb.WorkerPool;
+
+/**
+ * Watches how loaded the server is and decides when to stop admitting new
+ * sessions and when to shed the sessions it has, so that an overloaded
+ * server slows down for everyone a little and then turns clients away,
+ * rather than falling over. Load is sampled a few times a second:
+ * <ul>
+ * <li>the lag of the workers, i.e. how long a message waits to be handled,</li>
+ * <li>the number of tasks queued for the workers,</li>
+ * <li>the fraction of the heap still in use after the last collection of
+ * the old generation, since what is in use before it includes garbage,</li>
+ * <li>the CPU load of the process.</li>
+ * </ul>
+ * Each is compared with its limit, and the pressure is the largest ratio.
+ * Past 1 the server turns new sessions away; past the shed factor it stops
+ * a few of the lowest priority sessions at every sample until the pressure
+ * drops. It admits sessions again once the pressure is well below 1. Every
+ * session that is stopped or turned away is told how long to wait before it
+ * comes back, spread out so that they do not all come back at once.
+ *
+ * @see {@link pb.server.ServerManager#shedSessions(int, long)}
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @author aaron
+ *
+ */
+public class OverloadController {
+	private static Logger log = Logger.getLogger(OverloadController.class.getName());
+
+	public static enum State {
+		/**
+		 * Admitting new sessions.
+		 */
+		NORMAL,
+		/**
+		 * Turning new sessions away.
+		 */
+		REJECTING,
+		/**
+		 * Turning new sessions away and stopping some of the others.
+		 */
+		SHEDDING
+	}
+
+	/**
+	 * The limits past which the server is overloaded. A limit that is 0 or
+	 * less is not checked.
+	 */
+	public static final class Limits {
+		/**
+		 * The longest a message should wait for a worker, in ms.
+		 */
+		public final long maxLag;
+
+		/**
+		 * The most tasks that should be queued for the workers.
+		 */
+		public final int maxQueue;
+
+		/**
+		 * The largest fraction of the heap that should be in use after a
+		 * collection.
+		 */
+		public final double maxHeap;
+
+		/**
+		 * The largest fraction of the CPUs the process should use.
+		 */
+		public final double maxCpu;
+
+		/**
+		 * How far past the limits the server has to be before it stops
+		 * sessions, as a multiple of them.
+		 */
+		public final double shedFactor;
+
+		public Limits(long maxLag, int maxQueue, double maxHeap, double maxCpu, double shedFactor) {
+			if(shedFactor<1) throw new IllegalArgumentException("shed factor must be at least 1");
+			this.maxLag=maxLag;
+			this.maxQueue=maxQueue;
+			this.maxHeap=maxHeap;
+			this.maxCpu=maxCpu;
+			this.shedFactor=shedFactor;
+		}
+	}
+
+	/**
+	 * The limits used unless others are given.
+	 */
+	public static final Limits DEFAULT_LIMITS = new Limits(250, 20000, 0.9, 0.95, 1.5);
+
+	/**
+	 * How often the load is sampled, in ms.
+	 */
+	public static final long SAMPLE_PERIOD = 250;
+
+	/**
+	 * Sessions are admitted again once the pressure is below this.
+	 */
+	private static final double RECOVER_PRESSURE = 0.8;
+
+	/**
+	 * The fraction of the sessions that is stopped at each sample while
+	 * shedding, at least one.
+	 */
+	private static final double SHED_FRACTION = 0.05;
+
+	/**
+	 * How long a session that is turned away or stopped waits, in ms, at
+	 * least; the wait is spread over up to twice this.
+	 */
+	public static final long RETRY_AFTER = 10000;
+
+	private final ServerManager manager;
+	private final Limits limits;
+	private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	private final MemoryPoolMXBean oldGen = oldGen();
+	private volatile State state = State.NORMAL;
+	private volatile double pressure = 0;
+	private TimerTask sampler = null;
+
+	/**
+	 * @param manager the server whose sessions are shed
+	 * @param limits
+	 */
+	public OverloadController(ServerManager manager, Limits limits) {
+		this.manager=manager;
+		this.limits=limits;
+	}
+
+	/**
+	 * Start sampling the load.
+	 */
+	public synchronized void start() {
+		if(sampler!=null) return;
+		WorkerPool.getInstance().probe();
+		sampler = Utils.getInstance().setInterval(()->sample(), SAMPLE_PERIOD);
+	}
+
+	/**
+	 * Stop sampling the load, and admit every session from then on.
+	 */
+	public synchronized void stop() {
+		if(sampler!=null) sampler.cancel();
+		sampler = null;
+		state = State.NORMAL;
+	}
+
+	/**
+	 * @return whether a new session should be started
+	 */
+	public boolean isAdmitting() {
+		return state==State.NORMAL;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the pressure at the last sample, i.e. the largest ratio of a
+	 * load to its limit
+	 */
+	public double getPressure() {
+		return pressure;
+	}
+
+	/**
+	 * @return how long a session that is turned away or stopped should wait
+	 * before it comes back, in ms
+	 */
+	public long retryAfter() {
+		return RETRY_AFTER+ThreadLocalRandom.current().nextLong(RETRY_AFTER);
+	}
+
+	private void sample() {
+		WorkerPool workers = WorkerPool.getInstance();
+		double p = 0;
+		StringBuilder over = new StringBuilder();
+		p = check(p, over, "lag", workers.getLag(), limits.maxLag);
+		p = check(p, over, "queue", workers.getQueueDepth(), limits.maxQueue);
+		p = check(p, over, "heap", heapUsed(), limits.maxHeap);
+		p = check(p, over, "cpu", cpuLoad(), limits.maxCpu);
+		// probe again for the next sample
+		workers.probe();
+		pressure = p;
+		State old = state;
+		if(p>=limits.shedFactor) {
+			state = State.SHEDDING;
+		} else if(p>=1) {
+			state = State.REJECTING;
+		} else if(p<RECOVER_PRESSURE) {
+			state = State.NORMAL;
+		} else if(old==State.SHEDDING) {
+			// stop shedding, but do not admit until the pressure is well down
+			state = State.REJECTING;
+		}
+		if(state!=old) {
+			log.warning("overload "+old+" -> "+state+", pressure "+String.format("%.2f", p)
+					+(over.length()>0 ? " ("+over+")" : ""));
+		}
+		if(state==State.SHEDDING) {
+			int shed = (int) Math.max(1, manager.getNumSessions()*SHED_FRACTION);
+			manager.shedSessions(shed, retryAfter());
+		}
+	}
+
+	private static double check(double pressure, StringBuilder over, String name, double value, double limit) {
+		if(limit<=0 || value<0) return pressure;
+		double ratio = value/limit;
+		if(ratio>=1) {
+			if(over.length()>0) over.append(", ");
+			over.append(name).append(' ').append(String.format("%.2f", value));
+		}
+		return Math.max(pressure, ratio);
+	}
+
+	/**
+	 * @return the fraction of the heap in use after the last collection of
+	 * the old generation, or in use now if the collector does not say
+	 */
+	private double heapUsed() {
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		long max = heap.getMax()>0 ? heap.getMax() : heap.getCommitted();
+		if(oldGen==null) return (double) heap.getUsed()/max;
+		MemoryUsage collected = oldGen.getCollectionUsage();
+		if(collected==null) return (double) heap.getUsed()/max;
+		// what survives in the old generation is what the heap is really holding
+		long poolMax = collected.getMax()>0 ? collected.getMax() : max;
+		return (double) collected.getUsed()/poolMax;
+	}
+
+	/**
+	 * @return the heap pool of the old generation, the only heap pool if the
+	 * collector has one, or null if it cannot be told
+	 */
+	private static MemoryPoolMXBean oldGen() {
+		MemoryPoolMXBean only = null;
+		int pools = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType()!=MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) continue;
+			String name = pool.getName();
+			if(name.contains("Old") || name.contains("Tenured")) return pool;
+			only = pool;
+			pools++;
+		}
+		return pools==1 ? only : null;
+	}
+
+	/**
+	 * @return the CPU load of the process from 0 to 1, or -1 if the JVM
+	 * does not say
+	 */
+	private double cpuLoad() {
+		if(os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+		}
+		double load = os.getSystemLoadAverage();
+		return load<0 ? -1 : load/os.getAvailableProcessors();
+	}
+}
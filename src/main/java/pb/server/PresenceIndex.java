@@ -0,0 +1,340 @@
+package pb.server;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.Utils;
+import pb.WorkerPool;
+import pb.protocols.Message;
+import pb.protocols.presence.PresenceFrame;
+import pb.transport.DatagramLink;
+
+/**
+ * The latest cursor of each client on each board, which is sent to the
+ * clients showing the board once a tick, rather than passed on every time a
+ * cursor moves: with n clients moving their cursors, that would be n*(n-1)
+ * messages a move, whereas a tick sends each client one
+ * {@link pb.protocols.presence.PresenceFrame}, with only the cursors that
+ * have changed since the last frame it was sent. Every change to a board's
+ * presence is versioned, and each client has the version it was last sent,
+ * so clients that were sent the same version share a frame, which is encoded
+ * once; in the usual case, that is every client, so a tick costs what the
+ * number of clients does.
+ * <br/>
+ * Frames are sent with {@link pb.Endpoint#trySendEphemeral(Message)}, so one
+ * sent on a datagram link may be lost. Clients whose frames go on a link are
+ * sent a full frame every {@link #FULL_FRAME_TICKS} ticks, which puts right
+ * what they missed. A frame is not sent to a client that is not keeping up
+ * with its connection, rather than hold up the others, and that client is
+ * sent a full frame instead once it has caught up.
+ *
+ * @see {@link pb.protocols.presence.PresenceProtocol}
+ * @see {@link pb.server.ServerManager}
+ * @author aaron
+ *
+ */
+public class PresenceIndex {
+	private static Logger log = Logger.getLogger(PresenceIndex.class.getName());
+
+	/**
+	 * The time between frames, in ms.
+	 */
+	public static final long TICK = 50;
+
+	/**
+	 * How often clients whose frames may be lost are sent a full frame, in ticks.
+	 */
+	public static final int FULL_FRAME_TICKS = 20;
+
+	/**
+	 * The cursor of a client, or that it has left the board.
+	 */
+	private static final class Entry {
+		int replica;
+		int x;
+		int y;
+		long version;
+		boolean left;
+	}
+
+	/**
+	 * A client showing a board, and the version of the board's presence it
+	 * was last sent, or -1 if it has not been sent a frame.
+	 */
+	private static final class Subscriber {
+		final Endpoint endpoint;
+		long sent = -1;
+
+		Subscriber(Endpoint endpoint) {
+			this.endpoint=endpoint;
+		}
+	}
+
+	/**
+	 * The presence on one board. Its state is guarded by its lock, and its
+	 * frames are sent on the worker stripe of the board.
+	 */
+	private final class BoardPresence {
+		final String board;
+		final HashMap<Endpoint,Entry> entries = new HashMap<>();
+		final HashMap<Endpoint,Subscriber> subscribers = new HashMap<>();
+		long version = 0;
+
+		/**
+		 * The version of the newest entry for a client that has left which
+		 * has been forgotten; a client that was last sent an older version is
+		 * sent a full frame.
+		 */
+		long forgotten = 0;
+		boolean changed = false;
+		int ticks = 0;
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		BoardPresence(String board) {
+			this.board=board;
+		}
+
+		/**
+		 * Send each client the frame it is due, on a worker.
+		 */
+		void tick() {
+			List<Subscriber> audience = new ArrayList<>();
+			List<Message> frames = new ArrayList<>();
+			synchronized(this) {
+				boolean fullTick = ++ticks%FULL_FRAME_TICKS==0;
+				if(!changed && !fullTick) return;
+				changed = false;
+				// shared by the clients that were sent the same version
+				HashMap<Long,Message> byBase = new HashMap<>();
+				long oldest = version;
+				for(Subscriber subscriber : subscribers.values()) {
+					boolean full = subscriber.sent<forgotten || subscriber.sent<0
+							|| (fullTick && mayLose(subscriber.endpoint));
+					if(!full && subscriber.sent==version) continue;
+					long base = full ? -1 : subscriber.sent;
+					Message frame = byBase.get(base);
+					if(frame==null) {
+						frame = frame(base);
+						if(frame==null) continue;
+						byBase.put(base, frame);
+					}
+					subscriber.sent = version;
+					audience.add(subscriber);
+					frames.add(frame);
+				}
+				for(Subscriber subscriber : subscribers.values()) oldest = Math.min(oldest, subscriber.sent);
+				// every client has been sent that these clients left
+				Iterator<Entry> it = entries.values().iterator();
+				while(it.hasNext()) {
+					Entry entry = it.next();
+					if(entry.left && entry.version<=oldest) {
+						forgotten = Math.max(forgotten, entry.version);
+						it.remove();
+					}
+				}
+				if(subscribers.isEmpty() && entries.isEmpty()) boards.remove(board, this);
+			}
+			List<Subscriber> dropped = null;
+			for(int i=0;i<audience.size();i++) {
+				try {
+					if(audience.get(i).endpoint.trySendEphemeral(frames.get(i))) continue;
+				} catch (EndpointUnavailable e) {
+					// it is removed when the endpoint closes
+					continue;
+				}
+				if(dropped==null) dropped = new ArrayList<>();
+				dropped.add(audience.get(i));
+			}
+			if(dropped==null) return;
+			synchronized(this) {
+				// what the dropped frames held is sent again, in full
+				for(Subscriber subscriber : dropped) subscriber.sent = -1;
+				changed = true;
+			}
+		}
+
+		/**
+		 * Encode the cursors that have changed since a version. Called
+		 * holding the lock.
+		 * @param base the version, or -1 for every cursor
+		 * @return the frame, or null if it is too large
+		 */
+		Message frame(long base) {
+			int numCursors = 0;
+			int numLeft = 0;
+			for(Entry entry : entries.values()) {
+				if(entry.version<=base) continue;
+				if(entry.left) {
+					if(base>=0) numLeft++;
+				} else {
+					numCursors++;
+				}
+			}
+			long[] cursors = new long[numCursors*3];
+			long[] left = new long[numLeft];
+			int c = 0;
+			int l = 0;
+			for(Entry entry : entries.values()) {
+				if(entry.version<=base) continue;
+				if(entry.left) {
+					if(base>=0) left[l++] = entry.replica;
+				} else {
+					cursors[c++] = entry.replica;
+					cursors[c++] = entry.x;
+					cursors[c++] = entry.y;
+				}
+			}
+			try {
+				return PresenceFrame.shared(board, version, base<0, cursors, left);
+			} catch (UncheckedIOException e) {
+				log.warning("presence on "+board+" is too large to send: "+e.getMessage());
+				return null;
+			}
+		}
+	}
+
+	private final ConcurrentHashMap<String,BoardPresence> boards = new ConcurrentHashMap<>();
+
+	/**
+	 * The board each client is showing.
+	 */
+	private final ConcurrentHashMap<Endpoint,BoardPresence> showing = new ConcurrentHashMap<>();
+
+	private TimerTask ticker = null;
+
+	/**
+	 * @param endpoint
+	 * @return whether frames sent to the client may be lost
+	 */
+	private static boolean mayLose(Endpoint endpoint) {
+		DatagramLink link = endpoint.getDatagramLink();
+		return link!=null && link.isBound();
+	}
+
+	/**
+	 * Start sending frames.
+	 */
+	public synchronized void start() {
+		if(ticker!=null) return;
+		ticker = Utils.getInstance().setInterval(()->tick(), TICK);
+	}
+
+	/**
+	 * Stop sending frames.
+	 */
+	public synchronized void stop() {
+		if(ticker!=null) ticker.cancel();
+		ticker = null;
+	}
+
+	/**
+	 * Hand each board that has something to send to its worker, unless it
+	 * is still sending the last tick's frames.
+	 */
+	private void tick() {
+		for(BoardPresence presence : boards.values()) {
+			if(!presence.scheduled.compareAndSet(false, true)) continue;
+			WorkerPool.getInstance().execute(presence, ()->{
+				presence.scheduled.set(false);
+				presence.tick();
+			});
+		}
+	}
+
+	/**
+	 * A client is showing a board, so send it the cursors on the board from
+	 * the next tick. A client shows one board at a time.
+	 * @param endpoint
+	 * @param board
+	 */
+	public void subscribe(Endpoint endpoint, String board) {
+		BoardPresence old = showing.get(endpoint);
+		if(old!=null && old.board.equals(board)) return;
+		if(old!=null) leave(old, endpoint);
+		for(;;) {
+			BoardPresence presence = boards.computeIfAbsent(board, BoardPresence::new);
+			synchronized(presence) {
+				// removed while empty
+				if(boards.get(board)!=presence) continue;
+				presence.subscribers.put(endpoint, new Subscriber(endpoint));
+				presence.changed = true;
+			}
+			showing.put(endpoint, presence);
+			return;
+		}
+	}
+
+	/**
+	 * A client's cursor has moved on the board it is showing.
+	 * @param endpoint
+	 * @param board
+	 * @param replica the replica id of the client
+	 * @param x
+	 * @param y
+	 */
+	public void move(Endpoint endpoint, String board, int replica, int x, int y) {
+		BoardPresence presence = showing.get(endpoint);
+		if(presence==null || !presence.board.equals(board)) return;
+		synchronized(presence) {
+			if(!presence.subscribers.containsKey(endpoint)) return;
+			Entry entry = presence.entries.get(endpoint);
+			if(entry==null) {
+				entry = new Entry();
+				presence.entries.put(endpoint, entry);
+			}
+			entry.replica = replica;
+			entry.x = x;
+			entry.y = y;
+			entry.left = false;
+			entry.version = ++presence.version;
+			presence.changed = true;
+		}
+	}
+
+	/**
+	 * Forget a client, e.g. when it has disconnected; the other clients are
+	 * told it has left.
+	 * @param endpoint
+	 */
+	public void remove(Endpoint endpoint) {
+		BoardPresence presence = showing.remove(endpoint);
+		if(presence!=null) leave(presence, endpoint);
+	}
+
+	private void leave(BoardPresence presence, Endpoint endpoint) {
+		synchronized(presence) {
+			presence.subscribers.remove(endpoint);
+			Entry entry = presence.entries.get(endpoint);
+			if(entry!=null && !entry.left) {
+				entry.left = true;
+				entry.version = ++presence.version;
+			}
+			presence.changed = true;
+		}
+	}
+
+	/**
+	 * @param board
+	 * @return the number of clients with a cursor on the board
+	 */
+	public int getNumCursors(String board) {
+		BoardPresence presence = boards.get(board);
+		if(presence==null) return 0;
+		synchronized(presence) {
+			int n = 0;
+			for(Entry entry : presence.entries.values()) {
+				if(!entry.left) n++;
+			}
+			return n;
+		}
+	}
+}
@@ -2,17 +2,49 @@ package pb.server;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.Endpoint;
 import pb.EndpointUnavailable;
+import pb.LatencyStats;
 import pb.Manager;
 import pb.ProtocolAlreadyRunning;
+import pb.RateLimits;
+import pb.Trace;
 import pb.Utils;
+import pb.board.Board;
+import pb.board.BoardOp;
+import pb.board.HybridClock;
+import pb.board.Rect;
+import pb.board.Shape;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
+import pb.protocols.asset.AssetProtocol;
+import pb.protocols.board.BoardProtocol;
 import pb.protocols.keepalive.KeepAliveProtocol;
-import pb.protocols.session.SessionProtocol;;
+import pb.protocols.presence.CursorUpdate;
+import pb.protocols.presence.PresenceProtocol;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.viewport.ViewportProtocol;
+import pb.server.store.AssetStore;
+import pb.server.store.BoardStore;
+import pb.server.store.Compactor;
+import pb.transport.ChannelTransport;
+import pb.transport.DatagramHub;
+import pb.transport.DatagramLink;
+import pb.transport.TlsContext;
+import pb.transport.TlsTransport;
+import pb.transport.Transport;
 
 /**
  * Manages all of the clients for the server and the server's state.
@@ -28,18 +60,281 @@ import pb.protocols.session.SessionProtocol;;
 public class ServerManager extends Manager {
 	private static Logger log = Logger.getLogger(ServerManager.class.getName());
 	private IOThread ioThread;
+	
+	/**
+	 * Listens on the Unix domain socket, or null.
+	 */
+	private IOThread socketThread;
 	private Integer numLiveClients=0;
 	
+	/**
+	 * The durable boards, or null if the server is not keeping any.
+	 */
+	private BoardStore boardStore=null;
+	
+	/**
+	 * The boards, when the server is not keeping them in a store.
+	 */
+	private final ConcurrentHashMap<String,Board> boards = new ConcurrentHashMap<>();
+	
+	/**
+	 * Compact the history of a board that is not in a store once its tail
+	 * is this long.
+	 */
+	private static final int MAX_TAIL_OPS = 10000;
+	
+	/**
+	 * Versions the operations made by the server itself.
+	 */
+	private final HybridClock clock = new HybridClock();
+	
+	/**
+	 * The replica id of the server. Clients use other ids.
+	 */
+	public static final int SERVER_REPLICA = 0;
+	
+	/**
+	 * What each client can see.
+	 */
+	private final ViewportIndex viewportIndex = new ViewportIndex();
+	
+	/**
+	 * The most that keep alives are stretched apart when the server is
+	 * overloaded, as a multiple of the interval asked for.
+	 */
+	public static final double MAX_KEEP_ALIVE_STRETCH = 4;
+	
+	/**
+	 * The cursors of the clients on each board.
+	 */
+	private final PresenceIndex presenceIndex = new PresenceIndex();
+	
+	/**
+	 * The boards rendered into tiles, for clients that join them.
+	 */
+	private final TileCache tileCache = new TileCache();
+	
+	/**
+	 * How long the traced edits of each board have taken to get through the
+	 * server.
+	 */
+	private final LatencyStats latencyStats = new LatencyStats();
+	
+	/**
+	 * The assets that clients have uploaded.
+	 */
+	private final AssetStore assetStore;
+	
+	/**
+	 * The largest asset a client can upload, in bytes.
+	 */
+	public static final long MAX_ASSET_SIZE = 64*1024*1024;
+	
+	/**
+	 * How often partial uploads that have expired are deleted, in ms.
+	 */
+	private static final long PART_EXPIRY_INTERVAL = 60*60*1000;
+	
+	/**
+	 * Decides when to turn sessions away and when to shed them.
+	 */
+	private final OverloadController overload;
+	
+	/**
+	 * How fast each client may send.
+	 */
+	private final RateLimits rateLimits;
+	
+	/**
+	 * The keys to encrypt the connections of clients with, or null to not
+	 * encrypt them.
+	 */
+	private final TlsContext tls;
+	
+	/**
+	 * The datagram links of the sessions, or null if sessions are not given
+	 * any, which they are not if connections are encrypted, since datagrams
+	 * are not.
+	 */
+	private final DatagramHub datagramHub;
+	
+	/**
+	 * The rate limits used unless others are given: enough for a client that
+	 * is drawing and uploading assets flat out, with bursts, but not enough
+	 * for a scripted client to keep a worker to itself.
+	 */
+	public static final RateLimits DEFAULT_RATE_LIMITS = new RateLimits(
+			new RateLimits.Limit(2000, 4000, 16*1024*1024, 1024*1024), RateLimits.Action.THROTTLE)
+			.withProtocol(BoardProtocol.protocolName, new RateLimits.Limit(500, 1000, 0, 0))
+			.withProtocol(ViewportProtocol.protocolName, new RateLimits.Limit(60, 120, 0, 0))
+			.withProtocol(PresenceProtocol.protocolName, new RateLimits.Limit(120, 240, 0, 0))
+			.withProtocol(KeepAliveProtocol.protocolName, new RateLimits.Limit(10, 20, 0, 0))
+			.withProtocol(SessionProtocol.protocolName, new RateLimits.Limit(1, 5, 0, 0));
+	
+	/**
+	 * The session protocol of each client.
+	 */
+	private final ConcurrentHashMap<Endpoint,SessionProtocol> sessionProtocols = new ConcurrentHashMap<>();
+	
+	/**
+	 * When each session that is running started, in ms.
+	 */
+	private final ConcurrentHashMap<Endpoint,Long> sessions = new ConcurrentHashMap<>();
+	
+	/**
+	 * What a server listens on, keeps and limits, e.g. as parsed from the
+	 * command line. Anything not set has its default: the default port, no
+	 * board store, the default overload and rate limits, connections that are
+	 * not encrypted, no Unix domain socket, and the default acceptors and
+	 * backlog.
+	 */
+	public static class Config {
+		private int port = Utils.serverPort;
+		private Path dataDir = null;
+		private OverloadController.Limits limits = OverloadController.DEFAULT_LIMITS;
+		private RateLimits rateLimits = DEFAULT_RATE_LIMITS;
+		private TlsContext tls = null;
+		private Path socketPath = null;
+		private int acceptors = IOThread.DEFAULT_ACCEPTORS;
+		private int backlog = IOThread.DEFAULT_BACKLOG;
+		
+		private Config() {
+		}
+		
+		/**
+		 * @param port for the io thread to listen on
+		 * @return this config
+		 */
+		public Config port(int port) {
+			this.port = port;
+			return this;
+		}
+		
+		/**
+		 * @param dataDir directory for the board store, or null to not keep boards
+		 * @return this config
+		 */
+		public Config dataDir(Path dataDir) {
+			this.dataDir = dataDir;
+			return this;
+		}
+		
+		/**
+		 * @param limits the load past which sessions are turned away and shed
+		 * @return this config
+		 */
+		public Config limits(OverloadController.Limits limits) {
+			this.limits = limits;
+			return this;
+		}
+		
+		/**
+		 * @return how fast each client may send, or null for no limit
+		 */
+		public RateLimits getRateLimits() {
+			return rateLimits;
+		}
+		
+		/**
+		 * @param rateLimits how fast each client may send, or null for no limit
+		 * @return this config
+		 */
+		public Config rateLimits(RateLimits rateLimits) {
+			this.rateLimits = rateLimits;
+			return this;
+		}
+		
+		/**
+		 * @param tls the keys of the server, or null for connections that are not encrypted
+		 * @return this config
+		 */
+		public Config tls(TlsContext tls) {
+			this.tls = tls;
+			return this;
+		}
+		
+		/**
+		 * @param socketPath the Unix domain socket to also listen on for
+		 * clients on the same host, whose connections are not encrypted, or
+		 * null to only listen on the port
+		 * @return this config
+		 */
+		public Config socket(Path socketPath) {
+			this.socketPath = socketPath;
+			return this;
+		}
+		
+		/**
+		 * @param acceptors the number of threads accepting connections
+		 * @return this config
+		 * @throws IllegalArgumentException if there is not at least 1
+		 */
+		public Config acceptors(int acceptors) {
+			if(acceptors<1) throw new IllegalArgumentException("at least 1 acceptor is needed");
+			this.acceptors = acceptors;
+			return this;
+		}
+		
+		/**
+		 * @param backlog the number of connections the kernel queues for the acceptors
+		 * @return this config
+		 */
+		public Config backlog(int backlog) {
+			this.backlog = backlog;
+			return this;
+		}
+	}
+	
+	/**
+	 * @return a config for a server, with every setting at its default
+	 */
+	public static Config config() {
+		return new Config();
+	}
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
 	 * @throws IOException whenever the exception is deemed unrecoverable
 	 */
 	public ServerManager(int port) throws IOException {
+		this(config().port(port));
+	}
+	
+	/**
+	 * Initialise the ServerManager, which listens and keeps the boards as
+	 * configured, and returns once the server has shut down.
+	 * @param config what to listen on, keep and limit
+	 * @throws IOException whenever the exception is deemed unrecoverable
+	 */
+	public ServerManager(Config config) throws IOException {
 		log.info("initializing");
+		this.rateLimits = config.rateLimits;
+		this.tls = config.tls;
+		overload = new OverloadController(this, config.limits);
+		if(config.dataDir!=null) {
+			// recover the boards before accepting any clients
+			boardStore = new BoardStore(config.dataDir);
+			assetStore = new AssetStore(config.dataDir.resolve("assets"));
+		} else {
+			assetStore = new AssetStore(Files.createTempDirectory("pb-assets"));
+		}
+		datagramHub = tls==null ? openDatagramHub(config.port) : null;
+		overload.start();
+		presenceIndex.start();
+		Utils.getInstance().setInterval(()->assetStore.expireParts(), PART_EXPIRY_INTERVAL);
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
-		ioThread = new IOThread(port,this);
+		ioThread = new IOThread(config.port,this,config.acceptors,config.backlog);
+		if(config.socketPath!=null) {
+			try {
+				socketThread = new IOThread(config.socketPath,this,config.acceptors,config.backlog);
+			} catch (IOException e) {
+				ioThread.shutDown();
+				throw e;
+			}
+		}
+		serverStarted();
 		try {
 			// just wait for this thread to terminate
 			ioThread.join();
@@ -47,6 +342,15 @@ public class ServerManager extends Manager {
 			// just make sure the ioThread is going to terminate
 			ioThread.shutDown();
 		}
+		if(socketThread!=null) {
+			// no new connections on the socket either
+			socketThread.shutDown();
+			try {
+				socketThread.join();
+			} catch (InterruptedException e) {
+				// it is already closed
+			}
+		}
 		// At this point, there still may be some endpoints that have not
 		// terminated, and so the JVM will remain running until they do.
 		// However no new endpoints can be created.
@@ -66,10 +370,181 @@ public class ServerManager extends Manager {
 		}
 		
 		// there are no live clients, so let's clean up
+		overload.stop();
+		presenceIndex.stop();
+		if(datagramHub!=null) datagramHub.close();
+		if(boardStore!=null) boardStore.close();
 		Utils.getInstance().cleanUp();
 		log.info("server terminated cleanly");
 	}
 	
+	/**
+	 * Receive datagrams on the UDP port with the same number as the server's
+	 * TCP port, if it is free.
+	 * @param port
+	 * @return the hub, or null if the port cannot be bound
+	 */
+	private static DatagramHub openDatagramHub(int port) {
+		try {
+			return new DatagramHub(port);
+		} catch (IOException e) {
+			log.warning("sessions will not have datagram links: "+e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the durable boards, or null if the server is not keeping any
+	 */
+	public BoardStore getBoardStore() {
+		return boardStore;
+	}
+	
+	/**
+	 * @param name
+	 * @return the board with the name, created empty if there is none
+	 */
+	public Board getBoard(String name) {
+		if(boardStore!=null) return boardStore.getBoard(name);
+		return boards.computeIfAbsent(name, Board::new);
+	}
+	
+	/**
+	 * Merge an operation into its board, logging it if the server keeps a
+	 * store, and send it to the clients that can see it.
+	 * @param op
+	 * @return true if the operation was applied
+	 * @throws IOException if the operation could not be logged, in which
+	 * case it has not been applied
+	 */
+	public boolean applyBoardOp(BoardOp op) throws IOException {
+		return applyBoardOp(op, null);
+	}
+	
+	/**
+	 * Merge an operation into its board, logging it if the server keeps a
+	 * store, and send it to the clients that can see it. An operation that is
+	 * not versioned is stamped with the server's clock first, so that clients
+	 * merge it like any other edit.
+	 * @param op
+	 * @param from the client that sent the operation, which already has it, or null
+	 * @return true if the operation was applied, false if it lost to a later edit
+	 * @throws IOException if the operation could not be logged, in which
+	 * case it has not been applied
+	 */
+	public boolean applyBoardOp(BoardOp op, Endpoint from) throws IOException {
+		return applyBoardOp(op, from, null);
+	}
+	
+	/**
+	 * Merge an operation into its board, as
+	 * {@link #applyBoardOp(BoardOp, Endpoint)}, stamping its trace as it is
+	 * sent on.
+	 * @param op
+	 * @param from the client that sent the operation, which already has it, or null
+	 * @param trace the trace of the operation, or null
+	 * @return true if the operation was applied, false if it lost to a later edit
+	 * @throws IOException if the operation could not be logged, in which
+	 * case it has not been applied
+	 */
+	public boolean applyBoardOp(BoardOp op, Endpoint from, Trace trace) throws IOException {
+		if(op.clock==0) op = op.stamped(clock.now(), SERVER_REPLICA);
+		Board board = getBoard(op.board);
+		ViewportIndex.Fanout fanout;
+		synchronized(board) {
+			fanout = merge(board, op, from, trace);
+		}
+		if(fanout==null) return false;
+		// sent once the board is released, so a client that is slow to read
+		// holds up no other writer
+		fanout.send();
+		return true;
+	}
+	
+	/**
+	 * Merge an operation into its board, while holding the lock of the board.
+	 * @param board
+	 * @param op
+	 * @param from the client that sent the operation, or null
+	 * @param trace the trace of the operation, or null
+	 * @return what to send to the clients that can see the operation, or
+	 * null if it lost to a later edit
+	 * @throws IOException if the operation could not be logged
+	 */
+	private ViewportIndex.Fanout merge(Board board, BoardOp op, Endpoint from, Trace trace) throws IOException {
+		if(!board.admits(op)) return null;
+		Shape old = op.type==BoardOp.Type.CLEAR ? null : board.getShape(op.shapeId);
+		if(boardStore!=null) {
+			boardStore.apply(op);
+		} else {
+			board.apply(op, 0);
+			if(board.getTailSize()>=MAX_TAIL_OPS) {
+				board.installSnapshot(board.compact(HybridClock.fromMillis(
+						System.currentTimeMillis()-Compactor.TOMBSTONE_TTL)));
+			}
+		}
+		if(op.type==BoardOp.Type.APPEND && old!=null) {
+			// only the new points and the join to them are drawn
+			int last = old.numPoints()-1;
+			tileCache.invalidate(op.board, op.shape.bounds.union(
+					new Rect(old.x(last), old.y(last), old.x(last), old.y(last)).grow(old.width/2+1)));
+			return viewportIndex.publishAppend(op, old, board.getShape(op.shapeId), from, trace);
+		}
+		if(op.type==BoardOp.Type.CLEAR) {
+			// the assets on the board go with everything else
+			try {
+				assetStore.removeReferences(op.board);
+			} catch (IOException e) {
+				log.warning("could not release the assets of "+op.board+": "+e.getMessage());
+			}
+		}
+		Rect bounds = null;
+		if(op.type!=BoardOp.Type.CLEAR) {
+			// nobody can see the removal of a shape the server did not have
+			if(old==null && op.shape==null) return ViewportIndex.NONE;
+			bounds = old==null ? op.shape.bounds 
+					: op.shape==null ? old.bounds : old.bounds.union(op.shape.bounds);
+		}
+		tileCache.invalidate(op.board, bounds);
+		return viewportIndex.publish(op, bounds, from, trace);
+	}
+	
+	/**
+	 * A client has sent an edit. Merge it and pass it on.
+	 * @param endpoint
+	 * @param op
+	 */
+	@Override
+	public void boardUpdated(Endpoint endpoint, BoardOp op) {
+		boardUpdated(endpoint, op, null);
+	}
+	
+	/**
+	 * A client has sent an edit, which may be traced. Merge it and pass it
+	 * on, and record how long the trace took to get through the server.
+	 * @param endpoint
+	 * @param op
+	 * @param trace
+	 */
+	@Override
+	public void boardUpdated(Endpoint endpoint, BoardOp op, Trace trace) {
+		if(!clock.update(op.clock)) {
+			log.warning("edit from "+endpoint.getOtherEndpointId()+" is too far in the future");
+			return;
+		}
+		try {
+			applyBoardOp(op, endpoint, trace);
+		} catch (IOException e) {
+			log.severe("could not log edit: "+e.getMessage());
+			return;
+		}
+		if(trace!=null) {
+			latencyStats.record(op.board, trace, -1);
+			long published = trace.get(Trace.PUBLISHED);
+			if(published>=0) latencyStats.record(op.board, LatencyStats.Segment.FANOUT, Trace.now()-published);
+		}
+	}
+	
 	/**
 	 * A new client has connected to the server. We need to keep
 	 * a set of all clients that have connected, so that we can
@@ -81,6 +556,74 @@ public class ServerManager extends Manager {
 		endpoint.start();
 	}
 	
+	/**
+	 * A new client has connected to the server on a transport of its own,
+	 * e.g. one of a {@link pb.transport.LoopbackTransport#pair()} whose
+	 * other end is a client in the same process.
+	 * @param transport the transport of the client's connection.
+	 */
+	public void acceptClient(Transport transport) {
+		new Endpoint(transport,this).start();
+	}
+	
+	/**
+	 * Called once the server is accepting clients, while the constructor
+	 * waits for it to shut down, e.g. so that a subclass can connect clients
+	 * in the same process with {@link #acceptClient(Transport)}.
+	 */
+	protected void serverStarted() {
+		
+	}
+	
+	/**
+	 * A new client has connected to the server, on a channel that is read
+	 * and written by the {@link pb.transport.IOEngine}, which the IOThread
+	 * calls on a loop of the engine, encrypted if the
+	 * server has keys, unless it is on the Unix domain socket, which only
+	 * the same host can connect to.
+	 * @param clientChannel the channel connection for the client.
+	 */
+	public void acceptClient(SocketChannel clientChannel) {
+		try {
+			boolean unix = clientChannel.getLocalAddress() instanceof UnixDomainSocketAddress;
+			Transport transport = tls==null || unix ? new ChannelTransport(clientChannel)
+					: new TlsTransport(clientChannel, tls);
+			new Endpoint(transport,this).start();
+		} catch (IOException e) {
+			log.warning("could not accept client: "+e.getMessage());
+			try {
+				clientChannel.close();
+			} catch (IOException e1) {
+				// already broken
+			}
+		}
+	}
+	
+	/**
+	 * A client that is starting a session can bind a datagram link, which it
+	 * is given if the server has a hub, unless it is on the same host.
+	 * @param endpoint
+	 * @return the link, or null
+	 */
+	@Override
+	public DatagramLink datagramsRequested(Endpoint endpoint) {
+		return datagramHub==null || endpoint.isLocal() ? null : datagramHub.open();
+	}
+	
+	/**
+	 * @return the datagram links of the sessions, or null if they have none
+	 */
+	public DatagramHub getDatagramHub() {
+		return datagramHub;
+	}
+	
+	/**
+	 * @return the keys connections are encrypted with, or null if they are not
+	 */
+	public TlsContext getTls() {
+		return tls;
+	}
+	
 	/**
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
@@ -101,6 +644,7 @@ public class ServerManager extends Manager {
 		   // hmmm... already requested by the client
 		  }
 		  SessionProtocol sessionProtocol = new SessionProtocol(endpoint,this);
+		  sessionProtocols.put(endpoint, sessionProtocol);
 		  try {
 		   endpoint.handleProtocol(sessionProtocol);
 		   sessionProtocol.startAsServer();
@@ -118,6 +662,10 @@ public class ServerManager extends Manager {
 	 * @param endpoint
 	 */
 	public void endpointClosed(Endpoint endpoint) {
+		viewportIndex.removeViewport(endpoint);
+		presenceIndex.remove(endpoint);
+		sessionProtocols.remove(endpoint);
+		sessions.remove(endpoint);
 		synchronized(numLiveClients) {
 			numLiveClients--;
 		}
@@ -131,6 +679,7 @@ public class ServerManager extends Manager {
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with client: "+endpoint.getOtherEndpointId());
+		sessions.put(endpoint, System.currentTimeMillis());
 		
 		// we can now engage with higher level protocols
 		
@@ -146,22 +695,298 @@ public class ServerManager extends Manager {
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
+		sessions.remove(endpoint);
 		
 		
 		// we can now signal the client endpoint to close and forget this client
 		endpoint.close(); // will stop all remaining protocols
 	}
 	
+	/**
+	 * @return how fast each client may send
+	 */
+	@Override
+	public RateLimits getRateLimits() {
+		return rateLimits;
+	}
+	
+	/**
+	 * A client has asked for an interval between keep alives, which is
+	 * stretched by as much as the server is overloaded, up to
+	 * {@link #MAX_KEEP_ALIVE_STRETCH} times, so that a loaded server spends
+	 * less on them.
+	 * @param endpoint
+	 * @param requested the interval asked for, in ms
+	 * @return the interval granted, in ms
+	 */
+	@Override
+	public long keepAliveInterval(Endpoint endpoint, long requested) {
+		double pressure = overload.getPressure();
+		if(pressure<=1) return requested;
+		return (long) (requested*Math.min(pressure, MAX_KEEP_ALIVE_STRETCH));
+	}
+	
+	/**
+	 * A client has asked to start a session, which is turned away if the
+	 * server is overloaded.
+	 * @param endpoint
+	 * @return 0 to start the session, otherwise how long the client should
+	 * wait before asking again, in ms
+	 */
+	@Override
+	public long admitSession(Endpoint endpoint) {
+		return overload.isAdmitting() ? 0 : overload.retryAfter();
+	}
+	
+	/**
+	 * Stop the sessions with the lowest priority, the newest first, because
+	 * the server is overloaded. Called on the timer, so a client that is not
+	 * keeping up is disconnected rather than waited for.
+	 * @param count how many sessions to stop
+	 * @param retryAfter how long the clients should wait before starting
+	 * another session, in ms
+	 */
+	public void shedSessions(int count, long retryAfter) {
+		List<Map.Entry<Endpoint,Long>> running = new ArrayList<>(sessions.entrySet());
+		running.sort(Comparator.<Map.Entry<Endpoint,Long>>comparingInt(e -> sessionPriority(e.getKey()))
+				.thenComparing(Map.Entry::getValue, Comparator.reverseOrder()));
+		for(Map.Entry<Endpoint,Long> session : running.subList(0, Math.min(count, running.size()))) {
+			Endpoint endpoint = session.getKey();
+			// it is stopping, so it is not shed again
+			if(sessions.remove(endpoint)==null) continue;
+			SessionProtocol protocol = sessionProtocols.get(endpoint);
+			if(protocol==null) continue;
+			log.warning("shedding session with client: "+endpoint.getOtherEndpointId());
+			try {
+				protocol.stopSession(retryAfter);
+			} catch (EndpointUnavailable e) {
+				// it is going anyway
+			}
+		}
+	}
+	
+	/**
+	 * The priority of a session when the server is overloaded: sessions with
+	 * a lower priority are shed first. A client that is showing a board comes
+	 * before one that is not.
+	 * @param endpoint
+	 * @return the priority
+	 */
+	protected int sessionPriority(Endpoint endpoint) {
+		return viewportIndex.hasViewport(endpoint) ? 1 : 0;
+	}
+	
+	/**
+	 * @return the number of sessions that are running
+	 */
+	public int getNumSessions() {
+		return sessions.size();
+	}
+	
+	/**
+	 * @return what decides when sessions are turned away and shed
+	 */
+	public OverloadController getOverloadController() {
+		return overload;
+	}
+	
+	/**
+	 * The client is now showing a region of a board. Send it what has come
+	 * into view, and from now on the operations that it can see. A client
+	 * that has joined the board, or jumped to a region it could not see, is
+	 * first sent the tiles of its viewport, so that it can show the board
+	 * before the shapes arrive.
+	 * @param endpoint
+	 * @param board
+	 * @param viewport
+	 * @throws EndpointUnavailable
+	 */
+	@Override
+	public void viewportChanged(Endpoint endpoint, String board, Rect viewport) throws EndpointUnavailable {
+		Board b = getBoard(board);
+		Rect old = viewportIndex.getViewport(endpoint, board);
+		if(old==null || !old.intersects(viewport)) {
+			tileCache.sendTiles(endpoint, b, viewport);
+		}
+		viewportIndex.setViewport(endpoint, b, viewport);
+		presenceIndex.subscribe(endpoint, board);
+	}
+	
+	/**
+	 * A client's cursor has moved on the board it is showing, which the
+	 * other clients showing the board are sent in the next frame.
+	 * @param endpoint
+	 * @param cursor
+	 */
+	@Override
+	public void cursorMoved(Endpoint endpoint, CursorUpdate cursor) {
+		presenceIndex.move(endpoint, cursor.getBoard(), cursor.getReplica(), cursor.getX(), cursor.getY());
+	}
+	
+	/**
+	 * A client is about to use an asset on a board, or wants to fetch it.
+	 * The board holds a reference to the asset from now on, whether or not
+	 * it has been uploaded yet.
+	 * @param endpoint
+	 * @param asset
+	 * @param board
+	 * @return the size of the asset, or -1 if the client has to upload it
+	 */
+	@Override
+	public long assetQueried(Endpoint endpoint, String asset, String board) {
+		if(!AssetProtocol.isHash(asset)) return -1;
+		if(board!=null) {
+			try {
+				assetStore.addReference(board, asset);
+			} catch (IOException | IllegalArgumentException e) {
+				log.warning("could not add asset "+asset+" to "+board+": "+e.getMessage());
+			}
+		}
+		return assetStore.size(asset);
+	}
+	
+	/**
+	 * Send an asset to a client, from memory if it is small enough to cache.
+	 * @param endpoint
+	 * @param asset
+	 * @param protocol
+	 * @throws EndpointUnavailable
+	 */
+	@Override
+	public void assetFetched(Endpoint endpoint, String asset, AssetProtocol protocol) throws EndpointUnavailable {
+		ByteBuffer bytes = assetStore.getBytes(asset);
+		if(bytes!=null) {
+			protocol.sendAsset(asset, bytes);
+			return;
+		}
+		Path file = assetStore.getFile(asset);
+		if(file==null) return;
+		try {
+			protocol.sendAsset(asset, file);
+		} catch (IOException e) {
+			log.warning("could not send asset "+asset+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * A client is offering an asset. Assets are named by their hash, and
+	 * partly uploaded assets are kept, so that the upload can resume if the
+	 * client reconnects. An asset the store already has is never written
+	 * to, since other boards may use it: the offer is complete if it is the
+	 * same size, and refused if not, since it cannot then be the same asset.
+	 * Anything else is uploaded into the part file, by one transfer at a
+	 * time, and only kept if it matches its hash. An offer of an asset that
+	 * is already being uploaded is refused, so that no two transfers write
+	 * the same file.
+	 * @param endpoint
+	 * @param asset
+	 * @param size
+	 * @return the file to write the asset to, the asset in the store if it is
+	 * already there, or null if it is refused
+	 */
+	@Override
+	public Path assetOffered(Endpoint endpoint, String asset, long size) {
+		if(!AssetProtocol.isHash(asset) || size<0 || size>MAX_ASSET_SIZE) {
+			log.warning("refused asset "+asset+" of "+size+" bytes from "+endpoint.getOtherEndpointId());
+			return null;
+		}
+		Path file = assetStore.getFile(asset);
+		if(file!=null) {
+			if(assetStore.size(asset)==size) return file;
+			log.warning("refused asset "+asset+" of "+size+" bytes from "+endpoint.getOtherEndpointId()
+					+", which is not the size of the asset in the store");
+			return null;
+		}
+		Path part = assetStore.beginUpload(asset);
+		if(part==null) {
+			log.info("refused asset "+asset+" from "+endpoint.getOtherEndpointId()+", which is already being uploaded");
+		}
+		return part;
+	}
+	
+	/**
+	 * A client has uploaded all of an asset, so it can be used once it has
+	 * been checked against its hash.
+	 * @param endpoint
+	 * @param asset
+	 * @param file
+	 */
+	@Override
+	public void assetReceived(Endpoint endpoint, String asset, Path file) {
+		if(file.equals(assetStore.getFile(asset))) return;
+		try {
+			if(assetStore.commit(asset, file)) {
+				log.info("received asset "+asset+" from "+endpoint.getOtherEndpointId());
+			}
+		} catch (IOException e) {
+			log.severe("could not keep asset "+asset+": "+e.getMessage());
+		} finally {
+			assetStore.endUpload(asset);
+		}
+	}
+	
+	/**
+	 * A client's upload of an asset stopped before the end. What it uploaded
+	 * is kept in the part file, for it to resume.
+	 * @param endpoint
+	 * @param asset
+	 * @param file
+	 */
+	@Override
+	public void assetAbandoned(Endpoint endpoint, String asset, Path file) {
+		if(file.equals(assetStore.getFile(asset))) return;
+		assetStore.endUpload(asset);
+	}
+	
+	/**
+	 * @return the assets that clients have uploaded
+	 */
+	public AssetStore getAssetStore() {
+		return assetStore;
+	}
+	
+	/**
+	 * @return the cursors of the clients on each board
+	 */
+	public PresenceIndex getPresenceIndex() {
+		return presenceIndex;
+	}
+	
+	/**
+	 * @return the boards rendered into tiles
+	 */
+	public TileCache getTileCache() {
+		return tileCache;
+	}
+	
+	/**
+	 * @return how long the traced edits of each board have taken to get
+	 * through the server
+	 */
+	public LatencyStats getLatencyStats() {
+		return latencyStats;
+	}
+	
 	/**
 	 * The endpoint has requested a protocol to start. If the protocol
 	 * is allowed then the manager should tell the endpoint to handle it
 	 * using {@link pb.Endpoint#handleProtocol(Protocol)}
-	 * before returning true.
+	 * before returning true. Only the session and keep alive protocols run
+	 * without a session, so that a client that was turned away or shed
+	 * cannot be served anyway; asking for any other is a protocol violation.
 	 * @param protocol
 	 * @return true if the protocol was started, false if not (not allowed to run)
 	 */
 	@Override
 	public boolean protocolRequested(Endpoint endpoint, Protocol protocol) {
+		if(protocol.getProtocolId()!=SessionProtocol.protocolId
+				&& protocol.getProtocolId()!=KeepAliveProtocol.protocolId
+				&& !sessions.containsKey(endpoint)) {
+			log.warning("client "+endpoint.getOtherEndpointId()+" requested "+protocol.getProtocolName()
+					+" without a session");
+			protocolViolation(endpoint, protocol);
+			return false;
+		}
 		// the only protocols in this system are this kind...
 		try {
 			((IRequestReplyProtocol)protocol).startAsServer();
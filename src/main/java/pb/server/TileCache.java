@@ -0,0 +1,359 @@
+package pb.server;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.board.Board;
+import pb.board.Rect;
+import pb.board.Shape;
+import pb.protocols.viewport.ViewportTile;
+
+/**
+ * The boards rendered into PNG tiles, so that a client joining a board can be
+ * sent a picture of its viewport straight away, however many shapes are on
+ * the board and however long its history. Tiles are rendered when first
+ * asked for, from the current shapes of the board, and kept in a bounded LRU
+ * cache. An operation drops the tiles it touches at every level, and they are
+ * rendered again when next asked for.
+ * <br/>
+ * Tiles are a preview, until the shapes arrive, so they are paletted PNGs:
+ * they are a third of the size of full colour ones, which keeps a busy tile
+ * within a frame.
+ * <br/>
+ * Rendering happens outside the lock of the board, once per tile however
+ * many clients ask for it at once, e.g. when many join a board together:
+ * those that ask while it is being rendered wait for it. A tile that is
+ * dropped while it is being rendered is not cached, since it may be missing
+ * the operation that dropped it.
+ *
+ * @see {@link pb.protocols.viewport.ViewportTile}
+ * @see {@link pb.server.ServerManager}
+ * @author aaron
+ *
+ */
+public class TileCache {
+	private static Logger log = Logger.getLogger(TileCache.class.getName());
+
+	static {
+		// the server has no display
+		System.setProperty("java.awt.headless", "true");
+	}
+
+	/**
+	 * The default size of the cache, in bytes of PNG.
+	 */
+	public static final long CACHE_SIZE = 32*1024*1024;
+
+	/**
+	 * The level is chosen so that a viewport is at most this many pixels
+	 * across.
+	 */
+	public static final int MAX_VIEW_PIXELS = 1024;
+
+	/**
+	 * The most tiles sent for one viewport.
+	 */
+	public static final int MAX_TILES = 36;
+
+	/**
+	 * What an entry costs in the cache besides its PNG, so that empty tiles
+	 * are bounded too.
+	 */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	/**
+	 * Scan the cache rather than look up every tile when an operation
+	 * touches more tiles than this at a level.
+	 */
+	private static final int MAX_LOOKUPS = 64;
+
+	/**
+	 * The colours of a tile: transparent, a 6x6x6 colour cube and greys.
+	 */
+	private static final IndexColorModel PALETTE;
+	static {
+		byte[] r = new byte[256], g = new byte[256], b = new byte[256], a = new byte[256];
+		int i = 1;
+		for(int red=0;red<6;red++) {
+			for(int green=0;green<6;green++) {
+				for(int blue=0;blue<6;blue++) {
+					r[i]=(byte) (red*51);
+					g[i]=(byte) (green*51);
+					b[i]=(byte) (blue*51);
+					a[i++]=(byte) 0xff;
+				}
+			}
+		}
+		for(int grey=1;i<256;grey++) {
+			r[i]=g[i]=b[i]=(byte) (grey*255/40);
+			a[i++]=(byte) 0xff;
+		}
+		PALETTE = new IndexColorModel(8, 256, r, g, b, a);
+	}
+
+	private static final class Key {
+		final String board;
+		final int level;
+		final int x;
+		final int y;
+
+		Key(String board, int level, int x, int y) {
+			this.board=board;
+			this.level=level;
+			this.x=x;
+			this.y=y;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return level==k.level && x==k.x && y==k.y && board.equals(k.board);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(board, level, x, y);
+		}
+	}
+
+	/**
+	 * A tile, which completes when it has been rendered, with null if it
+	 * could not be.
+	 */
+	private static final class Entry {
+		final CompletableFuture<byte[]> png = new CompletableFuture<>();
+
+		/**
+		 * What the tile costs in the cache, 0 until it has been rendered.
+		 * Guarded by the cache's lock.
+		 */
+		int cost;
+	}
+
+	private final long cacheSize;
+
+	/**
+	 * The tiles, least recently used first.
+	 */
+	private final LinkedHashMap<Key,Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private long cached = 0;
+
+	public TileCache() {
+		this(CACHE_SIZE);
+	}
+
+	/**
+	 * @param cacheSize the most bytes of tiles to keep
+	 */
+	public TileCache(long cacheSize) {
+		this.cacheSize=cacheSize;
+	}
+
+	/**
+	 * @param viewport
+	 * @return the level of zoom to show the viewport at
+	 */
+	public static int level(Rect viewport) {
+		long across = Math.max(viewport.width(), viewport.height());
+		int level = 0;
+		while(level<ViewportTile.LEVELS-1 && across>((long) MAX_VIEW_PIXELS<<level)) level++;
+		return level;
+	}
+
+	/**
+	 * Send a client the tiles that cover its viewport, each as soon as it is
+	 * rendered, if it is not cached. Tiles with nothing on them are left out.
+	 * @param endpoint
+	 * @param board
+	 * @param viewport
+	 * @return the number of tiles sent, none if the viewport needs more than
+	 * {@link #MAX_TILES}
+	 * @throws EndpointUnavailable
+	 */
+	public int sendTiles(Endpoint endpoint, Board board, Rect viewport) throws EndpointUnavailable {
+		int level = level(viewport);
+		long span = (long) ViewportTile.TILE_SIZE<<level;
+		long x0 = Math.floorDiv(viewport.minX, span), x1 = Math.floorDiv(viewport.maxX, span);
+		long y0 = Math.floorDiv(viewport.minY, span), y1 = Math.floorDiv(viewport.maxY, span);
+		if((x1-x0+1)*(y1-y0+1)>MAX_TILES) return 0;
+		int sent = 0;
+		for(int y=(int) y0;y<=y1;y++) {
+			for(int x=(int) x0;x<=x1;x++) {
+				byte[] png = getTile(board, level, x, y);
+				if(png==null || png.length==0) continue;
+				ViewportTile tile;
+				try {
+					tile = new ViewportTile(board.getName(), level, x, y, png);
+				} catch (IllegalArgumentException e) {
+					// too busy to be worth a preview, the shapes follow anyway
+					log.fine("tile "+level+"/"+x+"/"+y+" of "+board.getName()+" is too large to send");
+					continue;
+				}
+				endpoint.send(tile);
+				sent++;
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * @param board
+	 * @param level
+	 * @param x
+	 * @param y
+	 * @return the tile as a PNG, empty if there is nothing on it, or null if
+	 * it could not be rendered
+	 */
+	public byte[] getTile(Board board, int level, int x, int y) {
+		Key key = new Key(board.getName(), level, x, y);
+		Rect region = ViewportTile.region(level, x, y);
+		Entry entry;
+		List<Shape> shapes = null;
+		synchronized(board) {
+			synchronized(cache) {
+				entry = cache.get(key);
+				if(entry==null) {
+					entry = new Entry();
+					cache.put(key, entry);
+					shapes = board.getShapes(region);
+				}
+			}
+		}
+		// rendered by the first to ask, the others wait for it
+		if(shapes==null) return entry.png.join();
+		byte[] png = null;
+		try {
+			png = shapes.isEmpty() ? new byte[0] : render(shapes, level, region);
+		} catch (IOException e) {
+			log.warning("could not render tile "+level+"/"+x+"/"+y+" of "+board.getName()+": "+e.getMessage());
+		} finally {
+			synchronized(cache) {
+				if(cache.get(key)==entry) {
+					if(png==null) {
+						cache.remove(key);
+					} else {
+						// not cached if an operation dropped it while it was rendered
+						entry.cost=ENTRY_OVERHEAD+png.length;
+						cached+=entry.cost;
+						evict();
+					}
+				}
+			}
+			entry.png.complete(png);
+		}
+		return png;
+	}
+
+	/**
+	 * Drop the tiles that an operation touched. Must be called while holding
+	 * the lock of the board, after the operation has been applied.
+	 * @param board
+	 * @param bounds the region the operation changed, or null for the whole board
+	 */
+	public void invalidate(String board, Rect bounds) {
+		synchronized(cache) {
+			if(cache.isEmpty()) return;
+			for(int level=0;level<ViewportTile.LEVELS;level++) {
+				long span = (long) ViewportTile.TILE_SIZE<<level;
+				if(bounds!=null) {
+					long x0 = Math.floorDiv(bounds.minX, span), x1 = Math.floorDiv(bounds.maxX, span);
+					long y0 = Math.floorDiv(bounds.minY, span), y1 = Math.floorDiv(bounds.maxY, span);
+					if((x1-x0+1)*(y1-y0+1)<=MAX_LOOKUPS) {
+						for(int y=(int) y0;y<=y1;y++) {
+							for(int x=(int) x0;x<=x1;x++) remove(new Key(board, level, x, y));
+						}
+						continue;
+					}
+				}
+				for(Iterator<Map.Entry<Key,Entry>> it = cache.entrySet().iterator();it.hasNext();) {
+					Map.Entry<Key,Entry> e = it.next();
+					Key key = e.getKey();
+					if(key.level!=level || !key.board.equals(board)) continue;
+					if(bounds!=null && !ViewportTile.region(level, key.x, key.y).intersects(bounds)) continue;
+					it.remove();
+					cached-=e.getValue().cost;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes of tiles in the cache
+	 */
+	public long getCached() {
+		synchronized(cache) {
+			return cached;
+		}
+	}
+
+	private void remove(Key key) {
+		Entry entry = cache.remove(key);
+		if(entry!=null) cached-=entry.cost;
+	}
+
+	private void evict() {
+		Iterator<Entry> lru = cache.values().iterator();
+		while(cached>cacheSize && lru.hasNext()) {
+			Entry entry = lru.next();
+			// tiles being rendered are not counted yet
+			if(entry.cost==0) continue;
+			cached-=entry.cost;
+			lru.remove();
+		}
+	}
+
+	private static byte[] render(List<Shape> shapes, int level, Rect region) throws IOException {
+		int size = ViewportTile.TILE_SIZE;
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			double scale = 1.0/(1<<level);
+			g.scale(scale, scale);
+			g.translate(-(double) region.minX, -(double) region.minY);
+			for(Shape shape : shapes) {
+				if(shape.numPoints()==0) continue;
+				Path2D.Double path = new Path2D.Double();
+				path.moveTo(shape.x(0), shape.y(0));
+				// a single point is drawn as a dot
+				if(shape.numPoints()==1) path.lineTo(shape.x(0), shape.y(0));
+				for(int i=1;i<shape.numPoints();i++) path.lineTo(shape.x(i), shape.y(i));
+				g.setColor(new Color(shape.color, true));
+				g.setStroke(new BasicStroke(Math.max(1, shape.width), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+				g.draw(path);
+			}
+		} finally {
+			g.dispose();
+		}
+		BufferedImage paletted = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+		Graphics2D p = paletted.createGraphics();
+		try {
+			p.drawImage(image, 0, 0, null);
+		} finally {
+			p.dispose();
+		}
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(paletted, "png", png);
+		return png.toByteArray();
+	}
+}
@@ -0,0 +1,284 @@
+package pb.server;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import pb.Endpoint;
+import pb.EndpointUnavailable;
+import pb.Trace;
+import pb.board.Board;
+import pb.board.BoardOp;
+import pb.board.RTree;
+import pb.board.Rect;
+import pb.board.Shape;
+import pb.protocols.Message;
+import pb.protocols.viewport.ViewportUpdate;
+
+/**
+ * The viewports of the clients, kept per board in an {@link pb.board.RTree},
+ * so that an operation is only sent to the clients whose viewport its bounds
+ * intersect. An operation sent to several clients is encoded once. Each
+ * client has at most one viewport, on one board.
+ * <br/>
+ * Changing a viewport and publishing an operation both happen under the lock
+ * of the board, but nothing is sent while holding it: publishing works out a
+ * {@link Fanout} to send once the board is released, so a client that is slow
+ * to read holds up neither the other writers to the board nor their workers.
+ * An operation published to a client while it is being sent its catch-up is
+ * held back until after it, so the client never receives an operation out of
+ * order with its catch-up.
+ *
+ * @see {@link pb.protocols.viewport.ViewportProtocol}
+ * @see {@link pb.server.ServerManager}
+ * @author aaron
+ *
+ */
+public class ViewportIndex {
+	private static Logger log = Logger.getLogger(ViewportIndex.class.getName());
+
+	private static final class Viewport {
+		final Endpoint endpoint;
+		final String board;
+		final Rect region;
+
+		/**
+		 * The operations published to the client while it is sent its
+		 * catch-up, to send after it, or null once it has been sent. Guarded
+		 * by the viewport's lock.
+		 */
+		List<Message> pending = new ArrayList<>();
+
+		Viewport(Endpoint endpoint, String board, Rect region) {
+			this.endpoint=endpoint;
+			this.board=board;
+			this.region=region;
+		}
+	}
+
+	/**
+	 * What an operation is sent to the clients as, and which clients to send
+	 * each message to, worked out while holding the lock of the board and
+	 * sent once it has been released.
+	 */
+	public static final class Fanout {
+		private final List<Message> updates = new ArrayList<>(2);
+		private final List<List<Viewport>> audiences = new ArrayList<>(2);
+
+		private Fanout() {
+
+		}
+
+		private void add(Message update, List<Viewport> audience) {
+			updates.add(update);
+			audiences.add(audience);
+		}
+
+		/**
+		 * Send the operation, without blocking. A client with too much
+		 * waiting to be written is not keeping up and is disconnected, since
+		 * dropping an operation would leave its view of the board wrong; it
+		 * is sent the board again when it reconnects.
+		 */
+		public void send() {
+			for(int i=0;i<updates.size();i++) {
+				Message update = updates.get(i);
+				for(Viewport viewport : audiences.get(i)) deliver(viewport, update);
+			}
+		}
+
+		private static void deliver(Viewport viewport, Message update) {
+			synchronized(viewport) {
+				if(viewport.pending!=null) {
+					viewport.pending.add(update);
+					return;
+				}
+			}
+			try {
+				if(viewport.endpoint.trySend(update)) return;
+			} catch (EndpointUnavailable e) {
+				// the viewport goes when the endpoint closes
+				return;
+			}
+			log.warning("client "+viewport.endpoint.getOtherEndpointId()+" is not keeping up with "
+					+viewport.board+", disconnecting it");
+			viewport.endpoint.abort();
+		}
+	}
+
+	/**
+	 * Nothing to send.
+	 */
+	public static final Fanout NONE = new Fanout();
+
+	/**
+	 * The viewports on each board. Each tree is locked when used.
+	 */
+	private final ConcurrentHashMap<String,RTree<Viewport>> boards = new ConcurrentHashMap<>();
+
+	/**
+	 * The viewport of each client.
+	 */
+	private final ConcurrentHashMap<Endpoint,Viewport> viewports = new ConcurrentHashMap<>();
+
+	/**
+	 * Set the viewport of a client, and send it the shapes that have come
+	 * into view. The shapes are sent once the board has been released, by the
+	 * client's own worker, as a reply would be, followed by the operations
+	 * published to the client meanwhile.
+	 * @param endpoint the client
+	 * @param board the board the client is showing
+	 * @param region the visible region
+	 * @throws EndpointUnavailable
+	 */
+	public void setViewport(Endpoint endpoint, Board board, Rect region) throws EndpointUnavailable {
+		Viewport viewport = new Viewport(endpoint, board.getName(), region);
+		List<Shape> catchUp = new ArrayList<>();
+		synchronized(board) {
+			Viewport old = viewports.put(endpoint, viewport);
+			if(old!=null) remove(old);
+			RTree<Viewport> tree = boards.computeIfAbsent(viewport.board, (name)->new RTree<>());
+			synchronized(tree) {
+				tree.insert(viewport, region);
+			}
+			boolean sameBoard = old!=null && old.board.equals(viewport.board);
+			for(Shape shape : board.getShapes(region)) {
+				// the client already has the shapes that were in view before
+				if(sameBoard && shape.bounds.intersects(old.region)) continue;
+				catchUp.add(shape);
+			}
+		}
+		for(Shape shape : catchUp) {
+			endpoint.send(new ViewportUpdate(BoardOp.put(viewport.board, shape)));
+		}
+		for(;;) {
+			List<Message> pending;
+			synchronized(viewport) {
+				pending = viewport.pending;
+				if(pending.isEmpty()) {
+					// published from now on are sent straight away
+					viewport.pending = null;
+					return;
+				}
+				viewport.pending = new ArrayList<>();
+			}
+			for(Message update : pending) endpoint.send(update);
+		}
+	}
+
+	/**
+	 * @param endpoint
+	 * @param board
+	 * @return the region of the board the client is showing, or null if it
+	 * is not showing the board
+	 */
+	public Rect getViewport(Endpoint endpoint, String board) {
+		Viewport viewport = viewports.get(endpoint);
+		return viewport!=null && viewport.board.equals(board) ? viewport.region : null;
+	}
+
+	/**
+	 * @param endpoint
+	 * @return whether the client is showing a board
+	 */
+	public boolean hasViewport(Endpoint endpoint) {
+		return viewports.containsKey(endpoint);
+	}
+
+	/**
+	 * Forget the viewport of a client, e.g. when it has disconnected.
+	 * @param endpoint
+	 */
+	public void removeViewport(Endpoint endpoint) {
+		Viewport viewport = viewports.remove(endpoint);
+		if(viewport!=null) remove(viewport);
+	}
+
+	private void remove(Viewport viewport) {
+		RTree<Viewport> tree = boards.get(viewport.board);
+		if(tree==null) return;
+		synchronized(tree) {
+			tree.remove(viewport);
+		}
+	}
+
+	/**
+	 * Work out what to send the clients that can see an operation. Must be
+	 * called while holding the lock of the board, in the order the operations
+	 * were applied, and the fanout sent once it has been released.
+	 * @param op
+	 * @param bounds the region the operation changed, i.e. the bounds of the
+	 * old and new shapes, or null for the whole board
+	 * @param except a client not to send it to, e.g. the one it came from, or null
+	 * @param trace the trace of the edit, which is stamped as it is sent on, or null
+	 * @return what to send
+	 */
+	public Fanout publish(BoardOp op, Rect bounds, Endpoint except, Trace trace) {
+		RTree<Viewport> tree = boards.get(op.board);
+		if(tree==null) return NONE;
+		List<Viewport> audience = new ArrayList<>();
+		synchronized(tree) {
+			if(bounds==null) {
+				tree.search(new Rect(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE),
+						audience::add);
+			} else {
+				tree.search(bounds, audience::add);
+			}
+		}
+		if(except!=null) audience.removeIf(viewport -> viewport.endpoint==except);
+		Fanout fanout = new Fanout();
+		add(fanout, op, audience, trace);
+		return fanout;
+	}
+	
+	/**
+	 * Work out what to send the clients that can see an append to a stroke.
+	 * Clients that could already see the stroke are sent the append; clients
+	 * it has just come into view of do not have the start of it, so they are
+	 * sent the whole stroke instead. Must be called while holding the lock of
+	 * the board, in the order the operations were applied, and the fanout
+	 * sent once it has been released.
+	 * @param op
+	 * @param before the stroke before the append
+	 * @param after the stroke after the append
+	 * @param except a client not to send it to, e.g. the one it came from, or null
+	 * @param trace the trace of the edit, which is stamped as it is sent on, or null
+	 * @return what to send
+	 */
+	public Fanout publishAppend(BoardOp op, Shape before, Shape after, Endpoint except, Trace trace) {
+		RTree<Viewport> tree = boards.get(op.board);
+		if(tree==null) return NONE;
+		List<Viewport> audience = new ArrayList<>();
+		synchronized(tree) {
+			tree.search(after.bounds, audience::add);
+		}
+		if(except!=null) audience.removeIf(viewport -> viewport.endpoint==except);
+		List<Viewport> entered = new ArrayList<>();
+		audience.removeIf(viewport -> !viewport.region.intersects(before.bounds) && entered.add(viewport));
+		Fanout fanout = new Fanout();
+		add(fanout, op, audience, trace);
+		add(fanout, BoardOp.put(op.board, after), entered, trace);
+		return fanout;
+	}
+	
+	private void add(Fanout fanout, BoardOp op, List<Viewport> audience, Trace trace) {
+		if(audience.isEmpty()) return;
+		// stamped once, when the first client is sent it
+		if(trace!=null && trace.length()==Trace.PUBLISHED) trace.stamp(Trace.now());
+		Message update;
+		try {
+			if(audience.size()==1) {
+				update = new ViewportUpdate(op);
+				if(trace!=null) update.setTrace(trace);
+			} else {
+				update = ViewportUpdate.shared(op, trace);
+			}
+		} catch (UncheckedIOException e) {
+			log.warning("operation on "+op.board+" is too large to send: "+e.getMessage());
+			return;
+		}
+		fanout.add(update, audience);
+	}
+}
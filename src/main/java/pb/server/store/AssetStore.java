@@ -0,0 +1,332 @@
+package pb.server.store;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import pb.protocols.asset.AssetProtocol;
+
+/**
+ * Keeps the assets that clients paste onto boards, by the SHA-256 hash of
+ * their contents, so an asset that is pasted many times, onto any number of
+ * boards, is uploaded and stored once. Clients ask whether the store has a
+ * hash before uploading, and an upload is only kept if its contents match its
+ * hash.
+ * <br/>
+ * Every asset is on disk. The small ones that are being read are also kept
+ * in a bounded LRU cache in the heap, so that sending a hot asset to many
+ * clients does not read it from disk each time.
+ * <br/>
+ * Each board that uses an asset holds a reference to it. An asset is deleted
+ * when the last board lets go of it, e.g. when the boards are cleared. The
+ * references are saved with the assets, and assets that no board refers to
+ * are deleted when the store is opened.
+ * <br/>
+ * An asset is uploaded into a part file, by one transfer at a time, so that
+ * two clients uploading the same asset never write the same file, and nothing
+ * is writing to a part file once it has been checked and moved into the
+ * store. A part file is kept for {@link #PART_TTL}, so that a client that
+ * reconnects can resume its upload, and then deleted.
+ *
+ * @see {@link pb.protocols.asset.AssetProtocol}
+ * @see {@link pb.server.ServerManager}
+ * @author aaron
+ *
+ */
+public class AssetStore {
+	private static Logger log = Logger.getLogger(AssetStore.class.getName());
+
+	/**
+	 * Assets larger than this, in bytes, are never cached.
+	 */
+	public static final int MAX_CACHED_ASSET = 1024*1024;
+
+	/**
+	 * The default size of the cache, in bytes.
+	 */
+	public static final long CACHE_SIZE = 64*1024*1024;
+
+	/**
+	 * How long a partial upload is kept after it was last written to, in ms.
+	 */
+	public static final long PART_TTL = 24*60*60*1000;
+
+	private static final String PART_SUFFIX = ".part";
+	private static final String REFS = "refs";
+
+	private final Path dir;
+	private final long cacheSize;
+
+	/**
+	 * The cached assets, least recently used first.
+	 */
+	private final LinkedHashMap<String,byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private long cached = 0;
+
+	/**
+	 * The boards that use each asset.
+	 */
+	private final HashMap<String,Set<String>> references = new HashMap<>();
+
+	/**
+	 * The assets being uploaded into their part files. Locked when used.
+	 */
+	private final Set<String> uploading = new HashSet<>();
+
+	/**
+	 * Open the store in a directory, with the default cache size.
+	 * @param dir
+	 * @throws IOException
+	 */
+	public AssetStore(Path dir) throws IOException {
+		this(dir, CACHE_SIZE);
+	}
+
+	/**
+	 * Open the store in a directory, deleting the assets that no board uses.
+	 * Partial uploads are kept, so that they can be resumed, unless they
+	 * have expired.
+	 * @param dir
+	 * @param cacheSize the most bytes of assets to keep in the heap
+	 * @throws IOException
+	 */
+	public AssetStore(Path dir, long cacheSize) throws IOException {
+		this.dir=dir;
+		this.cacheSize=cacheSize;
+		Files.createDirectories(dir);
+		Path refs = dir.resolve(REFS);
+		if(Files.exists(refs)) {
+			for(String line : Files.readAllLines(refs, StandardCharsets.UTF_8)) {
+				int space = line.indexOf(' ');
+				if(space<0 || !AssetProtocol.isHash(line.substring(0, space))) continue;
+				references.computeIfAbsent(line.substring(0, space), (hash)->new HashSet<>())
+					.add(line.substring(space+1));
+			}
+		}
+		int deleted = 0;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				if(AssetProtocol.isHash(name) && !references.containsKey(name)) {
+					Files.delete(file);
+					deleted++;
+				}
+			}
+		}
+		log.info("opened asset store with "+references.size()+" assets in use, deleted "+deleted+" unused");
+		expireParts();
+	}
+
+	/**
+	 * @param hash
+	 * @return true if the store has all of the asset
+	 */
+	public boolean contains(String hash) {
+		return AssetProtocol.isHash(hash) && Files.exists(dir.resolve(hash));
+	}
+
+	/**
+	 * @param hash
+	 * @return the size of the asset in bytes, or -1 if the store does not have it
+	 */
+	public long size(String hash) {
+		if(!AssetProtocol.isHash(hash)) return -1;
+		try {
+			return Files.size(dir.resolve(hash));
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param hash
+	 * @return the file of the asset, or null if the store does not have it
+	 */
+	public Path getFile(String hash) {
+		return contains(hash) ? dir.resolve(hash) : null;
+	}
+
+	/**
+	 * Start uploading an asset. Every upload that is started must be ended
+	 * with {@link #endUpload(String)}, once the part file is no longer open.
+	 * @param hash
+	 * @return the file to upload the asset into, which holds whatever has
+	 * been uploaded of it so far, or null if it is already being uploaded
+	 */
+	public Path beginUpload(String hash) {
+		if(!AssetProtocol.isHash(hash)) throw new IllegalArgumentException("not an asset hash: "+hash);
+		synchronized(uploading) {
+			if(!uploading.add(hash)) return null;
+		}
+		return dir.resolve(hash+PART_SUFFIX);
+	}
+
+	/**
+	 * The upload of an asset has finished or stopped, and its part file is
+	 * closed, so another can start.
+	 * @param hash
+	 */
+	public void endUpload(String hash) {
+		synchronized(uploading) {
+			uploading.remove(hash);
+		}
+	}
+
+	/**
+	 * Delete the part files that have not been written to for
+	 * {@link #PART_TTL} and are not being uploaded into.
+	 * @return the number deleted
+	 */
+	public int expireParts() {
+		long before = System.currentTimeMillis()-PART_TTL;
+		int expired = 0;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*"+PART_SUFFIX)) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				String hash = name.substring(0, name.length()-PART_SUFFIX.length());
+				synchronized(uploading) {
+					if(uploading.contains(hash) || Files.getLastModifiedTime(file).toMillis()>=before) continue;
+					Files.delete(file);
+				}
+				expired++;
+			}
+		} catch (IOException e) {
+			log.warning("could not expire partial uploads: "+e.getMessage());
+		}
+		if(expired>0) log.info("deleted "+expired+" expired partial uploads");
+		return expired;
+	}
+
+	/**
+	 * Add an uploaded asset to the store, if its contents match its hash.
+	 * @param hash
+	 * @param part the file it was uploaded into, which is moved into the
+	 * store or, if it does not match, deleted
+	 * @return true if the asset was added
+	 * @throws IOException
+	 */
+	public boolean commit(String hash, Path part) throws IOException {
+		if(!AssetProtocol.hash(part).equals(hash)) {
+			log.warning("upload of asset "+hash+" does not match its hash");
+			Files.delete(part);
+			return false;
+		}
+		Files.move(part, dir.resolve(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	/**
+	 * Read a small asset from the cache, reading it from disk into the cache
+	 * if it is not there.
+	 * @param hash
+	 * @return the contents of the asset, read only, or null if the store does
+	 * not have it or it is too large to cache, in which case it should be
+	 * read from {@link #getFile(String)}
+	 */
+	public ByteBuffer getBytes(String hash) {
+		synchronized(cache) {
+			byte[] bytes = cache.get(hash);
+			if(bytes!=null) return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+		long size = size(hash);
+		if(size<0 || size>MAX_CACHED_ASSET || size>cacheSize) return null;
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(dir.resolve(hash));
+		} catch (IOException e) {
+			return null;
+		}
+		synchronized(cache) {
+			if(cache.put(hash, bytes)==null) cached+=bytes.length;
+			Iterator<byte[]> lru = cache.values().iterator();
+			while(cached>cacheSize && lru.hasNext()) {
+				cached-=lru.next().length;
+				lru.remove();
+			}
+		}
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Record that a board uses an asset, which may not have been uploaded
+	 * yet.
+	 * @param board
+	 * @param hash
+	 * @throws IOException if the reference could not be saved
+	 */
+	public synchronized void addReference(String board, String hash) throws IOException {
+		if(!AssetProtocol.isHash(hash)) throw new IllegalArgumentException("not an asset hash: "+hash);
+		if(board.indexOf('\n')>=0 || board.indexOf('\r')>=0) throw new IllegalArgumentException("bad board name");
+		if(references.computeIfAbsent(hash, (h)->new HashSet<>()).add(board)) saveReferences();
+	}
+
+	/**
+	 * Let go of all of the assets a board uses, deleting the ones that no
+	 * other board uses.
+	 * @param board
+	 * @throws IOException if the references could not be saved
+	 */
+	public synchronized void removeReferences(String board) throws IOException {
+		boolean changed = false;
+		for(Iterator<Map.Entry<String,Set<String>>> it = references.entrySet().iterator();it.hasNext();) {
+			Map.Entry<String,Set<String>> entry = it.next();
+			if(!entry.getValue().remove(board)) continue;
+			changed = true;
+			if(entry.getValue().isEmpty()) {
+				it.remove();
+				delete(entry.getKey());
+			}
+		}
+		if(changed) saveReferences();
+	}
+
+	/**
+	 * @param hash
+	 * @return the number of boards that use the asset
+	 */
+	public synchronized int getReferences(String hash) {
+		Set<String> boards = references.get(hash);
+		return boards==null ? 0 : boards.size();
+	}
+
+	private void delete(String hash) throws IOException {
+		synchronized(cache) {
+			byte[] bytes = cache.remove(hash);
+			if(bytes!=null) cached-=bytes.length;
+		}
+		Files.deleteIfExists(dir.resolve(hash));
+		Files.deleteIfExists(dir.resolve(hash+PART_SUFFIX));
+		log.info("deleted unused asset "+hash);
+	}
+
+	/**
+	 * Write the references to a new file and move it over the old one, so
+	 * that a crash leaves one or the other.
+	 */
+	private void saveReferences() throws IOException {
+		Path tmp = dir.resolve(REFS+".tmp");
+		try(BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			for(Map.Entry<String,Set<String>> entry : references.entrySet()) {
+				for(String board : entry.getValue()) {
+					out.write(entry.getKey());
+					out.write(' ');
+					out.write(board);
+					out.newLine();
+				}
+			}
+		}
+		Files.move(tmp, dir.resolve(REFS), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,276 @@
+package pb.server.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import pb.board.Board;
+import pb.board.BoardOp;
+import pb.board.BoardSnapshot;
+import pb.board.Shape;
+import pb.board.Version;
+
+/**
+ * Keeps the boards of the server durable. Every operation is appended to a
+ * {@link pb.server.store.WriteAheadLog} before it is applied to its board. A
+ * background {@link pb.server.store.Compactor} folds the history of each busy
+ * board into a snapshot file of its own, after which the log segments that
+ * every board has snapshotted past are deleted. On opening, the boards are
+ * rebuilt by mapping their snapshots and replaying the log records after
+ * them, so recovery does not need to parse any JSON.
+ *
+ * @see {@link pb.server.store.WriteAheadLog}
+ * @see {@link pb.server.store.Compactor}
+ * @see {@link pb.board.Board}
+ * @author aaron
+ *
+ */
+public class BoardStore {
+	private static Logger log = Logger.getLogger(BoardStore.class.getName());
+
+	private static final int SEGMENT_SIZE = 64*1024*1024;
+	private static final long FLUSH_INTERVAL = 20;
+	private static final int SNAPSHOT_MAGIC = 0x50425333; // "PBS3"
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+
+	private final Path snapshotDir;
+	private final WriteAheadLog wal;
+	private final ConcurrentHashMap<String,Board> boards = new ConcurrentHashMap<>();
+
+	/**
+	 * Buffer for encoding operations before they are appended to the log.
+	 */
+	private static final ThreadLocal<ByteBuffer> opBuffers =
+			ThreadLocal.withInitial(()->ByteBuffer.allocate(4096));
+
+	private final Compactor compactor;
+
+	/**
+	 * Open the store in a directory, recovering any boards that are there.
+	 * @param dir
+	 * @throws IOException
+	 */
+	public BoardStore(Path dir) throws IOException {
+		snapshotDir = dir.resolve("boards");
+		Files.createDirectories(snapshotDir);
+		wal = new WriteAheadLog(dir.resolve("wal"), SEGMENT_SIZE, FLUSH_INTERVAL);
+		long start = System.currentTimeMillis();
+		recover();
+		log.info("recovered "+boards.size()+" boards in "+(System.currentTimeMillis()-start)+"ms");
+		compactor = new Compactor(this);
+		compactor.start();
+	}
+
+	/**
+	 * @param name
+	 * @return the board with the name, created empty if there is none
+	 */
+	public Board getBoard(String name) {
+		return boards.computeIfAbsent(name, Board::new);
+	}
+
+	/**
+	 * @return the boards in the store
+	 */
+	public Collection<Board> getBoards() {
+		return Collections.unmodifiableCollection(boards.values());
+	}
+
+	/**
+	 * Log an operation and apply it to its board. This does not wait for
+	 * the log to reach disk, which happens within the flush interval.
+	 * @param op
+	 * @return the log sequence number of the operation
+	 * @throws IOException if the operation could not be logged, in which
+	 * case it has not been applied
+	 */
+	public long apply(BoardOp op) throws IOException {
+		Board board = getBoard(op.board);
+		ByteBuffer buf = opBuffers.get();
+		int size = op.encodedSize();
+		if(buf.capacity()<size) {
+			buf = ByteBuffer.allocate(Math.max(size, buf.capacity()*2));
+			opBuffers.set(buf);
+		}
+		buf.clear();
+		op.writeTo(buf);
+		// the board lock keeps the log order and the board order the same
+		synchronized(board) {
+			long lsn = wal.append(buf.array(), 0, buf.position());
+			board.apply(op, lsn);
+			return lsn;
+		}
+	}
+
+	/*
+	 * Recovery
+	 */
+
+	private void recover() throws IOException {
+		List<Path> snapshots = new ArrayList<>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(snapshotDir, "*"+SNAPSHOT_SUFFIX)) {
+			files.forEach(snapshots::add);
+		}
+		for(Path snapshot : snapshots) {
+			try {
+				loadSnapshot(snapshot);
+			} catch (RuntimeException e) {
+				// the log is only truncated past a board once its snapshot is on disk
+				log.severe("snapshot "+snapshot+" is unreadable: "+e);
+			}
+		}
+		wal.replay(0, (lsn, payload)->{
+			BoardOp op;
+			try {
+				op = BoardOp.readFrom(payload);
+			} catch (RuntimeException e) {
+				log.severe("skipping unreadable log record "+lsn+": "+e);
+				return;
+			}
+			Board board = getBoard(op.board);
+			// the board's snapshot may already include the record
+			if(lsn>board.getLastLsn()) board.apply(op, lsn);
+		});
+	}
+
+	private void loadSnapshot(Path snapshot) throws IOException {
+		MappedByteBuffer buf;
+		try(FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if(buf.limit()<8) throw new IllegalStateException("truncated");
+		CRC32C crc = new CRC32C();
+		ByteBuffer body = buf.duplicate();
+		body.limit(buf.limit()-8);
+		crc.update(body);
+		if(crc.getValue()!=buf.getLong(buf.limit()-8)) throw new IllegalStateException("bad checksum");
+		if(buf.getInt()!=SNAPSHOT_MAGIC) throw new IllegalStateException("not a snapshot");
+		byte[] name = new byte[buf.getShort() & 0xffff];
+		buf.get(name);
+		long lsn = buf.getLong();
+		long horizon = buf.getLong();
+		Version cleared = new Version(buf.getLong(), buf.getInt());
+		int numShapes = buf.getInt();
+		List<Shape> shapes = new ArrayList<>(numShapes);
+		for(int s=0;s<numShapes;s++) shapes.add(Shape.readFrom(buf));
+		int numTombstones = buf.getInt();
+		HashMap<Long,Version> tombstones = new HashMap<>(numTombstones*2);
+		for(int t=0;t<numTombstones;t++) tombstones.put(buf.getLong(), new Version(buf.getLong(), buf.getInt()));
+		getBoard(new String(name, StandardCharsets.UTF_8)).restore(
+				new BoardSnapshot(shapes, tombstones, cleared, horizon, lsn));
+	}
+
+	/*
+	 * Snapshots
+	 */
+
+	/**
+	 * Board names can be anything, so the file is named after a hash of the
+	 * name; the name itself is inside the file.
+	 */
+	private Path snapshotPath(String boardName) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(boardName.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : hash) hex.append(String.format("%02x", b));
+			return snapshotDir.resolve(hex+SNAPSHOT_SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Write the snapshot of a board to disk, replacing the previous one
+	 * atomically, and sync the directory so that the new one is there after
+	 * a crash.
+	 * @param boardName
+	 * @param snapshot
+	 * @param budget limits the rate of writing, or null for no limit
+	 * @throws IOException
+	 */
+	void writeSnapshot(String boardName, BoardSnapshot snapshot, Compactor.IOBudget budget) throws IOException {
+		Path path = snapshotPath(boardName);
+		Path tmp = snapshotDir.resolve(path.getFileName()+".tmp");
+		CRC32C crc = new CRC32C();
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			OutputStream file = Channels.newOutputStream(channel);
+			if(budget!=null) file = budget.throttle(file);
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(file, 1<<16), crc));
+			byte[] name = boardName.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeShort(name.length);
+			out.write(name);
+			out.writeLong(snapshot.lsn);
+			out.writeLong(snapshot.horizon);
+			out.writeLong(snapshot.cleared.clock);
+			out.writeInt(snapshot.cleared.replica);
+			out.writeInt(snapshot.shapes.size());
+			for(Shape shape : snapshot.shapes) shape.writeTo(out);
+			out.writeInt(snapshot.tombstones.size());
+			for(Map.Entry<Long,Version> tombstone : snapshot.tombstones.entrySet()) {
+				out.writeLong(tombstone.getKey());
+				out.writeLong(tombstone.getValue().clock);
+				out.writeInt(tombstone.getValue().replica);
+			}
+			out.flush();
+			// the checksum is not part of what it covers
+			ByteBuffer sum = ByteBuffer.allocate(8);
+			sum.putLong(0, crc.getValue());
+			channel.write(sum);
+			channel.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		// the move is only durable once the directory is, and the log
+		// records the snapshot replaces are deleted after this returns
+		try(FileChannel dir = FileChannel.open(snapshotDir, StandardOpenOption.READ)) {
+			dir.force(true);
+		}
+	}
+
+	/**
+	 * Delete the log segments that every board has a snapshot past.
+	 * @throws IOException
+	 */
+	void truncateLog() throws IOException {
+		long keepFrom = wal.getNextLsn();
+		for(Board board : boards.values()) {
+			long first = board.getTailFirstLsn();
+			if(first>0 && first<keepFrom) keepFrom=first;
+		}
+		wal.deleteBefore(keepFrom);
+	}
+
+	/**
+	 * Compact every board with a tail, and close the log.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		compactor.shutDown();
+		wal.close();
+	}
+}
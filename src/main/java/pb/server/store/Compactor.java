@@ -0,0 +1,172 @@
+package pb.server.store;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import pb.board.Board;
+import pb.board.HybridClock;
+
+/**
+ * Folds the history of each board into a snapshot plus a short tail, in a low
+ * priority background thread. A board is compacted when its tail has grown
+ * long or old; the old limit also makes sure that quiet boards do not stop the
+ * log from being truncated. Writing snapshots is throttled to an I/O budget so
+ * compaction does not compete with the log for the disk. Compaction is also
+ * when old tombstones are collected. Writers are never blocked by the
+ * compactor, and joining clients keep reading the previous snapshot until the
+ * new one is installed.
+ *
+ * @see {@link pb.server.store.BoardStore}
+ * @see {@link pb.board.Board#compact()}
+ * @author aaron
+ *
+ */
+public class Compactor {
+	private static Logger log = Logger.getLogger(Compactor.class.getName());
+
+	/**
+	 * Time between looking for boards to compact, in ms.
+	 */
+	private static final long INTERVAL = 10*1000;
+
+	/**
+	 * Compact a board once its tail has this many operations...
+	 */
+	private static final int MAX_TAIL_OPS = 10000;
+
+	/**
+	 * ...or once its oldest operation in the tail is this old, in ms.
+	 */
+	private static final long MAX_TAIL_AGE = 5*60*1000;
+
+	/**
+	 * How long the tombstones of removed shapes are kept, in ms. An edit
+	 * from a replica that has been out of touch for longer than this, on a
+	 * shape the board no longer knows about, is refused.
+	 */
+	public static final long TOMBSTONE_TTL = 60*60*1000;
+	
+	/**
+	 * Bytes per second that snapshots may be written at.
+	 */
+	private static final long IO_BUDGET = 8*1024*1024;
+
+	private final BoardStore store;
+	private final IOBudget budget = new IOBudget(IO_BUDGET);
+	private final Thread thread;
+	private volatile boolean stopped = false;
+
+	Compactor(BoardStore store) {
+		this.store=store;
+		thread = new Thread(this::run, "board-compactor");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	private void run() {
+		while(!stopped) {
+			try {
+				Thread.sleep(INTERVAL);
+				compact(false);
+			} catch (InterruptedException | InterruptedIOException e) {
+				break;
+			} catch (IOException e) {
+				log.severe("compaction failed: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Compact the boards that need it, then truncate the log.
+	 * @param all compact every board with a tail, without throttling
+	 * @throws IOException
+	 */
+	private void compact(boolean all) throws IOException {
+		List<Board> boards = new ArrayList<>(store.getBoards());
+		for(Board board : boards) {
+			if(!all && board.getTailSize()<MAX_TAIL_OPS && board.getTailAge()<MAX_TAIL_AGE) continue;
+			Board.Compaction compaction = board.compact(
+					HybridClock.fromMillis(System.currentTimeMillis()-TOMBSTONE_TTL));
+			if(compaction==null) continue;
+			// the snapshot must be on disk before the tail it replaces can go
+			store.writeSnapshot(board.getName(), compaction.snapshot, all ? null : budget);
+			board.installSnapshot(compaction);
+			log.fine("compacted board "+board.getName()+" to "+compaction.snapshot.shapes.size()+" shapes");
+		}
+		store.truncateLog();
+	}
+
+	/**
+	 * Stop the background thread and compact every board, so that the next
+	 * start up has little to replay.
+	 * @throws IOException
+	 */
+	void shutDown() throws IOException {
+		stopped=true;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		compact(true);
+	}
+
+	/**
+	 * A token bucket of bytes, refilled at a fixed rate and holding at most
+	 * one second's worth.
+	 */
+	static final class IOBudget {
+		private final long bytesPerSecond;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		IOBudget(long bytesPerSecond) {
+			this.bytesPerSecond=bytesPerSecond;
+			this.tokens=bytesPerSecond;
+		}
+
+		/**
+		 * Wait until n bytes may be written.
+		 */
+		synchronized void spend(int n) throws InterruptedIOException {
+			long now = System.nanoTime();
+			tokens = Math.min(bytesPerSecond, tokens+(now-last)*bytesPerSecond/1e9);
+			last = now;
+			tokens -= n;
+			if(tokens<0) {
+				long wait = (long) (-tokens*1000/bytesPerSecond);
+				try {
+					Thread.sleep(Math.max(1, wait));
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		OutputStream throttle(OutputStream out) {
+			return new FilterOutputStream(out) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					spend(len);
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					spend(1);
+					out.write(b);
+				}
+			};
+		}
+	}
+}
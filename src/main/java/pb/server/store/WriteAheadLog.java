@@ -0,0 +1,345 @@
+package pb.server.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * A segmented write ahead log of opaque records, written through memory mapped
+ * segment files. Each record is given a log sequence number (lsn), starting
+ * at 1 and increasing by one per record, and is stored as:
+ * <pre>
+ * int length, int crc32c(lsn, payload), long lsn, payload
+ * </pre>
+ * A length of zero marks the end of the records in a segment, since segments
+ * are created full of zeros. Appending only copies the record into the mapped
+ * segment; a background thread forces the segments to disk every flush
+ * interval, so that many appends share one sync (group commit). Callers that
+ * need to know a record is on disk can use {@link #awaitDurable(long)}.
+ * Segments are named after the lsn of their first record. On opening, the
+ * records are checked and anything after the first torn or corrupt record,
+ * e.g. from a crash part way through an append, is discarded.
+ *
+ * @see {@link pb.server.store.BoardStore}
+ * @author aaron
+ *
+ */
+public class WriteAheadLog {
+	private static Logger log = Logger.getLogger(WriteAheadLog.class.getName());
+
+	/**
+	 * Handles the records when replaying the log.
+	 */
+	public static interface RecordHandler {
+		/**
+		 * @param lsn the log sequence number of the record
+		 * @param payload the record, positioned at its start and limited to its end
+		 */
+		public void record(long lsn, ByteBuffer payload);
+	}
+
+	private static final int HEADER = 4+4+8;
+	private static final String SUFFIX = ".wal";
+
+	private final Path dir;
+	private final int segmentSize;
+	private final long flushInterval;
+
+	/**
+	 * The segment being appended to.
+	 */
+	private MappedByteBuffer current;
+	private Path currentPath;
+
+	private long nextLsn = 1;
+
+	/**
+	 * The last lsn that has been appended, and the last that is known to
+	 * be on disk.
+	 */
+	private volatile long writtenLsn = 0;
+	private volatile long durableLsn = 0;
+
+	private final CRC32C crc = new CRC32C();
+
+	private final Thread flusher;
+	private volatile boolean closed = false;
+
+	/**
+	 * Open the log in a directory, creating it if needed, and start the
+	 * background flusher.
+	 * @param dir the directory for the segment files
+	 * @param segmentSize the size of each segment file in bytes
+	 * @param flushInterval the time between syncs in ms
+	 * @throws IOException
+	 */
+	public WriteAheadLog(Path dir, int segmentSize, long flushInterval) throws IOException {
+		this.dir=dir;
+		this.segmentSize=segmentSize;
+		this.flushInterval=flushInterval;
+		Files.createDirectories(dir);
+		openTail();
+		flusher = new Thread(this::flushLoop, "wal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @return the segment files, in lsn order
+	 */
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*"+SUFFIX)) {
+			files.forEach(segments::add);
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static long firstLsn(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length()-SUFFIX.length()));
+	}
+
+	private Path segmentPath(long firstLsn) {
+		return dir.resolve(String.format("%020d%s", firstLsn, SUFFIX));
+	}
+
+	private static MappedByteBuffer map(Path path, FileChannel.MapMode mode, long size) throws IOException {
+		if(mode==FileChannel.MapMode.READ_ONLY) {
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				return channel.map(mode, 0, channel.size());
+			}
+		}
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			return channel.map(mode, 0, size);
+		}
+	}
+
+	/**
+	 * Scan the valid records of a segment.
+	 * @param buf the mapped segment
+	 * @param expectedLsn the lsn the first record should have
+	 * @param handler called for each record with an lsn after afterLsn, may be null
+	 * @param afterLsn
+	 * @return the lsn after the last valid record; the buffer is left
+	 * positioned after that record
+	 */
+	private long scan(ByteBuffer buf, long expectedLsn, RecordHandler handler, long afterLsn) {
+		CRC32C check = new CRC32C();
+		while(buf.remaining()>=HEADER) {
+			int start = buf.position();
+			int len = buf.getInt(start);
+			if(len<=0 || len>buf.remaining()-HEADER) break;
+			int sum = buf.getInt(start+4);
+			long lsn = buf.getLong(start+8);
+			if(lsn!=expectedLsn) break;
+			check.reset();
+			ByteBuffer body = buf.duplicate();
+			body.position(start+8).limit(start+HEADER+len);
+			check.update(body);
+			if((int) check.getValue()!=sum) break;
+			if(handler!=null && lsn>afterLsn) {
+				ByteBuffer payload = buf.duplicate();
+				payload.position(start+HEADER).limit(start+HEADER+len);
+				handler.record(lsn, payload.slice());
+			}
+			buf.position(start+HEADER+len);
+			expectedLsn++;
+		}
+		return expectedLsn;
+	}
+
+	/**
+	 * Check the existing segments, and open the last one for appending.
+	 */
+	private void openTail() throws IOException {
+		List<Path> segments = segments();
+		if(segments.isEmpty()) {
+			rollSegment();
+			return;
+		}
+		long lsn = firstLsn(segments.get(0));
+		int end = 0;
+		for(int i=0;i<segments.size();i++) {
+			Path segment = segments.get(i);
+			boolean last = i==segments.size()-1;
+			if(firstLsn(segment)!=lsn) {
+				// a gap, nothing after here can be trusted
+				log.warning("write ahead log has a gap before "+segment+", discarding later segments");
+				for(int j=i;j<segments.size();j++) Files.delete(segments.get(j));
+				openTail(segments.get(i-1), end);
+				break;
+			}
+			MappedByteBuffer buf = map(segment, FileChannel.MapMode.READ_ONLY, Files.size(segment));
+			lsn = scan(buf, lsn, null, 0);
+			end = buf.position();
+			if(last) {
+				openTail(segment, end);
+			} else if(buf.remaining()>=HEADER && buf.getInt(end)!=0) {
+				log.warning("write ahead log segment "+segment+" is corrupt, discarding later segments");
+				for(int j=i+1;j<segments.size();j++) Files.delete(segments.get(j));
+				openTail(segment, end);
+				break;
+			}
+		}
+		nextLsn=lsn;
+		writtenLsn=durableLsn=lsn-1;
+	}
+
+	/**
+	 * Append to a segment after its last valid record.
+	 * @param segment
+	 * @param end the offset after the last valid record
+	 */
+	private void openTail(Path segment, int end) throws IOException {
+		current=map(segment, FileChannel.MapMode.READ_WRITE, Files.size(segment));
+		// wipe any torn record so it is not mistaken for data later
+		for(int p=end;p<current.limit() && p<end+HEADER;p++) current.put(p, (byte) 0);
+		current.position(end);
+		currentPath=segment;
+	}
+
+	/**
+	 * Force the current segment and start a new one.
+	 */
+	private void rollSegment() throws IOException {
+		if(current!=null) current.force();
+		currentPath=segmentPath(nextLsn);
+		current=map(currentPath, FileChannel.MapMode.READ_WRITE, segmentSize);
+	}
+
+	/**
+	 * Append a record to the log. The record is not on disk until the next
+	 * flush, see {@link #awaitDurable(long)}.
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return the log sequence number of the record
+	 * @throws IOException
+	 */
+	public synchronized long append(byte[] buf, int off, int len) throws IOException {
+		if(closed) throw new IOException("write ahead log is closed");
+		if(len<=0 || HEADER+len>segmentSize) throw new IllegalArgumentException("bad record length "+len);
+		if(current.remaining()<HEADER+len) rollSegment();
+		long lsn = nextLsn++;
+		crc.reset();
+		for(int b=56;b>=0;b-=8) crc.update((int) (lsn >>> b));
+		crc.update(buf, off, len);
+		int start = current.position();
+		current.position(start+4);
+		current.putInt((int) crc.getValue());
+		current.putLong(lsn);
+		current.put(buf, off, len);
+		// the length goes in last, so a torn record has no length
+		current.putInt(start, len);
+		writtenLsn=lsn;
+		return lsn;
+	}
+
+	/**
+	 * Sync everything appended so far to disk.
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		MappedByteBuffer buf;
+		long lsn;
+		synchronized(this) {
+			buf=current;
+			lsn=writtenLsn;
+		}
+		if(lsn<=durableLsn) return;
+		// earlier segments were forced when they were rolled
+		buf.force();
+		synchronized(this) {
+			if(lsn>durableLsn) durableLsn=lsn;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until a record is on disk.
+	 * @param lsn
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitDurable(long lsn) throws InterruptedException {
+		while(durableLsn<lsn && !closed) wait();
+	}
+
+	private void flushLoop() {
+		while(!closed) {
+			try {
+				Thread.sleep(flushInterval);
+				sync();
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				log.severe("could not sync write ahead log: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Replay the records in the log.
+	 * @param afterLsn only records with a greater lsn are replayed
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void replay(long afterLsn, RecordHandler handler) throws IOException {
+		List<Path> segments;
+		synchronized(this) {
+			segments=segments();
+		}
+		for(int i=0;i<segments.size();i++) {
+			Path segment = segments.get(i);
+			// skip segments that only hold records at or before afterLsn
+			if(i+1<segments.size() && firstLsn(segments.get(i+1))<=afterLsn+1) continue;
+			scan(map(segment, FileChannel.MapMode.READ_ONLY, 0), firstLsn(segment), handler, afterLsn);
+		}
+	}
+
+	/**
+	 * Delete the segments that only hold records before an lsn, e.g. once
+	 * those records are in a snapshot.
+	 * @param lsn
+	 * @throws IOException
+	 */
+	public synchronized void deleteBefore(long lsn) throws IOException {
+		List<Path> segments = segments();
+		for(int i=0;i+1<segments.size();i++) {
+			if(firstLsn(segments.get(i+1))>lsn || segments.get(i).equals(currentPath)) break;
+			Files.delete(segments.get(i));
+		}
+	}
+
+	/**
+	 * @return the lsn that the next record will have
+	 */
+	public synchronized long getNextLsn() {
+		return nextLsn;
+	}
+
+	/**
+	 * Sync and stop the background flusher.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		sync();
+		synchronized(this) {
+			closed=true;
+			notifyAll();
+		}
+		flusher.interrupt();
+	}
+}
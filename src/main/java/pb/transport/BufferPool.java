@@ -0,0 +1,104 @@
+package pb.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock free pool of buffers of one size, so that a connection only holds a
+ * buffer while it has something in it, and a busy server does not allocate
+ * (or, for direct buffers, free) a buffer for every read and write. At most a
+ * given number of free buffers are kept; any more are left to the garbage
+ * collector.
+ *
+ * @see {@link pb.transport.ChannelTransport}
+ * @see {@link pb.transport.TlsTransport}
+ * @author aaron
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * The size of the buffers that frames are read into: room for the largest
+	 * frame, and a TLS record on top of a frame that is not complete yet.
+	 */
+	public static final int FRAME_BUFFER_SIZE = 96*1024;
+
+	/**
+	 * The size of the buffers that TLS records are read into and written from,
+	 * room for two of the largest records.
+	 */
+	public static final int PACKET_BUFFER_SIZE = 40*1024;
+
+	/**
+	 * Heap buffers that frames are read into, so that messages can be parsed
+	 * from their arrays.
+	 */
+	public static final BufferPool FRAMES = new BufferPool(FRAME_BUFFER_SIZE, false, 1024);
+
+	/**
+	 * Direct buffers for the encrypted side of TLS, which the channels read
+	 * into and write from without copying.
+	 */
+	public static final BufferPool PACKETS = new BufferPool(PACKET_BUFFER_SIZE, true, 1024);
+
+	private final int size;
+	private final boolean direct;
+	private final int maxFree;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The number of free buffers, which may be out by a little while
+	 * buffers are being taken and given.
+	 */
+	private final AtomicInteger numFree = new AtomicInteger();
+
+	/**
+	 * @param size of each buffer, in bytes
+	 * @param direct whether the buffers are direct
+	 * @param maxFree the most free buffers that are kept
+	 */
+	public BufferPool(int size, boolean direct, int maxFree) {
+		this.size=size;
+		this.direct=direct;
+		this.maxFree=maxFree;
+	}
+
+	/**
+	 * @return an empty buffer, from the pool if there is one
+	 */
+	public ByteBuffer take() {
+		ByteBuffer buf = free.poll();
+		if(buf==null) return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		numFree.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Give a buffer back to the pool. It must not be used after.
+	 * @param buf a buffer taken from this pool
+	 */
+	public void give(ByteBuffer buf) {
+		if(buf.capacity()!=size || buf.isDirect()!=direct) return;
+		if(numFree.incrementAndGet()>maxFree) {
+			numFree.decrementAndGet();
+			return;
+		}
+		free.offer(buf);
+	}
+
+	/**
+	 * @return the size of each buffer, in bytes
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of free buffers in the pool
+	 */
+	public int getFree() {
+		return numFree.get();
+	}
+}
@@ -0,0 +1,440 @@
+package pb.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A transport over a non-blocking socket channel, read and written by a loop
+ * of the {@link pb.transport.IOEngine} rather than a thread of its own. Frames
+ * are read into a pooled buffer that is only held while it has something in
+ * it, so an idle connection holds no buffer. A send writes straight to the
+ * channel, and only what the channel does not take is copied and queued for
+ * the loop to write, with the sender blocking while too much is queued, or
+ * for {@link #trySend(byte[], int, int)}, refused.
+ * <br/>
+ * Subclasses add a layer between the channel and the frames, e.g.
+ * {@link pb.transport.TlsTransport}, by overriding {@link #begin()},
+ * {@link #fill(ByteBuffer, boolean)} and {@link #send(byte[], int, int)}.
+ *
+ * @see {@link pb.transport.Transport}
+ * @see {@link pb.transport.IOEngine}
+ * @see {@link pb.transport.BufferPool}
+ * @author aaron
+ *
+ */
+public class ChannelTransport implements Transport, IOEngine.Selectable {
+	private static Logger log = Logger.getLogger(ChannelTransport.class.getName());
+
+	/**
+	 * The most bytes that can be queued to be written before a send blocks.
+	 */
+	public static final int HIGH_WATER = 256*1024;
+
+	protected final SocketChannel channel;
+	protected final IOEngine.Loop loop;
+	private final String remoteId;
+	private final boolean local;
+	private volatile SelectionKey key;
+	private Handler handler;
+
+	/**
+	 * Bytes read that have not been handed on as frames yet, or null. Only
+	 * used on the loop.
+	 */
+	private ByteBuffer in = null;
+
+	/**
+	 * Whether the handler has been told the transport opened, and whether the
+	 * other end has closed its side. Only used on the loop.
+	 */
+	private boolean opened = false;
+	private boolean eof = false;
+
+	private volatile boolean paused = false;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 * Guards writing to the channel, and the queue.
+	 */
+	protected final Object outLock = new Object();
+
+	/**
+	 * What the channel did not take when it was written, in order, and the
+	 * number of bytes in it.
+	 */
+	private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+	private int queued = 0;
+
+	/**
+	 * @param channel a connected channel, which is made non-blocking
+	 * @throws IOException
+	 */
+	public ChannelTransport(SocketChannel channel) throws IOException {
+		this.channel=channel;
+		channel.configureBlocking(false);
+		// every frame is written as it is sent, so waiting to coalesce small
+		// segments (Nagle) only adds latency, e.g. to acks and keep alives
+		if(channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		SocketAddress remote = channel.getRemoteAddress();
+		local = remote instanceof UnixDomainSocketAddress;
+		remoteId = local ? toUnixId((UnixDomainSocketAddress) remote, channel.getLocalAddress()) : toId(remote);
+		loop = IOEngine.getInstance().current();
+	}
+
+	/**
+	 * Tells apart the clients of a Unix domain socket, whose addresses have
+	 * no path.
+	 */
+	private static final AtomicInteger nextLocalId = new AtomicInteger();
+
+	/**
+	 * @param remote
+	 * @param localAddress
+	 * @return the path of the socket, which is the remote address of a
+	 * client but the local one of the server, and a number for the connection
+	 */
+	private static String toUnixId(UnixDomainSocketAddress remote, SocketAddress localAddress) {
+		String path = remote.getPath().toString();
+		if(path.isEmpty() && localAddress instanceof UnixDomainSocketAddress) {
+			path = ((UnixDomainSocketAddress) localAddress).getPath().toString();
+		}
+		return "unix:"+path+"#"+nextLocalId.incrementAndGet();
+	}
+
+	private static String toId(SocketAddress address) {
+		if(address instanceof InetSocketAddress) {
+			InetSocketAddress inet = (InetSocketAddress) address;
+			return inet.getAddress()+":"+inet.getPort();
+		}
+		return String.valueOf(address);
+	}
+
+	@Override
+	public void start(Handler handler) throws IOException {
+		this.handler=handler;
+		loop.execute(()->{
+			if(closed.get()) return;
+			try {
+				key = loop.register(channel, 0, this);
+			} catch (ClosedChannelException e) {
+				fail(e);
+				return;
+			}
+			begin();
+		});
+	}
+
+	/**
+	 * Called on the loop once the channel is registered, to open the
+	 * transport, which a subclass may do after a handshake.
+	 */
+	protected void begin() {
+		opened();
+	}
+
+	/**
+	 * Tell the handler the transport has opened, and start reading frames.
+	 * Called on the loop, once.
+	 */
+	protected void opened() {
+		if(opened) return;
+		opened = true;
+		handler.opened();
+		if(!paused) setInterest(SelectionKey.OP_READ, true);
+	}
+
+	@Override
+	public void ready(int readyOps) {
+		if((readyOps & SelectionKey.OP_WRITE)!=0) writable();
+		if((readyOps & SelectionKey.OP_READ)!=0) readable(true);
+	}
+
+	/**
+	 * Read what there is, and hand on the frames that are complete, until
+	 * reading is paused. Called on the loop.
+	 * @param read whether to read from the channel, or only to hand on what
+	 * has been read already
+	 */
+	protected void readable(boolean read) {
+		boolean more;
+		do {
+			if(closed.get()) return;
+			if(opened && paused) {
+				setInterest(SelectionKey.OP_READ, false);
+				return;
+			}
+			if(in==null) in = BufferPool.FRAMES.take();
+			int n;
+			try {
+				n = fill(in, read);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+			if(n<0) {
+				eof = true;
+				setInterest(SelectionKey.OP_READ, false);
+			}
+			deliver();
+			more = !eof && hasMore();
+			read = false;
+		} while(more && !paused);
+		if(eof && !paused) fail(null);
+	}
+
+	/**
+	 * Read into the frame buffer.
+	 * @param frames the buffer frames are read into, which has room for a
+	 * record of a layer under the frames on top of a frame that is not
+	 * complete yet
+	 * @param read whether to read from the channel, or only to process what
+	 * has been read already
+	 * @return the number of bytes read from the channel, or -1 if the other
+	 * end has closed it
+	 * @throws IOException
+	 */
+	protected int fill(ByteBuffer frames, boolean read) throws IOException {
+		return read ? channel.read(frames) : 0;
+	}
+
+	/**
+	 * @return whether {@link #fill(ByteBuffer, boolean)} left something that
+	 * it had no room for in the frame buffer
+	 */
+	protected boolean hasMore() {
+		return false;
+	}
+
+	/**
+	 * Hand the complete frames to the handler, until reading is paused.
+	 */
+	private void deliver() {
+		ByteBuffer buf = in;
+		if(buf==null) return;
+		buf.flip();
+		byte[] array = buf.array();
+		while(opened && !paused && !closed.get() && buf.remaining()>=2) {
+			int pos = buf.position();
+			int len = (((array[pos] & 0xff)<<8) | (array[pos+1] & 0xff))+2;
+			if(buf.remaining()<len) break;
+			buf.position(pos+len);
+			handler.frameReceived(array, pos, len);
+		}
+		buf.compact();
+		if(buf.position()==0) {
+			in = null;
+			BufferPool.FRAMES.give(buf);
+		}
+	}
+
+	@Override
+	public void send(byte[] buf, int off, int len) throws IOException {
+		synchronized(outLock) {
+			if(closed.get()) throw new ClosedChannelException();
+			write(ByteBuffer.wrap(buf, off, len));
+			awaitWritten();
+		}
+	}
+
+	@Override
+	public boolean trySend(byte[] buf, int off, int len) throws IOException {
+		synchronized(outLock) {
+			if(closed.get()) throw new ClosedChannelException();
+			if(isBacklogged()) return false;
+			write(ByteBuffer.wrap(buf, off, len));
+			return true;
+		}
+	}
+
+	/**
+	 * @return whether more than {@link #HIGH_WATER} is queued, so a send
+	 * would block. The caller holds {@link #outLock}.
+	 */
+	protected boolean isBacklogged() {
+		return queued>HIGH_WATER;
+	}
+
+	/**
+	 * Write to the channel, after what is queued, and queue a copy of what it
+	 * does not take. The caller holds {@link #outLock}.
+	 * @param data
+	 * @throws IOException
+	 */
+	protected void write(ByteBuffer data) throws IOException {
+		if(out.isEmpty()) channel.write(data);
+		if(!data.hasRemaining()) return;
+		ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+		copy.put(data).flip();
+		out.offer(copy);
+		queued += copy.remaining();
+		setInterest(SelectionKey.OP_WRITE, true);
+	}
+
+	/**
+	 * Block until the queue is below {@link #HIGH_WATER}, unless called on the
+	 * loop, which is what empties it. The caller holds {@link #outLock}.
+	 * @throws IOException if the transport closes while waiting
+	 */
+	protected void awaitWritten() throws IOException {
+		if(loop.inLoop()) return;
+		while(queued>HIGH_WATER && !closed.get()) {
+			try {
+				outLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while sending");
+			}
+		}
+		if(closed.get()) throw new ClosedChannelException();
+	}
+
+	/**
+	 * Write what is queued, on the loop.
+	 */
+	private void writable() {
+		IOException failure = null;
+		synchronized(outLock) {
+			try {
+				while(!out.isEmpty()) {
+					ByteBuffer buf = out.peek();
+					queued -= channel.write(buf);
+					if(buf.hasRemaining()) break;
+					out.poll();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+			if(out.isEmpty()) setInterest(SelectionKey.OP_WRITE, false);
+			outLock.notifyAll();
+		}
+		if(failure!=null) fail(failure);
+	}
+
+	/**
+	 * @param op
+	 * @param on whether the loop should select the operation
+	 */
+	protected void setInterest(int op, boolean on) {
+		SelectionKey k = key;
+		if(k==null) return;
+		try {
+			if(on) {
+				k.interestOpsOr(op);
+				loop.wakeup();
+			} else {
+				k.interestOpsAnd(~op);
+			}
+		} catch (CancelledKeyException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * The connection has broken or the other end closed it, on the loop.
+	 * @param cause or null if the other end closed it
+	 */
+	protected void fail(IOException cause) {
+		if(!closed.compareAndSet(false, true)) return;
+		shut();
+		release();
+		handler.closed(cause);
+	}
+
+	@Override
+	public void pauseReading() {
+		// the loop stops selecting for reads when it next reads
+		paused = true;
+	}
+
+	@Override
+	public void resumeReading() {
+		paused = false;
+		loop.execute(()->{
+			if(paused || !opened) return;
+			readable(false);
+			if(!paused && !eof) setInterest(SelectionKey.OP_READ, true);
+		});
+	}
+
+	@Override
+	public void trim() {
+		// buffers are only held while they have something in them
+	}
+
+	@Override
+	public void close() {
+		if(closed.get()) return;
+		closing();
+		if(!closed.compareAndSet(false, true)) return;
+		shut();
+		loop.execute(this::release);
+	}
+
+	/**
+	 * Called before the transport is closed on purpose, e.g. to tell the
+	 * other end.
+	 */
+	protected void closing() {
+	}
+
+	/**
+	 * @return whether the transport has closed
+	 */
+	protected boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Close the channel, and wake senders that are waiting.
+	 */
+	private void shut() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("channel did not close properly: "+e.getMessage());
+		}
+		synchronized(outLock) {
+			out.clear();
+			queued = 0;
+			outLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Give the buffers back to their pools, on the loop once closed.
+	 */
+	protected void release() {
+		if(in!=null) {
+			BufferPool.FRAMES.give(in);
+			in = null;
+		}
+	}
+
+	/**
+	 * A Unix domain socket is only connected to from the same host.
+	 */
+	@Override
+	public boolean isLocal() {
+		return local;
+	}
+
+	@Override
+	public String getRemoteId() {
+		return remoteId;
+	}
+}
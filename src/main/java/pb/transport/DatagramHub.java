@@ -0,0 +1,151 @@
+package pb.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The server's end of the {@link pb.transport.DatagramLink}s of its sessions:
+ * one UDP channel that every link shares, read by a loop of the
+ * {@link pb.transport.IOEngine}, which hands each datagram to the link its
+ * token is for. Tokens are random, so that a datagram cannot be sent into a
+ * session without having been told its token over the connection.
+ * <br/>
+ * Datagrams are not encrypted, so a server that encrypts its connections
+ * should not give its sessions links.
+ *
+ * @see {@link pb.transport.DatagramLink}
+ * @author aaron
+ *
+ */
+public class DatagramHub implements IOEngine.Selectable {
+	private static Logger log = Logger.getLogger(DatagramHub.class.getName());
+
+	/**
+	 * The most datagrams read at a time, before the loop gets on with the
+	 * other channels.
+	 */
+	private static final int READ_BATCH = 256;
+
+	private final DatagramChannel channel;
+	private final IOEngine.Loop loop;
+	private final int port;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * The links, by their token.
+	 */
+	private final ConcurrentHashMap<Long,DatagramLink> links = new ConcurrentHashMap<>();
+
+	/**
+	 * The buffer datagrams are read into, only used on the loop.
+	 */
+	private final ByteBuffer in = ByteBuffer.allocate(DatagramLink.MAX_DATAGRAM);
+
+	/**
+	 * @param port the UDP port to receive datagrams on, e.g. the same number
+	 * as the server's TCP port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public DatagramHub(int port) throws IOException {
+		channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		loop = IOEngine.getInstance().next();
+		loop.execute(()->{
+			try {
+				loop.register(channel, SelectionKey.OP_READ, this);
+			} catch (ClosedChannelException e) {
+				// closed already
+			}
+		});
+		log.info("receiving datagrams on port "+this.port);
+	}
+
+	/**
+	 * Make a link for a session, with a token of its own.
+	 * @return the link, which is bound once the client sends its token
+	 */
+	public DatagramLink open() {
+		for(;;) {
+			long token = random.nextLong();
+			if(token==0) continue;
+			DatagramLink link = new DatagramLink(this, token);
+			if(links.putIfAbsent(token, link)==null) return link;
+		}
+	}
+
+	/**
+	 * Forget a link that has closed.
+	 * @param link
+	 */
+	void remove(DatagramLink link) {
+		links.remove(link.getToken(), link);
+	}
+
+	/**
+	 * Read the datagrams, on the loop.
+	 */
+	@Override
+	public void ready(int readyOps) {
+		for(int i=0;i<READ_BATCH;i++) {
+			in.clear();
+			SocketAddress from;
+			try {
+				from = channel.receive(in);
+			} catch (IOException e) {
+				log.warning("datagram not received: "+e.getMessage());
+				return;
+			}
+			if(from==null) return;
+			in.flip();
+			if(in.remaining()<DatagramLink.HEADER || in.get(0)!=DatagramLink.MAGIC) continue;
+			DatagramLink link = links.get(in.getLong(2));
+			if(link==null) continue;
+			link.received(in.get(1), in.getInt(10), in.array(), DatagramLink.HEADER,
+					in.remaining()-DatagramLink.HEADER, from);
+		}
+	}
+
+	DatagramChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return the UDP port datagrams are received on
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the number of links that are open
+	 */
+	public int getNumLinks() {
+		return links.size();
+	}
+
+	/**
+	 * Stop receiving datagrams.
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("datagram channel did not close properly: "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package pb.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.Utils;
+
+/**
+ * An unreliable side channel of a session, over UDP, for frames that are only
+ * of use while they are fresh, e.g. where a cursor is: over the connection
+ * they would wait behind the strokes sent before them, and be sent again when
+ * lost, long after a newer one made them useless. Each datagram carries one
+ * frame, the token the server gave the session when it started, and a
+ * sequence number, and a frame that is older than the last one received is
+ * dropped.
+ * <br/>
+ * The client binds the link by sending the token to the server until the
+ * server answers, and then every {@link #REFRESH_INTERVAL} ms to keep the path
+ * open through NATs, saying each time whether it still hears the server. An
+ * end only sends on the link while the path both ways is known to work, i.e.
+ * it has heard from the other end within {@link #LINK_TIMEOUT} ms, so when UDP
+ * is blocked, or stops getting through, {@link #send(byte[], int, int)}
+ * returns false and the frames go over the connection instead.
+ * <br/>
+ * A datagram is: MAGIC, type, token (8 bytes), sequence number (4 bytes),
+ * then for a frame the frame, two byte length and all.
+ *
+ * @see {@link pb.transport.DatagramHub}
+ * @see {@link pb.Endpoint#sendEphemeral(pb.protocols.Message)}
+ * @author aaron
+ *
+ */
+public class DatagramLink implements IOEngine.Selectable {
+	private static Logger log = Logger.getLogger(DatagramLink.class.getName());
+
+	/**
+	 * Receives the frames that arrive on the link, on its loop.
+	 */
+	public interface Handler {
+		void frameReceived(byte[] buf, int off, int len);
+	}
+
+	/**
+	 * The first byte of every datagram, and the types of datagram: from the
+	 * client, to bind the link, and from the server, to answer it; and a
+	 * frame, either way.
+	 */
+	static final byte MAGIC = 0x70;
+	static final byte BIND = 1;
+	static final byte BOUND = 2;
+	static final byte FRAME = 3;
+
+	/**
+	 * The length of the header of a datagram.
+	 */
+	static final int HEADER = 14;
+
+	/**
+	 * The largest frame that is sent on the link, so that the datagrams are
+	 * not fragmented on any path; larger ones go over the connection.
+	 */
+	public static final int MAX_FRAME = 1200;
+
+	/**
+	 * The largest datagram that is read.
+	 */
+	static final int MAX_DATAGRAM = 2048;
+
+	/**
+	 * How often the client tries to bind the link, in ms, and how many times
+	 * before it only tries every {@link #REFRESH_INTERVAL}.
+	 */
+	public static final long BIND_RETRY = 250;
+	public static final int BIND_ATTEMPTS = 8;
+
+	/**
+	 * How often the client refreshes the link, in ms.
+	 */
+	public static final long REFRESH_INTERVAL = 10000;
+
+	/**
+	 * How long an end sends on the link after it last heard from the other
+	 * end, in ms, which misses a few refreshes before it gives up.
+	 */
+	public static final long LINK_TIMEOUT = 3*REFRESH_INTERVAL+BIND_RETRY;
+
+	/**
+	 * The datagram that a frame is sent in, for each thread that sends.
+	 */
+	private static final ThreadLocal<ByteBuffer> outBuffer =
+			ThreadLocal.withInitial(()->ByteBuffer.allocateDirect(HEADER+MAX_FRAME));
+
+	private final long token;
+	private final DatagramChannel channel;
+
+	/**
+	 * The server's hub, or null for the client's end.
+	 */
+	private final DatagramHub hub;
+
+	/**
+	 * Where the other end sends from, or null until the link is bound.
+	 */
+	private volatile SocketAddress remote;
+	private volatile Handler handler;
+	private volatile boolean closed = false;
+
+	/**
+	 * When this end last heard from the other in a way that shows the path
+	 * both ways works, in ms, or 0 if it has not.
+	 */
+	private volatile long heardAt = 0;
+
+	private final AtomicInteger sent = new AtomicInteger();
+
+	/**
+	 * The sequence number of the last frame received, only used on the loop.
+	 */
+	private int last;
+	private boolean received = false;
+
+	/**
+	 * The number of frames dropped because a newer one had been received.
+	 */
+	private final AtomicLong stale = new AtomicLong();
+
+	/**
+	 * The client's loop, and buffer that datagrams are read into, only
+	 * used on the loop, and the number of times it has tried to bind.
+	 */
+	private IOEngine.Loop loop;
+	private ByteBuffer in;
+	private int attempts = 0;
+
+	/**
+	 * The server's end of a link, which is given its token by the hub.
+	 * @param hub
+	 * @param token
+	 */
+	DatagramLink(DatagramHub hub, long token) {
+		this.hub=hub;
+		this.token=token;
+		this.channel=hub.getChannel();
+	}
+
+	private DatagramLink(DatagramChannel channel, SocketAddress server, long token) {
+		this.hub=null;
+		this.token=token;
+		this.channel=channel;
+		this.remote=server;
+	}
+
+	/**
+	 * The client's end of a link, which is bound once it is started.
+	 * @param server the address of the server's hub
+	 * @param token the token the server gave the session
+	 * @return the link
+	 * @throws IOException if a channel cannot be opened
+	 */
+	public static DatagramLink connect(SocketAddress server, long token) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.connect(server);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new DatagramLink(channel, server, token);
+	}
+
+	/**
+	 * Start handing on the frames that arrive; the client also starts to
+	 * bind the link.
+	 * @param handler
+	 * @throws IOException if the client's channel cannot be registered
+	 */
+	public void start(Handler handler) throws IOException {
+		this.handler=handler;
+		if(hub!=null) return;
+		loop = IOEngine.getInstance().next();
+		loop.execute(()->{
+			if(closed) return;
+			try {
+				loop.register(channel, SelectionKey.OP_READ, this);
+			} catch (ClosedChannelException e) {
+				return;
+			}
+			in = ByteBuffer.allocate(MAX_DATAGRAM);
+			refresh();
+		});
+	}
+
+	/**
+	 * Send the token, saying whether this end still hears the server, and
+	 * do so again after a while. On the client.
+	 */
+	private void refresh() {
+		if(closed) return;
+		boolean hearing = isBound();
+		sendControl(BIND, hearing ? 1 : 0, remote);
+		attempts++;
+		if(attempts==BIND_ATTEMPTS && !hearing) {
+			log.info("datagrams to "+remote+" are not getting through, sending over the connection");
+		}
+		Utils.getInstance().setTimeout(()->loop.execute(this::refresh),
+				hearing || attempts>=BIND_ATTEMPTS ? REFRESH_INTERVAL : BIND_RETRY);
+	}
+
+	/**
+	 * Read the datagrams from the server, on the client's loop.
+	 */
+	@Override
+	public void ready(int readyOps) {
+		for(;;) {
+			in.clear();
+			SocketAddress from;
+			try {
+				from = channel.receive(in);
+			} catch (IOException e) {
+				// e.g. the port is unreachable, which the link finds out as
+				// it stops hearing from the server
+				log.fine("datagram not received: "+e.getMessage());
+				return;
+			}
+			if(from==null) return;
+			in.flip();
+			if(in.remaining()<HEADER || in.get(0)!=MAGIC || in.getLong(2)!=token) continue;
+			received(in.get(1), in.getInt(10), in.array(), HEADER, in.remaining()-HEADER, from);
+		}
+	}
+
+	/**
+	 * A datagram with the link's token has arrived, on the loop.
+	 * @param type
+	 * @param seq
+	 * @param buf
+	 * @param off where the frame starts, if it is a frame
+	 * @param len the length of the frame
+	 * @param from
+	 */
+	void received(byte type, int seq, byte[] buf, int off, int len, SocketAddress from) {
+		if(closed) return;
+		long now = System.currentTimeMillis();
+		switch(type) {
+		case BIND:
+			if(hub==null) return;
+			// the client may be behind a NAT that has moved it
+			remote = from;
+			if(seq!=0) heardAt = now;
+			sendControl(BOUND, 0, from);
+			return;
+		case BOUND:
+			if(hub!=null) return;
+			boolean hearing = isBound();
+			heardAt = now;
+			if(!hearing) {
+				log.info("datagram link to "+remote+" is bound");
+				// so that the server knows the path back works, straight away
+				sendControl(BIND, 1, remote);
+			}
+			return;
+		case FRAME:
+			if(!from.equals(remote)) return;
+			if(len<2 || (((buf[off] & 0xff)<<8) | (buf[off+1] & 0xff))+2!=len) return;
+			// the client only sends frames once it hears the server
+			heardAt = now;
+			if(received && seq-last<=0) {
+				stale.incrementAndGet();
+				return;
+			}
+			received = true;
+			last = seq;
+			Handler h = handler;
+			if(h!=null) h.frameReceived(buf, off, len);
+			return;
+		default:
+		}
+	}
+
+	private void sendControl(byte type, int seq, SocketAddress to) {
+		ByteBuffer buf = outBuffer.get();
+		buf.clear();
+		buf.put(MAGIC).put(type).putLong(token).putInt(seq).flip();
+		try {
+			channel.send(buf, to);
+		} catch (IOException e) {
+			log.fine("datagram not sent to "+to+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Send a frame on the link, if it is bound. It may be lost, or arrive
+	 * after a newer one and be dropped.
+	 * @param frame
+	 * @param off
+	 * @param len
+	 * @return false if the frame was not sent, because the link is not bound
+	 * or the frame is larger than {@link #MAX_FRAME}
+	 */
+	public boolean send(byte[] frame, int off, int len) {
+		if(closed || len>MAX_FRAME || !isBound()) return false;
+		ByteBuffer buf = outBuffer.get();
+		buf.clear();
+		buf.put(MAGIC).put(FRAME).putLong(token).putInt(sent.incrementAndGet()).put(frame, off, len).flip();
+		try {
+			// if the socket's buffer is full it is dropped, as it might be on the way
+			channel.send(buf, remote);
+		} catch (IOException e) {
+			log.fine("datagram not sent to "+remote+": "+e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether frames are sent on the link, i.e. this end has heard
+	 * from the other within {@link #LINK_TIMEOUT}
+	 */
+	public boolean isBound() {
+		long at = heardAt;
+		return at!=0 && System.currentTimeMillis()-at<LINK_TIMEOUT;
+	}
+
+	/**
+	 * @return the token that identifies the session's datagrams
+	 */
+	public long getToken() {
+		return token;
+	}
+
+	/**
+	 * @return the UDP port of the server's hub, on the server
+	 */
+	public int getPort() {
+		return hub==null ? 0 : hub.getPort();
+	}
+
+	/**
+	 * @return the number of frames dropped because a newer one had already
+	 * been received
+	 */
+	public long getStale() {
+		return stale.get();
+	}
+
+	/**
+	 * Close the link. The client's channel is closed; the server's is shared.
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		if(hub!=null) {
+			hub.remove(this);
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("datagram channel did not close properly: "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package pb.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A singleton set of selector threads that read and write the non-blocking
+ * channels of every transport, so that a connection does not need a thread
+ * of its own. Each channel is registered with one loop, chosen round robin,
+ * for as long as it is open, so everything a transport does on its loop is
+ * done by one thread. It must always be accessed statically as
+ * IOEngine.getInstance()...
+ *
+ * @see {@link pb.transport.ChannelTransport}
+ * @author aaron
+ *
+ */
+public class IOEngine {
+	private static Logger log = Logger.getLogger(IOEngine.class.getName());
+	private static IOEngine engine;
+
+	/**
+	 * Something registered with a loop, told which operations it is ready
+	 * for.
+	 */
+	interface Selectable {
+		/**
+		 * Called on the loop.
+		 * @param readyOps
+		 */
+		void ready(int readyOps);
+	}
+
+	/**
+	 * A thread that selects on its channels, and runs tasks handed to it.
+	 */
+	static class Loop extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		Loop(String name) throws IOException {
+			super(name);
+			selector = Selector.open();
+			// the managers keep the JVM alive, not the loops
+			setDaemon(true);
+		}
+
+		/**
+		 * Run a task on the loop, after what is already queued.
+		 * @param task
+		 */
+		void execute(Runnable task) {
+			tasks.offer(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * @return whether this is the calling thread
+		 */
+		boolean inLoop() {
+			return Thread.currentThread()==this;
+		}
+
+		/**
+		 * Register a channel with the loop's selector, on the loop.
+		 * @param channel
+		 * @param ops
+		 * @param selectable
+		 * @return the key
+		 * @throws ClosedChannelException
+		 */
+		SelectionKey register(SelectableChannel channel, int ops, Selectable selectable) throws ClosedChannelException {
+			return channel.register(selector, ops, selectable);
+		}
+
+		/**
+		 * Make sure the selector sees a change of the interest of a key.
+		 */
+		void wakeup() {
+			if(!inLoop()) selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while(!isInterrupted()) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					log.severe("selector failed: "+e.getMessage());
+					break;
+				}
+				Runnable task;
+				while((task=tasks.poll())!=null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.severe("io task failed: "+e);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if(key.isValid()) ((Selectable) key.attachment()).ready(key.readyOps());
+					} catch (RuntimeException e) {
+						log.severe("io event failed: "+e);
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warning("selector did not close properly: "+e.getMessage());
+			}
+		}
+	}
+
+	private final Loop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param numLoops the number of selector threads
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public IOEngine(int numLoops) throws IOException {
+		loops = new Loop[numLoops];
+		for(int i=0;i<numLoops;i++) {
+			loops[i] = new Loop("io-"+i);
+			loops[i].start();
+		}
+	}
+
+	public static synchronized IOEngine getInstance() throws IOException {
+		if(engine==null) engine=new IOEngine(Runtime.getRuntime().availableProcessors());
+		return engine;
+	}
+
+	/**
+	 * @return the loop to register the next channel with
+	 */
+	Loop next() {
+		return loops[(next.getAndIncrement() & 0x7fffffff) % loops.length];
+	}
+
+	/**
+	 * @return the calling loop, so that a channel set up on a loop stays on
+	 * it, else the loop to register the next channel with
+	 */
+	Loop current() {
+		Thread thread = Thread.currentThread();
+		for(Loop loop : loops) {
+			if(loop==thread) return loop;
+		}
+		return next();
+	}
+
+	/**
+	 * Run a task on the next loop, e.g. to set up a connection that was just
+	 * accepted, so that the acceptor can get back to accepting. A
+	 * {@link pb.transport.ChannelTransport} made by the task is registered
+	 * with the same loop.
+	 * @param task
+	 */
+	public void handOff(Runnable task) {
+		next().execute(task);
+	}
+
+	/**
+	 * Connect a channel without blocking, on the next loop, e.g. so that a
+	 * client can open many connections from one thread.
+	 * @param address of the server, an internet address or a Unix domain
+	 * socket
+	 * @return completes with the connected channel, which is non-blocking,
+	 * or exceptionally if it cannot connect
+	 */
+	public CompletableFuture<SocketChannel> connect(SocketAddress address) {
+		CompletableFuture<SocketChannel> connected = new CompletableFuture<>();
+		Loop loop = next();
+		loop.execute(()->{
+			SocketChannel channel = null;
+			try {
+				channel = address instanceof UnixDomainSocketAddress
+						? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+				channel.configureBlocking(false);
+				if(channel.connect(address)) {
+					connected.complete(channel);
+					return;
+				}
+				SocketChannel pending = channel;
+				loop.register(channel, SelectionKey.OP_CONNECT, new Selectable() {
+					@Override
+					public void ready(int readyOps) {
+						try {
+							if(!pending.finishConnect()) return;
+							// the key is left without interest rather than
+							// cancelled, so that the channel can be registered
+							// again with this loop straight away
+							pending.keyFor(loop.selector).interestOps(0);
+							connected.complete(pending);
+						} catch (IOException e) {
+							fail(pending, connected, e);
+						}
+					}
+				});
+				// e.g. timed out
+				connected.whenComplete((c,e)->{ if(e!=null) fail(pending, connected, null); });
+			} catch (IOException e) {
+				fail(channel, connected, e);
+			}
+		});
+		return connected;
+	}
+
+	private static void fail(SocketChannel channel, CompletableFuture<SocketChannel> connected, IOException cause) {
+		if(cause!=null) connected.completeExceptionally(cause);
+		if(channel==null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// it did not connect anyway
+		}
+	}
+
+	/**
+	 * Stop the loops. The channels registered with them are not closed.
+	 */
+	public void shutDown() {
+		for(Loop loop : loops) {
+			loop.interrupt();
+			loop.selector.wakeup();
+		}
+	}
+}
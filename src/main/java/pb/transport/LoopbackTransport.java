@@ -0,0 +1,248 @@
+package pb.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A transport to another endpoint in the same process, e.g. a client embedded
+ * with the server, a test or a benchmark of the protocols without the network.
+ * Transports are made in connected pairs by {@link #pair()}. A send copies the
+ * frame onto a lock-free queue of the other transport, which hands it to its
+ * handler on a loop of the {@link pb.transport.IOEngine}, as a frame read from
+ * a channel would be, so the endpoints cannot tell the difference. The sender
+ * blocks while more than {@link #HIGH_WATER} bytes are queued for the other
+ * end, e.g. while it has paused reading, and a {@link #trySend(byte[], int, int)}
+ * is refused.
+ *
+ * @see {@link pb.transport.Transport}
+ * @see {@link pb.transport.ChannelTransport}
+ * @author aaron
+ *
+ */
+public class LoopbackTransport implements Transport {
+	private static Logger log = Logger.getLogger(LoopbackTransport.class.getName());
+
+	/**
+	 * The most bytes that can be queued for the other end before a send blocks.
+	 */
+	public static final int HIGH_WATER = ChannelTransport.HIGH_WATER;
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private final String remoteId;
+	private final IOEngine.Loop loop;
+	private LoopbackTransport peer;
+	private volatile Handler handler;
+
+	/**
+	 * The frames sent by the other end that have not been handed on, and
+	 * the number of bytes in them.
+	 */
+	private final ConcurrentLinkedQueue<byte[]> in = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued = new AtomicInteger();
+
+	/**
+	 * Whether frames are being handed on, or are about to be, on the loop.
+	 */
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+
+	/**
+	 * Whether the handler has been told the transport opened, only used on
+	 * the loop, and whether the other end has closed its side.
+	 */
+	private boolean opened = false;
+	private volatile boolean eof = false;
+
+	private volatile boolean paused = false;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 * What senders wait on while the other end's queue is full.
+	 */
+	private final Object outLock = new Object();
+
+	private LoopbackTransport(String remoteId) throws IOException {
+		this.remoteId=remoteId;
+		loop = IOEngine.getInstance().next();
+	}
+
+	/**
+	 * Make two transports that are connected to each other, one for each
+	 * endpoint, e.g. one for a {@link pb.client.ClientManager} and the other
+	 * for the {@link pb.server.ServerManager}.
+	 * @return the two transports
+	 * @throws IOException if the {@link pb.transport.IOEngine} cannot start
+	 */
+	public static LoopbackTransport[] pair() throws IOException {
+		int id = nextId.incrementAndGet();
+		LoopbackTransport a = new LoopbackTransport("loopback:"+id+"b");
+		LoopbackTransport b = new LoopbackTransport("loopback:"+id+"a");
+		a.peer = b;
+		b.peer = a;
+		return new LoopbackTransport[] {a, b};
+	}
+
+	@Override
+	public void start(Handler handler) throws IOException {
+		this.handler=handler;
+		loop.execute(()->{
+			if(closed.get()) return;
+			opened = true;
+			handler.opened();
+			schedule();
+		});
+	}
+
+	/**
+	 * Hand on what is queued on the loop, unless that is already to happen.
+	 */
+	private void schedule() {
+		if(draining.compareAndSet(false, true)) loop.execute(this::drain);
+	}
+
+	/**
+	 * Hand the queued frames to the handler, until reading is paused, and
+	 * tell it the other end has closed once there are none left. Called on
+	 * the loop.
+	 */
+	private void drain() {
+		for(;;) {
+			while(opened && !paused && !closed.get()) {
+				byte[] frame = in.poll();
+				if(frame==null) break;
+				released(frame.length);
+				handler.frameReceived(frame, 0, frame.length);
+			}
+			draining.set(false);
+			if(!opened || paused || closed.get()) return;
+			if(in.isEmpty()) {
+				if(eof) fail();
+				return;
+			}
+			// a frame was queued after the last poll
+			if(!draining.compareAndSet(false, true)) return;
+		}
+	}
+
+	/**
+	 * The handler has taken frames off the queue, so wake the other end's
+	 * senders if they were waiting for room.
+	 * @param len
+	 */
+	private void released(int len) {
+		if(queued.getAndAdd(-len)>HIGH_WATER) {
+			synchronized(peer.outLock) {
+				peer.outLock.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void send(byte[] buf, int off, int len) throws IOException {
+		if(closed.get() || peer.closed.get() || peer.eof) throw new ClosedChannelException();
+		peer.queued.addAndGet(len);
+		peer.in.offer(Arrays.copyOfRange(buf, off, off+len));
+		peer.schedule();
+		awaitTaken();
+	}
+
+	@Override
+	public boolean trySend(byte[] buf, int off, int len) throws IOException {
+		if(closed.get() || peer.closed.get() || peer.eof) throw new ClosedChannelException();
+		if(peer.queued.get()>HIGH_WATER) return false;
+		peer.queued.addAndGet(len);
+		peer.in.offer(Arrays.copyOfRange(buf, off, off+len));
+		peer.schedule();
+		return true;
+	}
+
+	/**
+	 * Block until the other end's queue is below {@link #HIGH_WATER}, unless
+	 * called on the loop of this transport, which may be what empties it.
+	 * @throws IOException if either end closes while waiting
+	 */
+	private void awaitTaken() throws IOException {
+		if(peer.queued.get()<=HIGH_WATER || loop.inLoop() || peer.loop.inLoop()) return;
+		synchronized(outLock) {
+			while(peer.queued.get()>HIGH_WATER && !closed.get() && !peer.closed.get()) {
+				try {
+					outLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while sending");
+				}
+			}
+		}
+		if(closed.get() || peer.closed.get()) throw new ClosedChannelException();
+	}
+
+	/**
+	 * The other end has closed and everything it sent has been handed on,
+	 * on the loop.
+	 */
+	private void fail() {
+		if(!closed.compareAndSet(false, true)) return;
+		shut();
+		handler.closed(null);
+	}
+
+	@Override
+	public void pauseReading() {
+		paused = true;
+	}
+
+	@Override
+	public void resumeReading() {
+		paused = false;
+		schedule();
+	}
+
+	@Override
+	public void trim() {
+		// frames are only held while they are queued
+	}
+
+	@Override
+	public void close() {
+		if(!closed.compareAndSet(false, true)) return;
+		shut();
+		// the other end is told once it has taken what was sent before
+		peer.eof = true;
+		peer.schedule();
+	}
+
+	/**
+	 * Drop what is queued, and wake senders on both ends that are waiting.
+	 */
+	private void shut() {
+		in.clear();
+		queued.set(0);
+		synchronized(outLock) {
+			outLock.notifyAll();
+		}
+		synchronized(peer.outLock) {
+			peer.outLock.notifyAll();
+		}
+		log.fine("loopback to "+remoteId+" closed");
+	}
+
+	/**
+	 * The other end of a loopback is in the same process, so there is
+	 * nothing to gain from e.g. a datagram link.
+	 */
+	@Override
+	public boolean isLocal() {
+		return true;
+	}
+
+	@Override
+	public String getRemoteId() {
+		return remoteId;
+	}
+}
@@ -0,0 +1,137 @@
+package pb.transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A transport over a blocking socket, with a thread of its own that blocking
+ * reads the frames, i.e. thread-per-connection. For sockets made elsewhere;
+ * the server and client use a {@link pb.transport.ChannelTransport}.
+ *
+ * @see {@link pb.transport.Transport}
+ * @author aaron
+ *
+ */
+public class SocketTransport implements Transport {
+	private static Logger log = Logger.getLogger(SocketTransport.class.getName());
+
+	/**
+	 * The size of the buffer frames are read into, to start with and once
+	 * trimmed.
+	 */
+	private static final int FRAME_BUFFER = 256;
+
+	private final Socket socket;
+	private DataInputStream in = null;
+	private DataOutputStream out = null;
+	private Thread reader;
+
+	/**
+	 * Buffer that frames are read into, reused for every frame, which grows
+	 * to the largest frame read.
+	 */
+	private volatile byte[] frame = new byte[FRAME_BUFFER];
+
+	private volatile boolean paused = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param socket a connected socket
+	 */
+	public SocketTransport(Socket socket) {
+		this.socket=socket;
+	}
+
+	@Override
+	public void start(Handler handler) throws IOException {
+		// every frame is flushed as it is sent, so waiting to coalesce small
+		// segments (Nagle) only adds latency, e.g. to acks and keep alives
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(socket.getInputStream());
+		synchronized(this) {
+			out = new DataOutputStream(socket.getOutputStream());
+		}
+		reader = new Thread(()->read(handler));
+		reader.start();
+	}
+
+	/**
+	 * Continue to read frames until closed.
+	 * @param handler
+	 */
+	private void read(Handler handler) {
+		handler.opened();
+		try {
+			while(!closed) {
+				while(paused && !closed) LockSupport.park(this);
+				if(closed) break;
+				int len = in.readUnsignedShort();
+				// read after the wait for the frame, which is when it may be trimmed
+				byte[] buf = frame;
+				if(buf.length<len+2) frame = buf = new byte[Math.max(len+2, buf.length*2)];
+				buf[0] = (byte) (len >>> 8);
+				buf[1] = (byte) len;
+				in.readFully(buf, 2, len);
+				handler.frameReceived(buf, 0, len+2);
+			}
+		} catch (IOException e) {
+			// nothing to report if this end closed the connection
+			if(!closed) {
+				closed = true;
+				handler.closed(e instanceof EOFException ? null : e);
+			}
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+			log.warning("connection did not close properly: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void send(byte[] buf, int off, int len) throws IOException {
+		if(out==null || closed) throw new IOException("socket is closed");
+		out.write(buf, off, len);
+		out.flush();
+	}
+
+	@Override
+	public void pauseReading() {
+		paused = true;
+	}
+
+	@Override
+	public void resumeReading() {
+		paused = false;
+		if(reader!=null) LockSupport.unpark(reader);
+	}
+
+	@Override
+	public void trim() {
+		if(frame.length>FRAME_BUFFER) frame = new byte[FRAME_BUFFER];
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if(reader!=null) {
+			reader.interrupt();
+			LockSupport.unpark(reader);
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.warning("socket did not close properly: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public String getRemoteId() {
+		return socket.getInetAddress().toString()+":"+socket.getPort();
+	}
+}
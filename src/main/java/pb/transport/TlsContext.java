@@ -0,0 +1,141 @@
+package pb.transport;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The keys, trusted certificates and TLS session caches that a server or a
+ * client makes its {@link pb.transport.TlsTransport}s with. A client that
+ * reconnects with the same context resumes its session with the server,
+ * which skips the key exchange and the certificates of a full handshake,
+ * since the sessions of a client are cached by the host and port it connects
+ * to and those of a server are kept for a day.
+ *
+ * @see {@link pb.transport.TlsTransport}
+ * @author aaron
+ *
+ */
+public class TlsContext {
+
+	/**
+	 * The versions of TLS that are allowed.
+	 */
+	public static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+	/**
+	 * The most sessions that are cached, and how long they are kept, in s.
+	 */
+	public static final int SESSION_CACHE_SIZE = 20000;
+	public static final int SESSION_TIMEOUT = 24*60*60;
+
+	private final SSLContext context;
+
+	/**
+	 * The number of handshakes that finished, and of those that resumed a
+	 * session.
+	 */
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong resumptions = new AtomicLong();
+
+	/**
+	 * @param context initialised with the keys and trusted certificates
+	 */
+	public TlsContext(SSLContext context) {
+		this.context=context;
+		context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+		context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+		context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+		context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+	}
+
+	/**
+	 * Load the keys of a server, or the certificates a client trusts, from
+	 * key stores, e.g. a PKCS12 file made with keytool.
+	 * @param keyStore the key and certificate of a server, or null for a client
+	 * @param keyPassword the password of the key store and its key
+	 * @param trustStore the certificates to trust, or null for those of the JVM
+	 * @param trustPassword the password of the trust store
+	 * @return the context
+	 * @throws IOException if a store cannot be read
+	 * @throws GeneralSecurityException if a store is not valid
+	 */
+	public static TlsContext load(Path keyStore, char[] keyPassword, Path trustStore, char[] trustPassword)
+			throws IOException, GeneralSecurityException {
+		KeyManagerFactory keys = null;
+		if(keyStore!=null) {
+			keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(KeyStore.getInstance(keyStore.toFile(), keyPassword), keyPassword);
+		}
+		TrustManagerFactory trust = null;
+		if(trustStore!=null) {
+			trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trust.init(KeyStore.getInstance(trustStore.toFile(), trustPassword));
+		}
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys==null ? null : keys.getKeyManagers(), trust==null ? null : trust.getTrustManagers(), null);
+		return new TlsContext(context);
+	}
+
+	/**
+	 * @return an engine for a connection accepted by a server
+	 */
+	SSLEngine serverEngine() {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setEnabledProtocols(PROTOCOLS);
+		return engine;
+	}
+
+	/**
+	 * @param host the name the client connected to, which the certificate of
+	 * the server must be for
+	 * @param port
+	 * @return an engine for a client, which resumes the last session with the
+	 * host and port if it is still cached
+	 */
+	SSLEngine clientEngine(String host, int port) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters parameters = engine.getSSLParameters();
+		parameters.setProtocols(PROTOCOLS);
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(parameters);
+		return engine;
+	}
+
+	/**
+	 * Count a handshake that finished.
+	 * @param resumed whether it resumed a session
+	 */
+	void handshakeDone(boolean resumed) {
+		handshakes.incrementAndGet();
+		if(resumed) resumptions.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of handshakes that finished
+	 */
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	/**
+	 * @return the number of handshakes that resumed a session
+	 */
+	public long getResumptions() {
+		return resumptions.get();
+	}
+
+	public SSLContext getContext() {
+		return context;
+	}
+}
@@ -0,0 +1,269 @@
+package pb.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A transport that encrypts its frames with TLS, with an {@link SSLEngine}
+ * over a non-blocking channel. The encrypted records are read into and
+ * written from pooled direct buffers, which are only held while they have
+ * something in them, and are decrypted into the pooled buffer the frames are
+ * handed on from. The handshake is done on the loop before the handler is
+ * told the transport has opened; a client resumes its last session with the
+ * server if its {@link pb.transport.TlsContext} still has it.
+ *
+ * @see {@link pb.transport.TlsContext}
+ * @see {@link pb.transport.ChannelTransport}
+ * @author aaron
+ *
+ */
+public class TlsTransport extends ChannelTransport {
+	private static Logger log = Logger.getLogger(TlsTransport.class.getName());
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final TlsContext context;
+
+	/**
+	 * Encrypted bytes read that have not been decrypted yet, or null. Only
+	 * used on the loop.
+	 */
+	private ByteBuffer netIn = null;
+
+	/**
+	 * Whether the last fill stopped for lack of room in the frame buffer, and
+	 * whether the handshake has finished. Only used on the loop.
+	 */
+	private boolean more = false;
+	private boolean handshaken = false;
+
+	/**
+	 * When the handshake started, in ms and in ns.
+	 */
+	private long startedAt;
+	private long startedNanos;
+
+	/**
+	 * A transport for a connection accepted by a server.
+	 * @param channel
+	 * @param context
+	 * @throws IOException
+	 */
+	public TlsTransport(SocketChannel channel, TlsContext context) throws IOException {
+		this(channel, context, context.serverEngine());
+	}
+
+	/**
+	 * A transport for a client.
+	 * @param channel
+	 * @param context
+	 * @param host the name the client connected to
+	 * @param port
+	 * @throws IOException
+	 */
+	public TlsTransport(SocketChannel channel, TlsContext context, String host, int port) throws IOException {
+		this(channel, context, context.clientEngine(host, port));
+	}
+
+	private TlsTransport(SocketChannel channel, TlsContext context, SSLEngine engine) throws IOException {
+		super(channel);
+		this.context=context;
+		this.engine=engine;
+		if(engine.getSession().getPacketBufferSize()>BufferPool.PACKET_BUFFER_SIZE) {
+			throw new SSLException("TLS records are larger than "+BufferPool.PACKET_BUFFER_SIZE+" bytes");
+		}
+	}
+
+	@Override
+	protected void begin() {
+		startedAt = System.currentTimeMillis();
+		startedNanos = System.nanoTime();
+		try {
+			engine.beginHandshake();
+		} catch (SSLException e) {
+			fail(e);
+			return;
+		}
+		// the handshake is read before the transport opens
+		setInterest(SelectionKey.OP_READ, true);
+		readable(false);
+	}
+
+	/**
+	 * Read records, and decrypt them into the frame buffer, doing what the
+	 * engine needs along the way, e.g. the handshake.
+	 */
+	@Override
+	protected int fill(ByteBuffer frames, boolean read) throws IOException {
+		if(netIn==null) netIn = BufferPool.PACKETS.take();
+		int n = read ? channel.read(netIn) : 0;
+		netIn.flip();
+		more = false;
+		try {
+			for(;;) {
+				SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+				if(status==SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					// the handshake is short enough to do on the loop
+					Runnable task;
+					while((task=engine.getDelegatedTask())!=null) task.run();
+					continue;
+				}
+				if(status==SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					int produced;
+					synchronized(outLock) {
+						produced = wrap(EMPTY);
+					}
+					if(produced>0) continue;
+					break;
+				}
+				if(!netIn.hasRemaining()) break;
+				SSLEngineResult result = engine.unwrap(netIn, frames);
+				if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.FINISHED) handshaken();
+				switch(result.getStatus()) {
+				case BUFFER_UNDERFLOW:
+					// the rest of the record has not arrived yet
+					return n;
+				case BUFFER_OVERFLOW:
+					// decrypted once the frames before are handed on
+					more = true;
+					return n;
+				case CLOSED:
+					return -1;
+				default:
+				}
+				if(result.bytesConsumed()==0 && result.bytesProduced()==0
+						&& engine.getHandshakeStatus()==result.getHandshakeStatus()) break;
+			}
+		} finally {
+			netIn.compact();
+			if(netIn.position()==0) {
+				BufferPool.PACKETS.give(netIn);
+				netIn = null;
+			}
+		}
+		if(!handshaken && engine.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) handshaken();
+		return n;
+	}
+
+	@Override
+	protected boolean hasMore() {
+		return more;
+	}
+
+	/**
+	 * The handshake has finished, so open the transport, on the loop.
+	 */
+	private void handshaken() {
+		if(!loop.inLoop()) {
+			loop.execute(this::handshaken);
+			return;
+		}
+		if(handshaken) return;
+		handshaken = true;
+		SSLSession session = engine.getSession();
+		// a resumed session is the one that was made by an earlier handshake
+		boolean resumed = session.getCreationTime()<startedAt;
+		context.handshakeDone(resumed);
+		log.info((resumed ? "resumed " : "new ")+session.getProtocol()+" session with "+getRemoteId()
+				+" in "+(System.nanoTime()-startedNanos)/1000+"us, "+session.getCipherSuite());
+		opened();
+	}
+
+	@Override
+	public void send(byte[] buf, int off, int len) throws IOException {
+		synchronized(outLock) {
+			if(isClosed()) throw new ClosedChannelException();
+			wrap(ByteBuffer.wrap(buf, off, len));
+			awaitWritten();
+		}
+	}
+
+	@Override
+	public boolean trySend(byte[] buf, int off, int len) throws IOException {
+		synchronized(outLock) {
+			if(isClosed()) throw new ClosedChannelException();
+			if(isBacklogged()) return false;
+			wrap(ByteBuffer.wrap(buf, off, len));
+			return true;
+		}
+	}
+
+	/**
+	 * Encrypt into records and write them, a pooled buffer at a time. The
+	 * caller holds {@link #outLock}.
+	 * @param src
+	 * @return the number of encrypted bytes written
+	 * @throws IOException
+	 */
+	private int wrap(ByteBuffer src) throws IOException {
+		ByteBuffer netOut = BufferPool.PACKETS.take();
+		int produced = 0;
+		try {
+			for(;;) {
+				SSLEngineResult result = engine.wrap(src, netOut);
+				produced += result.bytesProduced();
+				if(result.getHandshakeStatus()==SSLEngineResult.HandshakeStatus.FINISHED) handshaken();
+				if(result.getStatus()==SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					if(netOut.position()==0) throw new SSLException("TLS record larger than the buffer");
+					flush(netOut);
+					continue;
+				}
+				if(result.getStatus()==SSLEngineResult.Status.CLOSED && result.bytesProduced()==0) {
+					flush(netOut);
+					if(src.hasRemaining()) throw new SSLException("TLS connection is closed");
+					break;
+				}
+				if(!src.hasRemaining()) break;
+			}
+			flush(netOut);
+		} finally {
+			BufferPool.PACKETS.give(netOut);
+		}
+		return produced;
+	}
+
+	private void flush(ByteBuffer netOut) throws IOException {
+		netOut.flip();
+		if(netOut.hasRemaining()) write(netOut);
+		netOut.clear();
+	}
+
+	@Override
+	protected void closing() {
+		synchronized(outLock) {
+			engine.closeOutbound();
+			try {
+				// tell the other end, as far as the channel takes it
+				wrap(EMPTY);
+			} catch (IOException e) {
+				log.fine("close notify not sent: "+e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	protected void release() {
+		super.release();
+		if(netIn!=null) {
+			BufferPool.PACKETS.give(netIn);
+			netIn = null;
+		}
+	}
+
+	/**
+	 * @return the session, once the handshake has finished
+	 */
+	public SSLSession getSession() {
+		return engine.getSession();
+	}
+}
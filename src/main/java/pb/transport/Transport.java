@@ -0,0 +1,127 @@
+package pb.transport;
+
+import java.io.IOException;
+
+/**
+ * The connection underneath an {@link pb.Endpoint}, which sends and receives
+ * frames: a two byte length followed by that many bytes. A transport only
+ * moves whole frames and knows nothing of the messages in them, so the
+ * endpoint, the manager and the protocols are the same whatever the transport
+ * is, e.g. plain TCP or TLS.
+ * <br/>
+ * Frames are handed to the {@link Handler} one at a time, in the order they
+ * arrived, by a thread of the transport that may be shared with other
+ * transports and so must not be blocked. Instead the handler stops the
+ * transport reading with {@link #pauseReading()}, and the other end's sends
+ * block once the buffers in between are full, or with
+ * {@link #trySend(byte[], int, int)}, are refused.
+ *
+ * @see {@link pb.Endpoint}
+ * @see {@link pb.transport.ChannelTransport}
+ * @see {@link pb.transport.TlsTransport}
+ * @see {@link pb.transport.SocketTransport}
+ * @see {@link pb.transport.LoopbackTransport}
+ * @author aaron
+ *
+ */
+public interface Transport {
+
+	/**
+	 * What a transport reports to, on its own thread.
+	 */
+	public interface Handler {
+		/**
+		 * The transport can be sent on, e.g. its handshake is done. Called
+		 * once, before any frame is received.
+		 */
+		public void opened();
+
+		/**
+		 * A frame was received. No more frames are received until this
+		 * returns, nor after it has called {@link Transport#pauseReading()}.
+		 * @param buf holds the frame, only until this returns
+		 * @param off where the frame starts, at its length
+		 * @param len the length of the frame, including its length
+		 */
+		public void frameReceived(byte[] buf, int off, int len);
+
+		/**
+		 * The connection has ended other than by {@link Transport#close()},
+		 * and nothing more will be received.
+		 * @param cause what broke it, or null if the other end closed it
+		 */
+		public void closed(IOException cause);
+	}
+
+	/**
+	 * Start the transport, e.g. its handshake, after which the handler is told
+	 * it has opened and frames are read.
+	 * @param handler
+	 * @throws IOException if the transport cannot be started
+	 */
+	public void start(Handler handler) throws IOException;
+
+	/**
+	 * Send a frame. Frames from concurrent sends are not interleaved, but
+	 * should be sent by one thread at a time to keep them in order. Blocks
+	 * while too much that was sent before is still waiting to be written,
+	 * unless called by the thread of the transport.
+	 * @param buf holds the frame, which may be reused once this returns
+	 * @param off where the frame starts, at its length
+	 * @param len the length of the frame, including its length
+	 * @throws IOException if the connection is broken or closed
+	 */
+	public void send(byte[] buf, int off, int len) throws IOException;
+
+	/**
+	 * Send a frame without blocking, e.g. one of many sent on by a thread
+	 * that others are waiting for, unless too much that was sent before is
+	 * still waiting to be written, i.e. the other end is not keeping up. A
+	 * transport that cannot tell just sends the frame.
+	 * @param buf holds the frame, which may be reused once this returns
+	 * @param off where the frame starts, at its length
+	 * @param len the length of the frame, including its length
+	 * @return true if the frame was sent, false if too much is waiting
+	 * @throws IOException if the connection is broken or closed
+	 */
+	public default boolean trySend(byte[] buf, int off, int len) throws IOException {
+		send(buf, off, len);
+		return true;
+	}
+
+	/**
+	 * Stop handing frames to the handler, and stop reading once what has been
+	 * read is buffered.
+	 */
+	public void pauseReading();
+
+	/**
+	 * Hand frames to the handler again, starting with those already read.
+	 */
+	public void resumeReading();
+
+	/**
+	 * Release what is held for reading and writing, that can be allocated
+	 * again when needed, e.g. because the connection is idle.
+	 */
+	public void trim();
+
+	/**
+	 * Close the connection. The handler is not told.
+	 */
+	public void close();
+
+	/**
+	 * @return whether the other end is on the same host, e.g. in the same
+	 * process over a {@link pb.transport.LoopbackTransport} or on a Unix
+	 * domain socket, so there is nothing to gain from e.g. a datagram link
+	 */
+	public default boolean isLocal() {
+		return false;
+	}
+
+	/**
+	 * @return the id of the other end, e.g. its address and port
+	 */
+	public String getRemoteId();
+}
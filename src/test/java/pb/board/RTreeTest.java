@@ -0,0 +1,167 @@
+package pb.board;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link pb.board.RTree}, against a scan of every value: inserts,
+ * removes and moves at random, removing most of the values so that nodes
+ * underflow and the tree condenses, bulk loading, and finding the values
+ * under a point.
+ *
+ * @author aaron
+ *
+ */
+public class RTreeTest {
+
+	/**
+	 * The side of the area the values are in, which is small enough for many
+	 * of them to overlap.
+	 */
+	private static final int AREA = 10000;
+
+	private static Rect randomRect(Random random) {
+		int x = random.nextInt(AREA);
+		int y = random.nextInt(AREA);
+		// mostly small, like strokes, with the odd large one
+		int size = random.nextInt(10)==0 ? random.nextInt(AREA/2) : random.nextInt(200);
+		return new Rect(x, y, x+random.nextInt(size+1), y+random.nextInt(size+1));
+	}
+
+	/**
+	 * Check that the tree finds the same values as a scan, in random regions
+	 * and under random points.
+	 */
+	private static void assertMatches(Map<Integer,Rect> expected, RTree<Integer> tree, Random random) {
+		assertEquals(expected.size(), tree.size());
+		Rect everything = new Rect(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertEquals(expected.keySet(), new HashSet<>(tree.search(everything)));
+		for(int i=0;i<20;i++) {
+			Rect region = randomRect(random);
+			Set<Integer> want = new HashSet<>();
+			for(Map.Entry<Integer,Rect> e : expected.entrySet()) {
+				if(e.getValue().intersects(region)) want.add(e.getKey());
+			}
+			List<Integer> got = tree.search(region);
+			assertEquals("each value is found once", new HashSet<>(got).size(), got.size());
+			assertEquals(want, new HashSet<>(got));
+
+			int x = random.nextInt(AREA);
+			int y = random.nextInt(AREA);
+			want.clear();
+			for(Map.Entry<Integer,Rect> e : expected.entrySet()) {
+				if(e.getValue().contains(x, y)) want.add(e.getKey());
+			}
+			assertEquals(want, new HashSet<>(tree.search(x, y)));
+		}
+	}
+
+	@Test
+	public void matchesScanAfterRandomEdits() {
+		Random random = new Random(42);
+		RTree<Integer> tree = new RTree<>();
+		Map<Integer,Rect> expected = new HashMap<>();
+		List<Integer> values = new ArrayList<>();
+		int next = 0;
+		for(int step=0;step<5000;step++) {
+			int op = random.nextInt(10);
+			if(values.isEmpty() || op<5) {
+				Rect bounds = randomRect(random);
+				tree.insert(next, bounds);
+				expected.put(next, bounds);
+				values.add(next++);
+			} else if(op<7) {
+				Integer value = values.remove(random.nextInt(values.size()));
+				assertTrue(tree.remove(value));
+				assertFalse(tree.remove(value));
+				expected.remove(value);
+			} else {
+				// moved a little, which mostly stays in its leaf, or far
+				int i = random.nextInt(values.size());
+				Integer old = values.get(i);
+				Rect was = expected.get(old);
+				Rect bounds = op<9 ? new Rect(was.minX+1, was.minY+1, was.maxX-1, was.maxY-1) : randomRect(random);
+				Integer value = random.nextBoolean() ? old : Integer.valueOf(next++);
+				tree.move(old, value, bounds);
+				expected.remove(old);
+				expected.put(value, bounds);
+				values.set(i, value);
+			}
+			if(step%100==0) assertMatches(expected, tree, random);
+		}
+		assertMatches(expected, tree, random);
+		// removing most of the values underflows nodes at every level
+		while(values.size()>3) {
+			Integer value = values.remove(random.nextInt(values.size()));
+			assertTrue(tree.remove(value));
+			expected.remove(value);
+			if(values.size()%50==0) assertMatches(expected, tree, random);
+		}
+		assertMatches(expected, tree, random);
+		for(Integer value : values) assertTrue(tree.remove(value));
+		assertEquals(0, tree.size());
+		assertTrue(tree.search(new Rect(0, 0, AREA, AREA)).isEmpty());
+	}
+
+	@Test
+	public void bulkLoadMatchesInserts() {
+		Random random = new Random(7);
+		Map<Integer,Rect> expected = new HashMap<>();
+		for(int i=0;i<5000;i++) expected.put(i, randomRect(random));
+		RTree<Integer> loaded = new RTree<>();
+		loaded.load(expected.keySet(), expected::get);
+		RTree<Integer> inserted = new RTree<>();
+		for(Map.Entry<Integer,Rect> e : expected.entrySet()) inserted.insert(e.getKey(), e.getValue());
+		for(int i=0;i<100;i++) {
+			Rect region = randomRect(random);
+			assertEquals(new HashSet<>(inserted.search(region)), new HashSet<>(loaded.search(region)));
+		}
+		assertMatches(expected, loaded, random);
+		// a loaded tree can be edited like any other
+		for(int i=0;i<5000;i+=2) {
+			assertTrue(loaded.remove(i));
+			expected.remove(i);
+		}
+		for(int i=1;i<5000;i+=6) {
+			Rect bounds = randomRect(random);
+			loaded.move(i, i, bounds);
+			expected.put(i, bounds);
+		}
+		assertMatches(expected, loaded, random);
+		// and loading again replaces what was there
+		expected.clear();
+		for(int i=0;i<10;i++) expected.put(i, randomRect(random));
+		loaded.load(expected.keySet(), expected::get);
+		assertMatches(expected, loaded, random);
+	}
+
+	@Test
+	public void findsValuesUnderAPoint() {
+		RTree<String> tree = new RTree<>();
+		tree.insert("square", new Rect(0, 0, 10, 10));
+		tree.insert("line", new Rect(5, 5, 5, 100));
+		tree.insert("dot", new Rect(20, 20, 20, 20));
+		// the edges are inside
+		assertEquals(Set.of("square"), new HashSet<>(tree.search(0, 0)));
+		assertEquals(Set.of("square", "line"), new HashSet<>(tree.search(5, 10)));
+		assertEquals(Set.of("line"), new HashSet<>(tree.search(5, 100)));
+		assertEquals(Set.of("dot"), new HashSet<>(tree.search(20, 20)));
+		assertTrue(tree.search(11, 5).isEmpty());
+		assertTrue(tree.search(6, 50).isEmpty());
+		assertTrue(tree.search(-1, -1).isEmpty());
+		tree.move("square", "square", new Rect(100, 100, 110, 110));
+		assertTrue(tree.search(0, 0).isEmpty());
+		assertEquals(Set.of("square"), new HashSet<>(tree.search(110, 100)));
+	}
+}
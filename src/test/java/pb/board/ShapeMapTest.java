@@ -0,0 +1,138 @@
+package pb.board;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the last-writer-wins merge of {@link pb.board.ShapeMap}: replicas
+ * that apply the same puts, removes and clears in different orders end up
+ * with the same shapes, while appends to a stroke only apply in order.
+ *
+ * @author aaron
+ *
+ */
+public class ShapeMapTest {
+
+	private static final String BOARD = "test";
+
+	private static Shape shape(long id, long clock, int replica, int x) {
+		return new Shape(id, clock, replica, 0, 2, new int[] {x, x, x+10, x+10});
+	}
+
+	/**
+	 * Edits by two replicas to the same few shapes, some of them concurrent,
+	 * i.e. with the same clock.
+	 */
+	private static List<BoardOp> edits() {
+		List<BoardOp> ops = new ArrayList<>();
+		for(long id=1;id<=6;id++) ops.add(BoardOp.put(BOARD, shape(id, id, 1, (int) id*20)));
+		// both replicas move shape 2 at once, replica 2 wins
+		ops.add(BoardOp.put(BOARD, shape(2, 10, 1, 100)));
+		ops.add(BoardOp.put(BOARD, shape(2, 10, 2, 200)));
+		// one removes shape 3 while the other moves it later
+		ops.add(BoardOp.remove(BOARD, 3, 11, 2));
+		ops.add(BoardOp.put(BOARD, shape(3, 12, 1, 300)));
+		// one moves shape 4 while the other removes it later
+		ops.add(BoardOp.put(BOARD, shape(4, 11, 1, 400)));
+		ops.add(BoardOp.remove(BOARD, 4, 13, 2));
+		// a clear, which shape 5 is moved after and shape 6 before
+		ops.add(BoardOp.put(BOARD, shape(6, 14, 2, 600)));
+		ops.add(BoardOp.clear(BOARD, 15, 1));
+		ops.add(BoardOp.put(BOARD, shape(5, 16, 2, 500)));
+		ops.add(BoardOp.put(BOARD, shape(7, 17, 1, 700)));
+		return ops;
+	}
+
+	private static ShapeMap merge(List<BoardOp> ops) {
+		ShapeMap map = new ShapeMap(true);
+		for(BoardOp op : ops) map.apply(op);
+		return map;
+	}
+
+	private static void assertSameShapes(ShapeMap expected, ShapeMap actual) {
+		List<Shape> want = expected.getShapes();
+		List<Shape> got = actual.getShapes();
+		assertEquals(want.size(), got.size());
+		want.sort(Comparator.comparingLong(shape -> shape.id));
+		got.sort(Comparator.comparingLong(shape -> shape.id));
+		for(int i=0;i<want.size();i++) {
+			Shape w = want.get(i);
+			Shape g = got.get(i);
+			assertEquals(w.id, g.id);
+			assertEquals(w.clock, g.clock);
+			assertEquals(w.replica, g.replica);
+			assertArrayEquals(w.getPoints(), g.getPoints());
+		}
+		Rect everything = new Rect(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertEquals(want.size(), actual.search(everything).size());
+	}
+
+	@Test
+	public void mergesToLastWriter() {
+		ShapeMap map = merge(edits());
+		assertEquals(2, map.size());
+		assertNull(map.get(2));
+		assertNull(map.get(3));
+		assertNull(map.get(4));
+		assertNull(map.get(6));
+		assertEquals(16, map.get(5).clock);
+		assertEquals(17, map.get(7).clock);
+	}
+
+	@Test
+	public void convergesWhateverTheOrder() {
+		List<BoardOp> ops = edits();
+		ShapeMap expected = merge(ops);
+		List<BoardOp> reversed = new ArrayList<>(ops);
+		Collections.reverse(reversed);
+		assertSameShapes(expected, merge(reversed));
+		Random random = new Random(42);
+		for(int i=0;i<100;i++) {
+			List<BoardOp> shuffled = new ArrayList<>(ops);
+			Collections.shuffle(shuffled, random);
+			assertSameShapes(expected, merge(shuffled));
+		}
+	}
+
+	@Test
+	public void convergesBeforeTheClear() {
+		// without the clear, the concurrent moves and removes still converge
+		List<BoardOp> ops = edits();
+		ops.removeIf(op -> op.type==BoardOp.Type.CLEAR);
+		ShapeMap expected = merge(ops);
+		assertEquals(200, expected.get(2).x(0));
+		assertEquals(300, expected.get(3).x(0));
+		assertNull(expected.get(4));
+		List<BoardOp> reversed = new ArrayList<>(ops);
+		Collections.reverse(reversed);
+		assertSameShapes(expected, merge(reversed));
+	}
+
+	@Test
+	public void appendsOnlyInOrder() {
+		BoardOp start = BoardOp.append(BOARD, new Shape(9, 1, 1, 0, 2, new int[] {0, 0, 1, 1}), 0);
+		BoardOp more = BoardOp.append(BOARD, new Shape(9, 2, 1, 0, 2, new int[] {2, 2}), 2);
+		ShapeMap inOrder = new ShapeMap(false);
+		assertTrue(inOrder.apply(start));
+		assertTrue(inOrder.apply(more));
+		assertEquals(3, inOrder.get(9).numPoints());
+		// out of order, the second segment does not fit the end of the stroke
+		ShapeMap outOfOrder = new ShapeMap(false);
+		assertFalse(outOfOrder.apply(more));
+		assertTrue(outOfOrder.apply(start));
+		assertNotNull(outOfOrder.get(9));
+		assertEquals(2, outOfOrder.get(9).numPoints());
+	}
+}
@@ -0,0 +1,92 @@
+package pb.protocols;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link pb.protocols.JsonReader}, in particular that input nested
+ * too deeply is refused rather than overflowing the stack of the thread
+ * parsing it.
+ *
+ * @author aaron
+ *
+ */
+public class JsonReaderTest {
+	
+	private static Document parse(String json) {
+		byte[] buf = json.getBytes(StandardCharsets.UTF_8);
+		return JsonReader.get().parse(buf, 0, buf.length);
+	}
+	
+	/**
+	 * @param depth how many objects to nest, including the outermost
+	 * @return e.g. {"a":{"a":{}}} for a depth of 3
+	 */
+	private static String nestedObjects(int depth) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=1;i<depth;i++) sb.append("{\"a\":");
+		sb.append("{}");
+		for(int i=1;i<depth;i++) sb.append('}');
+		return sb.toString();
+	}
+	
+	/**
+	 * @param depth how many arrays to nest in the outermost object
+	 * @return e.g. {"a":[[]]} for a depth of 2
+	 */
+	private static String nestedArrays(int depth) {
+		StringBuilder sb = new StringBuilder("{\"a\":");
+		for(int i=0;i<depth;i++) sb.append('[');
+		for(int i=0;i<depth;i++) sb.append(']');
+		return sb.append('}').toString();
+	}
+	
+	@Test
+	public void parsesMessage() {
+		Document doc = parse("{\"name\":\"BoardEdit\",\"x\":-3,\"w\":1.5,\"ok\":true,"
+				+"\"points\":[1,2,3],\"list\":[\"s\",{\"k\":null},[4.5]]}");
+		assertNotNull(doc);
+		assertEquals("BoardEdit", doc.getString("name"));
+		assertEquals(-3, doc.getLong("x"));
+		assertEquals(1.5, doc.getDouble("w"), 0);
+		assertEquals(3, doc.getLongArray("points").length);
+		assertEquals(3, ((List<?>) doc.get("list")).size());
+	}
+	
+	@Test
+	public void parsesNestingUpToTheLimit() {
+		assertNotNull(parse(nestedObjects(JsonReader.MAX_DEPTH)));
+		// the outermost object is one level
+		assertNotNull(parse(nestedArrays(JsonReader.MAX_DEPTH-1)));
+	}
+	
+	@Test
+	public void refusesNestingPastTheLimit() {
+		assertNull(parse(nestedObjects(JsonReader.MAX_DEPTH+1)));
+		assertNull(parse(nestedArrays(JsonReader.MAX_DEPTH)));
+	}
+	
+	@Test
+	public void refusesDeeplyNestedInput() {
+		// enough to overflow the stack if each level recursed
+		assertNull(parse(nestedObjects(100000)));
+		assertNull(parse(nestedArrays(100000)));
+		StringBuilder sb = new StringBuilder("{\"a\":");
+		for(int i=0;i<100000;i++) sb.append("[{\"a\":");
+		assertNull(parse(sb.toString()));
+	}
+	
+	@Test
+	public void reusableAfterRefusing() {
+		assertNull(parse(nestedArrays(1000)));
+		// the depth of the refused input is not carried over
+		assertNotNull(parse(nestedArrays(JsonReader.MAX_DEPTH-1)));
+		assertNotNull(parse(nestedObjects(JsonReader.MAX_DEPTH)));
+	}
+}
@@ -0,0 +1,96 @@
+package pb.server.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pb.protocols.asset.AssetProtocol;
+
+/**
+ * Tests for the uploads of {@link pb.server.store.AssetStore}: an asset is
+ * uploaded by one transfer at a time, and partial uploads expire.
+ *
+ * @author aaron
+ *
+ */
+public class AssetStoreTest {
+
+	private Path dir;
+	private AssetStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("pb-assets");
+		store = new AssetStore(dir);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try(Stream<Path> files = Files.walk(dir)) {
+			for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+		}
+	}
+
+	private String hashOf(byte[] contents) throws IOException {
+		Path tmp = dir.resolve("tmp");
+		Files.write(tmp, contents);
+		String hash = AssetProtocol.hash(tmp);
+		Files.delete(tmp);
+		return hash;
+	}
+
+	@Test
+	public void uploadsOneTransferAtATime() throws IOException {
+		byte[] contents = "an asset".getBytes(StandardCharsets.UTF_8);
+		String hash = hashOf(contents);
+		Path part = store.beginUpload(hash);
+		assertNotNull(part);
+		// a second client uploading the same asset is refused
+		assertNull(store.beginUpload(hash));
+		Files.write(part, contents);
+		assertTrue(store.commit(hash, part));
+		store.endUpload(hash);
+		assertTrue(store.contains(hash));
+		assertFalse(Files.exists(part));
+		assertNotNull(store.beginUpload(hash));
+	}
+
+	@Test
+	public void expiresStaleParts() throws IOException {
+		String stale = hashOf(new byte[] {1});
+		String fresh = hashOf(new byte[] {2});
+		String inUse = hashOf(new byte[] {3});
+		long old = System.currentTimeMillis()-AssetStore.PART_TTL-1000;
+		Path stalePart = store.beginUpload(stale);
+		Path freshPart = store.beginUpload(fresh);
+		Path inUsePart = store.beginUpload(inUse);
+		for(Path part : new Path[] {stalePart, freshPart, inUsePart}) Files.write(part, new byte[] {0});
+		Files.setLastModifiedTime(stalePart, FileTime.fromMillis(old));
+		Files.setLastModifiedTime(inUsePart, FileTime.fromMillis(old));
+		store.endUpload(stale);
+		store.endUpload(fresh);
+		assertEquals(1, store.expireParts());
+		assertFalse(Files.exists(stalePart));
+		assertTrue(Files.exists(freshPart));
+		assertTrue(Files.exists(inUsePart));
+		// and when the store is opened
+		store.endUpload(inUse);
+		store = new AssetStore(dir);
+		assertFalse(Files.exists(inUsePart));
+		assertTrue(Files.exists(freshPart));
+	}
+}
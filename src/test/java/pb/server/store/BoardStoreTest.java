@@ -0,0 +1,121 @@
+package pb.server.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pb.board.Board;
+import pb.board.BoardOp;
+import pb.board.Shape;
+
+/**
+ * Tests for the recovery of {@link pb.server.store.BoardStore}: after a crash,
+ * i.e. without the snapshots that closing the store writes, the boards are
+ * rebuilt from the log, up to the last record that is whole.
+ *
+ * @author aaron
+ *
+ */
+public class BoardStoreTest {
+
+	private static final String BOARD = "test";
+
+	/**
+	 * The length, checksum and lsn in front of each log record.
+	 */
+	private static final int HEADER = 4+4+8;
+
+	private Path dir;
+	private BoardStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("pb-store");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if(store!=null) store.close();
+		try(Stream<Path> files = Files.walk(dir)) {
+			for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+		}
+	}
+
+	private static Shape shape(long id, long clock) {
+		return new Shape(id, clock, 1, 0xff0000, 3, new int[] {(int) id, 0, (int) id+10, 20});
+	}
+
+	/**
+	 * Apply the operations to a store that is then abandoned, as if the
+	 * server had crashed, and wait for the log to reach disk.
+	 * @return where each operation's record ends in the log
+	 */
+	private int[] crashAfter(BoardOp... ops) throws Exception {
+		BoardStore crashed = new BoardStore(dir);
+		int[] ends = new int[ops.length];
+		int end = 0;
+		long lsn = 0;
+		for(int i=0;i<ops.length;i++) {
+			lsn = crashed.apply(ops[i]);
+			end += HEADER+ops[i].encodedSize();
+			ends[i] = end;
+		}
+		// the store is not closed, since that would snapshot the boards
+		Thread.sleep(100);
+		assertEquals(ops.length, lsn);
+		return ends;
+	}
+
+	private void overwrite(int pos, byte[] bytes) throws IOException {
+		try(FileChannel channel = FileChannel.open(dir.resolve("wal").resolve(String.format("%020d.wal", 1)),
+				StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(bytes), pos);
+		}
+	}
+
+	private static void assertShape(Shape expected, Shape actual) {
+		assertEquals(expected.clock, actual.clock);
+		assertEquals(expected.replica, actual.replica);
+		assertArrayEquals(expected.getPoints(), actual.getPoints());
+	}
+
+	@Test
+	public void recoversEveryOperation() throws Exception {
+		crashAfter(BoardOp.put(BOARD, shape(1, 10)), BoardOp.put(BOARD, shape(2, 11)),
+				BoardOp.remove(BOARD, 1, 12, 1));
+		store = new BoardStore(dir);
+		Board board = store.getBoard(BOARD);
+		assertEquals(3, board.getLastLsn());
+		assertNull(board.getShape(1));
+		assertShape(shape(2, 11), board.getShape(2));
+	}
+
+	@Test
+	public void recoversToLastGoodRecord() throws Exception {
+		int[] ends = crashAfter(BoardOp.put(BOARD, shape(1, 10)), BoardOp.put(BOARD, shape(2, 11)),
+				BoardOp.put(BOARD, shape(1, 12).moved(5, 5)));
+		// tear the payload of the last record, the move
+		overwrite(ends[1]+HEADER+4, new byte[8]);
+		store = new BoardStore(dir);
+		Board board = store.getBoard(BOARD);
+		assertEquals(2, board.getLastLsn());
+		assertShape(shape(1, 10), board.getShape(1));
+		assertShape(shape(2, 11), board.getShape(2));
+		// the next operation is logged in place of the torn one
+		assertEquals(3, store.apply(BoardOp.remove(BOARD, 2, 13, 1)));
+		assertNull(board.getShape(2));
+	}
+}
@@ -0,0 +1,162 @@
+package pb.server.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link pb.server.store.WriteAheadLog}, in particular that a log
+ * whose last record was torn or corrupted, e.g. by a crash part way through
+ * an append, is recovered to the record before it.
+ *
+ * @author aaron
+ *
+ */
+public class WriteAheadLogTest {
+
+	private static final int SEGMENT_SIZE = 64*1024;
+	private static final int RECORD = 100;
+
+	/**
+	 * The length, checksum and lsn in front of each record.
+	 */
+	private static final int HEADER = 4+4+8;
+
+	private Path dir;
+	private WriteAheadLog wal;
+	private int segmentSize = SEGMENT_SIZE;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("pb-wal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if(wal!=null) wal.close();
+		for(File file : dir.toFile().listFiles()) file.delete();
+		Files.delete(dir);
+	}
+
+	private static byte[] record(int n) {
+		byte[] record = new byte[RECORD];
+		for(int i=0;i<RECORD;i++) record[i] = (byte) (n*7+i);
+		return record;
+	}
+
+	/**
+	 * Append records 1 to n, and close the log.
+	 */
+	private void write(int n) throws IOException {
+		wal = new WriteAheadLog(dir, segmentSize, 10);
+		for(int i=1;i<=n;i++) assertEquals(i, wal.append(record(i), 0, RECORD));
+		wal.close();
+		wal = null;
+	}
+
+	/**
+	 * Open the log again, and check it replays records 1 to n.
+	 */
+	private void assertRecovers(int n) throws IOException {
+		wal = new WriteAheadLog(dir, segmentSize, 10);
+		assertEquals(n+1, wal.getNextLsn());
+		List<byte[]> replayed = new ArrayList<>();
+		wal.replay(0, (lsn, payload)->{
+			assertEquals(replayed.size()+1, lsn);
+			byte[] record = new byte[payload.remaining()];
+			payload.get(record);
+			replayed.add(record);
+		});
+		assertEquals(n, replayed.size());
+		for(int i=1;i<=n;i++) assertArrayEquals(record(i), replayed.get(i-1));
+	}
+
+	private Path segment() {
+		return dir.resolve(String.format("%020d.wal", 1));
+	}
+
+	/**
+	 * @param n
+	 * @return the offset of record n in the segment
+	 */
+	private static int offset(int n) {
+		return (n-1)*(HEADER+RECORD);
+	}
+
+	private void overwrite(int pos, byte[] bytes) throws IOException {
+		try(FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(bytes), pos);
+		}
+	}
+
+	@Test
+	public void replaysEveryRecord() throws IOException {
+		write(5);
+		assertRecovers(5);
+	}
+
+	@Test
+	public void dropsTornFinalRecord() throws IOException {
+		write(5);
+		// the length was written but the end of the payload was not
+		overwrite(offset(5)+HEADER+RECORD/2, new byte[RECORD/2]);
+		assertRecovers(4);
+	}
+
+	@Test
+	public void dropsCorruptFinalRecord() throws IOException {
+		write(5);
+		byte[] flipped = {(byte) ~record(5)[10]};
+		overwrite(offset(5)+HEADER+10, flipped);
+		assertRecovers(4);
+	}
+
+	@Test
+	public void dropsRecordCutOffByEndOfFile() throws IOException {
+		write(5);
+		try(FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+			channel.truncate(offset(5)+HEADER+RECORD/2);
+		}
+		assertRecovers(4);
+	}
+
+	@Test
+	public void appendsAfterRecoveredRecord() throws IOException {
+		write(5);
+		overwrite(offset(5)+HEADER, new byte[1]);
+		assertRecovers(4);
+		// the record that replaces the corrupt one has its lsn
+		assertEquals(5, wal.append(record(5), 0, RECORD));
+		wal.close();
+		wal = null;
+		assertRecovers(5);
+	}
+
+	@Test
+	public void appendsAfterGapInSegments() throws IOException {
+		// three records to a segment
+		segmentSize = 3*(HEADER+RECORD)+HEADER;
+		write(9);
+		Files.delete(dir.resolve(String.format("%020d.wal", 4)));
+		// the segments after the gap are discarded
+		assertRecovers(3);
+		assertEquals(4, wal.append(record(4), 0, RECORD));
+		assertEquals(5, wal.append(record(5), 0, RECORD));
+		wal.close();
+		wal = null;
+		assertRecovers(5);
+	}
+}
@@ -0,0 +1,227 @@
+package pb.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for {@link pb.transport.TlsTransport}, over a loopback TCP connection
+ * with a self-signed certificate made by keytool: the handshake, frames
+ * larger than a TLS record in both directions, closing, and a client that
+ * connects again resuming its session.
+ *
+ * @author aaron
+ *
+ */
+public class TlsTransportTest {
+
+	private static final char[] PASSWORD = "changeit".toCharArray();
+
+	/**
+	 * Several times a TLS record, and more than half the frame buffer, so
+	 * that frames sent back to back do not all fit in it.
+	 */
+	private static final int FRAME_SIZE = 60000;
+	private static final int FRAMES = 4;
+
+	private static final long WAIT = 10;
+
+	private static Path dir;
+	private static TlsContext serverContext;
+	private static ServerSocketChannel acceptor;
+
+	/**
+	 * The transports the server has accepted, once they are open.
+	 */
+	private static final BlockingQueue<Peer> accepted = new LinkedBlockingQueue<>();
+
+	/**
+	 * One end of a connection, which keeps the frames it receives.
+	 */
+	private static final class Peer implements Transport.Handler {
+		TlsTransport transport;
+		final CountDownLatch opened = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+
+		@Override
+		public void opened() {
+			opened.countDown();
+		}
+
+		@Override
+		public void frameReceived(byte[] buf, int off, int len) {
+			frames.add(Arrays.copyOfRange(buf, off, off+len));
+		}
+
+		@Override
+		public void closed(IOException cause) {
+			closed.countDown();
+		}
+
+		byte[] take() throws InterruptedException {
+			byte[] frame = frames.poll(WAIT, TimeUnit.SECONDS);
+			assertNotNull("frame not received", frame);
+			return frame;
+		}
+	}
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		dir = Files.createTempDirectory("pb-tls");
+		Path keyStore = dir.resolve("server.p12");
+		Path trustStore = dir.resolve("trust.p12");
+		keytool("-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+				"-storetype", "PKCS12", "-keystore", keyStore.toString(),
+				"-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD));
+		// the client trusts the certificate, but does not have the key
+		KeyStore keys = KeyStore.getInstance(keyStore.toFile(), PASSWORD);
+		KeyStore trust = KeyStore.getInstance("PKCS12");
+		trust.load(null, null);
+		trust.setCertificateEntry("server", keys.getCertificate("server"));
+		try(OutputStream out = Files.newOutputStream(trustStore)) {
+			trust.store(out, PASSWORD);
+		}
+		serverContext = TlsContext.load(keyStore, PASSWORD, null, null);
+
+		acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Thread accepting = new Thread(()->{
+			try {
+				while(true) {
+					SocketChannel channel = acceptor.accept();
+					Peer peer = new Peer();
+					peer.transport = new TlsTransport(channel, serverContext);
+					peer.transport.start(peer);
+					accepted.add(peer);
+				}
+			} catch (IOException e) {
+				// closed at the end
+			}
+		}, "acceptor");
+		accepting.setDaemon(true);
+		accepting.start();
+	}
+
+	@AfterClass
+	public static void tearDown() throws IOException {
+		if(acceptor!=null) acceptor.close();
+		if(dir==null) return;
+		for(File file : dir.toFile().listFiles()) file.delete();
+		Files.delete(dir);
+	}
+
+	private static void keytool(String... args) throws IOException, InterruptedException {
+		String[] command = new String[args.length+1];
+		command[0] = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+		System.arraycopy(args, 0, command, 1, args.length);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		byte[] output;
+		try(InputStream in = process.getInputStream()) {
+			output = in.readAllBytes();
+		}
+		assertEquals("keytool failed: "+new String(output), 0, process.waitFor());
+	}
+
+	private static TlsContext clientContext() throws Exception {
+		return TlsContext.load(null, null, dir.resolve("trust.p12"), PASSWORD);
+	}
+
+	/**
+	 * Connect a client and wait for both ends to finish the handshake.
+	 * @return the client end, and the server end
+	 */
+	private static Peer[] connect(TlsContext context) throws Exception {
+		int port = ((InetSocketAddress) acceptor.getLocalAddress()).getPort();
+		SocketChannel channel = IOEngine.getInstance()
+				.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)).get(WAIT, TimeUnit.SECONDS);
+		Peer client = new Peer();
+		client.transport = new TlsTransport(channel, context, "localhost", port);
+		client.transport.start(client);
+		Peer server = accepted.poll(WAIT, TimeUnit.SECONDS);
+		assertNotNull("connection not accepted", server);
+		assertTrue("client handshake did not finish", client.opened.await(WAIT, TimeUnit.SECONDS));
+		assertTrue("server handshake did not finish", server.opened.await(WAIT, TimeUnit.SECONDS));
+		return new Peer[] {client, server};
+	}
+
+	/**
+	 * @param len the length of the frame, including its two byte length
+	 * @param seed
+	 * @return a frame with a pattern in it
+	 */
+	private static byte[] frame(int len, int seed) {
+		byte[] frame = new byte[len];
+		frame[0] = (byte) ((len-2)>>8);
+		frame[1] = (byte) (len-2);
+		for(int i=2;i<len;i++) frame[i] = (byte) (i*31+seed);
+		return frame;
+	}
+
+	/**
+	 * Send frames back to back, and check they arrive whole and in order.
+	 */
+	private static void exchange(Peer from, Peer to) throws Exception {
+		byte[][] sent = new byte[FRAMES+1][];
+		for(int i=0;i<FRAMES;i++) sent[i] = frame(FRAME_SIZE, i);
+		sent[FRAMES] = frame(3, FRAMES);
+		for(byte[] frame : sent) from.transport.send(frame, 0, frame.length);
+		for(byte[] frame : sent) assertArrayEquals(frame, to.take());
+	}
+
+	@Test
+	public void exchangesFramesLargerThanARecord() throws Exception {
+		Peer[] peers = connect(clientContext());
+		Peer client = peers[0];
+		Peer server = peers[1];
+		assertTrue(FRAME_SIZE>client.transport.getSession().getApplicationBufferSize());
+		exchange(client, server);
+		exchange(server, client);
+		client.transport.close();
+		assertTrue("server not told the client closed", server.closed.await(WAIT, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void resumesSessionWhenConnectingAgain() throws Exception {
+		TlsContext context = clientContext();
+		Peer[] first = connect(context);
+		// the session ticket of TLS 1.3 comes after the handshake
+		exchange(first[1], first[0]);
+		first[0].transport.close();
+		assertTrue(first[1].closed.await(WAIT, TimeUnit.SECONDS));
+		assertEquals(1, context.getHandshakes());
+		assertEquals(0, context.getResumptions());
+
+		// a resumed session is told apart by being made before the handshake
+		Thread.sleep(5);
+		Peer[] second = connect(context);
+		exchange(second[0], second[1]);
+		assertEquals(2, context.getHandshakes());
+		assertEquals(1, context.getResumptions());
+		second[0].transport.close();
+		assertTrue(second[1].closed.await(WAIT, TimeUnit.SECONDS));
+	}
+}